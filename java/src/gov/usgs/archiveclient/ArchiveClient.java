@@ -5,24 +5,29 @@ import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.PropertyConfigurator;
 
 import gov.usgs.hazdevbroker.Utility;
+import gov.usgs.hazdevbroker.ClientBase;
 import gov.usgs.hazdevbroker.Consumer;
+import gov.usgs.hazdevbroker.ArchiveConsumer;
+import gov.usgs.hazdevbroker.ArchiveWriter;
+import gov.usgs.hazdevbroker.ArchiveWriterFactory;
+import gov.usgs.hazdevbroker.BlockArchiveWriter;
+import gov.usgs.hazdevbroker.RotatingArchiveWriter;
+import gov.usgs.hazdevbroker.ThreadedArchiveWriter;
+import gov.usgs.hazdevbroker.TextArchiveWriter;
 
 import java.util.*;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
 
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
 
 /**
  * a client class used to archive messages out of one or more hazdev-broker
- * (kafka) topics and write the messages to daily files based on the provided
+ * (kafka) topics and write the messages to daily (or hourly) files based on the provided
  * configuration
  *
  * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
@@ -40,6 +45,40 @@ public class ArchiveClient {
 	public static final String FILE_NAME = "FileName";
 	public static final String OUTPUT_DIRECTORY = "OutputDirectory";
 	public static final String POLL_TIMEOUT = "PollTimeout";
+	public static final String BACKFILL_SPAN = "BackfillSpan";
+	public static final String BACKFILL_THREADS = "BackfillThreads";
+	public static final String ARCHIVE_FORMAT = "ArchiveFormat";
+	public static final String BLOCK_MESSAGES = "BlockMessages";
+	public static final String BLOCK_SECONDS = "BlockSeconds";
+	public static final String TIME_FIELD = "TimeField";
+	public static final String INDEX_MESSAGES = "IndexMessages";
+	public static final String INDEX_KEYS = "IndexKeys";
+	public static final String SYNC_MILLIS = "SyncMillis";
+	public static final String SYNC_BYTES = "SyncBytes";
+	public static final String ROTATION_PERIOD = "RotationPeriod";
+	public static final String MAX_FILE_BYTES = "MaxFileBytes";
+	public static final String COMPRESS_ROTATED = "CompressRotated";
+	public static final String STREAM_BY = "StreamBy";
+
+	/**
+	 * Default group commit limits, used when only one of SyncMillis and 
+	 * SyncBytes is configured
+	 */
+	public static final long DEFAULT_SYNC_MILLIS = 1000;
+	public static final long DEFAULT_SYNC_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * Archive formats
+	 */
+	public static final String TEXT_FORMAT = "Text";
+	public static final String BLOCK_FORMAT = "Block";
+
+	/**
+	 * Archive stream modes
+	 */
+	public static final String STREAM_NONE = "None";
+	public static final String STREAM_TOPIC = "Topic";
+	public static final String STREAM_PARTITION = "Partition";
 
 	/**
 	 * Required configuration string defining the output directory
@@ -63,14 +102,120 @@ public class ArchiveClient {
 	private static long pollTimeout = 10;
 
 	/**
-	 * Log4J logger for ConsumerClient
+	 * Optional configuration Long defining the number of seconds before 
+	 * startup to backfill from, default is null (no backfill)
 	 */
-	static Logger logger = Logger.getLogger(ArchiveClient.class);
+	private static Long backfillSpan;
 
 	/**
-	 * Optional configuration string defining the output file name
+	 * Optional configuration Long defining the number of threads to use when
+	 * backfilling, default is 4
+	 */
+	private static Long backfillThreads;
+
+	/**
+	 * Optional configuration string defining the archive format, either Text
+	 * or Block, default is Text
 	 */
-	private static String outFileName;
+	private static String archiveFormat;
+
+	/**
+	 * Optional configuration Long defining the maximum number of messages in
+	 * a block when using the Block format, default is 1000
+	 */
+	private static Long blockMessages;
+
+	/**
+	 * Optional configuration Long defining the maximum number of seconds
+	 * messages are held before their block is written when using the Block
+	 * format, default is 60 seconds
+	 */
+	private static Long blockSeconds;
+
+	/**
+	 * Optional configuration string defining the message field containing the
+	 * message time, default is Time
+	 */
+	private static String timeField;
+
+	/**
+	 * Optional configuration Long defining the number of messages in each 
+	 * time index entry when using the Text format, default is 0 (no index)
+	 */
+	private static Long indexMessages;
+
+	/**
+	 * Optional configuration list of the message fields to build a key index
+	 * for, such as Site.Station, default is none (no key index)
+	 */
+	private static ArrayList<String> indexKeys;
+
+	/**
+	 * Optional configuration string defining how often to start a new archive
+	 * file, either Day or Hour (UTC), default is Day
+	 */
+	private static String rotationPeriod;
+
+	/**
+	 * Optional configuration Long defining the maximum number of bytes of
+	 * messages to write to an archive file before starting a new one, 
+	 * default is 0 (no limit)
+	 */
+	private static Long maxFileBytes;
+
+	/**
+	 * Optional configuration Boolean defining whether to compress archive 
+	 * files once they are rotated, default is false
+	 */
+	private static Boolean compressRotated;
+
+	/**
+	 * Optional configuration string defining whether to write each topic 
+	 * (Topic) or topic partition (Partition) to its own archive stream, with
+	 * its own directory and writer thread, default is None (one archive)
+	 */
+	private static String streamBy;
+
+	/**
+	 * The archive writers, keyed by stream name, the empty string when not
+	 * using archive streams
+	 */
+	private static LinkedHashMap<String, ArchiveWriter> fileWriters;
+
+	/**
+	 * Optional configuration Long defining the maximum number of milliseconds
+	 * between forcing the archive to disk and committing the offsets of the 
+	 * archived messages, default is null (auto commit, no forcing)
+	 */
+	private static Long syncMillis;
+
+	/**
+	 * Optional configuration Long defining the maximum number of bytes written
+	 * between forcing the archive to disk and committing the offsets of the 
+	 * archived messages, default is null (auto commit, no forcing)
+	 */
+	private static Long syncBytes;
+
+	/**
+	 * Flag indicating whether offsets are only committed once the archived
+	 * messages are forced to disk
+	 */
+	private static boolean durable;
+
+	/**
+	 * The number of bytes written since the archive was last forced to disk
+	 */
+	private static long unsyncedBytes;
+
+	/**
+	 * The time the archive was last forced to disk
+	 */
+	private static long lastSyncTime;
+
+	/**
+	 * Log4J logger for ConsumerClient
+	 */
+	static Logger logger = Logger.getLogger(ArchiveClient.class);
 
 	/**
 	 * Long defining the number seconds between logging kafka metrics, 
@@ -102,6 +247,24 @@ public class ArchiveClient {
 		outputDirectory = null;
 		fileExtension = null;
 		fileName = new String();
+		backfillSpan = null;
+		backfillThreads = 4L;
+		archiveFormat = TEXT_FORMAT;
+		blockMessages = (long) BlockArchiveWriter.DEFAULT_BLOCK_MESSAGES;
+		blockSeconds = BlockArchiveWriter.DEFAULT_BLOCK_MILLIS / 1000;
+		timeField = ArchiveConsumer.DEFAULT_TIME_FIELD;
+		indexMessages = 0L;
+		indexKeys = new ArrayList<String>();
+		rotationPeriod = RotatingArchiveWriter.DAY_PERIOD;
+		maxFileBytes = 0L;
+		compressRotated = false;
+		streamBy = STREAM_NONE;
+		fileWriters = new LinkedHashMap<String, ArchiveWriter>();
+		syncMillis = null;
+		syncBytes = null;
+		durable = false;
+		unsyncedBytes = 0;
+		lastSyncTime = System.currentTimeMillis();
 		metricInterval = 30L;
 		lastMetricTime = (Long) (System.currentTimeMillis() / 1000);
 
@@ -182,6 +345,150 @@ public class ArchiveClient {
 			logger.info("Using default poll timeout of: " + String.valueOf(pollTimeout));
 		}
 	
+		// get backfill span
+		if (configJSON.containsKey(BACKFILL_SPAN)) {
+			backfillSpan = (Long) configJSON.get(BACKFILL_SPAN);
+			logger.info("Using configured backfillSpan of: "
+					+ backfillSpan.toString());
+		} else {
+			logger.info("Not using backfillSpan.");
+		}
+
+		// get backfill threads
+		if (configJSON.containsKey(BACKFILL_THREADS)) {
+			backfillThreads = (Long) configJSON.get(BACKFILL_THREADS);
+			logger.info("Using configured backfillThreads of: "
+					+ backfillThreads.toString());
+		}
+
+		// get archive format
+		if (configJSON.containsKey(ARCHIVE_FORMAT)) {
+			archiveFormat = (String) configJSON.get(ARCHIVE_FORMAT);
+			if (!archiveFormat.equals(TEXT_FORMAT) && 
+				!archiveFormat.equals(BLOCK_FORMAT)) {
+				logger.error("Error, invalid ArchiveFormat in configuration.");
+				System.exit(1);
+			}
+			logger.info("Using configured archiveFormat of: " + archiveFormat);
+		} else {
+			logger.info("Using default archiveFormat of: " + archiveFormat);
+		}
+
+		// get block messages
+		if (configJSON.containsKey(BLOCK_MESSAGES)) {
+			blockMessages = (Long) configJSON.get(BLOCK_MESSAGES);
+			logger.info("Using configured blockMessages of: "
+					+ blockMessages.toString());
+		}
+
+		// get block seconds
+		if (configJSON.containsKey(BLOCK_SECONDS)) {
+			blockSeconds = (Long) configJSON.get(BLOCK_SECONDS);
+			logger.info("Using configured blockSeconds of: "
+					+ blockSeconds.toString());
+		}
+
+		// get time field
+		if (configJSON.containsKey(TIME_FIELD)) {
+			timeField = (String) configJSON.get(TIME_FIELD);
+			logger.info("Using configured timeField of: " + timeField);
+		}
+
+		// get index messages
+		if (configJSON.containsKey(INDEX_MESSAGES)) {
+			indexMessages = (Long) configJSON.get(INDEX_MESSAGES);
+			logger.info("Using configured indexMessages of: "
+					+ indexMessages.toString());
+		} else {
+			logger.info("Not using indexMessages.");
+		}
+
+		// get rotation period
+		if (configJSON.containsKey(ROTATION_PERIOD)) {
+			rotationPeriod = (String) configJSON.get(ROTATION_PERIOD);
+			if (!rotationPeriod.equals(RotatingArchiveWriter.DAY_PERIOD) && 
+				!rotationPeriod.equals(RotatingArchiveWriter.HOUR_PERIOD)) {
+				logger.error("Error, invalid RotationPeriod in configuration.");
+				System.exit(1);
+			}
+			logger.info("Using configured rotationPeriod of: " 
+					+ rotationPeriod);
+		} else {
+			logger.info("Using default rotationPeriod of: " + rotationPeriod);
+		}
+
+		// get max file bytes
+		if (configJSON.containsKey(MAX_FILE_BYTES)) {
+			maxFileBytes = (Long) configJSON.get(MAX_FILE_BYTES);
+			logger.info("Using configured maxFileBytes of: "
+					+ maxFileBytes.toString());
+		} else {
+			logger.info("Not using maxFileBytes.");
+		}
+
+		// get compress rotated
+		if (configJSON.containsKey(COMPRESS_ROTATED)) {
+			compressRotated = (Boolean) configJSON.get(COMPRESS_ROTATED);
+			logger.info("Using configured compressRotated of: "
+					+ compressRotated.toString());
+		}
+
+		// get stream by
+		if (configJSON.containsKey(STREAM_BY)) {
+			streamBy = (String) configJSON.get(STREAM_BY);
+			if (!streamBy.equals(STREAM_NONE) && 
+				!streamBy.equals(STREAM_TOPIC) && 
+				!streamBy.equals(STREAM_PARTITION)) {
+				logger.error("Error, invalid StreamBy in configuration.");
+				System.exit(1);
+			}
+			logger.info("Using configured streamBy of: " + streamBy);
+		} else {
+			logger.info("Not using archive streams.");
+		}
+
+		// get index keys
+		if (configJSON.containsKey(INDEX_KEYS)) {
+			JSONArray keyArray = (JSONArray) configJSON.get(INDEX_KEYS);
+			for (int i = 0; i < keyArray.size(); i++) {
+				String keyField = (String) keyArray.get(i);
+				indexKeys.add(keyField);
+				logger.info("Using configured indexKey of: " + keyField);
+			}
+		} else {
+			logger.info("Not using indexKeys.");
+		}
+
+		// get sync millis
+		if (configJSON.containsKey(SYNC_MILLIS)) {
+			syncMillis = (Long) configJSON.get(SYNC_MILLIS);
+			logger.info("Using configured syncMillis of: "
+					+ syncMillis.toString());
+		}
+
+		// get sync bytes
+		if (configJSON.containsKey(SYNC_BYTES)) {
+			syncBytes = (Long) configJSON.get(SYNC_BYTES);
+			logger.info("Using configured syncBytes of: "
+					+ syncBytes.toString());
+		}
+
+		// either enables durable archiving
+		if ((syncMillis != null) || (syncBytes != null)) {
+			durable = true;
+			if (syncMillis == null) {
+				syncMillis = DEFAULT_SYNC_MILLIS;
+			}
+			if (syncBytes == null) {
+				syncBytes = DEFAULT_SYNC_BYTES;
+			}
+			logger.info("Using durable archiving, syncing every " 
+					+ syncMillis.toString() + " ms or " + syncBytes.toString() 
+					+ " bytes.");
+		} else {
+			logger.info("Not using durable archiving.");
+		}
+
 		// get broker config
 		JSONObject brokerConfig = null;
 		if (configJSON.containsKey(BROKER_CONFIG)) {
@@ -221,94 +528,117 @@ public class ArchiveClient {
 		JSONObject brokerProps = (JSONObject) brokerConfig.get("Properties");
 		String clientID = (String) brokerProps.get("client.id");
 
+		// offsets are committed once the messages are on disk
+		if (durable) {
+			Object autoCommit = ClientBase.disableAutoCommit(brokerConfig);
+			if ("true".equals(String.valueOf(autoCommit))) {
+				logger.warn("Disabling enable.auto.commit for durable " + 
+					"archiving.");
+			}
+		}
+
 		// create consumer
 		Consumer m_Consumer = new Consumer(brokerConfig);
 
 		// subscribe to topics
 		m_Consumer.subscribe(topicList);
 
+		// catch up on anything we missed
+		if (backfillSpan != null) {
+			long backfillTime = System.currentTimeMillis() - 
+				(backfillSpan * 1000);
+			logger.info("Backfilling from: " + 
+				Utility.formatDate(new Date(backfillTime)));
+			m_Consumer.backfill(backfillTime, backfillThreads.intValue());
+		}
+
 		logger.info("Broker version: " + 
 			m_Consumer.VERSION_MAJOR + "." + m_Consumer.VERSION_MINOR + "." + 
 			m_Consumer.VERSION_PATCH);
 
-		PrintWriter fileWriter = null;
-		Calendar fileCreationDate = null;
-
 		try {
-			// create printwriter to write to disk
-			fileWriter = createPrintWriter(fileName);
-
-			// get current date as a calender
-			fileCreationDate = Calendar
-					.getInstance(TimeZone.getTimeZone("GMT"));
+			// in the default mode everything goes to one archive
+			if (streamBy.equals(STREAM_NONE)) {
+				fileWriters.put("", createRotatingWriter(outputDirectory));
+			}
 
 			// run until stopped
 			while (true) {
 
+				// don't hold unsynced messages much past the sync interval
+				long timeout = pollTimeout * 1000;
+				if (durable && (unsyncedBytes > 0)) {
+					timeout = Math.max(0, Math.min(timeout, lastSyncTime + 
+						syncMillis - System.currentTimeMillis()));
+				}
+
 				// get messages from broker, wait for a maximum of 10 seconds before 
 				// giving up
-				ArrayList<String> brokerMessages = m_Consumer.pollString(pollTimeout * 1000);
+				ArrayList<ConsumerRecord<String, byte[]>> brokerRecords = 
+					m_Consumer.pollRecords(timeout);
 
 				logKafkaMetrics(m_Consumer, clientID, topicList);
 
-				// nullcheck brokerMessages
-				if (brokerMessages == null) {
+				// nullcheck brokerRecords
+				if (brokerRecords == null) {
 					continue;
 				}
 
-				if (brokerMessages.size() == 0) {
+				// write out anything that is due, even if nothing new arrived
+				for (ArchiveWriter fileWriter : fileWriters.values()) {
+					fileWriter.flush();
+				}
+
+				if (brokerRecords.size() == 0) {
+					if (syncDue()) {
+						syncArchive(m_Consumer);
+					}
 					continue;
 				}
 
-				// add all messages in brokerMessages to queue
-				for (int i = 0; i < brokerMessages.size(); i++) {
-					// get string
-					String message = brokerMessages.get(i);
+				// add all messages in brokerRecords to the archive
+				for (int i = 0; i < brokerRecords.size(); i++) {
+					// get message
+					ConsumerRecord<String, byte[]> record = brokerRecords.get(i);
+					byte[] message = record.value();
 
 					// nullcheck
 					if (message == null) {
 						continue;
 					}
-					if (message.length() == 0) {
+					if (message.length == 0) {
 						continue;
 					}
 
-					logger.debug(message);
-
-					// check to see if we were newline terminated, add a
-					// newline if we were not
-					if (message.charAt(message.length() - 1) != '\n') {
-						message = message.concat("\n");
+					if (logger.isDebugEnabled()) {
+						logger.debug(new String(message));
 					}
 
-					// just call print
-					fileWriter.print(message);
+					// the writer handles newline termination
+					getArchiveWriter(record).write(message);
+					unsyncedBytes += message.length + 1;
 				}
 				
 				// make sure all messages written to disk
-				fileWriter.flush();
-				
-				logger.info("Updated Archive File: " + outFileName + " with " 
-					+ String.valueOf(brokerMessages.size()) + " additional message(s).");
-
-				// get current date
-				Calendar currentDate = Calendar
-						.getInstance(TimeZone.getTimeZone("GMT"));
-
-				// check to see if the date changed
-				if (currentDate.get(Calendar.DAY_OF_YEAR) > fileCreationDate
-						.get(Calendar.DAY_OF_YEAR)) {
-					
-					// close the current file
-					fileWriter.close();
-
-					// create new file for the new day
-					fileWriter = createPrintWriter(fileName);
+				for (ArchiveWriter fileWriter : fileWriters.values()) {
+					fileWriter.flush();
+				}
 
-					// get the new creation date
-					fileCreationDate = currentDate;
+				// force them to disk and commit them if it's time
+				if (syncDue()) {
+					syncArchive(m_Consumer);
+				}
 
-					logger.info("Switched to new Archive File: " + outFileName + ".");
+				if (streamBy.equals(STREAM_NONE)) {
+					logger.info("Updated Archive File: " + 
+						fileWriters.get("").getFileName() + " with " + 
+						String.valueOf(brokerRecords.size()) + 
+						" additional message(s).");
+				} else {
+					logger.info("Updated " + String.valueOf(fileWriters.size())
+						+ " Archive Stream(s) with " + 
+						String.valueOf(brokerRecords.size()) + 
+						" additional message(s).");
 				}
 			}
 		} catch (Exception e) {
@@ -317,37 +647,164 @@ public class ArchiveClient {
 			logger.error(e.toString());
 
 		} finally {
-			if (fileWriter != null) {
-				fileWriter.close();
+			for (ArchiveWriter fileWriter : fileWriters.values()) {
+				try {
+					fileWriter.close();
+				} catch (IOException e) {
+					logger.error(e.toString());
+				}
 			}
 		}
 	}
 
-	public static PrintWriter createPrintWriter(String name)
+	/**
+	 * Gets the archive writer for the stream the provided record belongs to,
+	 * starting a new stream, with its own directory and writer thread, the 
+	 * first time a topic or partition is seen
+	 *
+	 * @param record
+	 *            - The ConsumerRecord to archive
+	 * @return Returns the ArchiveWriter for the record
+	 * @throws java.io.IOException
+	 *             if the stream's archive file could not be opened
+	 */
+	private static ArchiveWriter getArchiveWriter(
+			ConsumerRecord<String, byte[]> record) throws IOException {
+		String streamName = "";
+		if (streamBy.equals(STREAM_TOPIC)) {
+			streamName = record.topic();
+		} else if (streamBy.equals(STREAM_PARTITION)) {
+			streamName = record.topic() + "-" + 
+				String.valueOf(record.partition());
+		}
+
+		ArchiveWriter fileWriter = fileWriters.get(streamName);
+		if (fileWriter == null) {
+			String streamDirectory = outputDirectory + "/" + streamName;
+			new File(streamDirectory).mkdirs();
+
+			fileWriter = new ThreadedArchiveWriter(
+				createRotatingWriter(streamDirectory), 
+				"hazdev-archive-" + streamName);
+			fileWriters.put(streamName, fileWriter);
+
+			logger.info("Started Archive Stream: " + streamName + " in " + 
+				streamDirectory + ".");
+		}
+		return (fileWriter);
+	}
+
+	/**
+	 * Creates an archive writer for the provided directory, starting new 
+	 * files as configured
+	 *
+	 * @param directory
+	 *            - A String containing the directory to write to
+	 * @return Returns the ArchiveWriter
+	 * @throws java.io.IOException
+	 *             if the archive file could not be opened
+	 */
+	private static ArchiveWriter createRotatingWriter(String directory) 
 			throws IOException {
-		
-		// build filename from desired output directory, time, optional
-		// name, and extension
-		outFileName = "";
-		if (name != "") {
-			outFileName = outputDirectory + "/" + getUTCDateAsString() + "_"
-					+ name + "." + fileExtension;
-		} else {
-			outFileName = outputDirectory + "/" + getUTCDateAsString() + "."
-					+ fileExtension;
+		return (new RotatingArchiveWriter(directory, fileName, fileExtension, 
+			rotationPeriod, maxFileBytes, compressRotated, 
+			new ArchiveWriterFactory() {
+				public ArchiveWriter createWriter(String outFileName) 
+					throws IOException {
+					return (createArchiveWriter(outFileName));
+				}
+
+				public ArchiveWriter createCompressedWriter(
+					String outFileName) throws IOException {
+					return (createBlockWriter(outFileName));
+				}
+			}));
+	}
+
+	/**
+	 * Checks whether the archive is due to be forced to disk
+	 *
+	 * @return Returns true if durable archiving is enabled, and the sync 
+	 *         interval has passed or enough bytes have been written since the
+	 *         last sync
+	 */
+	private static boolean syncDue() {
+		if (!durable || (unsyncedBytes == 0)) {
+			return (false);
 		}
+		return ((unsyncedBytes >= syncBytes) || 
+			(System.currentTimeMillis() - lastSyncTime >= syncMillis));
+	}
 
-		// create a printwriter to write to disk
-		return (new PrintWriter(
-				new BufferedWriter(new FileWriter(outFileName, true))));
+	/**
+	 * Forces the archive to disk, then commits the offsets of every message 
+	 * written to it. Offsets are only committed for messages that are on disk,
+	 * so a crash can repeat messages in the archive but not lose them.
+	 *
+	 * @param consumer
+	 *            - The Consumer the messages were polled from
+	 * @throws java.io.IOException
+	 *             if the archive could not be forced to disk
+	 */
+	private static void syncArchive(Consumer consumer) throws IOException {
+		// every message polled so far has been written
+		Map<TopicPartition, OffsetAndMetadata> offsets = 
+			consumer.getConsumedOffsets();
+
+		// hand everything off first so the streams sync in parallel
+		for (ArchiveWriter fileWriter : fileWriters.values()) {
+			fileWriter.flush();
+		}
+		for (ArchiveWriter fileWriter : fileWriters.values()) {
+			fileWriter.sync();
+		}
+		consumer.commitAsync(offsets);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Synced " + String.valueOf(unsyncedBytes) + 
+				" byte(s) to " + String.valueOf(fileWriters.size()) + 
+				" archive(s).");
+		}
+		unsyncedBytes = 0;
+		lastSyncTime = System.currentTimeMillis();
 	}
 
-	public static String getUTCDateAsString() {
-		final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-		final String utcTime = sdf.format(new Date());
+	/**
+	 * Creates an archive writer for the provided file in the configured 
+	 * format, with the configured indexes
+	 *
+	 * @param outFileName
+	 *            - A String containing the archive file name
+	 * @return Returns the ArchiveWriter
+	 * @throws java.io.IOException
+	 *             if the archive file could not be opened
+	 */
+	public static ArchiveWriter createArchiveWriter(String outFileName)
+			throws IOException {
+
+		// create an archive writer for the configured format
+		if (archiveFormat.equals(BLOCK_FORMAT)) {
+			return (createBlockWriter(outFileName));
+		}
 
-		return utcTime;
+		return (new TextArchiveWriter(outFileName, indexMessages.intValue(), 
+			timeField, indexKeys));
+	}
+
+	/**
+	 * Creates a block archive writer for the provided file, with the 
+	 * configured key index. Also used to compress rotated Text archive files.
+	 *
+	 * @param outFileName
+	 *            - A String containing the archive file name
+	 * @return Returns the ArchiveWriter
+	 * @throws java.io.IOException
+	 *             if the archive file could not be opened
+	 */
+	public static ArchiveWriter createBlockWriter(String outFileName)
+			throws IOException {
+		return (new BlockArchiveWriter(outFileName, blockMessages.intValue(), 
+			blockSeconds * 1000, timeField, indexKeys));
 	}
 
 	public static void logKafkaMetrics(Consumer myConsumer, 
@@ -371,6 +828,13 @@ public class ArchiveClient {
 				clientID, "fetch-rate");
 			logger.info("KafkaMetric - " + fetchRate.toString());
 	
+			// dedup metrics, if dropping duplicates
+			ArrayList<String> dedupMetrics = myConsumer.getKafkaMetric(
+				Consumer.DEDUP_METRICS + clientID, "");
+			if (!dedupMetrics.isEmpty()) {
+				logger.info("DedupMetric - " + dedupMetrics.toString());
+			}
+	
 			// topic specific metrics
 			for (int i = 0; i < topicList.size(); i++) {
 				String topic = topicList.get(i);
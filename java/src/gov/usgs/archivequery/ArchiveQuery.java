@@ -0,0 +1,162 @@
+package gov.usgs.archivequery;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+import gov.usgs.hazdevbroker.ArchiveConsumer;
+import gov.usgs.hazdevbroker.ArchiveKeyIndex;
+import gov.usgs.hazdevbroker.ArchiveRangeReader;
+import gov.usgs.hazdevbroker.ArchiveTimeIndex;
+import gov.usgs.hazdevbroker.Utility;
+
+import java.util.*;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * a command line tool used to pull the messages in a time range, optionally
+ * with a given key value, out of the archive files written by the
+ * ArchiveClient, writing them to standard out
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ArchiveQuery {
+
+	/**
+	 * Command line options
+	 */
+	public static final String START_OPTION = "-start";
+	public static final String END_OPTION = "-end";
+	public static final String FIELD_OPTION = "-field";
+	public static final String KEY_OPTION = "-key";
+
+	/**
+	 * Log4J logger for ArchiveQuery
+	 */
+	static Logger logger = Logger.getLogger(ArchiveQuery.class);
+
+	/**
+	 * main function for ArchiveQuery
+	 *
+	 * @param args
+	 *            - A String[] containing the command line arguments.
+	 */
+	public static void main(String[] args) {
+
+		// log to standard error, standard out is for messages
+		Logger.getRootLogger().addAppender(new ConsoleAppender(
+			new PatternLayout("%-5p %c - %m%n"), ConsoleAppender.SYSTEM_ERR));
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		long startTime = Utility.INVALID_TIME;
+		long endTime = Utility.INVALID_TIME;
+		String timeField = ArchiveConsumer.DEFAULT_TIME_FIELD;
+		String keyField = null;
+		String key = null;
+		ArrayList<File> archiveFiles = new ArrayList<File>();
+
+		// parse arguments
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals(START_OPTION) && (i + 1 < args.length)) {
+				startTime = parseTimeArgument(args[++i]);
+			} else if (args[i].equals(END_OPTION) && (i + 1 < args.length)) {
+				endTime = parseTimeArgument(args[++i]);
+			} else if (args[i].equals(FIELD_OPTION) && (i + 1 < args.length)) {
+				timeField = args[++i];
+			} else if (args[i].equals(KEY_OPTION) && (i + 2 < args.length)) {
+				keyField = args[++i];
+				key = args[++i];
+			} else {
+				File path = new File(args[i]);
+				if (path.isDirectory()) {
+					archiveFiles.addAll(listArchiveFiles(path));
+				} else {
+					archiveFiles.add(path);
+				}
+			}
+		}
+
+		if (archiveFiles.isEmpty()) {
+			System.err.println("Usage: hazdev-broker ArchiveQuery " +
+				"[-start <time>] [-end <time>] [-field <timefield>] " +
+				"[-key <keyfield> <value>] <archive file or directory>...");
+			System.exit(1);
+		}
+
+		long queryStart = System.currentTimeMillis();
+		long messageCount = 0;
+		long bytesRead = 0;
+
+		OutputStream output = new BufferedOutputStream(System.out, 65536);
+		try {
+			for (File archiveFile : archiveFiles) {
+				ArchiveRangeReader reader = new ArchiveRangeReader(
+					archiveFile, timeField);
+				ArrayList<byte[]> messages = null;
+				if (keyField != null) {
+					messages = reader.readKey(keyField, key, startTime, endTime);
+				} else {
+					messages = reader.read(startTime, endTime);
+				}
+
+				for (byte[] message : messages) {
+					output.write(message);
+					output.write('\n');
+				}
+
+				messageCount += messages.size();
+				bytesRead += reader.getBytesRead();
+			}
+			output.flush();
+		} catch (IOException e) {
+			logger.error("Exception querying archive: " + e.toString());
+			System.exit(1);
+		}
+
+		System.err.println("Found " + String.valueOf(messageCount) +
+			" message(s) in " + String.valueOf(archiveFiles.size()) +
+			" archive file(s), read " + String.valueOf(bytesRead) +
+			" byte(s) in " + String.valueOf(System.currentTimeMillis() -
+			queryStart) + " ms.");
+	}
+
+	/**
+	 * Lists the archive files in the provided directory, skipping index
+	 * files
+	 *
+	 * @param directory
+	 *            - A File containing the directory
+	 * @return Returns a List&lt;File&gt; containing the archive files
+	 */
+	public static List<File> listArchiveFiles(File directory) {
+		ArrayList<File> archiveFiles = new ArrayList<File>();
+		for (File file : ArchiveConsumer.listArchiveFiles(directory.getPath(),
+				null)) {
+			if (!file.getName().endsWith(ArchiveTimeIndex.INDEX_EXTENSION) &&
+				!file.getName().endsWith(ArchiveKeyIndex.INDEX_EXTENSION)) {
+				archiveFiles.add(file);
+			}
+		}
+		return (archiveFiles);
+	}
+
+	/**
+	 * Parses a time argument, exiting if it is invalid
+	 *
+	 * @param argument
+	 *            - A String containing the time argument
+	 * @return Returns the time in milliseconds since the epoch
+	 */
+	private static long parseTimeArgument(String argument) {
+		long time = Utility.parseTime(argument);
+		if (time == Utility.INVALID_TIME) {
+			System.err.println("Invalid time: " + argument);
+			System.exit(1);
+		}
+		return (time);
+	}
+}
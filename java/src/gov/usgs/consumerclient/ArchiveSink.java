@@ -0,0 +1,373 @@
+package gov.usgs.consumerclient;
+
+import gov.usgs.hazdevbroker.ArchiveConsumer;
+import gov.usgs.hazdevbroker.ArchiveWriter;
+import gov.usgs.hazdevbroker.ArchiveWriterFactory;
+import gov.usgs.hazdevbroker.BlockArchiveWriter;
+import gov.usgs.hazdevbroker.RotatingArchiveWriter;
+import gov.usgs.hazdevbroker.TextArchiveWriter;
+
+import java.util.*;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * a sink that appends messages to a rotating archive, in the same formats
+ * written by the ArchiveClient. The archive is forced to disk every SyncMillis,
+ * and messages are persisted once they have been forced to disk.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ArchiveSink extends Sink {
+
+	/**
+	 * JSON Configuration Keys
+	 */
+	public static final String FILE_EXTENSION = "FileExtension";
+	public static final String FILE_NAME = "FileName";
+	public static final String OUTPUT_DIRECTORY = "OutputDirectory";
+	public static final String ARCHIVE_FORMAT = "ArchiveFormat";
+	public static final String BLOCK_MESSAGES = "BlockMessages";
+	public static final String BLOCK_SECONDS = "BlockSeconds";
+	public static final String TIME_FIELD = "TimeField";
+	public static final String INDEX_MESSAGES = "IndexMessages";
+	public static final String INDEX_KEYS = "IndexKeys";
+	public static final String ROTATION_PERIOD = "RotationPeriod";
+	public static final String MAX_FILE_BYTES = "MaxFileBytes";
+	public static final String COMPRESS_ROTATED = "CompressRotated";
+	public static final String SYNC_MILLIS = "SyncMillis";
+
+	/**
+	 * The default time in ms between forcing the archive to disk
+	 */
+	public static final long DEFAULT_SYNC_MILLIS = 1000;
+
+	/**
+	 * Archive formats
+	 */
+	public static final String TEXT_FORMAT = "Text";
+	public static final String BLOCK_FORMAT = "Block";
+
+	/**
+	 * Configuration string defining the archive format, default is Text
+	 */
+	private String archiveFormat;
+
+	/**
+	 * Configuration Long defining the messages per block, for Block archives
+	 */
+	private Long blockMessages;
+
+	/**
+	 * Configuration Long defining the seconds per block, for Block archives
+	 */
+	private Long blockSeconds;
+
+	/**
+	 * Configuration string defining the message time field
+	 */
+	private String timeField;
+
+	/**
+	 * Configuration Long defining the messages between time index entries, 0
+	 * for no time index
+	 */
+	private Long indexMessages;
+
+	/**
+	 * Configuration list of the message fields to build key indexes for
+	 */
+	private ArrayList<String> indexKeys;
+
+	/**
+	 * Configuration Long defining the time in ms between forcing the archive
+	 * to disk
+	 */
+	private Long syncMillis;
+
+	/**
+	 * The archive writer
+	 */
+	private ArchiveWriter archiveWriter;
+
+	/**
+	 * The offset after the latest record in each partition written since the
+	 * last sync
+	 */
+	private HashMap<TopicPartition, Long> unsyncedOffsets;
+
+	/**
+	 * The time of the last sync in ms
+	 */
+	private long lastSyncTime;
+
+	/**
+	 * The constructor for the ArchiveSink class. Opens the archive.
+	 *
+	 * @param config
+	 *            - A JSONObject containing the sink configuration
+	 * @throws java.lang.IllegalArgumentException
+	 *             if the configuration is invalid or the archive could not be
+	 *             opened
+	 */
+	public ArchiveSink(JSONObject config) {
+		super(ARCHIVE_TYPE.toLowerCase() + "-" + config.get(OUTPUT_DIRECTORY),
+				config);
+
+		archiveFormat = TEXT_FORMAT;
+		blockMessages = (long) BlockArchiveWriter.DEFAULT_BLOCK_MESSAGES;
+		blockSeconds = BlockArchiveWriter.DEFAULT_BLOCK_MILLIS / 1000;
+		timeField = ArchiveConsumer.DEFAULT_TIME_FIELD;
+		indexMessages = 0L;
+		indexKeys = new ArrayList<String>();
+		syncMillis = DEFAULT_SYNC_MILLIS;
+		unsyncedOffsets = new HashMap<TopicPartition, Long>();
+		lastSyncTime = System.currentTimeMillis();
+
+		// get file extension
+		String fileExtension = null;
+		if (config.containsKey(FILE_EXTENSION)) {
+			fileExtension = (String) config.get(FILE_EXTENSION);
+			logger.info("Using configured fileExtension of: " + fileExtension);
+		} else {
+			throw new IllegalArgumentException(
+					"Did not find FileExtension in configuration.");
+		}
+
+		// get file name
+		String fileName = "";
+		if (config.containsKey(FILE_NAME)) {
+			fileName = (String) config.get(FILE_NAME);
+			logger.info("Using configured fileName of: " + fileName);
+		}
+
+		// get output directory
+		String outputDirectory = null;
+		if (config.containsKey(OUTPUT_DIRECTORY)) {
+			outputDirectory = (String) config.get(OUTPUT_DIRECTORY);
+			logger.info(
+					"Using configured outputDirectory of: " + outputDirectory);
+
+			// create output directory if it doesn't exist
+			File outDir = new File(outputDirectory);
+			if (!outDir.exists()) {
+				outDir.mkdirs();
+			}
+		} else {
+			throw new IllegalArgumentException(
+					"Did not find OutputDirectory in configuration.");
+		}
+
+		// get archive format
+		if (config.containsKey(ARCHIVE_FORMAT)) {
+			archiveFormat = (String) config.get(ARCHIVE_FORMAT);
+			if (!archiveFormat.equals(TEXT_FORMAT) &&
+				!archiveFormat.equals(BLOCK_FORMAT)) {
+				throw new IllegalArgumentException(
+						"Invalid ArchiveFormat in configuration.");
+			}
+			logger.info("Using configured archiveFormat of: " + archiveFormat);
+		}
+
+		// get block messages
+		if (config.containsKey(BLOCK_MESSAGES)) {
+			blockMessages = (Long) config.get(BLOCK_MESSAGES);
+			logger.info("Using configured blockMessages of: "
+					+ blockMessages.toString());
+		}
+
+		// get block seconds
+		if (config.containsKey(BLOCK_SECONDS)) {
+			blockSeconds = (Long) config.get(BLOCK_SECONDS);
+			logger.info("Using configured blockSeconds of: "
+					+ blockSeconds.toString());
+		}
+
+		// get time field
+		if (config.containsKey(TIME_FIELD)) {
+			timeField = (String) config.get(TIME_FIELD);
+			logger.info("Using configured timeField of: " + timeField);
+		}
+
+		// get index messages
+		if (config.containsKey(INDEX_MESSAGES)) {
+			indexMessages = (Long) config.get(INDEX_MESSAGES);
+			logger.info("Using configured indexMessages of: "
+					+ indexMessages.toString());
+		}
+
+		// get index keys
+		if (config.containsKey(INDEX_KEYS)) {
+			JSONArray keyArray = (JSONArray) config.get(INDEX_KEYS);
+			for (int i = 0; i < keyArray.size(); i++) {
+				String keyField = (String) keyArray.get(i);
+				indexKeys.add(keyField);
+				logger.info("Using configured indexKey of: " + keyField);
+			}
+		}
+
+		// get rotation period
+		String rotationPeriod = RotatingArchiveWriter.DAY_PERIOD;
+		if (config.containsKey(ROTATION_PERIOD)) {
+			rotationPeriod = (String) config.get(ROTATION_PERIOD);
+			if (!rotationPeriod.equals(RotatingArchiveWriter.DAY_PERIOD) &&
+				!rotationPeriod.equals(RotatingArchiveWriter.HOUR_PERIOD)) {
+				throw new IllegalArgumentException(
+						"Invalid RotationPeriod in configuration.");
+			}
+			logger.info("Using configured rotationPeriod of: "
+					+ rotationPeriod);
+		}
+
+		// get max file bytes
+		Long maxFileBytes = 0L;
+		if (config.containsKey(MAX_FILE_BYTES)) {
+			maxFileBytes = (Long) config.get(MAX_FILE_BYTES);
+			logger.info("Using configured maxFileBytes of: "
+					+ maxFileBytes.toString());
+		}
+
+		// get compress rotated
+		Boolean compressRotated = false;
+		if (config.containsKey(COMPRESS_ROTATED)) {
+			compressRotated = (Boolean) config.get(COMPRESS_ROTATED);
+			logger.info("Using configured compressRotated of: "
+					+ compressRotated.toString());
+		}
+
+		// get sync millis
+		if (config.containsKey(SYNC_MILLIS)) {
+			syncMillis = (Long) config.get(SYNC_MILLIS);
+			logger.info("Using configured syncMillis of: "
+					+ syncMillis.toString());
+		}
+
+		// open the archive
+		try {
+			archiveWriter = new RotatingArchiveWriter(outputDirectory,
+					fileName, fileExtension, rotationPeriod, maxFileBytes,
+					compressRotated, new ArchiveWriterFactory() {
+						public ArchiveWriter createWriter(String outFileName)
+								throws IOException {
+							return (createArchiveWriter(outFileName));
+						}
+
+						public ArchiveWriter createCompressedWriter(
+								String outFileName) throws IOException {
+							return (createBlockWriter(outFileName));
+						}
+					});
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not open archive in " +
+					outputDirectory + ": " + e.toString());
+		}
+	}
+
+	/**
+	 * Writes the provided records to the archive
+	 *
+	 * @param records
+	 *            - A List&lt;ConsumerRecord&gt; containing the records
+	 * @throws java.io.IOException
+	 *             if the records could not be written
+	 */
+	protected void write(List<ConsumerRecord<String, byte[]>> records)
+			throws IOException {
+		for (ConsumerRecord<String, byte[]> record : records) {
+			// nullcheck
+			if ((record.value() == null) || (record.value().length == 0)) {
+				continue;
+			}
+
+			archiveWriter.write(record.value());
+		}
+		addOffsets(unsyncedOffsets, records);
+	}
+
+	/**
+	 * Flushes the archive, and forces it to disk if the sync interval has
+	 * passed, persisting every record written so far
+	 *
+	 * @throws java.io.IOException
+	 *             if the archive could not be written
+	 */
+	protected void tick() throws IOException {
+		archiveWriter.flush();
+
+		if (System.currentTimeMillis() - lastSyncTime >= syncMillis) {
+			sync();
+		}
+	}
+
+	/**
+	 * Forces the archive to disk and closes it
+	 *
+	 * @throws java.io.IOException
+	 *             if the archive could not be written
+	 */
+	protected void shutdown() throws IOException {
+		try {
+			sync();
+		} finally {
+			archiveWriter.close();
+		}
+	}
+
+	/**
+	 * Forces the archive to disk, persisting every record written so far
+	 *
+	 * @throws java.io.IOException
+	 *             if the archive could not be forced to disk
+	 */
+	private void sync() throws IOException {
+		if (!unsyncedOffsets.isEmpty()) {
+			archiveWriter.sync();
+			persisted(unsyncedOffsets);
+			unsyncedOffsets.clear();
+		}
+		lastSyncTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Creates an archive writer for the provided file in the configured
+	 * format, with the configured indexes
+	 *
+	 * @param outFileName
+	 *            - A String containing the archive file name
+	 * @return Returns the ArchiveWriter
+	 * @throws java.io.IOException
+	 *             if the archive file could not be opened
+	 */
+	private ArchiveWriter createArchiveWriter(String outFileName)
+			throws IOException {
+
+		// create an archive writer for the configured format
+		if (archiveFormat.equals(BLOCK_FORMAT)) {
+			return (createBlockWriter(outFileName));
+		}
+
+		return (new TextArchiveWriter(outFileName, indexMessages.intValue(),
+				timeField, indexKeys));
+	}
+
+	/**
+	 * Creates a block archive writer for the provided file, with the
+	 * configured key index
+	 *
+	 * @param outFileName
+	 *            - A String containing the archive file name
+	 * @return Returns the ArchiveWriter
+	 * @throws java.io.IOException
+	 *             if the archive file could not be opened
+	 */
+	private ArchiveWriter createBlockWriter(String outFileName)
+			throws IOException {
+		return (new BlockArchiveWriter(outFileName, blockMessages.intValue(),
+				blockSeconds * 1000, timeField, indexKeys));
+	}
+}
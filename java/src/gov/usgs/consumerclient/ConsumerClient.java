@@ -5,6 +5,7 @@ import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.PropertyConfigurator;
 
 import gov.usgs.hazdevbroker.Utility;
+import gov.usgs.hazdevbroker.ClientBase;
 import gov.usgs.hazdevbroker.Consumer;
 import gov.usgs.hazdevbroker.Heartbeat;
 
@@ -14,9 +15,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
 import org.json.simple.parser.JSONParser;
@@ -25,7 +28,9 @@ import org.json.simple.parser.ParseException;
 /**
  * a client class used to consume messages out of one or more hazdev-broker
  * (kafka) topics and write the messages to files based on the provided
- * configuration
+ * configuration. The messages can be fed to several configured sinks at once,
+ * so that the topics are only fetched once, and offsets are only committed
+ * once every durable sink has persisted the messages.
  *
  * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
  */
@@ -45,39 +50,30 @@ public class ConsumerClient {
 	public static final String OUTPUT_DIRECTORY = "OutputDirectory";
 	public static final String HEARTBEAT_INTERVAL = "HeartbeatInterval";
 	public static final String WRITE_HEARTBEAT_FILE = "WriteHeartbeatFile";
-
-	/** 
-	 * Long constant containing the time to sleep in ms between file writes to 
-	 * ensure file name uniqueness.
-	 */
-	public static final Long FILE_SLEEP_MS = 10L;
-	
-	/**
-	 * Required configuration string defining the output directory
-	 */
-	private static String outputDirectory;
+	public static final String BACKFILL_SPAN = "BackfillSpan";
+	public static final String BACKFILL_THREADS = "BackfillThreads";
+	public static final String SINKS = "Sinks";
 
 	/**
-	 * Required configuration string defining the output file extension
+	 * The minimum time in ms between committing persisted offsets
 	 */
-	private static String fileExtension;
+	public static final long COMMIT_INTERVAL_MS = 1000;
 
 	/**
-	 * Optional configuration string defining the output file name
+	 * The sinks fed by the client, either the configured Sinks, or a single
+	 * FileSink configured by the top level file settings
 	 */
-	private static String fileName;
+	private static ArrayList<Sink> sinks;
 
 	/**
-	 * Optional configuration Long defining the number of messages per file,
-	 * default is one.
+	 * The offsets last committed, by partition
 	 */
-	private static Long messagesPerFile;
+	private static HashMap<TopicPartition, Long> committedOffsets;
 
 	/**
-	 * Optional configuration Long defining the number seconds before writing a
-	 * file with less than the configured number of messages, default is null
+	 * Variable containing the time offsets were last committed in ms
 	 */
-	private static Long timePerFile;
+	private static long lastCommitTime;
 
 	/**
 	 * Optional configuration Long defining the number seconds between expecting
@@ -92,19 +88,21 @@ public class ConsumerClient {
 	private static Boolean writeHeartbeatFile;
 
 	/**
-	 * Log4J logger for ConsumerClient
+	 * Optional configuration Long defining the number of seconds before 
+	 * startup to backfill from, default is null (no backfill)
 	 */
-	static Logger logger = Logger.getLogger(ConsumerClient.class);
+	private static Long backfillSpan;
 
 	/**
-	 * Queue object to hold messages that need to be written to the file
+	 * Optional configuration Long defining the number of threads to use when
+	 * backfilling, default is 4
 	 */
-	private static Queue<String> fileQueue;
+	private static Long backfillThreads;
 
 	/**
-	 * Variable containing time the last file was written.
+	 * Log4J logger for ConsumerClient
 	 */
-	private static Long lastFileWriteTime;
+	static Logger logger = Logger.getLogger(ConsumerClient.class);
 
 	/**
 	 * Long defining the number seconds between logging kafka metrics, 
@@ -133,20 +131,16 @@ public class ConsumerClient {
 		}
 
 		// init to default values
-		fileQueue = new LinkedList<String>();
-		outputDirectory = null;
-		fileExtension = null;
-		fileName = new String();
-		messagesPerFile = (long) 1;
-		timePerFile = null;
+		sinks = new ArrayList<Sink>();
+		committedOffsets = new HashMap<TopicPartition, Long>();
+		lastCommitTime = System.currentTimeMillis();
 		heartbeatInterval = null;
 		writeHeartbeatFile = (boolean) false;
+		backfillSpan = null;
+		backfillThreads = 4L;
 		metricInterval = 30L;
 		lastMetricTime = (Long) (System.currentTimeMillis() / 1000);
 
-		// init last write time to now
-		lastFileWriteTime = (Long) (System.currentTimeMillis() / 1000);
-
 		// parse config file into json
 		JSONObject configJSON = Utility.readConfigurationFromFile(args[0]);
 
@@ -181,59 +175,32 @@ public class ConsumerClient {
 
 		logger.info("----------Consumer Client Startup----------");
 
-		// get file extension
-		if (configJSON.containsKey(FILE_EXTENSION)) {
-			fileExtension = (String) configJSON.get(FILE_EXTENSION);
-			logger.info("Using configured fileExtension of: " + fileExtension);
-		} else {
-			logger.error("Error, did not find FileExtension in configuration.");
-			System.exit(1);
-		}
-
-		// get file name
-		if (configJSON.containsKey(FILE_NAME)) {
-			fileName = (String) configJSON.get(FILE_NAME);
-			logger.info("Using configured fileName of: " + fileName);
-		} else {
-			fileName = "";
-			logger.info("Not using configured fileName.");
-		}
-
-		// get output directory
-		if (configJSON.containsKey(OUTPUT_DIRECTORY)) {
-			outputDirectory = (String) configJSON.get(OUTPUT_DIRECTORY);
-			logger.info(
-					"Using configured outputDirectory of: " + outputDirectory);
-
-			// create output directory if it doesn't exist
-			File outDir = new File(outputDirectory);
-			if (!outDir.exists()) {
-				outDir.mkdirs();
+		// get sinks
+		try {
+			if (configJSON.containsKey(SINKS)) {
+				JSONArray sinkArray = (JSONArray) configJSON.get(SINKS);
+				for (int i = 0; i < sinkArray.size(); i++) {
+					Sink sink = Sink.createSink((JSONObject) sinkArray.get(i));
+					if (sink == null) {
+						logger.error("Error, invalid sink in configuration.");
+						System.exit(1);
+					}
+					sinks.add(sink);
+					logger.info("Using configured sink: " + sink.getName());
+				}
+			} else {
+				// the top level file settings configure a single file sink
+				sinks.add(new FileSink(configJSON));
+				logger.info("Not using configured Sinks, writing files.");
 			}
-		} else {
-			logger.error(
-					"Error, did not find OutputDirectory in configuration.");
+		} catch (IllegalArgumentException e) {
+			logger.error("Error, " + e.getMessage());
 			System.exit(1);
 		}
 
-		// get messages per file
-		if (configJSON.containsKey(MESSAGES_PER_FILE)) {
-			messagesPerFile = (Long) configJSON.get(MESSAGES_PER_FILE);
-			logger.info("Using configured messagesPerFile of: "
-					+ messagesPerFile.toString());
-		} else {
-			messagesPerFile = (long) 1;
-			logger.info("Using default messagesPerFile of: "
-					+ messagesPerFile.toString());
-		}
-
-		// get time per file
-		if (configJSON.containsKey(TIME_PER_FILE)) {
-			timePerFile = (Long) configJSON.get(TIME_PER_FILE);
-			logger.info("Using configured timePerFile of: "
-					+ timePerFile.toString());
-		} else {
-			logger.info("Not using timePerFile.");
+		if (sinks.isEmpty()) {
+			logger.error("Error, no Sinks in configuration.");
+			System.exit(1);
 		}
 
 		// get hearbeat interval
@@ -256,10 +223,42 @@ public class ConsumerClient {
 						+ "files.");
 		}
 
-		// setup heartbeat files
+		// setup heartbeat files, in the top level output directory, or the 
+		// first file sink's
 		String heartbeatDirectory = null;
 		if (writeHeartbeatFile == true) {
-			heartbeatDirectory = outputDirectory;
+			if (configJSON.containsKey(OUTPUT_DIRECTORY)) {
+				heartbeatDirectory = (String) configJSON.get(OUTPUT_DIRECTORY);
+			} else {
+				for (Sink sink : sinks) {
+					if (sink instanceof FileSink) {
+						heartbeatDirectory = 
+							((FileSink) sink).getOutputDirectory();
+						break;
+					}
+				}
+			}
+			if (heartbeatDirectory == null) {
+				logger.error("Error, WriteHeartbeatFile needs an " + 
+					"OutputDirectory in configuration.");
+				System.exit(1);
+			}
+		}
+
+		// get backfill span
+		if (configJSON.containsKey(BACKFILL_SPAN)) {
+			backfillSpan = (Long) configJSON.get(BACKFILL_SPAN);
+			logger.info("Using configured backfillSpan of: "
+					+ backfillSpan.toString());
+		} else {
+			logger.info("Not using backfillSpan.");
+		}
+
+		// get backfill threads
+		if (configJSON.containsKey(BACKFILL_THREADS)) {
+			backfillThreads = (Long) configJSON.get(BACKFILL_THREADS);
+			logger.info("Using configured backfillThreads of: "
+					+ backfillThreads.toString());
 		}
 
 		// get broker config
@@ -301,16 +300,43 @@ public class ConsumerClient {
 		JSONObject brokerProps = (JSONObject) brokerConfig.get("Properties");
 		String clientID = (String) brokerProps.get("client.id");
 
+		// offsets are committed as the durable sinks persist messages
+		boolean durable = false;
+		for (Sink sink : sinks) {
+			durable |= sink.isDurable();
+		}
+		if (durable) {
+			Object autoCommit = ClientBase.disableAutoCommit(brokerConfig);
+			if ("true".equals(String.valueOf(autoCommit))) {
+				logger.warn("Disabling enable.auto.commit, offsets are " + 
+					"committed once the sinks persist messages.");
+			}
+		}
+
 		// create consumer
 		Consumer m_Consumer = new Consumer(brokerConfig, heartbeatDirectory);
 
 		// subscribe to topics
 		m_Consumer.subscribe(topicList);
 
+		// catch up on anything we missed
+		if (backfillSpan != null) {
+			long backfillTime = System.currentTimeMillis() - 
+				(backfillSpan * 1000);
+			logger.info("Backfilling from: " + 
+				Utility.formatDate(new Date(backfillTime)));
+			m_Consumer.backfill(backfillTime, backfillThreads.intValue());
+		}
+
 		logger.info("Broker version: " + 
 			m_Consumer.VERSION_MAJOR + "." + m_Consumer.VERSION_MINOR + "." + 
 			m_Consumer.VERSION_PATCH);
 
+		// start the sinks
+		for (Sink sink : sinks) {
+			sink.start();
+		}
+
 		// run until stopped
 		while (true) {
 			logKafkaMetrics(m_Consumer, clientID, topicList);
@@ -344,70 +370,28 @@ public class ConsumerClient {
 
 			// get any messages from broker
 			try {
-				ArrayList<String> brokerMessages = m_Consumer.pollString(500);
-
-				// nullcheck brokerMessages (null means no messages)
-				// and make sure we got some messages
-				if ((brokerMessages != null) && (brokerMessages.size() != 0)) {
-					// add all messages in brokerMessages to file queue
-					for (int i = 0; i < brokerMessages.size(); i++) {
-
-						// get message as string
-						String message = brokerMessages.get(i);
-
-						// nullcheck
-						if (message == null) {
-							continue;
-						}
-						if (message.length() == 0) {
-							continue;
-						}				
-
-						logger.debug(message);
-
-						// add string to queue
-						fileQueue.add(message);
-					} // end for each new broker message
-				}	// end if there are new broker messages	
-
-				// write file containing messages to disk
-				// check to see if we have anything to write
-				if (fileQueue.isEmpty()) {
+				ArrayList<ConsumerRecord<String, byte[]>> records = 
+					m_Consumer.pollRecords(500);
+
+				// backfilled records are behind the committed offsets, so 
+				// they are not tracked
+				if ((records != null) && !records.isEmpty() && 
+					m_Consumer.isBackfilling()) {
+					records = Sink.untracked(records);
+				}
 
-					// nothing to do
+				// feed every sink
+				if ((records != null) && !records.isEmpty()) {
+					for (Sink sink : sinks) {
+						sink.submit(records);
+					}
+				} else {
 					logger.debug("No messages to write.");
+				}
 
-					continue;
-				// check to see if we have enough messages to write
-				} else if (fileQueue.size() >= messagesPerFile) {
-
-					// we've got enough messages
-					logger.info("Writing output file due to number of messages, "
-							+ String.valueOf(fileQueue.size()) + " pending. ");
-
-					// write messagesPerFile worth of messages
-					writeMessagesToDisk(messagesPerFile.intValue());
-				// otherwise check to see if it's been long enough to force
-				// a file
-				} else if (timePerFile != null) {
-
-					// get current time in seconds
-					Long timeNow = System.currentTimeMillis() / 1000;
-
-					// calculate elapsed time
-					Long elapsedTime = timeNow - lastFileWriteTime;
-
-					// has it been long enough:
-					if (elapsedTime > timePerFile) {
-						logger.info("Writing output file due to time, "
-								+ elapsedTime.toString()
-								+ " seconds since last file");
-
-						// write all pending messages in the queue to disk
-						// we're sure there are less than messagesPerFile
-						// because otherwise that would have been handled above
-						writeMessagesToDisk(fileQueue.size());
-					}
+				// commit whatever the sinks have persisted
+				if (durable) {
+					commitPersistedOffsets(m_Consumer);
 				}
 			} catch	(Exception e) {
 
@@ -418,82 +402,67 @@ public class ConsumerClient {
 	}
 
 	/**
-	 * File writing function for ConsumerClient
+	 * Commits the offsets of the messages persisted by every durable sink, at
+	 * most every COMMIT_INTERVAL_MS. A partition is committed at the lowest 
+	 * offset persisted by any durable sink, so a restart can repeat messages
+	 * in some sinks but not lose them in any.
 	 *
-	 * @param numToWrite
-	 *            - An Integer containing the number of messages to write in
-	 *            this file.
-	 * @return Returns true if successful, false otherwise
+	 * @param consumer
+	 *            - The Consumer the messages were polled from
 	 */
-	public static boolean writeMessagesToDisk(Integer numToWrite) {
-
-		try {
-			// sleep a little while before writing the file to avoid
-			// file name duplication issues
-			Thread.sleep(FILE_SLEEP_MS);
-
-			// get current time in milliseconds
-			Long timeNow = System.currentTimeMillis();
-
-			// build filename from desired output directory, time, optional
-			// name, and extension
-			String outFileName = outputDirectory + "/" + timeNow.toString()
-					+ fileName + "." + fileExtension;
-
-			// Create string to write to file
-			String fileString = "";
-
-			for (int i = 0; i < numToWrite; i++) {
-				// don't try to write if we're out of messages
-				if (fileQueue.isEmpty()) {
-					continue;
-				}
-
-				// get the next message to write
-				String messageString = fileQueue.remove();
-
-				// nullcheck
-				if (messageString == null) {
-					continue;
-				}
-				if (messageString.length() == 0) {
-					continue;
-				}	
-
-				// check to see if the message was newline terminated, add a newline
-				// if it isn't
-				if (messageString.charAt(messageString.length() - 1) != '\n') {
-					messageString = messageString.concat("\n");
-				}
+	private static void commitPersistedOffsets(Consumer consumer) {
+		long timeNow = System.currentTimeMillis();
+		if (timeNow - lastCommitTime < COMMIT_INTERVAL_MS) {
+			return;
+		}
+		lastCommitTime = timeNow;
 
-				// add the message to the file string
-				fileString += messageString;
+		// find the lowest persisted offset for each partition
+		Map<TopicPartition, Long> persistedOffsets = null;
+		for (Sink sink : sinks) {
+			if (!sink.isDurable()) {
+				continue;
 			}
-
-			// make sure we have something in the filestring to write (besides 
-			// whitespace).
-			if (!fileString.trim().isEmpty()) {
-				// create an UTF-8 formatted printwriter to write to disk
-				PrintWriter fileWriter = new PrintWriter(outFileName, "UTF-8");
-
-				// just call print to write the whole set of messages (filestring) 
-				// in one go
-				fileWriter.print(fileString);
-
-				// done with file
-				fileWriter.close();
+			Map<TopicPartition, Long> sinkOffsets = sink.getPersistedOffsets();
+			if (persistedOffsets == null) {
+				persistedOffsets = sinkOffsets;
+				continue;
 			}
 
-			// Remember the time we wrote this file in seconds
-			lastFileWriteTime = timeNow / 1000;
-		} catch (Exception e) {
+			// a partition not persisted by every sink can't be committed
+			persistedOffsets.keySet().retainAll(sinkOffsets.keySet());
+			for (Map.Entry<TopicPartition, Long> entry : 
+				persistedOffsets.entrySet()) {
+				entry.setValue(Math.min(entry.getValue(), 
+					sinkOffsets.get(entry.getKey())));
+			}
+		}
 
-			// log exception
-			logger.error("writeMessagesToDisk: " + e.toString());
-			return (false);
+		// never commit past messages the consumer is still holding, or 
+		// partitions it no longer owns
+		Map<TopicPartition, OffsetAndMetadata> consumedOffsets = 
+			consumer.getConsumedOffsets();
+		persistedOffsets.keySet().retainAll(consumedOffsets.keySet());
+		for (Map.Entry<TopicPartition, Long> entry : 
+			persistedOffsets.entrySet()) {
+			entry.setValue(Math.min(entry.getValue(), 
+				consumedOffsets.get(entry.getKey()).offset()));
 		}
 
-		return (true);
+		// commit anything that has moved
+		HashMap<TopicPartition, OffsetAndMetadata> offsets = 
+			new HashMap<TopicPartition, OffsetAndMetadata>();
+		for (Map.Entry<TopicPartition, Long> entry : 
+			persistedOffsets.entrySet()) {
+			if (!entry.getValue().equals(committedOffsets.get(entry.getKey()))) {
+				offsets.put(entry.getKey(), 
+					new OffsetAndMetadata(entry.getValue()));
+				committedOffsets.put(entry.getKey(), entry.getValue());
+			}
+		}
+		if (!offsets.isEmpty()) {
+			consumer.commitAsync(offsets);
+		}
 	}
 
 	public static void logKafkaMetrics(Consumer myConsumer, 
@@ -517,6 +486,13 @@ public class ConsumerClient {
 			clientID, "fetch-rate");
 		logger.info("KafkaMetric - " + fetchRate.toString());
 
+		// dedup metrics, if dropping duplicates
+		ArrayList<String> dedupMetrics = myConsumer.getKafkaMetric(
+			Consumer.DEDUP_METRICS + clientID, "");
+		if (!dedupMetrics.isEmpty()) {
+			logger.info("DedupMetric - " + dedupMetrics.toString());
+		}
+
 		// topic specific metrics
 		for (int i = 0; i < topicList.size(); i++) {
 			String topic = topicList.get(i);
@@ -0,0 +1,287 @@
+package gov.usgs.consumerclient;
+
+import java.util.*;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.json.simple.JSONObject;
+
+/**
+ * a sink that writes messages to batch files, each containing up to the
+ * configured number of messages, named by the time they were written. This is
+ * the original output of the ConsumerClient. Messages are persisted once the
+ * file containing them is written and closed.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class FileSink extends Sink {
+
+	/**
+	 * JSON Configuration Keys
+	 */
+	public static final String FILE_EXTENSION = "FileExtension";
+	public static final String FILE_NAME = "FileName";
+	public static final String MESSAGES_PER_FILE = "MessagesPerFile";
+	public static final String TIME_PER_FILE = "TimePerFile";
+	public static final String OUTPUT_DIRECTORY = "OutputDirectory";
+
+	/**
+	 * Long constant containing the time to sleep in ms between file writes to
+	 * ensure file name uniqueness.
+	 */
+	public static final Long FILE_SLEEP_MS = 10L;
+
+	/**
+	 * Required configuration string defining the output directory
+	 */
+	private String outputDirectory;
+
+	/**
+	 * Required configuration string defining the output file extension
+	 */
+	private String fileExtension;
+
+	/**
+	 * Optional configuration string defining the output file name
+	 */
+	private String fileName;
+
+	/**
+	 * Optional configuration Long defining the number of messages per file,
+	 * default is one.
+	 */
+	private Long messagesPerFile;
+
+	/**
+	 * Optional configuration Long defining the number seconds before writing a
+	 * file with less than the configured number of messages, default is null
+	 */
+	private Long timePerFile;
+
+	/**
+	 * Queue object to hold messages that need to be written to the file
+	 */
+	private LinkedList<ConsumerRecord<String, byte[]>> fileQueue;
+
+	/**
+	 * Variable containing time the last file was written.
+	 */
+	private Long lastFileWriteTime;
+
+	/**
+	 * The constructor for the FileSink class.
+	 *
+	 * @param config
+	 *            - A JSONObject containing the sink configuration
+	 * @throws java.lang.IllegalArgumentException
+	 *             if the FileExtension or OutputDirectory is missing
+	 */
+	public FileSink(JSONObject config) {
+		super(FILE_TYPE.toLowerCase() + "-" + config.get(OUTPUT_DIRECTORY),
+				config);
+
+		fileQueue = new LinkedList<ConsumerRecord<String, byte[]>>();
+		lastFileWriteTime = (Long) (System.currentTimeMillis() / 1000);
+
+		// get file extension
+		if (config.containsKey(FILE_EXTENSION)) {
+			fileExtension = (String) config.get(FILE_EXTENSION);
+			logger.info("Using configured fileExtension of: " + fileExtension);
+		} else {
+			throw new IllegalArgumentException(
+					"Did not find FileExtension in configuration.");
+		}
+
+		// get file name
+		if (config.containsKey(FILE_NAME)) {
+			fileName = (String) config.get(FILE_NAME);
+			logger.info("Using configured fileName of: " + fileName);
+		} else {
+			fileName = "";
+			logger.info("Not using configured fileName.");
+		}
+
+		// get output directory
+		if (config.containsKey(OUTPUT_DIRECTORY)) {
+			outputDirectory = (String) config.get(OUTPUT_DIRECTORY);
+			logger.info(
+					"Using configured outputDirectory of: " + outputDirectory);
+
+			// create output directory if it doesn't exist
+			File outDir = new File(outputDirectory);
+			if (!outDir.exists()) {
+				outDir.mkdirs();
+			}
+		} else {
+			throw new IllegalArgumentException(
+					"Did not find OutputDirectory in configuration.");
+		}
+
+		// get messages per file
+		if (config.containsKey(MESSAGES_PER_FILE)) {
+			messagesPerFile = (Long) config.get(MESSAGES_PER_FILE);
+			logger.info("Using configured messagesPerFile of: "
+					+ messagesPerFile.toString());
+		} else {
+			messagesPerFile = (long) 1;
+			logger.info("Using default messagesPerFile of: "
+					+ messagesPerFile.toString());
+		}
+
+		// get time per file
+		if (config.containsKey(TIME_PER_FILE)) {
+			timePerFile = (Long) config.get(TIME_PER_FILE);
+			logger.info("Using configured timePerFile of: "
+					+ timePerFile.toString());
+		} else {
+			timePerFile = null;
+			logger.info("Not using timePerFile.");
+		}
+	}
+
+	/**
+	 * @return the output directory
+	 */
+	public String getOutputDirectory() {
+		return (outputDirectory);
+	}
+
+	/**
+	 * Adds the provided records to the file queue, and writes a file for each
+	 * full set of messages
+	 *
+	 * @param records
+	 *            - A List&lt;ConsumerRecord&gt; containing the records
+	 * @throws java.io.IOException
+	 *             if a file could not be written
+	 */
+	protected void write(List<ConsumerRecord<String, byte[]>> records)
+			throws IOException {
+		for (ConsumerRecord<String, byte[]> record : records) {
+			// nullcheck
+			if ((record.value() == null) || (record.value().length == 0)) {
+				continue;
+			}
+
+			// add message to queue
+			fileQueue.add(record);
+		}
+
+		// check to see if we have enough messages to write
+		while (fileQueue.size() >= messagesPerFile) {
+
+			// we've got enough messages
+			logger.info("Writing output file due to number of messages, "
+					+ String.valueOf(fileQueue.size()) + " pending. ");
+
+			// write messagesPerFile worth of messages
+			writeMessagesToDisk(messagesPerFile.intValue());
+		}
+	}
+
+	/**
+	 * Writes a file containing every pending message if it has been long
+	 * enough since the last file
+	 *
+	 * @throws java.io.IOException
+	 *             if the file could not be written
+	 */
+	protected void tick() throws IOException {
+		// check to see if we have anything to write
+		if (fileQueue.isEmpty() || (timePerFile == null)) {
+			return;
+		}
+
+		// get current time in seconds
+		Long timeNow = System.currentTimeMillis() / 1000;
+
+		// calculate elapsed time
+		Long elapsedTime = timeNow - lastFileWriteTime;
+
+		// has it been long enough:
+		if (elapsedTime > timePerFile) {
+			logger.info("Writing output file due to time, "
+					+ elapsedTime.toString() + " seconds since last file");
+
+			// write all pending messages in the queue to disk
+			writeMessagesToDisk(fileQueue.size());
+		}
+	}
+
+	/**
+	 * Writes every pending message, the last file can have fewer than the
+	 * configured number of messages
+	 *
+	 * @throws java.io.IOException
+	 *             if the file could not be written
+	 */
+	protected void shutdown() throws IOException {
+		if (!fileQueue.isEmpty()) {
+			writeMessagesToDisk(fileQueue.size());
+		}
+	}
+
+	/**
+	 * File writing function for FileSink
+	 *
+	 * @param numToWrite
+	 *            - An Integer containing the number of messages to write in
+	 *            this file.
+	 * @throws java.io.IOException
+	 *             if the file could not be written
+	 */
+	private void writeMessagesToDisk(Integer numToWrite) throws IOException {
+
+		// sleep a little while before writing the file to avoid
+		// file name duplication issues
+		try {
+			Thread.sleep(FILE_SLEEP_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// get current time in milliseconds
+		Long timeNow = System.currentTimeMillis();
+
+		// build filename from desired output directory, time, optional
+		// name, and extension
+		String outFileName = outputDirectory + "/" + timeNow.toString()
+				+ fileName + "." + fileExtension;
+
+		// take the messages for this file off the queue
+		ArrayList<ConsumerRecord<String, byte[]>> fileRecords =
+				new ArrayList<ConsumerRecord<String, byte[]>>(numToWrite);
+		for (int i = 0; (i < numToWrite) && !fileQueue.isEmpty(); i++) {
+			fileRecords.add(fileQueue.remove());
+		}
+
+		// write the messages in one go, newline terminating each
+		BufferedOutputStream fileStream = new BufferedOutputStream(
+				new FileOutputStream(outFileName));
+		try {
+			for (ConsumerRecord<String, byte[]> record : fileRecords) {
+				byte[] message = record.value();
+				fileStream.write(message);
+				if (message[message.length - 1] != '\n') {
+					fileStream.write('\n');
+				}
+			}
+		} finally {
+			// done with file
+			fileStream.close();
+		}
+
+		// the messages in this file are persisted
+		HashMap<TopicPartition, Long> offsets =
+				new HashMap<TopicPartition, Long>();
+		addOffsets(offsets, fileRecords);
+		persisted(offsets);
+
+		// Remember the time we wrote this file in seconds
+		lastFileWriteTime = timeNow / 1000;
+	}
+}
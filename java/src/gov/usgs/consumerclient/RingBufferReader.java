@@ -0,0 +1,294 @@
+package gov.usgs.consumerclient;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * a class used to tail a memory mapped ring buffer file published by a
+ * RingBufferWriter, usually in another process on the same host. Reading a
+ * message doesn't need a system call. A reader that falls more than the
+ * capacity of the ring buffer behind skips ahead to the latest message and
+ * counts the messages it lost. See RingBufferWriter for the file layout.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class RingBufferReader {
+
+	/**
+	 * The number of checks take spins for before yielding
+	 */
+	public static final int SPIN_CHECKS = 10000;
+
+	/**
+	 * The number of checks take yields between before parking
+	 */
+	public static final int YIELD_CHECKS = 100;
+
+	/**
+	 * The time in ns to park between checks once take has spun and yielded
+	 * without a message
+	 */
+	public static final long IDLE_PARK_NS = 50000;
+
+	/**
+	 * The name of the ring buffer file
+	 */
+	private String fileName;
+
+	/**
+	 * The mapped ring buffer file
+	 */
+	private MappedByteBuffer buffer;
+
+	/**
+	 * A view of the mapped file used for bulk copies of messages
+	 */
+	private ByteBuffer copyView;
+
+	/**
+	 * The size of the data region
+	 */
+	private int capacity;
+
+	/**
+	 * The furthest a record can be behind the write position and still be
+	 * intact
+	 */
+	private long maxLag;
+
+	/**
+	 * The epoch of the ring buffer being read
+	 */
+	private long epoch;
+
+	/**
+	 * The position of the next record to read
+	 */
+	private long readPosition;
+
+	/**
+	 * The sequence number of the next message expected, -1 if unknown
+	 */
+	private long expectedSequence;
+
+	/**
+	 * The sequence number of the last message read
+	 */
+	private long sequence;
+
+	/**
+	 * The number of messages lost by falling behind
+	 */
+	private long lostMessages;
+
+	/**
+	 * Written after loading the write position and before loading the record,
+	 * the fence keeps the record from being loaded before the write position
+	 */
+	private volatile long acquired;
+
+	/**
+	 * The constructor for the RingBufferReader class. Starts reading at the
+	 * latest message published after the reader is created.
+	 *
+	 * @param newFileName
+	 *            - A String containing the ring buffer file name
+	 * @throws java.io.IOException
+	 *             if the file could not be mapped, or is not a ring buffer
+	 */
+	public RingBufferReader(String newFileName) throws IOException {
+		fileName = newFileName;
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					file.length());
+		} finally {
+			// the mapping stays valid after the file is closed
+			file.close();
+		}
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		copyView = buffer.duplicate();
+
+		if ((buffer.capacity() < RingBufferWriter.HEADER_SIZE) ||
+			(buffer.getInt(RingBufferWriter.MAGIC_OFFSET) !=
+				RingBufferWriter.MAGIC)) {
+			throw new IOException(fileName + " is not a ring buffer.");
+		}
+		if (buffer.getInt(RingBufferWriter.VERSION_OFFSET) !=
+				RingBufferWriter.VERSION) {
+			throw new IOException("Unsupported ring buffer version in " +
+					fileName + ".");
+		}
+		capacity = buffer.getInt(RingBufferWriter.CAPACITY_OFFSET);
+		if (buffer.capacity() < RingBufferWriter.HEADER_SIZE + capacity) {
+			throw new IOException("Truncated ring buffer " + fileName + ".");
+		}
+		maxLag = capacity - 2 * (capacity /
+				RingBufferWriter.MAX_RECORD_DIVISOR);
+
+		start();
+	}
+
+	/**
+	 * Reads the next message, if one has been published
+	 *
+	 * @return Returns a byte[] containing the message, or null if there are
+	 *         no new messages
+	 */
+	public byte[] poll() {
+		while (true) {
+			long writePosition = writePosition();
+
+			// start over if the writer has started a new ring buffer
+			if ((buffer.getLong(RingBufferWriter.EPOCH_OFFSET) != epoch) ||
+				(writePosition < readPosition)) {
+				start();
+				continue;
+			}
+			if (readPosition == writePosition) {
+				return (null);
+			}
+
+			// skip ahead if the writer has lapped us
+			if (writePosition - readPosition > maxLag) {
+				skipAhead();
+				continue;
+			}
+
+			int index = (int) (readPosition & (capacity - 1));
+			int recordOffset = RingBufferWriter.HEADER_SIZE + index;
+			int length = buffer.getInt(recordOffset);
+			if (length == RingBufferWriter.PADDING_LENGTH) {
+				readPosition += capacity - index;
+				continue;
+			}
+			if ((length < 0) || (RingBufferWriter.align(length +
+				RingBufferWriter.RECORD_HEADER_SIZE) > capacity /
+					RingBufferWriter.MAX_RECORD_DIVISOR)) {
+				// overwritten while we looked
+				skipAhead();
+				continue;
+			}
+			long recordSequence = buffer.getLong(recordOffset +
+					RingBufferWriter.SEQUENCE_OFFSET);
+			byte[] message = new byte[length];
+			copyView.position(recordOffset +
+					RingBufferWriter.RECORD_HEADER_SIZE);
+			copyView.get(message);
+
+			// make sure the record wasn't overwritten while we copied it
+			if (writePosition() - readPosition > maxLag) {
+				skipAhead();
+				continue;
+			}
+
+			if ((expectedSequence >= 0) &&
+				(recordSequence > expectedSequence)) {
+				lostMessages += recordSequence - expectedSequence;
+			}
+			sequence = recordSequence;
+			expectedSequence = recordSequence + 1;
+			readPosition += RingBufferWriter.align(length +
+					RingBufferWriter.RECORD_HEADER_SIZE);
+			return (message);
+		}
+	}
+
+	/**
+	 * Waits for the next message, spinning briefly, then yielding, then
+	 * parking briefly between checks
+	 *
+	 * @param timeout
+	 *            - A long containing the maximum time to wait in ms
+	 * @return Returns a byte[] containing the message, or null if there was
+	 *         no message before the timeout
+	 * @throws java.lang.InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public byte[] take(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		int checks = 0;
+		while (true) {
+			byte[] message = poll();
+			if (message != null) {
+				return (message);
+			}
+			if (++checks < SPIN_CHECKS) {
+				continue;
+			}
+			if (System.currentTimeMillis() >= deadline) {
+				return (null);
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (checks < SPIN_CHECKS + YIELD_CHECKS) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(IDLE_PARK_NS);
+			}
+		}
+	}
+
+	/**
+	 * @return the sequence number of the last message read
+	 */
+	public long getSequence() {
+		return (sequence);
+	}
+
+	/**
+	 * @return the number of messages lost by falling behind the writer
+	 */
+	public long getLostMessages() {
+		return (lostMessages);
+	}
+
+	/**
+	 * @return the name of the ring buffer file
+	 */
+	public String getFileName() {
+		return (fileName);
+	}
+
+	/**
+	 * Loads the write position, before any of the records it covers
+	 *
+	 * @return Returns the write position
+	 */
+	private long writePosition() {
+		long writePosition = buffer.getLong(
+				RingBufferWriter.WRITE_POSITION_OFFSET);
+		acquired = writePosition;
+		return (writePosition);
+	}
+
+	/**
+	 * Starts reading the current ring buffer at its write position
+	 */
+	private void start() {
+		epoch = buffer.getLong(RingBufferWriter.EPOCH_OFFSET);
+		readPosition = writePosition();
+		expectedSequence = -1;
+	}
+
+	/**
+	 * Skips ahead to the latest message, after falling too far behind the
+	 * writer
+	 */
+	private void skipAhead() {
+		long latestPosition = buffer.getLong(
+				RingBufferWriter.LATEST_POSITION_OFFSET);
+		if (latestPosition > readPosition) {
+			readPosition = latestPosition;
+		} else {
+			readPosition = writePosition();
+		}
+	}
+}
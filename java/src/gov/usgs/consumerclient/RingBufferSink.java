@@ -0,0 +1,128 @@
+package gov.usgs.consumerclient;
+
+import java.util.*;
+import java.io.IOException;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.json.simple.JSONObject;
+
+/**
+ * a sink that publishes messages into a memory mapped ring buffer file, for
+ * the lowest latency delivery to programs on the same host, which tail it
+ * with a RingBufferReader without a system call per message. The writer never
+ * waits for readers, readers that fall behind lose messages.
+ *
+ * Messages are not persisted, so this sink does not hold up offset commits.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class RingBufferSink extends Sink {
+
+	/**
+	 * JSON Configuration Keys
+	 */
+	public static final String RING_BUFFER_FILE = "RingBufferFile";
+	public static final String CAPACITY = "Capacity";
+
+	/**
+	 * The ring buffer writer
+	 */
+	private RingBufferWriter writer;
+
+	/**
+	 * The number of messages too large for the ring buffer
+	 */
+	private long skippedMessages;
+
+	/**
+	 * The constructor for the RingBufferSink class. Creates the ring buffer
+	 * file.
+	 *
+	 * @param config
+	 *            - A JSONObject containing the sink configuration
+	 * @throws java.lang.IllegalArgumentException
+	 *             if the configuration is invalid or the ring buffer file
+	 *             could not be created
+	 */
+	public RingBufferSink(JSONObject config) {
+		super(RING_BUFFER_TYPE.toLowerCase() + "-" +
+				config.get(RING_BUFFER_FILE), config);
+
+		skippedMessages = 0;
+
+		// get ring buffer file
+		String ringBufferFile = null;
+		if (config.containsKey(RING_BUFFER_FILE)) {
+			ringBufferFile = (String) config.get(RING_BUFFER_FILE);
+			logger.info("Using configured ringBufferFile of: " +
+					ringBufferFile);
+		} else {
+			throw new IllegalArgumentException(
+					"Did not find RingBufferFile in configuration.");
+		}
+
+		// get capacity
+		int capacity = RingBufferWriter.DEFAULT_CAPACITY;
+		if (config.containsKey(CAPACITY)) {
+			capacity = (int) Math.min(RingBufferWriter.MAX_CAPACITY,
+					(Long) config.get(CAPACITY));
+			logger.info("Using configured capacity of: " +
+					String.valueOf(capacity));
+		}
+
+		try {
+			writer = new RingBufferWriter(ringBufferFile, capacity);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not create ring " +
+					"buffer " + ringBufferFile + ": " + e.toString());
+		}
+	}
+
+	/**
+	 * Messages published to the ring buffer are not persisted
+	 *
+	 * @return Returns false
+	 */
+	public boolean isDurable() {
+		return (false);
+	}
+
+	/**
+	 * Publishes the provided records
+	 *
+	 * @param records
+	 *            - A List&lt;ConsumerRecord&gt; containing the records
+	 */
+	protected void write(List<ConsumerRecord<String, byte[]>> records) {
+		for (ConsumerRecord<String, byte[]> record : records) {
+			// nullcheck
+			if ((record.value() == null) || (record.value().length == 0)) {
+				continue;
+			}
+
+			try {
+				writer.write(record.value());
+			} catch (IOException e) {
+				// too large, skip it rather than fail the sink
+				skippedMessages++;
+				if ((skippedMessages == 1) || (skippedMessages % 1000 == 0)) {
+					logger.warn(e.getMessage() + " Skipped " +
+							String.valueOf(skippedMessages) + " message(s).");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Nothing is time based
+	 */
+	protected void tick() {
+	}
+
+	/**
+	 * Nothing to release, the mapping is released when collected, readers
+	 * keep reading the file
+	 */
+	protected void shutdown() {
+	}
+}
@@ -0,0 +1,241 @@
+package gov.usgs.consumerclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * a class used to publish messages into a memory mapped ring buffer file, so
+ * that readers on the same host can tail it without a system call per
+ * message. There is a single writer, and any number of readers, each reading
+ * at its own pace. Readers that fall more than the capacity behind lose
+ * messages, they never hold up the writer.
+ *
+ * The file layout, all integers big endian:
+ *
+ * <pre>
+ * Header (128 bytes)
+ *   0  int   magic, 0x48524E47 ("HRNG")
+ *   4  int   version, 1
+ *   8  int   capacity, the size of the data region, a power of 2
+ *   12 int   data offset, 128
+ *   16 long  epoch, the time in ms the writer created the buffer
+ *   64 long  write position, the position after the latest record
+ *   72 long  latest position, the position of the latest record
+ * Data region (capacity bytes), records at position &amp; (capacity - 1)
+ *   0  int   length of the message, or -1 for padding to the end of the
+ *            data region
+ *   4  int   reserved, 0
+ *   8  long  sequence number of the message, starting at 0
+ *   16 byte  message, followed by padding to a multiple of 8 bytes
+ * </pre>
+ *
+ * Positions count every byte ever written to the data region, so they only
+ * increase. A record is never split across the end of the data region, a
+ * padding record fills the rest of the region instead. Records are at most
+ * capacity / 8 bytes. The write position is updated only after the record is
+ * written, so a reader never sees a partial record. The writer can be writing
+ * up to two records (a padding record and a message) past the write position,
+ * so a reader must check after copying a message that the write position is
+ * still within 3 / 4 of the capacity of the record, or the writer may have
+ * overwritten it.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class RingBufferWriter {
+
+	/**
+	 * Header layout
+	 */
+	public static final int MAGIC = 0x48524E47;
+	public static final int VERSION = 1;
+	public static final int MAGIC_OFFSET = 0;
+	public static final int VERSION_OFFSET = 4;
+	public static final int CAPACITY_OFFSET = 8;
+	public static final int DATA_OFFSET_OFFSET = 12;
+	public static final int EPOCH_OFFSET = 16;
+	public static final int WRITE_POSITION_OFFSET = 64;
+	public static final int LATEST_POSITION_OFFSET = 72;
+	public static final int HEADER_SIZE = 128;
+
+	/**
+	 * Record layout
+	 */
+	public static final int RECORD_HEADER_SIZE = 16;
+	public static final int PADDING_LENGTH = -1;
+	public static final int SEQUENCE_OFFSET = 8;
+	public static final int ALIGNMENT = 8;
+
+	/**
+	 * The largest record is capacity / MAX_RECORD_DIVISOR bytes
+	 */
+	public static final int MAX_RECORD_DIVISOR = 8;
+
+	/**
+	 * The largest capacity of the data region, 1 GB
+	 */
+	public static final int MAX_CAPACITY = 1 << 30;
+
+	/**
+	 * The default capacity of the data region, 64 MB
+	 */
+	public static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+	/**
+	 * The name of the ring buffer file
+	 */
+	private String fileName;
+
+	/**
+	 * The mapped ring buffer file
+	 */
+	private MappedByteBuffer buffer;
+
+	/**
+	 * A view of the mapped file used for bulk copies of messages
+	 */
+	private ByteBuffer copyView;
+
+	/**
+	 * The size of the data region
+	 */
+	private int capacity;
+
+	/**
+	 * The position after the latest record
+	 */
+	private long writePosition;
+
+	/**
+	 * The sequence number of the next message
+	 */
+	private long sequence;
+
+	/**
+	 * Written after each record and before the write position, so the record
+	 * is stored before the write position is published
+	 */
+	private volatile long published;
+
+	/**
+	 * The constructor for the RingBufferWriter class. Creates the ring buffer
+	 * file, replacing any existing contents.
+	 *
+	 * @param newFileName
+	 *            - A String containing the ring buffer file name
+	 * @param newCapacity
+	 *            - An int containing the size of the data region, rounded up
+	 *            to a power of 2
+	 * @throws java.io.IOException
+	 *             if the file could not be created
+	 */
+	public RingBufferWriter(String newFileName, int newCapacity)
+			throws IOException {
+		fileName = newFileName;
+		capacity = Integer.highestOneBit(Math.min(Math.max(newCapacity, 1024),
+				MAX_CAPACITY) - 1) << 1;
+		writePosition = 0;
+		sequence = 0;
+
+		// create the directory if it doesn't exist
+		File parent = new File(fileName).getAbsoluteFile().getParentFile();
+		if ((parent != null) && !parent.exists()) {
+			parent.mkdirs();
+		}
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		try {
+			file.setLength(HEADER_SIZE + capacity);
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + capacity);
+		} finally {
+			// the mapping stays valid after the file is closed
+			file.close();
+		}
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		copyView = buffer.duplicate();
+
+		// a new epoch tells readers of an old buffer in this file to start
+		// over
+		buffer.putLong(WRITE_POSITION_OFFSET, 0);
+		buffer.putLong(LATEST_POSITION_OFFSET, 0);
+		buffer.putInt(CAPACITY_OFFSET, capacity);
+		buffer.putInt(DATA_OFFSET_OFFSET, HEADER_SIZE);
+		buffer.putLong(EPOCH_OFFSET, System.currentTimeMillis());
+		buffer.putInt(VERSION_OFFSET, VERSION);
+		published = 0;
+		buffer.putInt(MAGIC_OFFSET, MAGIC);
+	}
+
+	/**
+	 * Publishes the provided message
+	 *
+	 * @param message
+	 *            - A byte[] containing the message
+	 * @return Returns the sequence number of the message
+	 * @throws java.io.IOException
+	 *             if the message doesn't fit in the ring buffer
+	 */
+	public long write(byte[] message) throws IOException {
+		int recordSize = align(RECORD_HEADER_SIZE + message.length);
+		if (recordSize > capacity / MAX_RECORD_DIVISOR) {
+			throw new IOException("Message of " +
+					String.valueOf(message.length) + " bytes is too large " +
+					"for ring buffer " + fileName + ".");
+		}
+
+		// pad to the end of the data region if the record doesn't fit
+		int index = (int) (writePosition & (capacity - 1));
+		if (index + recordSize > capacity) {
+			buffer.putInt(HEADER_SIZE + index, PADDING_LENGTH);
+			writePosition += capacity - index;
+			index = 0;
+		}
+
+		// write the record
+		int recordOffset = HEADER_SIZE + index;
+		buffer.putInt(recordOffset, message.length);
+		buffer.putInt(recordOffset + 4, 0);
+		buffer.putLong(recordOffset + SEQUENCE_OFFSET, sequence);
+		copyView.position(recordOffset + RECORD_HEADER_SIZE);
+		copyView.put(message);
+
+		// publish it
+		long recordPosition = writePosition;
+		writePosition += recordSize;
+		published = writePosition;
+		buffer.putLong(LATEST_POSITION_OFFSET, recordPosition);
+		buffer.putLong(WRITE_POSITION_OFFSET, writePosition);
+
+		return (sequence++);
+	}
+
+	/**
+	 * @return the name of the ring buffer file
+	 */
+	public String getFileName() {
+		return (fileName);
+	}
+
+	/**
+	 * @return the size of the data region
+	 */
+	public int getCapacity() {
+		return (capacity);
+	}
+
+	/**
+	 * Rounds the provided size up to the record alignment
+	 *
+	 * @param size
+	 *            - An int containing the size
+	 * @return Returns the aligned size
+	 */
+	static int align(int size) {
+		return ((size + ALIGNMENT - 1) & ~(ALIGNMENT - 1));
+	}
+}
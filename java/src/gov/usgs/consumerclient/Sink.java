@@ -0,0 +1,377 @@
+package gov.usgs.consumerclient;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.json.simple.JSONObject;
+
+/**
+ * a base class for the outputs of the ConsumerClient, so that one consumer can
+ * feed several outputs without fetching the same topics more than once. Each
+ * sink has its own bounded queue of polled records and its own thread writing
+ * them out, so a slow sink only holds up the others once its queue is full.
+ *
+ * Each sink keeps track of the offsets of the records it has persisted, so
+ * that offsets are only committed once every durable sink has persisted them.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public abstract class Sink {
+
+	/**
+	 * JSON Configuration Keys
+	 */
+	public static final String TYPE_KEY = "Type";
+	public static final String QUEUE_SIZE = "QueueSize";
+
+	/**
+	 * Sink types
+	 */
+	public static final String FILE_TYPE = "File";
+	public static final String ARCHIVE_TYPE = "Archive";
+	public static final String SOCKET_TYPE = "Socket";
+	public static final String RING_BUFFER_TYPE = "RingBuffer";
+
+	/**
+	 * The default number of polled batches that can be waiting in a sink's
+	 * queue
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+
+	/**
+	 * The maximum time in ms between calls to tick
+	 */
+	public static final long TICK_MS = 500;
+
+	/**
+	 * The batch used to stop the sink thread
+	 */
+	private static final ArrayList<ConsumerRecord<String, byte[]>> END_BATCH =
+		new ArrayList<ConsumerRecord<String, byte[]>>();
+
+	/**
+	 * The name of the sink, used for logging and the sink thread
+	 */
+	protected String name;
+
+	/**
+	 * The polled batches waiting to be written
+	 */
+	private BlockingQueue<ArrayList<ConsumerRecord<String, byte[]>>> queue;
+
+	/**
+	 * The sink thread
+	 */
+	private Thread sinkThread;
+
+	/**
+	 * The offset of the next record in each partition after the records
+	 * persisted by this sink, guarded by this
+	 */
+	private HashMap<TopicPartition, Long> persistedOffsets;
+
+	/**
+	 * Flag indicating that the sink failed to write, once set no more offsets
+	 * are persisted, guarded by this
+	 */
+	private boolean failed;
+
+	/**
+	 * The number of batches dropped because the queue was full
+	 */
+	private long droppedBatches;
+
+	/**
+	 * Log4J logger for Sink
+	 */
+	static Logger logger = Logger.getLogger(Sink.class);
+
+	/**
+	 * Creates the sink described by the provided configuration
+	 *
+	 * @param config
+	 *            - A JSONObject containing the sink configuration
+	 * @return Returns the Sink, or null if the Type is missing or unknown
+	 * @throws java.lang.IllegalArgumentException
+	 *             if the sink configuration is invalid
+	 */
+	public static Sink createSink(JSONObject config) {
+		String type = (String) config.get(TYPE_KEY);
+		if (FILE_TYPE.equals(type)) {
+			return (new FileSink(config));
+		} else if (ARCHIVE_TYPE.equals(type)) {
+			return (new ArchiveSink(config));
+		} else if (SOCKET_TYPE.equals(type)) {
+			return (new SocketSink(config));
+		} else if (RING_BUFFER_TYPE.equals(type)) {
+			return (new RingBufferSink(config));
+		}
+
+		logger.error("Unknown sink Type: " + type);
+		return (null);
+	}
+
+	/**
+	 * Copies the provided records without their offsets, used for backfilled
+	 * records, which are behind the live records and must not be committed
+	 *
+	 * @param records
+	 *            - An ArrayList&lt;ConsumerRecord&gt; containing the records
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing the copied
+	 *         records, each with an offset of -1
+	 */
+	public static ArrayList<ConsumerRecord<String, byte[]>> untracked(
+		ArrayList<ConsumerRecord<String, byte[]>> records) {
+		ArrayList<ConsumerRecord<String, byte[]>> copies =
+			new ArrayList<ConsumerRecord<String, byte[]>>(records.size());
+		for (ConsumerRecord<String, byte[]> record : records) {
+			copies.add(new ConsumerRecord<String, byte[]>(record.topic(),
+				record.partition(), -1, record.key(), record.value()));
+		}
+		return (copies);
+	}
+
+	/**
+	 * The constructor for the Sink class.
+	 *
+	 * @param newName
+	 *            - A String containing the name of the sink
+	 * @param config
+	 *            - A JSONObject containing the sink configuration
+	 */
+	protected Sink(String newName, JSONObject config) {
+		name = newName;
+
+		int queueSize = DEFAULT_QUEUE_SIZE;
+		if (config.containsKey(QUEUE_SIZE)) {
+			queueSize = ((Long) config.get(QUEUE_SIZE)).intValue();
+			logger.info("Using configured queueSize of: " +
+				String.valueOf(queueSize) + " for " + name);
+		}
+
+		queue = new ArrayBlockingQueue<ArrayList<ConsumerRecord<String,
+			byte[]>>>(Math.max(1, queueSize));
+		persistedOffsets = new HashMap<TopicPartition, Long>();
+		failed = false;
+		droppedBatches = 0;
+	}
+
+	/**
+	 * Starts the sink thread
+	 */
+	public void start() {
+		sinkThread = new Thread(new Runnable() {
+			public void run() {
+				runSink();
+			}
+		}, "hazdev-sink-" + name);
+		sinkThread.setDaemon(true);
+		sinkThread.start();
+	}
+
+	/**
+	 * Hands a batch of polled records to the sink. Sinks that drop when full
+	 * drop the batch if the queue is full, others wait for room.
+	 *
+	 * @param records
+	 *            - An ArrayList&lt;ConsumerRecord&gt; containing the records,
+	 *            which must not be modified afterwards
+	 * @throws java.lang.InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void submit(ArrayList<ConsumerRecord<String, byte[]>> records)
+		throws InterruptedException {
+		if (!dropsWhenFull()) {
+			queue.put(records);
+		} else if (!queue.offer(records)) {
+			droppedBatches++;
+			if ((droppedBatches == 1) || (droppedBatches % 1000 == 0)) {
+				logger.warn("Sink " + name + " is falling behind, dropped " +
+					String.valueOf(droppedBatches) + " batch(es).");
+			}
+		}
+	}
+
+	/**
+	 * Stops the sink thread once every queued batch is written, then shuts
+	 * the sink down
+	 *
+	 * @throws java.lang.InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void close() throws InterruptedException {
+		if (sinkThread == null) {
+			return;
+		}
+		queue.put(END_BATCH);
+		sinkThread.join();
+		sinkThread = null;
+	}
+
+	/**
+	 * @return a copy of the offset of the next record in each partition after
+	 *         the records persisted by this sink
+	 */
+	public synchronized Map<TopicPartition, Long> getPersistedOffsets() {
+		return (new HashMap<TopicPartition, Long>(persistedOffsets));
+	}
+
+	/**
+	 * Whether offsets should wait for this sink to persist records before
+	 * being committed
+	 *
+	 * @return Returns true for durable sinks, the default
+	 */
+	public boolean isDurable() {
+		return (true);
+	}
+
+	/**
+	 * Whether batches are dropped when the queue is full, rather than holding
+	 * up the client
+	 *
+	 * @return Returns true for sinks that aren't durable, the default
+	 */
+	public boolean dropsWhenFull() {
+		return (!isDurable());
+	}
+
+	/**
+	 * @return the name of the sink
+	 */
+	public String getName() {
+		return (name);
+	}
+
+	/**
+	 * Writes the provided records, called on the sink thread in the order the
+	 * records were polled
+	 *
+	 * @param records
+	 *            - A List&lt;ConsumerRecord&gt; containing the records
+	 * @throws java.io.IOException
+	 *             if the records could not be written
+	 */
+	protected abstract void write(List<ConsumerRecord<String, byte[]>> records)
+		throws IOException;
+
+	/**
+	 * Handles any time based output, called on the sink thread after every
+	 * batch and at least every TICK_MS
+	 *
+	 * @throws java.io.IOException
+	 *             if the output could not be written
+	 */
+	protected abstract void tick() throws IOException;
+
+	/**
+	 * Writes out anything pending and releases the sink's resources, called
+	 * on the sink thread when the sink is closed
+	 *
+	 * @throws java.io.IOException
+	 *             if the output could not be written
+	 */
+	protected abstract void shutdown() throws IOException;
+
+	/**
+	 * Adds the offsets of the provided records to the provided offsets, so
+	 * that each partition holds the offset after its latest record. Records
+	 * without an offset (backfilled records) are skipped.
+	 *
+	 * @param offsets
+	 *            - A Map&lt;TopicPartition, Long&gt; to add the offsets to
+	 * @param records
+	 *            - A List&lt;ConsumerRecord&gt; containing the records
+	 */
+	protected static void addOffsets(Map<TopicPartition, Long> offsets,
+		List<ConsumerRecord<String, byte[]>> records) {
+		for (ConsumerRecord<String, byte[]> record : records) {
+			if (record.offset() < 0) {
+				continue;
+			}
+			TopicPartition partition = new TopicPartition(record.topic(),
+				record.partition());
+			Long offset = offsets.get(partition);
+			if ((offset == null) || (offset < record.offset() + 1)) {
+				offsets.put(partition, record.offset() + 1);
+			}
+		}
+	}
+
+	/**
+	 * Records that the records covered by the provided offsets have been
+	 * persisted
+	 *
+	 * @param offsets
+	 *            - A Map&lt;TopicPartition, Long&gt; containing the offset
+	 *            after the latest persisted record in each partition
+	 */
+	protected synchronized void persisted(Map<TopicPartition, Long> offsets) {
+		if (failed) {
+			return;
+		}
+		for (Map.Entry<TopicPartition, Long> entry : offsets.entrySet()) {
+			Long offset = persistedOffsets.get(entry.getKey());
+			if ((offset == null) || (offset < entry.getValue())) {
+				persistedOffsets.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Sink thread function, writes each batch in the order they were
+	 * submitted
+	 */
+	private void runSink() {
+		while (true) {
+			ArrayList<ConsumerRecord<String, byte[]>> batch = null;
+			try {
+				batch = queue.poll(TICK_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (batch == END_BATCH) {
+				break;
+			}
+
+			try {
+				if (batch != null) {
+					write(batch);
+				}
+				tick();
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+
+		try {
+			shutdown();
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Handles a write failure, no more offsets are persisted after a failure
+	 * since later records would otherwise cover the lost ones
+	 *
+	 * @param e
+	 *            - The Exception that caused the failure
+	 */
+	private synchronized void fail(Exception e) {
+		if (!failed && isDurable()) {
+			logger.error("Sink " + name + " failed, no longer committing " +
+				"offsets: " + e.toString());
+			failed = true;
+		} else {
+			logger.error("Sink " + name + ": " + e.toString());
+		}
+	}
+}
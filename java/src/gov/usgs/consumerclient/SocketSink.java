@@ -0,0 +1,465 @@
+package gov.usgs.consumerclient;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.json.simple.JSONObject;
+
+/**
+ * a sink that streams messages to programs on the same host over a loopback
+ * TCP server, so they see new messages as soon as they are polled instead of
+ * polling an output directory. Any number of readers can connect, each gets
+ * every message polled after it connects, framed by a newline or a length
+ * prefix. Each reader has its own bounded buffer and writer thread, and the
+ * slow reader policy decides what happens when a reader's buffer is full.
+ *
+ * Messages are not persisted, so this sink does not hold up offset commits.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class SocketSink extends Sink {
+
+	/**
+	 * JSON Configuration Keys
+	 */
+	public static final String HOST = "Host";
+	public static final String PORT = "Port";
+	public static final String FRAMING = "Framing";
+	public static final String READER_BUFFER_SIZE = "ReaderBufferSize";
+	public static final String SLOW_READER_POLICY = "SlowReaderPolicy";
+
+	/**
+	 * Framing types
+	 */
+	public static final String NEWLINE_FRAMING = "Newline";
+	public static final String LENGTH_FRAMING = "Length";
+
+	/**
+	 * Slow reader policies
+	 */
+	public static final String DROP_POLICY = "Drop";
+	public static final String DISCONNECT_POLICY = "Disconnect";
+	public static final String BLOCK_POLICY = "Block";
+
+	/**
+	 * The default host to listen on, loopback so only local programs can
+	 * connect
+	 */
+	public static final String DEFAULT_HOST = "127.0.0.1";
+
+	/**
+	 * The default number of messages buffered for each reader
+	 */
+	public static final int DEFAULT_READER_BUFFER_SIZE = 1024;
+
+	/**
+	 * The time in ms between checks that a blocking reader is still connected
+	 */
+	public static final long BLOCK_CHECK_MS = 100;
+
+	/**
+	 * The message used to stop a reader's writer thread
+	 */
+	private static final byte[] END_MESSAGE = new byte[0];
+
+	/**
+	 * Configuration string defining the framing, default is Newline
+	 */
+	private String framing;
+
+	/**
+	 * Configuration int defining the number of messages buffered for each
+	 * reader
+	 */
+	private int readerBufferSize;
+
+	/**
+	 * Configuration string defining the slow reader policy, default is Drop
+	 */
+	private String slowReaderPolicy;
+
+	/**
+	 * The server socket readers connect to
+	 */
+	private ServerSocket serverSocket;
+
+	/**
+	 * The thread accepting readers
+	 */
+	private Thread acceptThread;
+
+	/**
+	 * The connected readers
+	 */
+	private CopyOnWriteArrayList<Reader> readers;
+
+	/**
+	 * a connected reader, with its own bounded buffer of framed messages and
+	 * its own writer thread
+	 */
+	private class Reader {
+
+		/**
+		 * The reader's socket
+		 */
+		private Socket socket;
+
+		/**
+		 * The framed messages waiting to be sent
+		 */
+		private BlockingQueue<byte[]> buffer;
+
+		/**
+		 * The number of messages dropped because the buffer was full
+		 */
+		private long droppedMessages;
+
+		/**
+		 * Flag indicating that the reader is disconnected
+		 */
+		private volatile boolean closed;
+
+		/**
+		 * The constructor for the Reader class.
+		 *
+		 * @param newSocket
+		 *            - The reader's Socket
+		 */
+		Reader(Socket newSocket) {
+			socket = newSocket;
+			buffer = new ArrayBlockingQueue<byte[]>(readerBufferSize);
+			droppedMessages = 0;
+			closed = false;
+		}
+
+		/**
+		 * Starts the writer thread
+		 */
+		void start() {
+			Thread writerThread = new Thread(new Runnable() {
+				public void run() {
+					sendMessages();
+				}
+			}, "hazdev-sink-" + name + "-" +
+					socket.getRemoteSocketAddress().toString());
+			writerThread.setDaemon(true);
+			writerThread.start();
+		}
+
+		/**
+		 * Adds the provided framed message to the reader's buffer, applying
+		 * the slow reader policy if the buffer is full
+		 *
+		 * @param message
+		 *            - A byte[] containing the framed message
+		 * @throws java.lang.InterruptedException
+		 *             if interrupted while blocking
+		 */
+		void send(byte[] message) throws InterruptedException {
+			if (closed || buffer.offer(message)) {
+				return;
+			}
+
+			if (slowReaderPolicy.equals(BLOCK_POLICY)) {
+				// wait for room, unless the reader goes away
+				while (!closed && !buffer.offer(message, BLOCK_CHECK_MS,
+						TimeUnit.MILLISECONDS)) {
+				}
+			} else if (slowReaderPolicy.equals(DISCONNECT_POLICY)) {
+				logger.warn("Disconnecting slow reader " +
+						socket.getRemoteSocketAddress().toString() + " from " +
+						name + ".");
+				close();
+			} else {
+				droppedMessages++;
+				if ((droppedMessages == 1) || (droppedMessages % 1000 == 0)) {
+					logger.warn("Reader " +
+							socket.getRemoteSocketAddress().toString() +
+							" is falling behind " + name + ", dropped " +
+							String.valueOf(droppedMessages) + " message(s).");
+				}
+			}
+		}
+
+		/**
+		 * Disconnects the reader
+		 */
+		void close() {
+			closed = true;
+			readers.remove(this);
+
+			// wake up the writer thread
+			buffer.clear();
+			buffer.offer(END_MESSAGE);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+
+		/**
+		 * Writer thread function, sends buffered messages, flushing whenever
+		 * the buffer is empty so that each message goes out immediately
+		 */
+		private void sendMessages() {
+			try {
+				OutputStream stream = new BufferedOutputStream(
+						socket.getOutputStream());
+				while (!closed) {
+					byte[] message = buffer.take();
+					if (message == END_MESSAGE) {
+						break;
+					}
+					stream.write(message);
+					if (buffer.isEmpty()) {
+						stream.flush();
+					}
+				}
+				stream.flush();
+			} catch (Exception e) {
+				if (!closed) {
+					logger.info("Reader " +
+							socket.getRemoteSocketAddress().toString() +
+							" disconnected from " + name + ": " + e.toString());
+				}
+			} finally {
+				close();
+			}
+		}
+	}
+
+	/**
+	 * The constructor for the SocketSink class. Starts listening for readers.
+	 *
+	 * @param config
+	 *            - A JSONObject containing the sink configuration
+	 * @throws java.lang.IllegalArgumentException
+	 *             if the configuration is invalid or the server socket could
+	 *             not be opened
+	 */
+	public SocketSink(JSONObject config) {
+		super(SOCKET_TYPE.toLowerCase() + "-" + config.get(PORT), config);
+
+		framing = NEWLINE_FRAMING;
+		readerBufferSize = DEFAULT_READER_BUFFER_SIZE;
+		slowReaderPolicy = DROP_POLICY;
+		readers = new CopyOnWriteArrayList<Reader>();
+
+		// get host
+		String host = DEFAULT_HOST;
+		if (config.containsKey(HOST)) {
+			host = (String) config.get(HOST);
+			logger.info("Using configured host of: " + host);
+		}
+
+		// get port
+		int port = 0;
+		if (config.containsKey(PORT)) {
+			port = ((Long) config.get(PORT)).intValue();
+			logger.info("Using configured port of: " + String.valueOf(port));
+		} else {
+			throw new IllegalArgumentException(
+					"Did not find Port in configuration.");
+		}
+
+		// get framing
+		if (config.containsKey(FRAMING)) {
+			framing = (String) config.get(FRAMING);
+			if (!framing.equals(NEWLINE_FRAMING) &&
+				!framing.equals(LENGTH_FRAMING)) {
+				throw new IllegalArgumentException(
+						"Invalid Framing in configuration.");
+			}
+			logger.info("Using configured framing of: " + framing);
+		}
+
+		// get reader buffer size
+		if (config.containsKey(READER_BUFFER_SIZE)) {
+			readerBufferSize = Math.max(1,
+					((Long) config.get(READER_BUFFER_SIZE)).intValue());
+			logger.info("Using configured readerBufferSize of: " +
+					String.valueOf(readerBufferSize));
+		}
+
+		// get slow reader policy
+		if (config.containsKey(SLOW_READER_POLICY)) {
+			slowReaderPolicy = (String) config.get(SLOW_READER_POLICY);
+			if (!slowReaderPolicy.equals(DROP_POLICY) &&
+				!slowReaderPolicy.equals(DISCONNECT_POLICY) &&
+				!slowReaderPolicy.equals(BLOCK_POLICY)) {
+				throw new IllegalArgumentException(
+						"Invalid SlowReaderPolicy in configuration.");
+			}
+			logger.info("Using configured slowReaderPolicy of: " +
+					slowReaderPolicy);
+		}
+
+		// start listening
+		try {
+			serverSocket = new ServerSocket();
+			serverSocket.setReuseAddress(true);
+			serverSocket.bind(new InetSocketAddress(
+					InetAddress.getByName(host), port));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not listen on " + host +
+					":" + String.valueOf(port) + ": " + e.toString());
+		}
+
+		acceptThread = new Thread(new Runnable() {
+			public void run() {
+				acceptReaders();
+			}
+		}, "hazdev-sink-" + name + "-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 * Messages sent to readers are not persisted
+	 *
+	 * @return Returns false
+	 */
+	public boolean isDurable() {
+		return (false);
+	}
+
+	/**
+	 * Whether batches are dropped when the sink falls behind, only when slow
+	 * readers are not blocking
+	 *
+	 * @return Returns true unless the slow reader policy is Block
+	 */
+	public boolean dropsWhenFull() {
+		return (!slowReaderPolicy.equals(BLOCK_POLICY));
+	}
+
+	/**
+	 * @return the port readers connect to
+	 */
+	public int getPort() {
+		return (serverSocket.getLocalPort());
+	}
+
+	/**
+	 * @return the number of connected readers
+	 */
+	public int getReaderCount() {
+		return (readers.size());
+	}
+
+	/**
+	 * Frames each of the provided records once, and sends it to every reader
+	 *
+	 * @param records
+	 *            - A List&lt;ConsumerRecord&gt; containing the records
+	 * @throws java.io.IOException
+	 *             if interrupted while blocking
+	 */
+	protected void write(List<ConsumerRecord<String, byte[]>> records)
+			throws IOException {
+		if (readers.isEmpty()) {
+			return;
+		}
+
+		try {
+			for (ConsumerRecord<String, byte[]> record : records) {
+				// nullcheck
+				if ((record.value() == null) || (record.value().length == 0)) {
+					continue;
+				}
+
+				byte[] message = frame(record.value());
+				for (Reader reader : readers) {
+					reader.send(message);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted sending to readers.");
+		}
+	}
+
+	/**
+	 * Nothing is time based
+	 */
+	protected void tick() {
+	}
+
+	/**
+	 * Stops listening and disconnects every reader
+	 *
+	 * @throws java.io.IOException
+	 *             if the server socket could not be closed
+	 */
+	protected void shutdown() throws IOException {
+		serverSocket.close();
+		for (Reader reader : readers) {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Frames the provided message
+	 *
+	 * @param message
+	 *            - A byte[] containing the message
+	 * @return Returns a byte[] containing the message followed by a newline
+	 *         if it doesn't already end with one, or for Length framing, the
+	 *         message preceded by its length as a 4 byte big endian integer
+	 */
+	private byte[] frame(byte[] message) {
+		if (framing.equals(LENGTH_FRAMING)) {
+			byte[] framed = new byte[message.length + 4];
+			framed[0] = (byte) (message.length >>> 24);
+			framed[1] = (byte) (message.length >>> 16);
+			framed[2] = (byte) (message.length >>> 8);
+			framed[3] = (byte) message.length;
+			System.arraycopy(message, 0, framed, 4, message.length);
+			return (framed);
+		}
+
+		if (message[message.length - 1] == '\n') {
+			return (message);
+		}
+		byte[] framed = Arrays.copyOf(message, message.length + 1);
+		framed[message.length] = '\n';
+		return (framed);
+	}
+
+	/**
+	 * Accept thread function, accepts readers until the server socket is
+	 * closed
+	 */
+	private void acceptReaders() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				socket.shutdownInput();
+				Reader reader = new Reader(socket);
+				readers.add(reader);
+				reader.start();
+				logger.info("Reader " +
+						socket.getRemoteSocketAddress().toString() +
+						" connected to " + name + ".");
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					logger.error("Exception accepting reader on " + name +
+							": " + e.toString());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package gov.usgs.deliverybenchmark;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import gov.usgs.consumerclient.FileSink;
+import gov.usgs.consumerclient.RingBufferReader;
+import gov.usgs.consumerclient.RingBufferSink;
+import gov.usgs.consumerclient.Sink;
+import gov.usgs.consumerclient.SocketSink;
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.json.simple.JSONObject;
+
+/**
+ * a tool used to compare the latency of delivering messages to a program on
+ * the same host through the ConsumerClient's File, Socket and RingBuffer
+ * sinks. Messages are handed to each sink at a steady rate, a receiver thread
+ * reads them the way a downstream program would, and the time from handing a
+ * message to the sink until it is received is reported.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class DeliveryBenchmark {
+
+	/**
+	 * Default benchmark settings
+	 */
+	public static final int DEFAULT_MESSAGES = 500;
+	public static final int DEFAULT_RATE = 50;
+	public static final int DEFAULT_MESSAGE_BYTES = 256;
+	public static final String DEFAULT_DIRECTORY = "./benchmark";
+	public static final long DEFAULT_FILE_POLL_MS = 100;
+
+	/**
+	 * The time in ms to wait for the last messages after they are sent
+	 */
+	public static final long DRAIN_MS = 5000;
+
+	/**
+	 * The field holding the time the message was sent, in ns
+	 */
+	private static final String SENT_FIELD = "\"Sent\":";
+
+	/**
+	 * a receiver reading benchmark messages the way a downstream program
+	 * would, and recording their latencies
+	 */
+	private abstract static class Receiver extends Thread {
+
+		/**
+		 * The latency of each message received, in ns
+		 */
+		long[] latencies;
+
+		/**
+		 * The number of messages received
+		 */
+		volatile int received;
+
+		/**
+		 * Flag indicating that the receiver should stop
+		 */
+		volatile boolean stopped;
+
+		/**
+		 * The constructor for the Receiver class.
+		 *
+		 * @param messages
+		 *            - An int containing the number of messages expected
+		 */
+		Receiver(int messages) {
+			latencies = new long[messages];
+			received = 0;
+			stopped = false;
+			setDaemon(true);
+		}
+
+		/**
+		 * Records the latency of the provided message
+		 *
+		 * @param message
+		 *            - A String containing the message
+		 */
+		void receive(String message) {
+			long now = System.nanoTime();
+			int start = message.indexOf(SENT_FIELD);
+			if ((start < 0) || (received >= latencies.length)) {
+				return;
+			}
+			start += SENT_FIELD.length();
+			int end = message.indexOf(',', start);
+			latencies[received] = now -
+					Long.parseLong(message.substring(start, end));
+			received++;
+		}
+	}
+
+	/**
+	 * main function for DeliveryBenchmark
+	 *
+	 * @param args
+	 *            - A String[] containing the command line arguments.
+	 */
+	public static void main(String[] args) {
+
+		int messages = DEFAULT_MESSAGES;
+		int rate = DEFAULT_RATE;
+		int messageBytes = DEFAULT_MESSAGE_BYTES;
+		String directory = DEFAULT_DIRECTORY;
+		long filePollMs = DEFAULT_FILE_POLL_MS;
+		try {
+			if (args.length > 0) {
+				messages = Integer.parseInt(args[0]);
+			}
+			if (args.length > 1) {
+				rate = Integer.parseInt(args[1]);
+			}
+			if (args.length > 2) {
+				messageBytes = Integer.parseInt(args[2]);
+			}
+			if (args.length > 3) {
+				directory = args[3];
+			}
+			if (args.length > 4) {
+				filePollMs = Long.parseLong(args[4]);
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Usage: hazdev-broker DeliveryBenchmark " +
+					"[messages] [messagesPerSecond] [messageBytes] " +
+					"[workDirectory] [filePollMillis]");
+			System.exit(1);
+		}
+
+		// keep the sinks quiet
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		System.out.println("Delivering " + String.valueOf(messages) + " " +
+				String.valueOf(messageBytes) + " byte message(s) at " +
+				String.valueOf(rate) + " per second, polling files every " +
+				String.valueOf(filePollMs) + " ms.");
+
+		try {
+			benchmarkFile(messages, rate, messageBytes,
+					directory + "/files", filePollMs);
+			benchmarkSocket(messages, rate, messageBytes);
+			benchmarkRingBuffer(messages, rate, messageBytes,
+					directory + "/ring");
+		} catch (Exception e) {
+			System.out.println("Error, benchmark failed: " + e.toString());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Benchmarks a File sink, with a receiver polling the output directory
+	 *
+	 * @param messages
+	 *            - An int containing the number of messages to send
+	 * @param rate
+	 *            - An int containing the messages to send per second
+	 * @param messageBytes
+	 *            - An int containing the size of each message
+	 * @param directory
+	 *            - A String containing the output directory
+	 * @param pollMs
+	 *            - A long containing the time between polls of the directory
+	 * @throws java.lang.Exception
+	 *             if the benchmark failed
+	 */
+	@SuppressWarnings("unchecked")
+	private static void benchmarkFile(int messages, int rate,
+			int messageBytes, String directory, final long pollMs)
+			throws Exception {
+		final File outputDirectory = new File(directory);
+		if (outputDirectory.exists()) {
+			for (File file : outputDirectory.listFiles()) {
+				file.delete();
+			}
+		}
+
+		JSONObject config = new JSONObject();
+		config.put(FileSink.OUTPUT_DIRECTORY, directory);
+		config.put(FileSink.FILE_EXTENSION, "json");
+		Sink sink = new FileSink(config);
+
+		Receiver receiver = new Receiver(messages) {
+			public void run() {
+				while (!stopped) {
+					File[] files = outputDirectory.listFiles();
+					Arrays.sort(files);
+					for (File file : files) {
+						try {
+							String contents = new String(
+									Files.readAllBytes(file.toPath()), "UTF-8");
+
+							// still being written
+							if (!contents.endsWith("\n")) {
+								continue;
+							}
+							for (String line : contents.split("\n")) {
+								receive(line);
+							}
+							file.delete();
+						} catch (Exception e) {
+							// try again next poll
+						}
+					}
+					try {
+						Thread.sleep(pollMs);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+
+		run("File", sink, receiver, messages, rate, messageBytes);
+	}
+
+	/**
+	 * Benchmarks a Socket sink, with a receiver reading lines from it
+	 *
+	 * @param messages
+	 *            - An int containing the number of messages to send
+	 * @param rate
+	 *            - An int containing the messages to send per second
+	 * @param messageBytes
+	 *            - An int containing the size of each message
+	 * @throws java.lang.Exception
+	 *             if the benchmark failed
+	 */
+	@SuppressWarnings("unchecked")
+	private static void benchmarkSocket(int messages, int rate,
+			int messageBytes) throws Exception {
+		JSONObject config = new JSONObject();
+		config.put(SocketSink.PORT, 0L);
+		SocketSink sink = new SocketSink(config);
+
+		final Socket socket = new Socket(SocketSink.DEFAULT_HOST,
+				sink.getPort());
+		while (sink.getReaderCount() == 0) {
+			Thread.sleep(1);
+		}
+
+		Receiver receiver = new Receiver(messages) {
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(
+							new InputStreamReader(socket.getInputStream(),
+									"UTF-8"));
+					String line = null;
+					while (!stopped && ((line = reader.readLine()) != null)) {
+						receive(line);
+					}
+				} catch (Exception e) {
+					// closed
+				}
+			}
+		};
+
+		try {
+			run("Socket", sink, receiver, messages, rate, messageBytes);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Benchmarks a RingBuffer sink, with a receiver tailing it
+	 *
+	 * @param messages
+	 *            - An int containing the number of messages to send
+	 * @param rate
+	 *            - An int containing the messages to send per second
+	 * @param messageBytes
+	 *            - An int containing the size of each message
+	 * @param directory
+	 *            - A String containing the directory for the ring buffer file
+	 * @throws java.lang.Exception
+	 *             if the benchmark failed
+	 */
+	@SuppressWarnings("unchecked")
+	private static void benchmarkRingBuffer(int messages, int rate,
+			int messageBytes, String directory) throws Exception {
+		String ringBufferFile = directory + "/benchmark.ring";
+		JSONObject config = new JSONObject();
+		config.put(RingBufferSink.RING_BUFFER_FILE, ringBufferFile);
+		config.put(RingBufferSink.CAPACITY, 16L * 1024 * 1024);
+		Sink sink = new RingBufferSink(config);
+
+		final RingBufferReader reader = new RingBufferReader(ringBufferFile);
+		Receiver receiver = new Receiver(messages) {
+			public void run() {
+				try {
+					while (!stopped) {
+						byte[] message = reader.take(100);
+						if (message != null) {
+							receive(new String(message, "UTF-8"));
+						}
+					}
+				} catch (Exception e) {
+					// stopped
+				}
+			}
+		};
+
+		run("RingBuffer", sink, receiver, messages, rate, messageBytes);
+	}
+
+	/**
+	 * Sends the messages to the provided sink at the provided rate, waits for
+	 * the receiver, and reports the latencies
+	 *
+	 * @param name
+	 *            - A String containing the name of the delivery method
+	 * @param sink
+	 *            - The Sink to send to
+	 * @param receiver
+	 *            - The Receiver reading from the sink
+	 * @param messages
+	 *            - An int containing the number of messages to send
+	 * @param rate
+	 *            - An int containing the messages to send per second
+	 * @param messageBytes
+	 *            - An int containing the size of each message
+	 * @throws java.lang.Exception
+	 *             if the benchmark failed
+	 */
+	private static void run(String name, Sink sink, Receiver receiver,
+			int messages, int rate, int messageBytes) throws Exception {
+		sink.start();
+		receiver.start();
+
+		// pad each message to the requested size
+		char[] padding = new char[Math.max(0, messageBytes - 64)];
+		Arrays.fill(padding, 'x');
+		String pad = new String(padding);
+
+		long interval = 1000000000L / Math.max(1, rate);
+		long nextSend = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			long wait = nextSend - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			nextSend += interval;
+
+			String message = "{" + SENT_FIELD + String.valueOf(
+					System.nanoTime()) + ",\"Sequence\":" + String.valueOf(i) +
+					",\"Pad\":\"" + pad + "\"}";
+			ArrayList<ConsumerRecord<String, byte[]>> records =
+					new ArrayList<ConsumerRecord<String, byte[]>>(1);
+			records.add(new ConsumerRecord<String, byte[]>("benchmark", 0, i,
+					null, message.getBytes("UTF-8")));
+			sink.submit(records);
+		}
+
+		// wait for the last messages
+		long deadline = System.currentTimeMillis() + DRAIN_MS;
+		while ((receiver.received < messages) &&
+			(System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		receiver.stopped = true;
+		sink.close();
+		receiver.join(1000);
+
+		report(name, receiver, messages);
+	}
+
+	/**
+	 * Prints the latencies recorded by the provided receiver
+	 *
+	 * @param name
+	 *            - A String containing the name of the delivery method
+	 * @param receiver
+	 *            - The Receiver that read the messages
+	 * @param messages
+	 *            - An int containing the number of messages sent
+	 */
+	private static void report(String name, Receiver receiver, int messages) {
+		int received = receiver.received;
+		if (received == 0) {
+			System.out.println(name + ": no messages received.");
+			return;
+		}
+
+		long[] latencies = Arrays.copyOf(receiver.latencies, received);
+		Arrays.sort(latencies);
+		long total = 0;
+		for (long latency : latencies) {
+			total += latency;
+		}
+
+		System.out.println(String.format("%-10s received %d/%d, latency " +
+				"mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us", name,
+				received, messages, total / (received * 1000.0),
+				latencies[received / 2] / 1000.0,
+				latencies[(int) Math.min(received - 1,
+						(long) Math.ceil(received * 0.99) - 1)] / 1000.0,
+				latencies[received - 1] / 1000.0));
+	}
+}
@@ -0,0 +1,226 @@
+package gov.usgs.gatewayclient;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.PropertyConfigurator;
+
+import gov.usgs.hazdevbroker.Utility;
+import gov.usgs.hazdevbroker.Consumer;
+import gov.usgs.hazdevbroker.ClientBase;
+
+import java.util.*;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONArray;
+
+/**
+ * a client class used to consume messages out of one or more hazdev-broker
+ * (kafka) topics once, and stream them to many lightweight local subscribers
+ * over HTTP (chunked, one message per line) or WebSockets. Each subscriber can
+ * filter by topic and by the value of a message field, and is dropped if it
+ * falls behind, so a slow subscriber never holds up the others.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class GatewayClient {
+
+	/**
+	 * JSON Configuration Keys
+	 */
+	public static final String TYPE_KEY = "Type";
+	public static final String LOG4J_CONFIGFILE = "Log4JConfigFile";
+	public static final String BROKER_CONFIG = "HazdevBrokerConfig";
+	public static final String TOPIC_LIST = "TopicList";
+	public static final String HOST = "Host";
+	public static final String PORT = "Port";
+	public static final String SUBSCRIBER_QUEUE_SIZE = "SubscriberQueueSize";
+	public static final String MAX_SUBSCRIBERS = "MaxSubscribers";
+
+	/**
+	 * Default gateway settings
+	 */
+	public static final String DEFAULT_HOST = "127.0.0.1";
+	public static final int DEFAULT_SUBSCRIBER_QUEUE_SIZE = 1024;
+	public static final int DEFAULT_MAX_SUBSCRIBERS = 256;
+
+	/**
+	 * The number of seconds between logging the subscriber count
+	 */
+	public static final long STATUS_INTERVAL = 60;
+
+	/**
+	 * Log4J logger for GatewayClient
+	 */
+	static Logger logger = Logger.getLogger(GatewayClient.class);
+
+	/**
+	 * main function for GatewayClient
+	 *
+	 * @param args
+	 *            - A String[] containing the command line arguments.
+	 */
+	public static void main(String[] args) {
+
+		// check number of arguments
+		if (args.length == 0) {
+			System.out.println(
+					"Usage: hazdev-broker GatewayClient <configfile>");
+			System.exit(1);
+		}
+
+		// parse config file into json
+		JSONObject configJSON = Utility.readConfigurationFromFile(args[0]);
+
+		// nullcheck
+		if (configJSON == null) {
+			System.out.println("Error, invalid json from configuration.");
+			System.exit(1);
+		}
+
+		// type check
+		if (configJSON.containsKey(TYPE_KEY)) {
+			String type = configJSON.get(TYPE_KEY).toString();
+			if (!type.equals("GatewayClient")) {
+				System.out.println("Error, wrong configuration.");
+				System.exit(1);
+			}
+		} else {
+			System.out.println("Error, missing type in configuration.");
+			System.exit(1);
+		}
+
+		// get log4j config
+		String logConfigString = null;
+		if (configJSON.containsKey(LOG4J_CONFIGFILE)) {
+			logConfigString = (String) configJSON.get(LOG4J_CONFIGFILE);
+			System.out.println("Using custom logging configuration");
+			PropertyConfigurator.configure(logConfigString);
+		} else {
+			System.out.println("Using default logging configuration");
+			BasicConfigurator.configure();
+		}
+
+		logger.info("----------Gateway Client Startup----------");
+
+		// get host
+		String host = DEFAULT_HOST;
+		if (configJSON.containsKey(HOST)) {
+			host = (String) configJSON.get(HOST);
+			logger.info("Using configured host of: " + host);
+		}
+
+		// get port
+		int port = 0;
+		if (configJSON.containsKey(PORT)) {
+			port = ((Long) configJSON.get(PORT)).intValue();
+			logger.info("Using configured port of: " + String.valueOf(port));
+		} else {
+			logger.error("Error, did not find Port in configuration.");
+			System.exit(1);
+		}
+
+		// get subscriber queue size
+		int subscriberQueueSize = DEFAULT_SUBSCRIBER_QUEUE_SIZE;
+		if (configJSON.containsKey(SUBSCRIBER_QUEUE_SIZE)) {
+			subscriberQueueSize =
+				((Long) configJSON.get(SUBSCRIBER_QUEUE_SIZE)).intValue();
+			logger.info("Using configured subscriberQueueSize of: " +
+				String.valueOf(subscriberQueueSize));
+		}
+
+		// get max subscribers
+		int maxSubscribers = DEFAULT_MAX_SUBSCRIBERS;
+		if (configJSON.containsKey(MAX_SUBSCRIBERS)) {
+			maxSubscribers =
+				((Long) configJSON.get(MAX_SUBSCRIBERS)).intValue();
+			logger.info("Using configured maxSubscribers of: " +
+				String.valueOf(maxSubscribers));
+		}
+
+		// get broker config
+		JSONObject brokerConfig = null;
+		if (configJSON.containsKey(BROKER_CONFIG)) {
+			brokerConfig = (JSONObject) configJSON.get(BROKER_CONFIG);
+		} else {
+			logger.error(
+					"Error, did not find HazdevBrokerConfig in configuration.");
+			System.exit(1);
+		}
+
+		// get topic list
+		ArrayList<String> topicList = null;
+		if (configJSON.containsKey(TOPIC_LIST)) {
+			topicList = new ArrayList<String>();
+			JSONArray topicArray = (JSONArray) configJSON.get(TOPIC_LIST);
+			// convert to string collection
+			for (int i = 0; i < topicArray.size(); i++) {
+
+				// get the String
+				String topic = (String) topicArray.get(i);
+				topicList.add(topic);
+			}
+		} else {
+			logger.error("Error, did not find TopicList in configuration.");
+			System.exit(1);
+		}
+
+		logger.info("----------Processed Config----------");
+
+		// start listening for subscribers
+		StreamServer server = null;
+		try {
+			server = new StreamServer(host, port, subscriberQueueSize,
+				maxSubscribers);
+		} catch (IOException e) {
+			logger.error("Error, could not listen on " + host + ":" +
+				String.valueOf(port) + ": " + e.toString());
+			System.exit(1);
+		}
+		logger.info("Streaming to subscribers on http://" + host + ":" +
+			String.valueOf(server.getPort()) + StreamServer.STREAM_PATH);
+
+		// create consumer
+		Consumer m_Consumer = new Consumer(brokerConfig);
+
+		// subscribe to topics
+		m_Consumer.subscribe(topicList);
+
+		logger.info("Broker version: " +
+			ClientBase.VERSION_MAJOR + "." + ClientBase.VERSION_MINOR + "." +
+			ClientBase.VERSION_PATCH);
+
+		// run until stopped
+		long lastStatusTime = System.currentTimeMillis() / 1000;
+		while (true) {
+
+			// get any messages from broker
+			try {
+				ArrayList<ConsumerRecord<String, byte[]>> records =
+					m_Consumer.pollRecords(500);
+
+				// stream each message to the subscribers that want it
+				if (records != null) {
+					for (ConsumerRecord<String, byte[]> record : records) {
+						server.publish(record.topic(), record.value());
+					}
+				}
+			} catch	(Exception e) {
+
+				// log exception
+				logger.error(e.toString());
+			}
+
+			// log the subscriber count
+			long timeNow = System.currentTimeMillis() / 1000;
+			if (timeNow - lastStatusTime >= STATUS_INTERVAL) {
+				logger.info("Streaming to " +
+					String.valueOf(server.getSubscriberCount()) +
+					" subscriber(s).");
+				lastStatusTime = timeNow;
+			}
+		}
+	}
+}
@@ -0,0 +1,632 @@
+package gov.usgs.gatewayclient;
+
+import org.apache.log4j.Logger;
+
+import gov.usgs.hazdevbroker.FieldExtractor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * a small HTTP server used by the GatewayClient to stream messages to many
+ * subscribers, either as an HTTP chunked response with one message per line,
+ * or as WebSocket text messages. Subscribers connect to
+ *
+ * <pre>
+ * /stream?topics=topic1,topic2&amp;field=Site.Station&amp;values=BOZ,ANMO
+ * </pre>
+ *
+ * where every parameter is optional. Each message is framed at most once per
+ * protocol, and each distinct filter field is extracted at most once per
+ * message, however many subscribers there are.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class StreamServer {
+
+	/**
+	 * Request paths and parameters
+	 */
+	public static final String STREAM_PATH = "/stream";
+	public static final String TOPICS_PARAM = "topics";
+	public static final String FIELD_PARAM = "field";
+	public static final String VALUES_PARAM = "values";
+
+	/**
+	 * The largest request accepted, in bytes
+	 */
+	public static final int MAX_REQUEST_BYTES = 8192;
+
+	/**
+	 * The time in ms a client has to send its request
+	 */
+	public static final int REQUEST_TIMEOUT_MS = 5000;
+
+	/**
+	 * The number of connections beyond the maximum number of subscribers
+	 * that may be reading their request at once
+	 */
+	public static final int MAX_PENDING_CONNECTIONS = 16;
+
+	/**
+	 * The GUID appended to a WebSocket key, from RFC 6455
+	 */
+	public static final String WEBSOCKET_GUID =
+			"258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	/**
+	 * The WebSocket ping frame sent as a keep alive
+	 */
+	static final byte[] PING_FRAME = { (byte) 0x89, 0 };
+
+	/**
+	 * WebSocket opcodes
+	 */
+	static final int CLOSE_OPCODE = 0x8;
+	static final int PING_OPCODE = 0x9;
+	static final int PONG_OPCODE = 0xA;
+
+	/**
+	 * The empty line chunk sent as a keep alive on HTTP streams
+	 */
+	static final byte[] KEEPALIVE_CHUNK = { '1', '\r', '\n', '\n', '\r', '\n' };
+
+	/**
+	 * The character set of HTTP headers
+	 */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * The characters used for base 64 encoding
+	 */
+	private static final char[] BASE64 = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ" +
+			"abcdefghijklmnopqrstuvwxyz0123456789+/").toCharArray();
+
+	/**
+	 * The server socket subscribers connect to
+	 */
+	private ServerSocket serverSocket;
+
+	/**
+	 * The number of messages that can wait for each subscriber
+	 */
+	private int queueSize;
+
+	/**
+	 * The maximum number of subscribers
+	 */
+	private int maxSubscribers;
+
+	/**
+	 * The connected subscribers
+	 */
+	private CopyOnWriteArrayList<Subscriber> subscribers;
+
+	/**
+	 * The field extractors for every filter field in use by a connected
+	 * subscriber
+	 */
+	private ConcurrentHashMap<String, FieldExtractor> extractors;
+
+	/**
+	 * The number of connection threads running
+	 */
+	private AtomicInteger connections;
+
+	/**
+	 * The number of subscribers dropped for falling behind
+	 */
+	private long droppedSubscribers;
+
+	/**
+	 * Log4J logger for StreamServer
+	 */
+	static Logger logger = Logger.getLogger(StreamServer.class);
+
+	/**
+	 * The constructor for the StreamServer class. Starts listening for
+	 * subscribers.
+	 *
+	 * @param host
+	 *            - A String containing the address to listen on
+	 * @param port
+	 *            - An int containing the port to listen on, 0 for any
+	 * @param newQueueSize
+	 *            - An int containing the number of messages that can wait for
+	 *            each subscriber before it is dropped
+	 * @param newMaxSubscribers
+	 *            - An int containing the maximum number of subscribers
+	 * @throws java.io.IOException
+	 *             if the server socket could not be opened
+	 */
+	public StreamServer(String host, int port, int newQueueSize,
+			int newMaxSubscribers) throws IOException {
+		queueSize = newQueueSize;
+		maxSubscribers = newMaxSubscribers;
+		subscribers = new CopyOnWriteArrayList<Subscriber>();
+		extractors = new ConcurrentHashMap<String, FieldExtractor>();
+		connections = new AtomicInteger(0);
+		droppedSubscribers = 0;
+
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(InetAddress.getByName(host),
+				port));
+
+		Thread acceptThread = new Thread(new Runnable() {
+			public void run() {
+				acceptConnections();
+			}
+		}, "hazdev-gateway-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 * Sends the provided message to every subscriber that wants it, dropping
+	 * any subscriber that has fallen behind
+	 *
+	 * @param topic
+	 *            - A String containing the topic of the message
+	 * @param message
+	 *            - A byte[] containing the message
+	 */
+	public void publish(String topic, byte[] message) {
+		if (subscribers.isEmpty() || (message == null) ||
+			(message.length == 0)) {
+			return;
+		}
+
+		byte[] chunk = null;
+		byte[] webSocketFrame = null;
+		HashMap<String, String> fieldValues = null;
+		for (Subscriber subscriber : subscribers) {
+			if (!subscriber.wantsTopic(topic)) {
+				continue;
+			}
+
+			// extract each filter field once per message
+			String field = subscriber.getField();
+			if (field != null) {
+				if (fieldValues == null) {
+					fieldValues = new HashMap<String, String>();
+				}
+				String value = null;
+				if (fieldValues.containsKey(field)) {
+					value = fieldValues.get(field);
+				} else {
+					// the extractor is gone once the last subscriber using
+					// the field has disconnected
+					FieldExtractor extractor = extractors.get(field);
+					if (extractor == null) {
+						continue;
+					}
+					value = extractor.extract(message);
+					fieldValues.put(field, value);
+				}
+				if (!subscriber.wantsValue(value)) {
+					continue;
+				}
+			}
+
+			// frame once per protocol
+			byte[] frame = null;
+			if (subscriber.isWebSocket()) {
+				if (webSocketFrame == null) {
+					webSocketFrame = webSocketFrame(message);
+				}
+				frame = webSocketFrame;
+			} else {
+				if (chunk == null) {
+					chunk = chunk(message);
+				}
+				frame = chunk;
+			}
+
+			if (!subscriber.offer(frame)) {
+				droppedSubscribers++;
+				logger.warn("Dropping slow subscriber " +
+						subscriber.toString() + ", " +
+						String.valueOf(droppedSubscribers) + " dropped.");
+				subscriber.close();
+			}
+		}
+	}
+
+	/**
+	 * Stops listening and disconnects every subscriber
+	 */
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+		for (Subscriber subscriber : subscribers) {
+			subscriber.close();
+		}
+	}
+
+	/**
+	 * @return the port subscribers connect to
+	 */
+	public int getPort() {
+		return (serverSocket.getLocalPort());
+	}
+
+	/**
+	 * @return the number of connected subscribers
+	 */
+	public int getSubscriberCount() {
+		return (subscribers.size());
+	}
+
+	/**
+	 * Accept thread function, starts a thread for each connection until the
+	 * server socket is closed. Connections are turned away without starting
+	 * a thread once the subscriber limit is reached, or once too many
+	 * connections are still reading their request.
+	 */
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				if ((subscribers.size() >= maxSubscribers) ||
+					(connections.get() >= maxSubscribers +
+						MAX_PENDING_CONNECTIONS)) {
+					try {
+						respond(socket.getOutputStream(),
+								"503 Service Unavailable");
+					} finally {
+						socket.close();
+					}
+					continue;
+				}
+
+				connections.incrementAndGet();
+				Thread connectionThread = new Thread(new Runnable() {
+					public void run() {
+						try {
+							handleConnection(socket);
+						} finally {
+							connections.decrementAndGet();
+						}
+					}
+				}, "hazdev-gateway-" +
+						socket.getRemoteSocketAddress().toString());
+				connectionThread.setDaemon(true);
+				connectionThread.start();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					logger.error("Exception accepting subscriber: " +
+							e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Connection thread function, reads the request, answers it, and for a
+	 * stream request writes messages to the subscriber until it disconnects
+	 *
+	 * @param socket
+	 *            - The connection's Socket
+	 */
+	private void handleConnection(Socket socket) {
+		Subscriber subscriber = null;
+		try {
+			socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+			socket.setTcpNoDelay(true);
+			OutputStream stream = socket.getOutputStream();
+
+			// read the request line and headers
+			String[] lines = readRequest(socket.getInputStream());
+			String[] requestLine = (lines != null) ? lines[0].split(" ") : null;
+			if ((requestLine == null) || (requestLine.length < 3) ||
+				!requestLine[0].equals("GET")) {
+				respond(stream, "400 Bad Request");
+				return;
+			}
+			HashMap<String, String> headers = new HashMap<String, String>();
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon > 0) {
+					headers.put(lines[i].substring(0, colon).trim()
+							.toLowerCase(), lines[i].substring(colon + 1)
+							.trim());
+				}
+			}
+
+			// parse the path and filter
+			String target = requestLine[1];
+			int query = target.indexOf('?');
+			String path = (query < 0) ? target : target.substring(0, query);
+			if (!path.equals(STREAM_PATH)) {
+				respond(stream, "404 Not Found");
+				return;
+			}
+			HashMap<String, String> params = new HashMap<String, String>();
+			if (query >= 0) {
+				for (String param : target.substring(query + 1).split("&")) {
+					int equals = param.indexOf('=');
+					if (equals > 0) {
+						params.put(URLDecoder.decode(param.substring(0,
+								equals), "UTF-8"), URLDecoder.decode(
+								param.substring(equals + 1), "UTF-8"));
+					}
+				}
+			}
+			Set<String> topics = splitParam(params.get(TOPICS_PARAM));
+			String field = params.get(FIELD_PARAM);
+			Set<String> values = splitParam(params.get(VALUES_PARAM));
+			if ((field != null) && (values == null)) {
+				respond(stream, "400 Bad Request");
+				return;
+			}
+
+			boolean webSocket = "websocket".equalsIgnoreCase(
+					headers.get("upgrade"));
+			String key = headers.get("sec-websocket-key");
+			if (webSocket && (key == null)) {
+				respond(stream, "400 Bad Request");
+				return;
+			}
+
+			// check the limit and take the slot together, so concurrent
+			// connections can't go over it, the field's extractor is only
+			// created once the slot is taken
+			synchronized (subscribers) {
+				if (subscribers.size() < maxSubscribers) {
+					subscriber = new Subscriber(socket, webSocket, topics,
+							field, values, queueSize);
+					if ((field != null) && !extractors.containsKey(field)) {
+						extractors.put(field, new FieldExtractor(field));
+					}
+					subscribers.add(subscriber);
+				}
+			}
+			if (subscriber == null) {
+				respond(stream, "503 Service Unavailable");
+				return;
+			}
+
+			// answer the handshake
+			if (webSocket) {
+				stream.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+						"Upgrade: websocket\r\nConnection: Upgrade\r\n" +
+						"Sec-WebSocket-Accept: " + acceptKey(key) +
+						"\r\n\r\n").getBytes(ASCII));
+			} else {
+				stream.write(("HTTP/1.1 200 OK\r\n" +
+						"Content-Type: application/x-ndjson\r\n" +
+						"Transfer-Encoding: chunked\r\n" +
+						"Cache-Control: no-cache\r\n" +
+						"Access-Control-Allow-Origin: *\r\n\r\n")
+						.getBytes(ASCII));
+			}
+			stream.flush();
+
+			// watch for the subscriber disconnecting, and for WebSocket
+			// control frames
+			socket.setSoTimeout(0);
+			final Subscriber reader = subscriber;
+			Thread readThread = new Thread(new Runnable() {
+				public void run() {
+					reader.readFrames();
+				}
+			}, Thread.currentThread().getName() + "-read");
+			readThread.setDaemon(true);
+			readThread.start();
+
+			logger.info("Subscriber " + subscriber.toString() +
+					" connected, topics: " + String.valueOf(topics) +
+					", field: " + String.valueOf(field) + ", values: " +
+					String.valueOf(values) + ".");
+
+			subscriber.writeMessages();
+		} catch (Exception e) {
+			logger.debug("Exception handling subscriber: " + e.toString());
+		} finally {
+			if (subscriber != null) {
+				removeSubscriber(subscriber);
+				subscriber.close();
+			} else {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing more to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the provided subscriber, and the extractor for its filter field
+	 * if no other subscriber uses that field
+	 *
+	 * @param subscriber
+	 *            - The Subscriber to remove
+	 */
+	private void removeSubscriber(Subscriber subscriber) {
+		synchronized (subscribers) {
+			subscribers.remove(subscriber);
+
+			String field = subscriber.getField();
+			if (field == null) {
+				return;
+			}
+			for (Subscriber other : subscribers) {
+				if (field.equals(other.getField())) {
+					return;
+				}
+			}
+			extractors.remove(field);
+		}
+	}
+
+	/**
+	 * Reads the request line and headers
+	 *
+	 * @param input
+	 *            - The InputStream to read from
+	 * @return Returns a String[] containing the request line followed by
+	 *         each header line, or null if the request was too large or
+	 *         incomplete
+	 * @throws java.io.IOException
+	 *             if the request could not be read
+	 */
+	private static String[] readRequest(InputStream input) throws IOException {
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		int matched = 0;
+		while (matched < 4) {
+			int b = input.read();
+			if ((b < 0) || (request.size() >= MAX_REQUEST_BYTES)) {
+				return (null);
+			}
+			request.write(b);
+
+			// look for the blank line ending the headers
+			if ((b == '\r' && (matched == 0 || matched == 2)) ||
+				(b == '\n' && (matched == 1 || matched == 3))) {
+				matched++;
+			} else {
+				matched = (b == '\r') ? 1 : 0;
+			}
+		}
+		return (new String(request.toByteArray(), ASCII).trim()
+				.split("\r\n"));
+	}
+
+	/**
+	 * Sends a response with no body and closes the connection
+	 *
+	 * @param stream
+	 *            - The OutputStream to write to
+	 * @param status
+	 *            - A String containing the status code and reason
+	 * @throws java.io.IOException
+	 *             if the response could not be written
+	 */
+	private static void respond(OutputStream stream, String status)
+			throws IOException {
+		stream.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n" +
+				"Connection: close\r\n\r\n").getBytes(ASCII));
+		stream.flush();
+	}
+
+	/**
+	 * Splits a comma separated parameter
+	 *
+	 * @param param
+	 *            - A String containing the parameter, or null
+	 * @return Returns a Set&lt;String&gt; containing the values, or null if
+	 *         the parameter is missing or empty
+	 */
+	private static Set<String> splitParam(String param) {
+		if ((param == null) || param.isEmpty()) {
+			return (null);
+		}
+		return (new HashSet<String>(Arrays.asList(param.split(","))));
+	}
+
+	/**
+	 * Frames the provided message as an HTTP chunk, one message per line
+	 *
+	 * @param message
+	 *            - A byte[] containing the message
+	 * @return Returns a byte[] containing the chunk
+	 */
+	private static byte[] chunk(byte[] message) {
+		boolean newline = (message[message.length - 1] == '\n');
+		int length = message.length + (newline ? 0 : 1);
+		byte[] header = (Integer.toHexString(length) + "\r\n").getBytes(ASCII);
+
+		byte[] chunk = new byte[header.length + length + 2];
+		System.arraycopy(header, 0, chunk, 0, header.length);
+		System.arraycopy(message, 0, chunk, header.length, message.length);
+		if (!newline) {
+			chunk[header.length + message.length] = '\n';
+		}
+		chunk[chunk.length - 2] = '\r';
+		chunk[chunk.length - 1] = '\n';
+		return (chunk);
+	}
+
+	/**
+	 * Frames the provided message as an unmasked WebSocket text frame
+	 *
+	 * @param message
+	 *            - A byte[] containing the message
+	 * @return Returns a byte[] containing the frame
+	 */
+	private static byte[] webSocketFrame(byte[] message) {
+		int headerLength = (message.length < 126) ? 2 :
+				(message.length < 65536) ? 4 : 10;
+		byte[] frame = new byte[headerLength + message.length];
+
+		// final fragment, text
+		frame[0] = (byte) 0x81;
+		if (headerLength == 2) {
+			frame[1] = (byte) message.length;
+		} else if (headerLength == 4) {
+			frame[1] = 126;
+			frame[2] = (byte) (message.length >>> 8);
+			frame[3] = (byte) message.length;
+		} else {
+			frame[1] = 127;
+			for (int i = 0; i < 8; i++) {
+				frame[2 + i] = (byte) ((long) message.length >>> (56 - 8 * i));
+			}
+		}
+		System.arraycopy(message, 0, frame, headerLength, message.length);
+		return (frame);
+	}
+
+	/**
+	 * Computes the Sec-WebSocket-Accept value for the provided key
+	 *
+	 * @param key
+	 *            - A String containing the Sec-WebSocket-Key
+	 * @return Returns a String containing the base 64 encoded SHA-1 of the
+	 *         key and the WebSocket GUID
+	 * @throws java.security.NoSuchAlgorithmException
+	 *             if SHA-1 is not available
+	 */
+	private static String acceptKey(String key)
+			throws NoSuchAlgorithmException {
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+				(key + WEBSOCKET_GUID).getBytes(ASCII));
+
+		// base 64 encode
+		StringBuilder encoded = new StringBuilder();
+		for (int i = 0; i < digest.length; i += 3) {
+			int b = (digest[i] & 0xff) << 16;
+			if (i + 1 < digest.length) {
+				b |= (digest[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < digest.length) {
+				b |= digest[i + 2] & 0xff;
+			}
+			encoded.append(BASE64[(b >>> 18) & 0x3f]);
+			encoded.append(BASE64[(b >>> 12) & 0x3f]);
+			encoded.append((i + 1 < digest.length) ?
+					BASE64[(b >>> 6) & 0x3f] : '=');
+			encoded.append((i + 2 < digest.length) ? BASE64[b & 0x3f] : '=');
+		}
+		return (encoded.toString());
+	}
+}
@@ -0,0 +1,416 @@
+package gov.usgs.gatewayclient;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * a subscriber connected to the gateway, either as an HTTP chunked stream or
+ * a WebSocket. Each subscriber has an optional topic and field filter, its
+ * own bounded queue of framed messages, and its own thread writing them out.
+ * A subscriber that lets its queue fill up is dropped, so a slow client never
+ * holds up the gateway or the other subscribers.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class Subscriber {
+
+	/**
+	 * The time in ms a subscriber can be idle before a keep alive is sent, so
+	 * that dead clients are noticed
+	 */
+	public static final long KEEPALIVE_MS = 15000;
+
+	/**
+	 * The frame used to stop the writer
+	 */
+	private static final byte[] END_FRAME = new byte[0];
+
+	/**
+	 * The frame used to wake the writer to send control frames
+	 */
+	private static final byte[] WAKE_FRAME = new byte[0];
+
+	/**
+	 * The size of the buffer used to skip frames sent by the subscriber
+	 */
+	private static final int SKIP_BUFFER_SIZE = 4096;
+
+	/**
+	 * The subscriber's socket
+	 */
+	private Socket socket;
+
+	/**
+	 * Flag indicating whether the subscriber is a WebSocket
+	 */
+	private boolean webSocket;
+
+	/**
+	 * The topics the subscriber wants, null for every topic
+	 */
+	private Set<String> topics;
+
+	/**
+	 * The path of the message field to filter on, null for no field filter
+	 */
+	private String field;
+
+	/**
+	 * The field values the subscriber wants
+	 */
+	private Set<String> values;
+
+	/**
+	 * The framed messages waiting to be sent
+	 */
+	private BlockingQueue<byte[]> queue;
+
+	/**
+	 * The WebSocket control frames waiting to be sent, ahead of any
+	 * messages
+	 */
+	private ConcurrentLinkedQueue<byte[]> controlFrames;
+
+	/**
+	 * Flag indicating that the subscriber asked to close, the writer stops
+	 * once it has sent the close reply
+	 */
+	private volatile boolean closing;
+
+	/**
+	 * Flag indicating that the subscriber is disconnected
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Log4J logger for Subscriber
+	 */
+	static Logger logger = Logger.getLogger(Subscriber.class);
+
+	/**
+	 * The constructor for the Subscriber class.
+	 *
+	 * @param newSocket
+	 *            - The subscriber's Socket, after the handshake
+	 * @param newWebSocket
+	 *            - A boolean flag indicating whether the subscriber is a
+	 *            WebSocket
+	 * @param newTopics
+	 *            - A Set&lt;String&gt; containing the topics to send, null
+	 *            for every topic
+	 * @param newField
+	 *            - A String containing the path of the message field to
+	 *            filter on, null for no field filter
+	 * @param newValues
+	 *            - A Set&lt;String&gt; containing the field values to send
+	 * @param queueSize
+	 *            - An int containing the number of messages that can wait
+	 *            for the subscriber before it is dropped
+	 */
+	public Subscriber(Socket newSocket, boolean newWebSocket,
+			Set<String> newTopics, String newField, Set<String> newValues,
+			int queueSize) {
+		socket = newSocket;
+		webSocket = newWebSocket;
+		topics = newTopics;
+		field = newField;
+		values = newValues;
+		queue = new ArrayBlockingQueue<byte[]>(Math.max(1, queueSize));
+		controlFrames = new ConcurrentLinkedQueue<byte[]>();
+		closing = false;
+		closed = false;
+	}
+
+	/**
+	 * Checks whether the subscriber wants messages from the provided topic
+	 *
+	 * @param topic
+	 *            - A String containing the topic
+	 * @return Returns true if the subscriber wants the topic
+	 */
+	public boolean wantsTopic(String topic) {
+		return ((topics == null) || topics.contains(topic));
+	}
+
+	/**
+	 * @return the path of the message field to filter on, null for no field
+	 *         filter
+	 */
+	public String getField() {
+		return (field);
+	}
+
+	/**
+	 * Checks whether the subscriber wants messages with the provided field
+	 * value
+	 *
+	 * @param value
+	 *            - A String containing the message's field value, null if the
+	 *            message doesn't have the field
+	 * @return Returns true if the subscriber wants the message
+	 */
+	public boolean wantsValue(String value) {
+		return ((value != null) && values.contains(value));
+	}
+
+	/**
+	 * @return whether the subscriber is a WebSocket
+	 */
+	public boolean isWebSocket() {
+		return (webSocket);
+	}
+
+	/**
+	 * @return whether the subscriber is disconnected
+	 */
+	public boolean isClosed() {
+		return (closed);
+	}
+
+	/**
+	 * Adds the provided framed message to the subscriber's queue
+	 *
+	 * @param frame
+	 *            - A byte[] containing the framed message
+	 * @return Returns false if the queue is full
+	 */
+	public boolean offer(byte[] frame) {
+		return (closed || queue.offer(frame));
+	}
+
+	/**
+	 * Disconnects the subscriber
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		// wake up the writer
+		queue.clear();
+		queue.offer(END_FRAME);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+	}
+
+	/**
+	 * @return a description of the subscriber for logging
+	 */
+	public String toString() {
+		return ((webSocket ? "WebSocket " : "HTTP ") +
+				socket.getRemoteSocketAddress().toString());
+	}
+
+	/**
+	 * Writes queued messages until the subscriber is closed, flushing
+	 * whenever the queue is empty, and sending a keep alive when idle. Called
+	 * on the subscriber's connection thread.
+	 */
+	void writeMessages() {
+		try {
+			OutputStream stream = new BufferedOutputStream(
+					socket.getOutputStream());
+			while (!closed) {
+				byte[] frame = queue.poll(KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+				if (frame == END_FRAME) {
+					break;
+				}
+
+				// control frames go out ahead of messages
+				boolean sentControl = false;
+				byte[] control = null;
+				while ((control = controlFrames.poll()) != null) {
+					stream.write(control);
+					sentControl = true;
+				}
+				if (closing) {
+					stream.flush();
+					break;
+				}
+				if ((frame == WAKE_FRAME) || ((frame == null) && sentControl)) {
+					stream.flush();
+					continue;
+				}
+
+				if (frame == null) {
+					frame = webSocket ? StreamServer.PING_FRAME :
+							StreamServer.KEEPALIVE_CHUNK;
+				}
+				stream.write(frame);
+				if (queue.isEmpty()) {
+					stream.flush();
+				}
+			}
+		} catch (Exception e) {
+			if (!closed) {
+				logger.info("Subscriber " + toString() + " disconnected: " +
+						e.toString());
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Reads from the subscriber until it disconnects. A WebSocket ping is
+	 * answered with a pong, and a WebSocket close is answered with a close
+	 * before disconnecting, anything else the subscriber sends is ignored.
+	 * Called on the subscriber's read thread.
+	 */
+	void readFrames() {
+		try {
+			InputStream input = socket.getInputStream();
+			byte[] skipBuffer = new byte[SKIP_BUFFER_SIZE];
+			while (!closed) {
+				if (!webSocket) {
+					// nothing is expected from an HTTP subscriber
+					if (input.read(skipBuffer) < 0) {
+						break;
+					}
+					continue;
+				}
+
+				// frame header
+				int first = readByte(input);
+				int second = readByte(input);
+				int opcode = first & 0x0f;
+				boolean masked = (second & 0x80) != 0;
+				long length = second & 0x7f;
+				if (length == 126) {
+					length = ((long) readByte(input) << 8) | readByte(input);
+				} else if (length == 127) {
+					length = 0;
+					for (int i = 0; i < 8; i++) {
+						length = (length << 8) | readByte(input);
+					}
+				}
+				byte[] mask = new byte[4];
+				if (masked) {
+					readFully(input, mask, 4);
+				}
+
+				// control frames are small, anything else is skipped
+				if ((opcode & 0x08) == 0) {
+					skip(input, length, skipBuffer);
+					continue;
+				}
+				if (length > 125) {
+					throw new IOException("Control frame too large.");
+				}
+				byte[] payload = new byte[(int) length];
+				readFully(input, payload, payload.length);
+				for (int i = 0; i < payload.length; i++) {
+					payload[i] ^= mask[i % 4];
+				}
+
+				if (opcode == StreamServer.CLOSE_OPCODE) {
+					// echo the status code, then disconnect
+					int replyLength = Math.min(payload.length, 2);
+					byte[] reply = new byte[2 + replyLength];
+					reply[0] = (byte) (0x80 | StreamServer.CLOSE_OPCODE);
+					reply[1] = (byte) replyLength;
+					System.arraycopy(payload, 0, reply, 2, replyLength);
+					controlFrames.offer(reply);
+					closing = true;
+					queue.offer(WAKE_FRAME);
+					return;
+				} else if (opcode == StreamServer.PING_OPCODE) {
+					byte[] pong = new byte[2 + payload.length];
+					pong[0] = (byte) (0x80 | StreamServer.PONG_OPCODE);
+					pong[1] = (byte) payload.length;
+					System.arraycopy(payload, 0, pong, 2, payload.length);
+					controlFrames.offer(pong);
+					queue.offer(WAKE_FRAME);
+				}
+			}
+		} catch (Exception e) {
+			if (!closed) {
+				logger.debug("Exception reading from subscriber " +
+						toString() + ": " + e.toString());
+			}
+		}
+
+		// the subscriber is gone, stop writing to it
+		close();
+	}
+
+	/**
+	 * Reads a byte from the subscriber
+	 *
+	 * @param input
+	 *            - The InputStream to read from
+	 * @return Returns an int containing the byte
+	 * @throws java.io.IOException
+	 *             if the subscriber disconnected
+	 */
+	private static int readByte(InputStream input) throws IOException {
+		int b = input.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return (b);
+	}
+
+	/**
+	 * Reads the provided number of bytes from the subscriber
+	 *
+	 * @param input
+	 *            - The InputStream to read from
+	 * @param buffer
+	 *            - A byte[] to read into
+	 * @param length
+	 *            - An int containing the number of bytes to read
+	 * @throws java.io.IOException
+	 *             if the subscriber disconnected
+	 */
+	private static void readFully(InputStream input, byte[] buffer,
+			int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int count = input.read(buffer, read, length - read);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			read += count;
+		}
+	}
+
+	/**
+	 * Skips the provided number of bytes from the subscriber
+	 *
+	 * @param input
+	 *            - The InputStream to read from
+	 * @param length
+	 *            - A long containing the number of bytes to skip
+	 * @param buffer
+	 *            - A byte[] to read into
+	 * @throws java.io.IOException
+	 *             if the subscriber disconnected
+	 */
+	private static void skip(InputStream input, long length, byte[] buffer)
+			throws IOException {
+		while (length > 0) {
+			int count = input.read(buffer, 0, (int) Math.min(length,
+					buffer.length));
+			if (count < 0) {
+				throw new EOFException();
+			}
+			length -= count;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package gov.usgs.hazdevbroker;
+
+/**
+ * A hazdev broker class describing one compressed block of a block archive
+ * file, as stored in the block header and the archive index.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ArchiveBlock {
+
+	/**
+	 * The file position of the block header
+	 */
+	private long offset;
+
+	/**
+	 * The earliest message time in the block, in milliseconds since the epoch
+	 */
+	private long minTime;
+
+	/**
+	 * The latest message time in the block, in milliseconds since the epoch
+	 */
+	private long maxTime;
+
+	/**
+	 * The number of messages in the block
+	 */
+	private int messageCount;
+
+	/**
+	 * The constructor for the ArchiveBlock class.
+	 *
+	 * @param newOffset
+	 *            - A long containing the file position of the block header
+	 * @param newMinTime
+	 *            - A long containing the earliest message time in the block
+	 * @param newMaxTime
+	 *            - A long containing the latest message time in the block
+	 * @param newMessageCount
+	 *            - An int containing the number of messages in the block
+	 */
+	public ArchiveBlock(long newOffset, long newMinTime, long newMaxTime,
+			int newMessageCount) {
+		offset = newOffset;
+		minTime = newMinTime;
+		maxTime = newMaxTime;
+		messageCount = newMessageCount;
+	}
+
+	/**
+	 * Checks whether the block may contain messages in the provided time
+	 * range
+	 *
+	 * @param startTime
+	 *            - A long containing the start of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @param endTime
+	 *            - A long containing the end of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @return Returns true if the block overlaps the range
+	 */
+	public boolean overlaps(long startTime, long endTime) {
+		if ((startTime != Utility.INVALID_TIME) && (maxTime < startTime)) {
+			return (false);
+		}
+		if ((endTime != Utility.INVALID_TIME) && (minTime > endTime)) {
+			return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * @return the file position of the block header
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the earliest message time in the block
+	 */
+	public long getMinTime() {
+		return minTime;
+	}
+
+	/**
+	 * @return the latest message time in the block
+	 */
+	public long getMaxTime() {
+		return maxTime;
+	}
+
+	/**
+	 * @return the number of messages in the block
+	 */
+	public int getMessageCount() {
+		return messageCount;
+	}
+}
@@ -0,0 +1,630 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+/**
+ * A hazdev broker class used to replay ArchiveClient files through the
+ * Consumer poll / pollString interface, without a hazdev kafka broker cluster.
+ * Each line of a plain text archive file is one message, block archive files
+ * written by the BlockArchiveWriter are also supported. The files are read in
+ * order by a read-ahead thread using memory mapped reads, and the messages are
+ * either returned as fast as they are polled, or paced by the time stored in
+ * each message, optionally sped up or slowed down by a speed multiplier.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ArchiveConsumer extends Consumer {
+
+	/**
+	 * The default message field used to pace the replay
+	 */
+	public static final String DEFAULT_TIME_FIELD = "Time";
+
+	/**
+	 * The topic of the records returned by pollRecords
+	 */
+	public static final String ARCHIVE_TOPIC = "archive";
+
+	/**
+	 * The number of messages in each read-ahead batch
+	 */
+	public static final int READ_BATCH_SIZE = 1024;
+
+	/**
+	 * The number of read-ahead batches that can be waiting to be polled
+	 */
+	public static final int READ_AHEAD_BATCHES = 64;
+
+	/**
+	 * The maximum number of messages returned by a single poll
+	 */
+	public static final int MAX_POLL_MESSAGES = 10000;
+
+	/**
+	 * The archive files to replay, in order
+	 */
+	private List<File> archiveFiles;
+
+	/**
+	 * The read-ahead batches waiting to be polled
+	 */
+	private BlockingQueue<ArrayList<byte[]>> readAheadQueue;
+
+	/**
+	 * The read-ahead thread
+	 */
+	private Thread readAheadThread;
+
+	/**
+	 * Flag used to stop the read-ahead thread
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Flag indicating that every archive file has been read
+	 */
+	private volatile boolean readDone;
+
+	/**
+	 * The batch currently being handed out by poll
+	 */
+	private ArrayList<byte[]> currentBatch;
+
+	/**
+	 * The index of the next message to hand out in the current batch
+	 */
+	private int currentIndex;
+
+	/**
+	 * The replay speed multiplier, 0 or less replays as fast as possible
+	 */
+	private double speed;
+
+	/**
+	 * The extractor used to get the time from each message when pacing
+	 */
+	private FieldExtractor timeExtractor;
+
+	/**
+	 * The earliest message time to replay in milliseconds since the epoch,
+	 * INVALID_TIME for no limit
+	 */
+	private long startTime;
+
+	/**
+	 * The latest message time to replay in milliseconds since the epoch,
+	 * INVALID_TIME for no limit
+	 */
+	private long endTime;
+
+	/**
+	 * The message time the pacing is anchored to, in milliseconds since the
+	 * epoch
+	 */
+	private long anchorMessageTime;
+
+	/**
+	 * The wall clock time the pacing is anchored to, in milliseconds since
+	 * the epoch
+	 */
+	private long anchorWallTime;
+
+	/**
+	 * The number of messages read from the archive files
+	 */
+	private AtomicLong messageCount;
+
+	/**
+	 * The offset of the next record returned by pollRecords
+	 */
+	private long recordOffset;
+
+	/**
+	 * Log4J logger for ArchiveConsumer
+	 */
+	static Logger logger = Logger.getLogger(ArchiveConsumer.class);
+
+	/**
+	 * The constructor for the ArchiveConsumer class. Replays the provided
+	 * archive files in the order provided.
+	 *
+	 * @param newArchiveFiles
+	 *            - A List&lt;File&gt; containing the archive files to replay
+	 */
+	public ArchiveConsumer(List<File> newArchiveFiles) {
+		super();
+
+		archiveFiles = new ArrayList<File>(newArchiveFiles);
+		readAheadQueue = new ArrayBlockingQueue<ArrayList<byte[]>>(
+				READ_AHEAD_BATCHES);
+		readAheadThread = null;
+		running = false;
+		readDone = false;
+		currentBatch = null;
+		currentIndex = 0;
+		speed = 0;
+		timeExtractor = new FieldExtractor(DEFAULT_TIME_FIELD);
+		startTime = Utility.INVALID_TIME;
+		endTime = Utility.INVALID_TIME;
+		anchorMessageTime = Utility.INVALID_TIME;
+		anchorWallTime = 0;
+		messageCount = new AtomicLong(0);
+		recordOffset = 0;
+	}
+
+	/**
+	 * The advanced constructor for the ArchiveConsumer class. Replays every
+	 * file in the provided directory with the provided extension, in file
+	 * name order. Since ArchiveClient names its files starting with the date,
+	 * this is the order the files were written in.
+	 *
+	 * @param directory
+	 *            - A String containing the archive directory
+	 * @param extension
+	 *            - A String containing the archive file extension, null to
+	 *            replay every file in the directory
+	 */
+	public ArchiveConsumer(String directory, String extension) {
+		this(listArchiveFiles(directory, extension));
+	}
+
+	/**
+	 * Lists the archive files in the provided directory, sorted by name
+	 *
+	 * @param directory
+	 *            - A String containing the archive directory
+	 * @param extension
+	 *            - A String containing the archive file extension, null for
+	 *            every file
+	 * @return Returns a List&lt;File&gt; containing the archive files
+	 */
+	public static List<File> listArchiveFiles(String directory,
+			final String extension) {
+		File[] files = new File(directory).listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				if (!new File(dir, name).isFile()) {
+					return (false);
+				}
+				return ((extension == null) || name.endsWith(extension));
+			}
+		});
+
+		ArrayList<File> fileList = new ArrayList<File>();
+		if (files == null) {
+			logger.error("Unable to list archive directory: " + directory);
+			return (fileList);
+		}
+
+		fileList.addAll(Arrays.asList(files));
+		Collections.sort(fileList);
+
+		return (fileList);
+	}
+
+	/**
+	 * Archive files are not split by topic, every message in the archive
+	 * files is replayed regardless of the subscribed topics.
+	 *
+	 * @param topics
+	 *            - A Collection&lt;String&gt; containing the list of topics to
+	 *            subscribe to.
+	 */
+	@Override
+	public void subscribe(Collection<String> topics) {
+		logger.info("Replaying " + String.valueOf(archiveFiles.size()) +
+			" archive file(s) for topic(s): " + topics.toString());
+	}
+
+	/**
+	 * Backfilling does not apply to archive files.
+	 *
+	 * @param startTime
+	 *            - A long containing the time to backfill from in
+	 *            milliseconds since the epoch
+	 * @param numThreads
+	 *            - An int containing the number of fetcher threads to use
+	 * @return Returns false
+	 */
+	@Override
+	public boolean backfill(long startTime, int numThreads) {
+		logger.warn("Backfill is not supported when replaying archive files.");
+		return (false);
+	}
+
+	/**
+	 * Polls the archive files for messages. When pacing, only messages whose
+	 * time has come are returned, waiting up to the timeout for the next one.
+	 * When a time range is set, messages outside of it are skipped.
+	 *
+	 * @param timeout
+	 *            - A long containing the time to wait while polling in
+	 *            milliseconds. -1 indicates that the client should wait for an
+	 *            arbitrarily long time
+	 * @return Returns an ArrayList&lt;byte[]&gt; containing the messages, empty
+	 *         if none were available within the timeout or the replay is done
+	 */
+	@Override
+	public ArrayList<byte[]> poll(long timeout) {
+
+		ArrayList<byte[]> data = new ArrayList<byte[]>();
+
+		// Negative value means wait for an arbitrarily long time
+		if (timeout < 0) {
+			timeout = Long.MAX_VALUE;
+		}
+
+		long now = System.currentTimeMillis();
+		long deadline = (Long.MAX_VALUE - now > timeout) ? now + timeout
+				: Long.MAX_VALUE;
+
+		start();
+
+		try {
+			while (data.size() < MAX_POLL_MESSAGES) {
+				// get the next batch if needed
+				if ((currentBatch == null) ||
+					(currentIndex >= currentBatch.size())) {
+					currentBatch = null;
+					currentIndex = 0;
+
+					if (readDone && readAheadQueue.isEmpty()) {
+						break;
+					}
+
+					// don't wait if we already have something to return
+					long wait = data.isEmpty() ?
+						Math.max(0, deadline - System.currentTimeMillis()) : 0;
+					currentBatch = readAheadQueue.poll(wait,
+						TimeUnit.MILLISECONDS);
+					if (currentBatch == null) {
+						break;
+					}
+				}
+
+				byte[] message = currentBatch.get(currentIndex);
+
+				// only look up the message time if we need it
+				long messageTime = Utility.INVALID_TIME;
+				boolean filtering = (startTime != Utility.INVALID_TIME) ||
+					(endTime != Utility.INVALID_TIME);
+				if ((speed > 0) || filtering) {
+					messageTime = Utility.parseTime(
+						timeExtractor.extract(message));
+				}
+
+				// skip anything outside the time range
+				if (filtering && !inTimeRange(messageTime)) {
+					currentIndex++;
+					continue;
+				}
+
+				// pace by message time
+				if (speed > 0) {
+					long wait = timeUntilDue(messageTime);
+					if (wait > 0) {
+						// return what is due now
+						if (!data.isEmpty()) {
+							break;
+						}
+
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							break;
+						}
+
+						Thread.sleep(Math.min(wait, remaining));
+						continue;
+					}
+				}
+
+				data.add(message);
+				currentIndex++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		return (data);
+	}
+
+	/**
+	 * Polls the archive files for records, see poll. Archive files don't keep
+	 * the topic or partition of each message, so every record has the topic
+	 * ARCHIVE_TOPIC, partition 0, and its position in the replay as its
+	 * offset.
+	 *
+	 * @param timeout
+	 *            - A long containing the time to wait while polling in
+	 *            milliseconds. -1 indicates that the client should wait for an
+	 *            arbitrarily long time
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing the records,
+	 *         empty if none were available within the timeout or the replay
+	 *         is done
+	 */
+	@Override
+	public ArrayList<ConsumerRecord<String, byte[]>> pollRecords(
+		long timeout) {
+		ArrayList<byte[]> data = poll(timeout);
+		ArrayList<ConsumerRecord<String, byte[]>> records = 
+			new ArrayList<ConsumerRecord<String, byte[]>>(data.size());
+		for (byte[] message : data) {
+			records.add(new ConsumerRecord<String, byte[]>(ARCHIVE_TOPIC, 0,
+				recordOffset++, null, message));
+		}
+		return (records);
+	}
+
+	/**
+	 * Checks whether the provided message time is within the time range
+	 *
+	 * @param messageTime
+	 *            - A long containing the message time in milliseconds since
+	 *            the epoch
+	 * @return Returns true if the message should be replayed, messages
+	 *         without a valid time are not
+	 */
+	private boolean inTimeRange(long messageTime) {
+		if (messageTime == Utility.INVALID_TIME) {
+			return (false);
+		}
+		if ((startTime != Utility.INVALID_TIME) && (messageTime < startTime)) {
+			return (false);
+		}
+		if ((endTime != Utility.INVALID_TIME) && (messageTime > endTime)) {
+			return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * Computes how long until a message with the provided time is due to be
+	 * replayed
+	 *
+	 * @param messageTime
+	 *            - A long containing the message time in milliseconds since
+	 *            the epoch
+	 * @return Returns a long containing the time in milliseconds until the
+	 *         message is due, 0 or less if it is due now
+	 */
+	private long timeUntilDue(long messageTime) {
+		if (messageTime == Utility.INVALID_TIME) {
+			// no time, send it along with whatever came before it
+			return (0);
+		}
+
+		long now = System.currentTimeMillis();
+		if (anchorMessageTime == Utility.INVALID_TIME) {
+			anchorMessageTime = messageTime;
+			anchorWallTime = now;
+			return (0);
+		}
+
+		long due = anchorWallTime +
+			(long) ((messageTime - anchorMessageTime) / speed);
+		return (due - now);
+	}
+
+	/**
+	 * Starts the read-ahead thread, if it is not already running
+	 */
+	private void start() {
+		if (readAheadThread != null) {
+			return;
+		}
+
+		running = true;
+		readAheadThread = new Thread(new Runnable() {
+			public void run() {
+				readAhead();
+			}
+		}, "hazdev-archive-read-ahead");
+		readAheadThread.setDaemon(true);
+		readAheadThread.start();
+	}
+
+	/**
+	 * Read-ahead thread function, reads each archive file in turn into
+	 * batches for poll to hand out
+	 */
+	private void readAhead() {
+		try {
+			for (File archiveFile : archiveFiles) {
+				if (!running) {
+					break;
+				}
+
+				logger.info("Replaying archive file: " + archiveFile.getPath());
+
+				try {
+					if (BlockArchiveReader.isBlockArchive(archiveFile)) {
+						readBlockFile(archiveFile);
+					} else {
+						readTextFile(archiveFile);
+					}
+				} catch (IOException e) {
+					logger.error("Exception reading archive file " +
+						archiveFile.getPath() + ": " + e.toString());
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} finally {
+			readDone = true;
+		}
+	}
+
+	/**
+	 * Reads a plain text archive file into batches, one message per line
+	 *
+	 * @param archiveFile
+	 *            - A File containing the archive file to read
+	 * @throws java.io.IOException
+	 *             if the file could not be read
+	 * @throws java.lang.InterruptedException
+	 *             if stopped while waiting to queue a batch
+	 */
+	private void readTextFile(File archiveFile) throws IOException,
+			InterruptedException {
+		MappedLineReader reader = new MappedLineReader(archiveFile);
+		try {
+			ArrayList<byte[]> batch = new ArrayList<byte[]>(READ_BATCH_SIZE);
+			byte[] line = null;
+			while (running && ((line = reader.readLine()) != null)) {
+				// skip blank lines
+				if (line.length == 0) {
+					continue;
+				}
+
+				batch.add(line);
+				if (batch.size() >= READ_BATCH_SIZE) {
+					queueBatch(batch);
+					batch = new ArrayList<byte[]>(READ_BATCH_SIZE);
+				}
+			}
+
+			if (!batch.isEmpty()) {
+				queueBatch(batch);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads a block archive file into batches, one batch per block. When a
+	 * time range is set, blocks outside of it are not read.
+	 *
+	 * @param archiveFile
+	 *            - A File containing the archive file to read
+	 * @throws java.io.IOException
+	 *             if the file could not be read
+	 * @throws java.lang.InterruptedException
+	 *             if stopped while waiting to queue a batch
+	 */
+	private void readBlockFile(File archiveFile) throws IOException,
+			InterruptedException {
+		BlockArchiveReader reader = new BlockArchiveReader(archiveFile);
+		try {
+			for (ArchiveBlock block : reader.findBlocks(startTime, endTime)) {
+				if (!running) {
+					break;
+				}
+
+				ArrayList<byte[]> batch = reader.readBlock(block);
+				if (!batch.isEmpty()) {
+					queueBatch(batch);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Queues a batch for poll to hand out, waiting if the queue is full
+	 *
+	 * @param batch
+	 *            - An ArrayList&lt;byte[]&gt; containing the batch to queue
+	 * @throws java.lang.InterruptedException
+	 *             if stopped while waiting
+	 */
+	private void queueBatch(ArrayList<byte[]> batch)
+			throws InterruptedException {
+		messageCount.addAndGet(batch.size());
+		readAheadQueue.put(batch);
+	}
+
+	/**
+	 * Function that stops the replay
+	 */
+	@Override
+	public void close() {
+		running = false;
+		if (readAheadThread != null) {
+			readAheadThread.interrupt();
+		}
+		readAheadQueue.clear();
+		currentBatch = null;
+	}
+
+	/**
+	 * @return true once every message in the archive files has been polled
+	 */
+	public boolean isDone() {
+		return (readDone && readAheadQueue.isEmpty() &&
+			((currentBatch == null) || (currentIndex >= currentBatch.size())));
+	}
+
+	/**
+	 * @return the replay speed multiplier
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Sets the replay speed multiplier. 1 replays in real time, 2 twice as
+	 * fast, 0.5 half as fast, 0 or less as fast as possible. Pacing restarts
+	 * from the next message polled.
+	 *
+	 * @param newSpeed
+	 *            - A double containing the speed multiplier
+	 */
+	public void setSpeed(double newSpeed) {
+		speed = newSpeed;
+		anchorMessageTime = Utility.INVALID_TIME;
+	}
+
+	/**
+	 * @return the message field used to pace the replay
+	 */
+	public String getTimeField() {
+		return timeExtractor.getPath();
+	}
+
+	/**
+	 * Sets the message field used to pace the replay, a dot separated path
+	 * such as "Site.Time" for nested fields
+	 *
+	 * @param timeField
+	 *            - A String containing the time field
+	 */
+	public void setTimeField(String timeField) {
+		timeExtractor = new FieldExtractor(timeField);
+	}
+
+	/**
+	 * Sets the range of message times to replay, messages outside of the
+	 * range, or without a valid time, are skipped
+	 *
+	 * @param newStartTime
+	 *            - A long containing the earliest message time to replay in
+	 *            milliseconds since the epoch, Utility.INVALID_TIME for no
+	 *            limit
+	 * @param newEndTime
+	 *            - A long containing the latest message time to replay in
+	 *            milliseconds since the epoch, Utility.INVALID_TIME for no
+	 *            limit
+	 */
+	public void setTimeRange(long newStartTime, long newEndTime) {
+		startTime = newStartTime;
+		endTime = newEndTime;
+	}
+
+	/**
+	 * @return the number of messages read from the archive files so far
+	 */
+	public long getMessageCount() {
+		return messageCount.get();
+	}
+}
@@ -0,0 +1,267 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A hazdev broker class used to look up the locations of the messages in an
+ * archive file with a given key value, such as a station or an event id,
+ * using the key index sidecar file written next to the archive file by the
+ * ArchiveKeyIndexWriter. A location is the file position of the message for
+ * plain text archives, or the number of the block containing the message for
+ * block archives.
+ *
+ * The sidecar file has the same name as the archive file with INDEX_EXTENSION
+ * appended, and is a sequence of segments, each written as the archive grows.
+ * Each segment holds the keys seen for one key field since the previous
+ * segment, sorted so they can be binary searched:
+ *
+ * int SEGMENT_MAGIC, int bodyLength, int crc32 (of the body), then the body:
+ *
+ * short fieldLength, field (UTF-8), int keyCount,
+ * int[keyCount] key entry positions (relative to the first key entry),
+ * for each key: short keyLength, key (UTF-8), int postingsPosition (relative
+ * to the first posting), int postingsCount,
+ * then the postings for each key: the locations in increasing order, each
+ * written as the difference from the previous location as an unsigned
+ * variable length integer (7 bits per byte, high bit set on all but the last
+ * byte).
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ArchiveKeyIndex {
+
+	/**
+	 * The extension appended to the archive file name for the index file
+	 */
+	public static final String INDEX_EXTENSION = ".kdx";
+
+	/**
+	 * The segment magic number
+	 */
+	public static final int SEGMENT_MAGIC = 0x484b4458;
+
+	/**
+	 * The size of a segment header in bytes
+	 */
+	public static final int SEGMENT_HEADER_SIZE = 12;
+
+	/**
+	 * The character set of fields and keys
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Gets the index file for the provided archive file
+	 *
+	 * @param archiveFile
+	 *            - A File containing the archive file
+	 * @return Returns a File containing the index file
+	 */
+	public static File indexFileFor(File archiveFile) {
+		return (new File(archiveFile.getPath() + INDEX_EXTENSION));
+	}
+
+	/**
+	 * Looks up the locations of the messages with the provided key value in
+	 * the provided archive file
+	 *
+	 * @param archiveFile
+	 *            - A File containing the archive file
+	 * @param field
+	 *            - A String containing the key field, as configured when the
+	 *            archive was written
+	 * @param key
+	 *            - A String containing the key value to look up
+	 * @return Returns a long[] containing the locations in increasing order,
+	 *         or null if the archive file does not have a key index
+	 * @throws java.io.IOException
+	 *             if the index file could not be read
+	 */
+	public static long[] lookup(File archiveFile, String field, String key)
+			throws IOException {
+		File indexFile = indexFileFor(archiveFile);
+		if (!indexFile.exists()) {
+			return (null);
+		}
+
+		ByteBuffer index = null;
+		RandomAccessFile inputFile = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = inputFile.getChannel();
+			index = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			inputFile.close();
+		}
+
+		byte[] fieldBytes = field.getBytes(UTF8);
+		byte[] keyBytes = key.getBytes(UTF8);
+		long[] locations = new long[16];
+		int locationCount = 0;
+
+		int position = 0;
+		int end = validLength(index);
+		while (position < end) {
+			int bodyLength = index.getInt(position + 4);
+			int body = position + SEGMENT_HEADER_SIZE;
+			position = body + bodyLength;
+
+			// is this segment for the field
+			int fieldLength = index.getShort(body) & 0xffff;
+			if (!bytesEqual(index, body + 2, fieldLength, fieldBytes)) {
+				continue;
+			}
+			int keyCount = index.getInt(body + 2 + fieldLength);
+			if (keyCount <= 0) {
+				continue;
+			}
+			int table = body + 2 + fieldLength + 4;
+			int entries = table + keyCount * 4;
+
+			// binary search the keys
+			int low = 0;
+			int high = keyCount - 1;
+			int entry = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int midEntry = entries + index.getInt(table + mid * 4);
+				int compare = compareBytes(index, midEntry + 2,
+						index.getShort(midEntry) & 0xffff, keyBytes);
+				if (compare < 0) {
+					low = mid + 1;
+				} else if (compare > 0) {
+					high = mid - 1;
+				} else {
+					entry = midEntry;
+					break;
+				}
+			}
+			if (entry < 0) {
+				continue;
+			}
+
+			// find where the postings start, after the last key entry
+			int lastEntry = entries + index.getInt(table + (keyCount - 1) * 4);
+			int postings = lastEntry + 2 + (index.getShort(lastEntry) & 0xffff)
+				+ 8;
+
+			int keyLength = index.getShort(entry) & 0xffff;
+			int postingsPosition = postings +
+				index.getInt(entry + 2 + keyLength);
+			int postingsCount = index.getInt(entry + 2 + keyLength + 4);
+
+			// decode the postings
+			long location = 0;
+			for (int i = 0; i < postingsCount; i++) {
+				long delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = index.get(postingsPosition++);
+					delta |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				location += delta;
+
+				if (locationCount == locations.length) {
+					locations = Arrays.copyOf(locations, locationCount * 2);
+				}
+				locations[locationCount++] = location;
+			}
+		}
+
+		return (Arrays.copyOf(locations, locationCount));
+	}
+
+	/**
+	 * Finds the length of the complete, valid segments at the start of the
+	 * provided index
+	 *
+	 * @param index
+	 *            - A ByteBuffer containing the index file
+	 * @return Returns the position after the last valid segment
+	 */
+	public static int validLength(ByteBuffer index) {
+		int position = 0;
+		int limit = index.limit();
+
+		while (position + SEGMENT_HEADER_SIZE <= limit) {
+			if (index.getInt(position) != SEGMENT_MAGIC) {
+				break;
+			}
+			int bodyLength = index.getInt(position + 4);
+			int body = position + SEGMENT_HEADER_SIZE;
+			if ((bodyLength < 0) || (body + bodyLength > limit)) {
+				break;
+			}
+
+			CRC32 crc = new CRC32();
+			ByteBuffer bodyBuffer = index.duplicate();
+			bodyBuffer.position(body);
+			bodyBuffer.limit(body + bodyLength);
+			byte[] bodyBytes = new byte[bodyLength];
+			bodyBuffer.get(bodyBytes);
+			crc.update(bodyBytes);
+			if ((int) crc.getValue() != index.getInt(position + 8)) {
+				break;
+			}
+
+			position = body + bodyLength;
+		}
+
+		return (position);
+	}
+
+	/**
+	 * Checks whether the bytes in the buffer equal the provided bytes
+	 *
+	 * @param buffer
+	 *            - A ByteBuffer containing the bytes to check
+	 * @param start
+	 *            - An int containing the position of the bytes to check
+	 * @param length
+	 *            - An int containing the number of bytes to check
+	 * @param value
+	 *            - A byte[] containing the bytes to compare to
+	 * @return Returns true if they are equal
+	 */
+	private static boolean bytesEqual(ByteBuffer buffer, int start,
+			int length, byte[] value) {
+		return ((length == value.length) &&
+			(compareBytes(buffer, start, length, value) == 0));
+	}
+
+	/**
+	 * Compares the bytes in the buffer to the provided bytes, as unsigned
+	 * bytes, the same order the keys are sorted in
+	 *
+	 * @param buffer
+	 *            - A ByteBuffer containing the bytes to compare
+	 * @param start
+	 *            - An int containing the position of the bytes to compare
+	 * @param length
+	 *            - An int containing the number of bytes to compare
+	 * @param value
+	 *            - A byte[] containing the bytes to compare to
+	 * @return Returns less than, equal to, or greater than zero if the bytes
+	 *         in the buffer are less than, equal to, or greater than the value
+	 */
+	static int compareBytes(ByteBuffer buffer, int start, int length,
+			byte[] value) {
+		int count = Math.min(length, value.length);
+		for (int i = 0; i < count; i++) {
+			int compare = (buffer.get(start + i) & 0xff) - (value[i] & 0xff);
+			if (compare != 0) {
+				return (compare);
+			}
+		}
+		return (length - value.length);
+	}
+}
@@ -0,0 +1,274 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A hazdev broker class used by the archive writers to build the key index
+ * for an archive file as messages are written. The values of the configured
+ * key fields are extracted from each message and collected in memory, and
+ * written out as a sorted segment per key field once enough have been
+ * collected, see ArchiveKeyIndex for the file layout.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ArchiveKeyIndexWriter {
+
+	/**
+	 * The number of collected locations that triggers writing segments
+	 */
+	public static final int SEGMENT_LOCATIONS = 50000;
+
+	/**
+	 * The character set of fields and keys
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The key index output stream
+	 */
+	private FileOutputStream indexStream;
+
+	/**
+	 * The extractors used to get the key values from each message
+	 */
+	private FieldExtractor[] keyExtractors;
+
+	/**
+	 * The collected locations for each key field, keyed by key value. Each
+	 * entry holds the location count in the first element, followed by the
+	 * locations.
+	 */
+	private ArrayList<HashMap<String, long[]>> keyLocations;
+
+	/**
+	 * The number of locations collected since segments were last written
+	 */
+	private int pendingLocations;
+
+	/**
+	 * The constructor for the ArchiveKeyIndexWriter class. Opens the key
+	 * index file for the provided archive file for appending, dropping any
+	 * incomplete segment left by a crash.
+	 *
+	 * @param archiveFileName
+	 *            - A String containing the archive file name
+	 * @param keyFields
+	 *            - A List&lt;String&gt; containing the key fields to index,
+	 *            dot separated paths such as "Site.Station"
+	 * @throws java.io.IOException
+	 *             if the index file could not be opened
+	 */
+	public ArchiveKeyIndexWriter(String archiveFileName, List<String> keyFields)
+			throws IOException {
+		keyExtractors = new FieldExtractor[keyFields.size()];
+		keyLocations = new ArrayList<HashMap<String, long[]>>();
+		for (int i = 0; i < keyFields.size(); i++) {
+			keyExtractors[i] = new FieldExtractor(keyFields.get(i));
+			keyLocations.add(new HashMap<String, long[]>());
+		}
+		pendingLocations = 0;
+
+		File indexFile = ArchiveKeyIndex.indexFileFor(new File(archiveFileName));
+		if (indexFile.exists()) {
+			RandomAccessFile truncateFile = new RandomAccessFile(indexFile,
+					"rw");
+			try {
+				FileChannel channel = truncateFile.getChannel();
+				int validLength = ArchiveKeyIndex.validLength(channel.map(
+						FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+				if (validLength < channel.size()) {
+					channel.truncate(validLength);
+				}
+			} finally {
+				truncateFile.close();
+			}
+		}
+
+		indexStream = new FileOutputStream(indexFile, true);
+	}
+
+	/**
+	 * Collects the key values of the provided message
+	 *
+	 * @param message
+	 *            - A byte[] containing the message
+	 * @param location
+	 *            - A long containing the location of the message, its file
+	 *            position or block number
+	 */
+	public void add(byte[] message, long location) {
+		for (int i = 0; i < keyExtractors.length; i++) {
+			String key = keyExtractors[i].extract(message);
+			if ((key == null) || key.isEmpty()) {
+				continue;
+			}
+
+			HashMap<String, long[]> locations = keyLocations.get(i);
+			long[] entry = locations.get(key);
+			if (entry == null) {
+				entry = new long[4];
+				locations.put(key, entry);
+			}
+
+			// one location per block is enough
+			int count = (int) entry[0];
+			if ((count > 0) && (entry[count] == location)) {
+				continue;
+			}
+
+			if (count + 1 == entry.length) {
+				entry = Arrays.copyOf(entry, entry.length * 2);
+				locations.put(key, entry);
+			}
+			entry[count + 1] = location;
+			entry[0] = count + 1;
+			pendingLocations++;
+		}
+	}
+
+	/**
+	 * Writes out segments if enough locations have been collected. Should
+	 * only be called once the messages collected have been written to the
+	 * archive.
+	 *
+	 * @throws java.io.IOException
+	 *             if the segments could not be written
+	 */
+	public void flush() throws IOException {
+		if (pendingLocations >= SEGMENT_LOCATIONS) {
+			writeSegments();
+		}
+	}
+
+	/**
+	 * Writes out any collected locations and closes the index file
+	 *
+	 * @throws java.io.IOException
+	 *             if the segments could not be written
+	 */
+	public void close() throws IOException {
+		try {
+			writeSegments();
+		} finally {
+			indexStream.close();
+		}
+	}
+
+	/**
+	 * Writes a segment for each key field with collected locations
+	 *
+	 * @throws java.io.IOException
+	 *             if the segments could not be written
+	 */
+	private void writeSegments() throws IOException {
+		for (int i = 0; i < keyExtractors.length; i++) {
+			HashMap<String, long[]> locations = keyLocations.get(i);
+			if (locations.isEmpty()) {
+				continue;
+			}
+
+			indexStream.write(buildSegment(keyExtractors[i].getPath(),
+					locations));
+			locations.clear();
+		}
+		pendingLocations = 0;
+	}
+
+	/**
+	 * Builds a segment for the provided key field
+	 *
+	 * @param field
+	 *            - A String containing the key field
+	 * @param locations
+	 *            - A HashMap of the collected locations, keyed by key value
+	 * @return Returns a byte[] containing the segment
+	 */
+	private static byte[] buildSegment(String field,
+			HashMap<String, long[]> locations) {
+
+		// sort the keys as unsigned bytes, the order lookups search in
+		ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		for (String key : locations.keySet()) {
+			byte[] bytes = key.getBytes(UTF8);
+			if (bytes.length > 0xffff) {
+				continue;
+			}
+			keys.add(bytes);
+		}
+		Collections.sort(keys, new Comparator<byte[]>() {
+			public int compare(byte[] a, byte[] b) {
+				return (ArchiveKeyIndex.compareBytes(ByteBuffer.wrap(a), 0,
+						a.length, b));
+			}
+		});
+
+		// encode the postings
+		ByteArrayOutputStream postings = new ByteArrayOutputStream();
+		int[] postingsPositions = new int[keys.size()];
+		int[] postingsCounts = new int[keys.size()];
+		for (int k = 0; k < keys.size(); k++) {
+			long[] entry = locations.get(new String(keys.get(k), UTF8));
+			int count = (int) entry[0];
+			postingsPositions[k] = postings.size();
+			postingsCounts[k] = count;
+
+			long previous = 0;
+			for (int j = 1; j <= count; j++) {
+				long delta = entry[j] - previous;
+				previous = entry[j];
+				while ((delta & ~0x7fL) != 0) {
+					postings.write((int) ((delta & 0x7f) | 0x80));
+					delta >>>= 7;
+				}
+				postings.write((int) delta);
+			}
+		}
+
+		// build the key table and entries
+		byte[] fieldBytes = field.getBytes(UTF8);
+		int entriesSize = 0;
+		for (byte[] key : keys) {
+			entriesSize += 2 + key.length + 8;
+		}
+		int bodyLength = 2 + fieldBytes.length + 4 + keys.size() * 4 +
+			entriesSize + postings.size();
+
+		ByteBuffer segment = ByteBuffer.allocate(
+				ArchiveKeyIndex.SEGMENT_HEADER_SIZE + bodyLength);
+		segment.putInt(ArchiveKeyIndex.SEGMENT_MAGIC);
+		segment.putInt(bodyLength);
+		segment.putInt(0);
+		segment.putShort((short) fieldBytes.length);
+		segment.put(fieldBytes);
+		segment.putInt(keys.size());
+		int entryPosition = 0;
+		for (byte[] key : keys) {
+			segment.putInt(entryPosition);
+			entryPosition += 2 + key.length + 8;
+		}
+		for (int k = 0; k < keys.size(); k++) {
+			segment.putShort((short) keys.get(k).length);
+			segment.put(keys.get(k));
+			segment.putInt(postingsPositions[k]);
+			segment.putInt(postingsCounts[k]);
+		}
+		segment.put(postings.toByteArray());
+
+		// checksum the body
+		CRC32 crc = new CRC32();
+		crc.update(segment.array(), ArchiveKeyIndex.SEGMENT_HEADER_SIZE,
+				bodyLength);
+		segment.putInt(8, (int) crc.getValue());
+
+		return (segment.array());
+	}
+}
@@ -0,0 +1,283 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hazdev broker class used to read the messages in a time range from an
+ * archive file. For plain text archives, the time index sidecar file is used
+ * to find the byte ranges that may contain the time range, and only those
+ * ranges are memory mapped and scanned. For block archives, only the blocks
+ * covering the time range are read. Archives without an index are scanned in
+ * full.
+ *
+ * Messages with a given key value, such as a station or an event id, can also
+ * be read using the key index sidecar file, in which case only the messages
+ * (or blocks) listed in the key index are read.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ArchiveRangeReader {
+
+	/**
+	 * The archive file to read
+	 */
+	private File archiveFile;
+
+	/**
+	 * The extractor used to get the time from each message
+	 */
+	private FieldExtractor timeExtractor;
+
+	/**
+	 * The number of bytes read by the last query
+	 */
+	private long bytesRead;
+
+	/**
+	 * The constructor for the ArchiveRangeReader class.
+	 *
+	 * @param newArchiveFile
+	 *            - A File containing the archive file to read
+	 * @param timeField
+	 *            - A String containing the message field holding the message
+	 *            time, this should match the field used when the archive was
+	 *            written
+	 */
+	public ArchiveRangeReader(File newArchiveFile, String timeField) {
+		archiveFile = newArchiveFile;
+		timeExtractor = new FieldExtractor(timeField);
+		bytesRead = 0;
+	}
+
+	/**
+	 * Reads the messages in the provided time range from the archive file.
+	 * Messages without a valid time are not returned.
+	 *
+	 * @param startTime
+	 *            - A long containing the start of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @param endTime
+	 *            - A long containing the end of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @return Returns an ArrayList&lt;byte[]&gt; containing the messages, in
+	 *         archive order
+	 * @throws java.io.IOException
+	 *             if the archive could not be read
+	 */
+	public ArrayList<byte[]> read(long startTime, long endTime)
+			throws IOException {
+		ArrayList<byte[]> messages = new ArrayList<byte[]>();
+		bytesRead = 0;
+
+		if (BlockArchiveReader.isBlockArchive(archiveFile)) {
+			BlockArchiveReader reader = new BlockArchiveReader(archiveFile);
+			try {
+				List<ArchiveBlock> blocks = reader.findBlocks(startTime,
+						endTime);
+				for (ArchiveBlock block : blocks) {
+					for (byte[] message : reader.readBlock(block)) {
+						bytesRead += message.length + 1;
+						if (inRange(message, startTime, endTime)) {
+							messages.add(message);
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			return (messages);
+		}
+
+		// find the byte ranges to scan
+		List<long[]> ranges = null;
+		ArchiveTimeIndex index = ArchiveTimeIndex.load(archiveFile);
+		if (index != null) {
+			ranges = index.findRanges(startTime, endTime);
+		} else {
+			ranges = new ArrayList<long[]>();
+			ranges.add(new long[] { 0, archiveFile.length() });
+		}
+
+		for (long[] range : ranges) {
+			long rangeSize = range[1] - range[0];
+			if (rangeSize <= 0) {
+				continue;
+			}
+
+			// only map as much as the range needs
+			MappedLineReader reader = new MappedLineReader(archiveFile,
+				(int) Math.min(rangeSize, MappedLineReader.DEFAULT_WINDOW_SIZE));
+			try {
+				reader.seek(range[0], 0);
+
+				byte[] line = null;
+				while ((reader.getPosition() < range[1]) &&
+					((line = reader.readLine()) != null)) {
+					if ((line.length > 0) &&
+						inRange(line, startTime, endTime)) {
+						messages.add(line);
+					}
+				}
+				bytesRead += reader.getPosition() - range[0];
+			} finally {
+				reader.close();
+			}
+		}
+
+		return (messages);
+	}
+
+	/**
+	 * Reads the messages with the provided key value in the provided time
+	 * range from the archive file, using the key index if the archive has one
+	 * (and the time index of plain text archives to skip messages outside the
+	 * time range). Archives without a key index are scanned in full.
+	 *
+	 * @param keyField
+	 *            - A String containing the key field, as configured when the
+	 *            archive was written
+	 * @param key
+	 *            - A String containing the key value to read
+	 * @param startTime
+	 *            - A long containing the start of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @param endTime
+	 *            - A long containing the end of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @return Returns an ArrayList&lt;byte[]&gt; containing the messages, in
+	 *         archive order
+	 * @throws java.io.IOException
+	 *             if the archive could not be read
+	 */
+	public ArrayList<byte[]> readKey(String keyField, String key,
+			long startTime, long endTime) throws IOException {
+		FieldExtractor keyExtractor = new FieldExtractor(keyField);
+		ArrayList<byte[]> messages = new ArrayList<byte[]>();
+
+		long[] locations = ArchiveKeyIndex.lookup(archiveFile, keyField, key);
+		if (locations == null) {
+			// no key index, fall back to the time range
+			for (byte[] message : read(startTime, endTime)) {
+				if (key.equals(keyExtractor.extract(message))) {
+					messages.add(message);
+				}
+			}
+			return (messages);
+		}
+
+		bytesRead = 0;
+		if (BlockArchiveReader.isBlockArchive(archiveFile)) {
+			BlockArchiveReader reader = new BlockArchiveReader(archiveFile);
+			try {
+				List<ArchiveBlock> blocks = reader.getBlocks();
+				for (long location : locations) {
+					if ((location < 0) || (location >= blocks.size())) {
+						continue;
+					}
+					ArchiveBlock block = blocks.get((int) location);
+					if (!block.overlaps(startTime, endTime)) {
+						continue;
+					}
+
+					for (byte[] message : reader.readBlock(block)) {
+						bytesRead += message.length + 1;
+						if (inRange(message, startTime, endTime) &&
+							key.equals(keyExtractor.extract(message))) {
+							messages.add(message);
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			return (messages);
+		}
+
+		// use the time index, if any, to skip messages outside the time range
+		List<long[]> ranges = null;
+		if ((startTime != Utility.INVALID_TIME) ||
+			(endTime != Utility.INVALID_TIME)) {
+			ArchiveTimeIndex index = ArchiveTimeIndex.load(archiveFile);
+			if (index != null) {
+				ranges = index.findRanges(startTime, endTime);
+			}
+		}
+
+		MappedLineReader reader = new MappedLineReader(archiveFile);
+		try {
+			int range = 0;
+			for (long location : locations) {
+				if (location >= reader.getFileSize()) {
+					continue;
+				}
+				if (ranges != null) {
+					// the locations and ranges are both in increasing order
+					while ((range < ranges.size()) &&
+						(ranges.get(range)[1] <= location)) {
+						range++;
+					}
+					if (range == ranges.size()) {
+						break;
+					}
+					if (location < ranges.get(range)[0]) {
+						continue;
+					}
+				}
+				reader.seek(location, 0);
+
+				// the key index is checked against the message in case the
+				// archive was rewritten after the index
+				byte[] line = reader.readLine();
+				if (line == null) {
+					continue;
+				}
+				bytesRead += line.length + 1;
+				if (inRange(line, startTime, endTime) &&
+					key.equals(keyExtractor.extract(line))) {
+					messages.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return (messages);
+	}
+
+	/**
+	 * Checks whether the provided message is in the time range
+	 *
+	 * @param message
+	 *            - A byte[] containing the message
+	 * @param startTime
+	 *            - A long containing the start of the range, or
+	 *            Utility.INVALID_TIME
+	 * @param endTime
+	 *            - A long containing the end of the range, or
+	 *            Utility.INVALID_TIME
+	 * @return Returns true if the message time is in the range
+	 */
+	private boolean inRange(byte[] message, long startTime, long endTime) {
+		long messageTime = Utility.parseTime(timeExtractor.extract(message));
+		if (messageTime == Utility.INVALID_TIME) {
+			return (false);
+		}
+		if ((startTime != Utility.INVALID_TIME) && (messageTime < startTime)) {
+			return (false);
+		}
+		if ((endTime != Utility.INVALID_TIME) && (messageTime > endTime)) {
+			return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * @return the number of bytes read by the last query
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+}
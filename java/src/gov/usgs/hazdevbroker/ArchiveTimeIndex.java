@@ -0,0 +1,295 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * A hazdev broker class used to look up byte ranges of a plain text archive
+ * file by message time, using the sparse time index sidecar file written
+ * next to the archive file by the TextArchiveWriter.
+ *
+ * The sidecar file has the same name as the archive file with INDEX_EXTENSION
+ * appended, and is a sequence of fixed size entries, each describing a span
+ * of consecutive messages in the archive file:
+ *
+ * long offset, int length, int messageCount, long minTime, long maxTime
+ *
+ * Parts of the archive file not covered by an entry (for example messages
+ * written before a crash, but after the last entry) are always included in
+ * lookups, since their times are not known.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ArchiveTimeIndex {
+
+	/**
+	 * The extension appended to the archive file name for the index file
+	 */
+	public static final String INDEX_EXTENSION = ".idx";
+
+	/**
+	 * The size of an index entry in bytes
+	 */
+	public static final int ENTRY_SIZE = 32;
+
+	/**
+	 * The file positions of the spans
+	 */
+	private long[] offsets;
+
+	/**
+	 * The lengths in bytes of the spans
+	 */
+	private int[] lengths;
+
+	/**
+	 * The earliest message time in each span
+	 */
+	private long[] minTimes;
+
+	/**
+	 * The latest message time in each span
+	 */
+	private long[] maxTimes;
+
+	/**
+	 * The latest message time in each span and every span before it, used to
+	 * binary search for the first span that may contain a start time
+	 */
+	private long[] prefixMaxTimes;
+
+	/**
+	 * The earliest message time in each span and every span after it, used
+	 * to binary search for the last span that may contain an end time
+	 */
+	private long[] suffixMinTimes;
+
+	/**
+	 * The byte ranges of the archive file not covered by any span
+	 */
+	private ArrayList<long[]> gaps;
+
+	/**
+	 * Log4J logger for ArchiveTimeIndex
+	 */
+	static Logger logger = Logger.getLogger(ArchiveTimeIndex.class);
+
+	/**
+	 * The constructor for the ArchiveTimeIndex class. Loads the index entries
+	 * from the provided index file, ignoring any that fall outside of the
+	 * archive file.
+	 *
+	 * @param indexFile
+	 *            - A File containing the index file to load
+	 * @param archiveSize
+	 *            - A long containing the size of the archive file
+	 * @throws java.io.IOException
+	 *             if the index file could not be read
+	 */
+	public ArchiveTimeIndex(File indexFile, long archiveSize)
+			throws IOException {
+		RandomAccessFile inputFile = new RandomAccessFile(indexFile, "r");
+		ByteBuffer entries = null;
+		try {
+			FileChannel channel = inputFile.getChannel();
+			entries = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size() - (channel.size() % ENTRY_SIZE));
+		} finally {
+			inputFile.close();
+		}
+
+		int entryCount = entries.limit() / ENTRY_SIZE;
+		offsets = new long[entryCount];
+		lengths = new int[entryCount];
+		minTimes = new long[entryCount];
+		maxTimes = new long[entryCount];
+
+		// load the entries, spans must be in order and inside the archive
+		int count = 0;
+		long lastEnd = 0;
+		for (int i = 0; i < entryCount; i++) {
+			long offset = entries.getLong();
+			int length = entries.getInt();
+			entries.getInt();
+			long minTime = entries.getLong();
+			long maxTime = entries.getLong();
+
+			if ((offset < lastEnd) || (length < 0) ||
+				(offset + length > archiveSize)) {
+				continue;
+			}
+
+			offsets[count] = offset;
+			lengths[count] = length;
+			minTimes[count] = minTime;
+			maxTimes[count] = maxTime;
+			count++;
+			lastEnd = offset + length;
+		}
+
+		// find the gaps between the spans
+		gaps = new ArrayList<long[]>();
+		long position = 0;
+		for (int i = 0; i < count; i++) {
+			if (offsets[i] > position) {
+				gaps.add(new long[] { position, offsets[i] });
+			}
+			position = offsets[i] + lengths[i];
+		}
+		if (archiveSize > position) {
+			gaps.add(new long[] { position, archiveSize });
+		}
+
+		// build the search arrays
+		prefixMaxTimes = new long[count];
+		suffixMinTimes = new long[count];
+		for (int i = 0; i < count; i++) {
+			prefixMaxTimes[i] = (i == 0) ? maxTimes[i] :
+				Math.max(prefixMaxTimes[i - 1], maxTimes[i]);
+		}
+		for (int i = count - 1; i >= 0; i--) {
+			suffixMinTimes[i] = (i == count - 1) ? minTimes[i] :
+				Math.min(suffixMinTimes[i + 1], minTimes[i]);
+		}
+
+		if (count < entryCount) {
+			logger.warn("Ignored " + String.valueOf(entryCount - count) +
+				" invalid time index entries in: " + indexFile.getPath());
+		}
+	}
+
+	/**
+	 * Loads the time index for the provided archive file, if it has one
+	 *
+	 * @param archiveFile
+	 *            - A File containing the archive file
+	 * @return Returns the ArchiveTimeIndex, or null if the archive file does
+	 *         not have a time index
+	 * @throws java.io.IOException
+	 *             if the index file could not be read
+	 */
+	public static ArchiveTimeIndex load(File archiveFile) throws IOException {
+		File indexFile = indexFileFor(archiveFile);
+		if (!indexFile.exists()) {
+			return (null);
+		}
+		return (new ArchiveTimeIndex(indexFile, archiveFile.length()));
+	}
+
+	/**
+	 * Gets the index file for the provided archive file
+	 *
+	 * @param archiveFile
+	 *            - A File containing the archive file
+	 * @return Returns a File containing the index file
+	 */
+	public static File indexFileFor(File archiveFile) {
+		return (new File(archiveFile.getPath() + INDEX_EXTENSION));
+	}
+
+	/**
+	 * Gets the byte ranges of the archive file that may contain messages in
+	 * the provided time range, in file order
+	 *
+	 * @param startTime
+	 *            - A long containing the start of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @param endTime
+	 *            - A long containing the end of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @return Returns a List&lt;long[]&gt; containing the start and end file
+	 *         positions of each byte range
+	 */
+	public List<long[]> findRanges(long startTime, long endTime) {
+		int count = prefixMaxTimes.length;
+
+		// first span whose messages so far reach the start time
+		int first = 0;
+		if (startTime != Utility.INVALID_TIME) {
+			int low = 0;
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (prefixMaxTimes[mid] < startTime) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			first = low;
+		}
+
+		// last span whose remaining messages reach back to the end time
+		int last = count - 1;
+		if (endTime != Utility.INVALID_TIME) {
+			int low = -1;
+			int high = count - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >> 1;
+				if (suffixMinTimes[mid] > endTime) {
+					high = mid - 1;
+				} else {
+					low = mid;
+				}
+			}
+			last = low;
+		}
+
+		// collect the overlapping spans, along with the gaps
+		ArrayList<long[]> ranges = new ArrayList<long[]>();
+		int gapIndex = 0;
+		for (int i = first; i <= last; i++) {
+			if (((startTime != Utility.INVALID_TIME) &&
+				(maxTimes[i] < startTime)) ||
+				((endTime != Utility.INVALID_TIME) &&
+				(minTimes[i] > endTime))) {
+				continue;
+			}
+
+			while ((gapIndex < gaps.size()) &&
+				(gaps.get(gapIndex)[0] < offsets[i])) {
+				addRange(ranges, gaps.get(gapIndex++));
+			}
+			addRange(ranges, new long[] { offsets[i],
+				offsets[i] + lengths[i] });
+		}
+		while (gapIndex < gaps.size()) {
+			addRange(ranges, gaps.get(gapIndex++));
+		}
+
+		return (ranges);
+	}
+
+	/**
+	 * Adds a byte range to the list, merging it with the previous range if
+	 * they are adjacent
+	 *
+	 * @param ranges
+	 *            - The List&lt;long[]&gt; of ranges to add to
+	 * @param range
+	 *            - A long[] containing the start and end of the range
+	 */
+	private static void addRange(List<long[]> ranges, long[] range) {
+		if (!ranges.isEmpty()) {
+			long[] previous = ranges.get(ranges.size() - 1);
+			if (previous[1] == range[0]) {
+				previous[1] = range[1];
+				return;
+			}
+		}
+		ranges.add(new long[] { range[0], range[1] });
+	}
+
+	/**
+	 * @return the number of spans in the index
+	 */
+	public int getSpanCount() {
+		return prefixMaxTimes.length;
+	}
+}
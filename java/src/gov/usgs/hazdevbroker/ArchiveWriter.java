@@ -0,0 +1,53 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.IOException;
+
+/**
+ * An interface for the classes used to write messages to an archive file.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public interface ArchiveWriter {
+
+	/**
+	 * Writes the provided message to the archive
+	 *
+	 * @param message
+	 *            - A byte[] containing the message to write
+	 * @throws java.io.IOException
+	 *             if the message could not be written
+	 */
+	public void write(byte[] message) throws IOException;
+
+	/**
+	 * Writes out any messages that are due to be written to disk. Called after
+	 * every poll, so that messages are not held in memory indefinitely when
+	 * no new messages arrive.
+	 *
+	 * @throws java.io.IOException
+	 *             if the messages could not be written
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Writes out every message written so far and forces them to disk, so
+	 * that they survive a crash
+	 *
+	 * @throws java.io.IOException
+	 *             if the messages could not be written
+	 */
+	public void sync() throws IOException;
+
+	/**
+	 * Writes out any remaining messages and closes the archive
+	 *
+	 * @throws java.io.IOException
+	 *             if the archive could not be closed
+	 */
+	public void close() throws IOException;
+
+	/**
+	 * @return the name of the archive file being written
+	 */
+	public String getFileName();
+}
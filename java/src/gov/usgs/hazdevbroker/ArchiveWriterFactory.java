@@ -0,0 +1,37 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.IOException;
+
+/**
+ * An interface for the classes used by the RotatingArchiveWriter to create
+ * the writer for each archive file.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public interface ArchiveWriterFactory {
+
+	/**
+	 * Creates a writer for the provided archive file, in the configured
+	 * format
+	 *
+	 * @param fileName
+	 *            - A String containing the archive file name
+	 * @return Returns the ArchiveWriter
+	 * @throws java.io.IOException
+	 *             if the archive file could not be opened
+	 */
+	public ArchiveWriter createWriter(String fileName) throws IOException;
+
+	/**
+	 * Creates a block archive writer for the provided archive file, used to
+	 * compress rotated plain text archive files
+	 *
+	 * @param fileName
+	 *            - A String containing the archive file name
+	 * @return Returns the ArchiveWriter, which must write a block archive
+	 * @throws java.io.IOException
+	 *             if the archive file could not be opened
+	 */
+	public ArchiveWriter createCompressedWriter(String fileName)
+			throws IOException;
+}
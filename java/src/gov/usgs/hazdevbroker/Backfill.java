@@ -0,0 +1,409 @@
+package gov.usgs.hazdevbroker;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+import org.apache.kafka.clients.consumer.*;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * A hazdev broker class used by the Consumer to catch up on data starting at
+ * a wall clock time. The partitions to backfill are split over several
+ * fetcher threads, each with its own kafka consumer client configured for
+ * large fetches, which read their partitions from the offsets for the start
+ * time up to the end offsets at the time the backfill started. Each partition
+ * is read by a single fetcher, so ordering within a partition is preserved.
+ * A fetcher that fails is restarted from where it got to. If it keeps
+ * failing the backfill of its partitions is left unfinished, and the live
+ * consumer picks them up from where the backfill got to instead.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class Backfill {
+
+	/**
+	 * The kafka consumer properties used when catching up, tuned for
+	 * throughput rather than latency
+	 */
+	public static final String[][] CATCHUP_PROPERTIES = {
+		{ "fetch.min.bytes", "1048576" },
+		{ "fetch.max.wait.ms", "500" },
+		{ "fetch.max.bytes", "67108864" },
+		{ "max.partition.fetch.bytes", "8388608" },
+		{ "max.poll.records", "10000" },
+		{ "receive.buffer.bytes", "4194304" },
+		{ "enable.auto.commit", "false" },
+		{ "auto.offset.reset", "earliest" } };
+
+	/**
+	 * The number of fetched batches that can be waiting to be polled
+	 */
+	public static final int QUEUE_CAPACITY = 64;
+
+	/**
+	 * The time in ms each fetcher waits when polling
+	 */
+	public static final long FETCH_POLL_MS = 500;
+
+	/**
+	 * The number of times a fetcher is started before its partitions are
+	 * left to the live consumer
+	 */
+	public static final int MAX_FETCH_ATTEMPTS = 3;
+
+	/**
+	 * The time in ms to wait before restarting a failed fetcher
+	 */
+	public static final long FETCH_RETRY_MS = 1000;
+
+	/**
+	 * The fetched batches waiting to be polled
+	 */
+	private BlockingQueue<ArrayList<ConsumerRecord<String, byte[]>>> 
+		backfillQueue;
+
+	/**
+	 * The offsets to start from, keyed by partition
+	 */
+	private Map<TopicPartition, Long> startOffsets;
+
+	/**
+	 * The end offsets at the time the backfill started, keyed by partition.
+	 * The live consumer resumes from these once the backfill is done.
+	 */
+	private Map<TopicPartition, Long> endOffsets;
+
+	/**
+	 * The offsets after the last record handed to the consumer, keyed by
+	 * partition. These reach the end offsets as each partition finishes.
+	 */
+	private ConcurrentHashMap<TopicPartition, Long> resumeOffsets;
+
+	/**
+	 * The number of fetchers that gave up
+	 */
+	private AtomicInteger failedFetchers;
+
+	/**
+	 * The fetcher threads
+	 */
+	private ArrayList<Thread> fetcherThreads;
+
+	/**
+	 * The number of fetchers still running
+	 */
+	private AtomicInteger activeFetchers;
+
+	/**
+	 * Flag used to stop the fetchers
+	 */
+	private volatile boolean running;
+
+	/**
+	 * The number of messages backfilled
+	 */
+	private AtomicLong messageCount;
+
+	/**
+	 * Log4J logger for Backfill
+	 */
+	static Logger logger = Logger.getLogger(Backfill.class);
+
+	/**
+	 * The constructor for the Backfill class.
+	 *
+	 * @param newStartOffsets
+	 *            - A Map of the offsets to start from, keyed by partition
+	 * @param newEndOffsets
+	 *            - A Map of the offsets to stop at, keyed by partition
+	 */
+	public Backfill(Map<TopicPartition, Long> newStartOffsets,
+			Map<TopicPartition, Long> newEndOffsets) {
+		startOffsets = newStartOffsets;
+		endOffsets = newEndOffsets;
+		backfillQueue = 
+			new ArrayBlockingQueue<ArrayList<ConsumerRecord<String, byte[]>>>(
+				QUEUE_CAPACITY);
+		resumeOffsets = new ConcurrentHashMap<TopicPartition, Long>(
+			newStartOffsets);
+		fetcherThreads = new ArrayList<Thread>();
+		activeFetchers = new AtomicInteger(0);
+		failedFetchers = new AtomicInteger(0);
+		running = false;
+		messageCount = new AtomicLong(0);
+	}
+
+	/**
+	 * Starts the fetcher threads
+	 *
+	 * @param kafkaProperties
+	 *            - The Properties of the live kafka consumer client
+	 * @param numThreads
+	 *            - An int containing the number of fetcher threads to use
+	 */
+	public void start(Properties kafkaProperties, int numThreads) {
+
+		// only fetch partitions that have something to fetch
+		ArrayList<TopicPartition> partitions = new ArrayList<TopicPartition>();
+		for (Map.Entry<TopicPartition, Long> entry : startOffsets.entrySet()) {
+			Long endOffset = endOffsets.get(entry.getKey());
+			if ((endOffset != null) && (entry.getValue() < endOffset)) {
+				partitions.add(entry.getKey());
+			}
+		}
+
+		// split the partitions over the fetchers
+		numThreads = Math.max(1, Math.min(numThreads, partitions.size()));
+		ArrayList<ArrayList<TopicPartition>> assignments =
+			new ArrayList<ArrayList<TopicPartition>>();
+		for (int i = 0; i < numThreads; i++) {
+			assignments.add(new ArrayList<TopicPartition>());
+		}
+		for (int i = 0; i < partitions.size(); i++) {
+			assignments.get(i % numThreads).add(partitions.get(i));
+		}
+
+		logger.info("Backfilling " + String.valueOf(partitions.size()) +
+			" partition(s) with " + String.valueOf(numThreads) +
+			" fetcher(s).");
+
+		running = true;
+		for (int i = 0; i < numThreads; i++) {
+			final ArrayList<TopicPartition> assignment = assignments.get(i);
+			if (assignment.isEmpty()) {
+				continue;
+			}
+
+			// build the catch up configuration
+			final Properties fetchProperties = new Properties();
+			fetchProperties.putAll(kafkaProperties);
+			fetchProperties.remove("group.id");
+			for (String[] property : CATCHUP_PROPERTIES) {
+				fetchProperties.put(property[0], property[1]);
+			}
+			Object clientId = kafkaProperties.get("client.id");
+			if (clientId != null) {
+				fetchProperties.put("client.id", clientId.toString() +
+					"-backfill-" + String.valueOf(i));
+			}
+
+			activeFetchers.incrementAndGet();
+			Thread fetcherThread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						fetchWithRetries(fetchProperties, assignment);
+					} finally {
+						activeFetchers.decrementAndGet();
+					}
+				}
+			}, "hazdev-backfill-" + String.valueOf(i));
+			fetcherThread.setDaemon(true);
+			fetcherThreads.add(fetcherThread);
+			fetcherThread.start();
+		}
+	}
+
+	/**
+	 * Gets the next batch of backfilled records
+	 *
+	 * @param timeout
+	 *            - A long containing the time to wait in milliseconds
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing the
+	 *         records, or null if no batch was available
+	 * @throws java.lang.InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public ArrayList<ConsumerRecord<String, byte[]>> poll(long timeout) 
+			throws InterruptedException {
+		return (backfillQueue.poll(timeout, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * @return true once every fetcher has finished and every batch has been
+	 *         polled
+	 */
+	public boolean isDone() {
+		return ((activeFetchers.get() == 0) && backfillQueue.isEmpty());
+	}
+
+	/**
+	 * Stops the fetcher threads
+	 */
+	public void stop() {
+		running = false;
+		for (Thread fetcherThread : fetcherThreads) {
+			fetcherThread.interrupt();
+		}
+		backfillQueue.clear();
+	}
+
+	/**
+	 * Fetcher thread function, fetches the assigned partitions, restarting
+	 * the fetch from where it got to if it fails
+	 *
+	 * @param fetchProperties
+	 *            - The Properties to configure the kafka consumer client with
+	 * @param assignment
+	 *            - The partitions to read
+	 */
+	private void fetchWithRetries(Properties fetchProperties,
+			ArrayList<TopicPartition> assignment) {
+		for (int attempt = 1; running; attempt++) {
+			if (fetch(fetchProperties, assignment)) {
+				return;
+			}
+
+			if (attempt >= MAX_FETCH_ATTEMPTS) {
+				failedFetchers.incrementAndGet();
+				logger.error("Giving up backfilling " + assignment.toString() +
+					" after " + String.valueOf(attempt) + " attempt(s), " +
+					"live consumption resumes where the backfill got to.");
+				return;
+			}
+
+			try {
+				Thread.sleep(FETCH_RETRY_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads the assigned partitions from where the backfill got to up to
+	 * their end offsets, dropping heartbeats.
+	 *
+	 * @param fetchProperties
+	 *            - The Properties to configure the kafka consumer client with
+	 * @param assignment
+	 *            - The partitions to read
+	 * @return Returns true if the partitions were read or the backfill was
+	 *         stopped, false if the fetch failed
+	 */
+	private boolean fetch(Properties fetchProperties,
+			ArrayList<TopicPartition> assignment) {
+
+		org.apache.kafka.clients.consumer.Consumer<String, byte[]> fetcher =
+			null;
+		Heartbeat heartbeatProcessor = new Heartbeat();
+
+		try {
+			// pick up where any earlier attempt got to
+			HashSet<TopicPartition> remaining = new HashSet<TopicPartition>();
+			for (TopicPartition partition : assignment) {
+				if (resumeOffsets.get(partition) < endOffsets.get(partition)) {
+					remaining.add(partition);
+				}
+			}
+			if (remaining.isEmpty()) {
+				return (true);
+			}
+
+			fetcher = new KafkaConsumer<String, byte[]>(fetchProperties);
+			fetcher.assign(remaining);
+			for (TopicPartition partition : remaining) {
+				fetcher.seek(partition, resumeOffsets.get(partition));
+			}
+
+			while (running && !remaining.isEmpty()) {
+				ConsumerRecords<String, byte[]> records =
+					fetcher.poll(Duration.ofMillis(FETCH_POLL_MS));
+
+				ArrayList<ConsumerRecord<String, byte[]>> batch = 
+					new ArrayList<ConsumerRecord<String, byte[]>>();
+				for (ConsumerRecord<String, byte[]> record : records) {
+					TopicPartition partition = new TopicPartition(
+						record.topic(), record.partition());
+
+					// stop at the end offset, the live consumer takes it
+					// from there
+					if (record.offset() >= endOffsets.get(partition)) {
+						continue;
+					}
+
+					// historical heartbeats aren't interesting
+					if (heartbeatProcessor.fromJSONString(
+							new String(record.value()))) {
+						continue;
+					}
+
+					batch.add(record);
+				}
+
+				if (!batch.isEmpty()) {
+					messageCount.addAndGet(batch.size());
+					backfillQueue.put(batch);
+				}
+
+				// note how far we got, and check for partitions that are
+				// caught up
+				Iterator<TopicPartition> partitionIterator =
+					remaining.iterator();
+				while (partitionIterator.hasNext()) {
+					TopicPartition partition = partitionIterator.next();
+					long endOffset = endOffsets.get(partition);
+					long position = Math.min(fetcher.position(partition),
+						endOffset);
+					resumeOffsets.put(partition, position);
+					if (position >= endOffset) {
+						partitionIterator.remove();
+						fetcher.pause(Arrays.asList(partition));
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (Exception e) {
+			logger.error("Exception backfilling: " + e.toString());
+			return (false);
+		} finally {
+			if (fetcher != null) {
+				try {
+					fetcher.close();
+				} catch (Exception e) {
+					logger.error("Exception closing backfill fetcher: " +
+						e.toString());
+				}
+			}
+		}
+
+		return (true);
+	}
+
+	/**
+	 * @return the end offsets at the time the backfill started
+	 */
+	public Map<TopicPartition, Long> getEndOffsets() {
+		return endOffsets;
+	}
+
+	/**
+	 * @return the offsets for the live consumer to resume from, after the
+	 *         last record handed out for each partition. These are the end
+	 *         offsets unless a fetcher gave up.
+	 */
+	public Map<TopicPartition, Long> getResumeOffsets() {
+		return resumeOffsets;
+	}
+
+	/**
+	 * @return true if a fetcher gave up, leaving its partitions unfinished
+	 */
+	public boolean isIncomplete() {
+		return (failedFetchers.get() > 0);
+	}
+
+	/**
+	 * @return the number of messages backfilled so far
+	 */
+	public long getMessageCount() {
+		return messageCount.get();
+	}
+}
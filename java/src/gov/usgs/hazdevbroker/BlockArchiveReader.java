@@ -0,0 +1,343 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * A hazdev broker class used to read messages from a block archive file
+ * written by the BlockArchiveWriter. The block index at the end of the file
+ * is used to find the blocks if present, otherwise the blocks are found by
+ * following the block headers from the start of the file. Any block can be
+ * read on its own, so only the blocks covering a time range need to be read
+ * and decompressed.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class BlockArchiveReader implements Closeable {
+
+	/**
+	 * The archive file
+	 */
+	private RandomAccessFile archiveFile;
+
+	/**
+	 * The archive file channel
+	 */
+	private FileChannel channel;
+
+	/**
+	 * The blocks in the archive file, in file order
+	 */
+	private ArrayList<ArchiveBlock> blocks;
+
+	/**
+	 * The file position after the last complete block
+	 */
+	private long dataEnd;
+
+	/**
+	 * Log4J logger for BlockArchiveReader
+	 */
+	static Logger logger = Logger.getLogger(BlockArchiveReader.class);
+
+	/**
+	 * The constructor for the BlockArchiveReader class. Opens the provided
+	 * file and loads the block index.
+	 *
+	 * @param file
+	 *            - A File containing the block archive file to read
+	 * @throws java.io.IOException
+	 *             if the file could not be opened
+	 */
+	public BlockArchiveReader(File file) throws IOException {
+		archiveFile = new RandomAccessFile(file, "r");
+		channel = archiveFile.getChannel();
+		blocks = new ArrayList<ArchiveBlock>();
+		dataEnd = 0;
+
+		if (!readIndex()) {
+			scanBlocks();
+		}
+	}
+
+	/**
+	 * Checks whether the provided file is a block archive file
+	 *
+	 * @param file
+	 *            - A File containing the file to check
+	 * @return Returns true if the file starts with a block header, or is an
+	 *         archive without any blocks, which starts with the block index
+	 *         and ends with the index trailer
+	 */
+	public static boolean isBlockArchive(File file) {
+		RandomAccessFile checkFile = null;
+		try {
+			checkFile = new RandomAccessFile(file, "r");
+			long fileSize = checkFile.length();
+			if (fileSize < 4) {
+				return (false);
+			}
+			int magic = checkFile.readInt();
+			if ((magic == BlockArchiveWriter.BLOCK_MAGIC) &&
+				(fileSize >= BlockArchiveWriter.BLOCK_HEADER_SIZE)) {
+				return (true);
+			}
+
+			// an empty archive is just the index and trailer
+			if ((magic != BlockArchiveWriter.INDEX_MAGIC) ||
+				(fileSize < BlockArchiveWriter.TRAILER_SIZE + 8)) {
+				return (false);
+			}
+			checkFile.seek(fileSize - BlockArchiveWriter.TRAILER_SIZE);
+			long indexOffset = checkFile.readLong();
+			return ((checkFile.readInt() == BlockArchiveWriter.TRAILER_MAGIC) &&
+				(indexOffset == 0));
+		} catch (IOException e) {
+			return (false);
+		} finally {
+			if (checkFile != null) {
+				try {
+					checkFile.close();
+				} catch (IOException e) {
+					// nothing else to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads and decompresses the messages in the provided block
+	 *
+	 * @param block
+	 *            - The ArchiveBlock to read
+	 * @return Returns an ArrayList&lt;byte[]&gt; containing the messages in the
+	 *         block
+	 * @throws java.io.IOException
+	 *             if the block could not be read or is corrupt
+	 */
+	public ArrayList<byte[]> readBlock(ArchiveBlock block) throws IOException {
+		ByteBuffer header = readFully(block.getOffset(),
+				BlockArchiveWriter.BLOCK_HEADER_SIZE);
+		if (header.getInt() != BlockArchiveWriter.BLOCK_MAGIC) {
+			throw new IOException("Invalid block header at: " +
+					String.valueOf(block.getOffset()));
+		}
+		header.getLong();
+		header.getLong();
+		int messageCount = header.getInt();
+		int rawLength = header.getInt();
+		int compressedLength = header.getInt();
+		int blockCrc = header.getInt();
+
+		ByteBuffer compressed = readFully(block.getOffset() +
+				BlockArchiveWriter.BLOCK_HEADER_SIZE, compressedLength);
+		CRC32 crc = new CRC32();
+		crc.update(compressed.array(), 0, compressedLength);
+		if ((int) crc.getValue() != blockCrc) {
+			throw new IOException("Corrupt block at: " +
+					String.valueOf(block.getOffset()));
+		}
+
+		// decompress
+		byte[] rawData = new byte[rawLength];
+		InputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(
+				compressed.array(), 0, compressedLength));
+		try {
+			int read = 0;
+			while (read < rawLength) {
+				int count = gzipStream.read(rawData, read, rawLength - read);
+				if (count < 0) {
+					throw new IOException("Truncated block at: " +
+							String.valueOf(block.getOffset()));
+				}
+				read += count;
+			}
+		} finally {
+			gzipStream.close();
+		}
+
+		// split into messages
+		ArrayList<byte[]> messages = new ArrayList<byte[]>(messageCount);
+		int start = 0;
+		for (int i = 0; i < rawLength; i++) {
+			if (rawData[i] == '\n') {
+				byte[] message = new byte[i - start];
+				System.arraycopy(rawData, start, message, 0, message.length);
+				messages.add(message);
+				start = i + 1;
+			}
+		}
+
+		return (messages);
+	}
+
+	/**
+	 * Gets the blocks that may contain messages in the provided time range
+	 *
+	 * @param startTime
+	 *            - A long containing the start of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @param endTime
+	 *            - A long containing the end of the range in milliseconds
+	 *            since the epoch, Utility.INVALID_TIME for no limit
+	 * @return Returns a List&lt;ArchiveBlock&gt; containing the blocks, in file
+	 *         order
+	 */
+	public List<ArchiveBlock> findBlocks(long startTime, long endTime) {
+		ArrayList<ArchiveBlock> found = new ArrayList<ArchiveBlock>();
+		for (ArchiveBlock block : blocks) {
+			if (block.overlaps(startTime, endTime)) {
+				found.add(block);
+			}
+		}
+		return (found);
+	}
+
+	/**
+	 * Function that closes the archive file
+	 *
+	 * @throws java.io.IOException
+	 *             if an error occurs closing the file
+	 */
+	public void close() throws IOException {
+		if (archiveFile != null) {
+			archiveFile.close();
+			archiveFile = null;
+		}
+	}
+
+	/**
+	 * Loads the block index from the end of the file
+	 *
+	 * @return Returns true if the index was loaded, false if the file does
+	 *         not have a valid index
+	 * @throws java.io.IOException
+	 *             if the file could not be read
+	 */
+	private boolean readIndex() throws IOException {
+		long fileSize = channel.size();
+		if (fileSize < BlockArchiveWriter.TRAILER_SIZE + 8) {
+			return (false);
+		}
+
+		ByteBuffer trailer = readFully(fileSize -
+				BlockArchiveWriter.TRAILER_SIZE, BlockArchiveWriter.TRAILER_SIZE);
+		long indexOffset = trailer.getLong();
+		if ((trailer.getInt() != BlockArchiveWriter.TRAILER_MAGIC) ||
+			(indexOffset < 0) ||
+			(indexOffset > fileSize - BlockArchiveWriter.TRAILER_SIZE - 8)) {
+			return (false);
+		}
+
+		ByteBuffer indexHeader = readFully(indexOffset, 8);
+		int blockCount = indexHeader.getInt(4);
+		if ((indexHeader.getInt(0) != BlockArchiveWriter.INDEX_MAGIC) ||
+			(blockCount < 0) || (indexOffset + 8 + (long) blockCount *
+			BlockArchiveWriter.INDEX_ENTRY_SIZE + BlockArchiveWriter.TRAILER_SIZE
+			!= fileSize)) {
+			return (false);
+		}
+
+		ByteBuffer index = readFully(indexOffset + 8,
+				blockCount * BlockArchiveWriter.INDEX_ENTRY_SIZE);
+		for (int i = 0; i < blockCount; i++) {
+			blocks.add(new ArchiveBlock(index.getLong(), index.getLong(),
+					index.getLong(), index.getInt()));
+		}
+		dataEnd = indexOffset;
+
+		return (true);
+	}
+
+	/**
+	 * Finds the blocks by following the block headers from the start of the
+	 * file, stopping at the first incomplete or invalid block
+	 *
+	 * @throws java.io.IOException
+	 *             if the file could not be read
+	 */
+	private void scanBlocks() throws IOException {
+		long fileSize = channel.size();
+		long position = 0;
+
+		while (position + BlockArchiveWriter.BLOCK_HEADER_SIZE <= fileSize) {
+			ByteBuffer header = readFully(position,
+					BlockArchiveWriter.BLOCK_HEADER_SIZE);
+			if (header.getInt() != BlockArchiveWriter.BLOCK_MAGIC) {
+				break;
+			}
+			long minTime = header.getLong();
+			long maxTime = header.getLong();
+			int messageCount = header.getInt();
+			header.getInt();
+			int compressedLength = header.getInt();
+
+			long blockEnd = position + BlockArchiveWriter.BLOCK_HEADER_SIZE +
+				compressedLength;
+			if ((compressedLength < 0) || (blockEnd > fileSize)) {
+				break;
+			}
+
+			blocks.add(new ArchiveBlock(position, minTime, maxTime,
+					messageCount));
+			position = blockEnd;
+		}
+
+		if (position < fileSize) {
+			logger.warn("Ignoring " + String.valueOf(fileSize - position) +
+				" byte(s) of incomplete data at the end of the archive.");
+		}
+		dataEnd = position;
+	}
+
+	/**
+	 * Reads the requested number of bytes from the provided file position
+	 *
+	 * @param position
+	 *            - A long containing the file position to read from
+	 * @param length
+	 *            - An int containing the number of bytes to read
+	 * @return Returns a ByteBuffer containing the data, ready to read
+	 * @throws java.io.IOException
+	 *             if the data could not be read
+	 */
+	private ByteBuffer readFully(long position, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position + buffer.position());
+			if (count < 0) {
+				throw new IOException("Unexpected end of archive at: " +
+						String.valueOf(position + buffer.position()));
+			}
+		}
+		buffer.flip();
+		return (buffer);
+	}
+
+	/**
+	 * @return the blocks in the archive file, in file order
+	 */
+	public List<ArchiveBlock> getBlocks() {
+		return Collections.unmodifiableList(blocks);
+	}
+
+	/**
+	 * @return the file position after the last complete block
+	 */
+	public long getDataEnd() {
+		return dataEnd;
+	}
+}
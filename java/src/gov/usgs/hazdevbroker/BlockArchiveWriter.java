@@ -0,0 +1,614 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * A hazdev broker class used to write messages to a block archive file.
+ * Messages are collected into blocks of up to a maximum number of messages
+ * or a maximum age, and each block is gzip compressed on its own, so that
+ * any block can be read without reading the rest of the file. Compression
+ * and writing are done on a background thread, so the caller is only held up
+ * if the background thread falls behind.
+ *
+ * The file is a sequence of blocks, each consisting of a header followed by
+ * the compressed messages (newline delimited before compression):
+ *
+ * int BLOCK_MAGIC, long minTime, long maxTime, int messageCount,
+ * int rawLength, int compressedLength, int crc32 (of the compressed data)
+ *
+ * When the file is closed, an index of the blocks is written after the last
+ * block, followed by a trailer pointing at the index:
+ *
+ * int INDEX_MAGIC, int blockCount, then for each block: long offset,
+ * long minTime, long maxTime, int messageCount
+ *
+ * long indexOffset, int TRAILER_MAGIC
+ *
+ * When an existing file is reopened, the index is removed and new blocks are
+ * appended after the existing ones. A file that was not closed cleanly has
+ * no index, the blocks are found by following the block headers instead.
+ *
+ * Block times are taken from the configured time field of each message,
+ * or the time the message was written if it does not have a valid time.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class BlockArchiveWriter implements ArchiveWriter {
+
+	/**
+	 * Block archive file magic numbers
+	 */
+	public static final int BLOCK_MAGIC = 0x48424c4b;
+	public static final int INDEX_MAGIC = 0x48494458;
+	public static final int TRAILER_MAGIC = 0x48454e44;
+
+	/**
+	 * The size of a block header in bytes
+	 */
+	public static final int BLOCK_HEADER_SIZE = 36;
+
+	/**
+	 * The size of an index entry in bytes
+	 */
+	public static final int INDEX_ENTRY_SIZE = 28;
+
+	/**
+	 * The size of the trailer in bytes
+	 */
+	public static final int TRAILER_SIZE = 12;
+
+	/**
+	 * The default maximum number of messages in a block
+	 */
+	public static final int DEFAULT_BLOCK_MESSAGES = 1000;
+
+	/**
+	 * The default maximum age of a block in milliseconds
+	 */
+	public static final long DEFAULT_BLOCK_MILLIS = 60000;
+
+	/**
+	 * The number of sealed blocks that can be waiting to be compressed before
+	 * writing blocks
+	 */
+	public static final int MAX_PENDING_BLOCKS = 16;
+
+	/**
+	 * The name of the archive file
+	 */
+	private String fileName;
+
+	/**
+	 * The archive file
+	 */
+	private RandomAccessFile archiveFile;
+
+	/**
+	 * The archive file channel
+	 */
+	private FileChannel channel;
+
+	/**
+	 * The blocks written to the archive file, only modified by the
+	 * compression thread until closed
+	 */
+	private ArrayList<ArchiveBlock> blocks;
+
+	/**
+	 * The key index to build, null if not indexing keys
+	 */
+	private ArchiveKeyIndexWriter keyIndex;
+
+	/**
+	 * The number of the block being collected
+	 */
+	private int blockNumber;
+
+	/**
+	 * The maximum number of messages in a block
+	 */
+	private int blockMessages;
+
+	/**
+	 * The maximum age of a block in milliseconds
+	 */
+	private long blockMillis;
+
+	/**
+	 * The extractor used to get the time from each message
+	 */
+	private FieldExtractor timeExtractor;
+
+	/**
+	 * The messages in the block being collected
+	 */
+	private ByteArrayOutputStream blockData;
+
+	/**
+	 * The number of messages in the block being collected
+	 */
+	private int blockCount;
+
+	/**
+	 * The earliest message time in the block being collected
+	 */
+	private long blockMinTime;
+
+	/**
+	 * The latest message time in the block being collected
+	 */
+	private long blockMaxTime;
+
+	/**
+	 * The time the block being collected was started
+	 */
+	private long blockStartTime;
+
+	/**
+	 * The compression thread
+	 */
+	private Thread compressionThread;
+
+	/**
+	 * The sealed blocks waiting to be compressed
+	 */
+	private ArrayList<Object[]> pendingBlocks;
+
+	/**
+	 * Limits the number of sealed blocks waiting to be compressed
+	 */
+	private Semaphore pendingPermits;
+
+	/**
+	 * Flag used to stop the compression thread once the pending blocks are
+	 * written
+	 */
+	private boolean closing;
+
+	/**
+	 * The first exception hit by the compression thread, reported on the next
+	 * call
+	 */
+	private volatile IOException writeException;
+
+	/**
+	 * Log4J logger for BlockArchiveWriter
+	 */
+	static Logger logger = Logger.getLogger(BlockArchiveWriter.class);
+
+	/**
+	 * The constructor for the BlockArchiveWriter class. Opens the provided
+	 * file for appending using the default block size and age, and the
+	 * default time field.
+	 *
+	 * @param newFileName
+	 *            - A String containing the archive file name
+	 * @throws java.io.IOException
+	 *             if the file could not be opened
+	 */
+	public BlockArchiveWriter(String newFileName) throws IOException {
+		this(newFileName, DEFAULT_BLOCK_MESSAGES, DEFAULT_BLOCK_MILLIS,
+				ArchiveConsumer.DEFAULT_TIME_FIELD, null);
+	}
+
+	/**
+	 * The advanced constructor for the BlockArchiveWriter class. Opens the
+	 * provided file for appending.
+	 *
+	 * @param newFileName
+	 *            - A String containing the archive file name
+	 * @param newBlockMessages
+	 *            - An int containing the maximum number of messages in a block
+	 * @param newBlockMillis
+	 *            - A long containing the maximum age of a block in
+	 *            milliseconds
+	 * @param timeField
+	 *            - A String containing the message field holding the message
+	 *            time
+	 * @throws java.io.IOException
+	 *             if the file could not be opened
+	 */
+	public BlockArchiveWriter(String newFileName, int newBlockMessages,
+			long newBlockMillis, String timeField) throws IOException {
+		this(newFileName, newBlockMessages, newBlockMillis, timeField, null);
+	}
+
+	/**
+	 * The advanced constructor for the BlockArchiveWriter class with a key
+	 * index. Opens the provided file for appending, and the key index file if
+	 * indexing keys. The key index locations are the numbers of the blocks
+	 * containing the messages.
+	 *
+	 * @param newFileName
+	 *            - A String containing the archive file name
+	 * @param newBlockMessages
+	 *            - An int containing the maximum number of messages in a block
+	 * @param newBlockMillis
+	 *            - A long containing the maximum age of a block in
+	 *            milliseconds
+	 * @param timeField
+	 *            - A String containing the message field holding the message
+	 *            time
+	 * @param keyFields
+	 *            - A List&lt;String&gt; containing the key fields to index,
+	 *            null or empty to disable the key index
+	 * @throws java.io.IOException
+	 *             if the files could not be opened
+	 */
+	public BlockArchiveWriter(String newFileName, int newBlockMessages,
+			long newBlockMillis, String timeField, List<String> keyFields)
+			throws IOException {
+		fileName = newFileName;
+		blockMessages = Math.max(1, newBlockMessages);
+		blockMillis = newBlockMillis;
+		timeExtractor = new FieldExtractor(timeField);
+		blockData = new ByteArrayOutputStream(64 * 1024);
+		pendingBlocks = new ArrayList<Object[]>();
+		pendingPermits = new Semaphore(MAX_PENDING_BLOCKS);
+		closing = false;
+		writeException = null;
+		keyIndex = null;
+		resetBlock();
+
+		// pick up any existing blocks, dropping the index and anything
+		// incomplete
+		blocks = new ArrayList<ArchiveBlock>();
+		long dataEnd = 0;
+		File file = new File(newFileName);
+		if (file.exists() && (file.length() > 0)) {
+			BlockArchiveReader reader = new BlockArchiveReader(file);
+			try {
+				blocks.addAll(reader.getBlocks());
+				dataEnd = reader.getDataEnd();
+			} finally {
+				reader.close();
+			}
+		}
+
+		blockNumber = blocks.size();
+
+		archiveFile = new RandomAccessFile(file, "rw");
+		channel = archiveFile.getChannel();
+		channel.truncate(dataEnd);
+		channel.position(dataEnd);
+
+		if ((keyFields != null) && !keyFields.isEmpty()) {
+			try {
+				keyIndex = new ArchiveKeyIndexWriter(newFileName, keyFields);
+			} catch (IOException e) {
+				archiveFile.close();
+				throw e;
+			}
+		}
+
+		compressionThread = new Thread(new Runnable() {
+			public void run() {
+				compress();
+			}
+		}, "hazdev-archive-compress");
+		compressionThread.setDaemon(true);
+		compressionThread.start();
+	}
+
+	/**
+	 * Adds the provided message to the block being collected, sealing the
+	 * block if it is full
+	 *
+	 * @param message
+	 *            - A byte[] containing the message to write
+	 * @throws java.io.IOException
+	 *             if a previous block could not be written
+	 */
+	public void write(byte[] message) throws IOException {
+		checkException();
+
+		// strip any newline, they delimit messages in the block
+		int length = message.length;
+		if ((length > 0) && (message[length - 1] == '\n')) {
+			length--;
+		}
+
+		long messageTime = Utility.parseTime(timeExtractor.extract(message));
+		long now = System.currentTimeMillis();
+		if (messageTime == Utility.INVALID_TIME) {
+			messageTime = now;
+		}
+
+		if (blockCount == 0) {
+			blockStartTime = now;
+		}
+		blockMinTime = Math.min(blockMinTime, messageTime);
+		blockMaxTime = Math.max(blockMaxTime, messageTime);
+		blockData.write(message, 0, length);
+		blockData.write('\n');
+		blockCount++;
+
+		if (keyIndex != null) {
+			keyIndex.add(message, blockNumber);
+		}
+
+		if (blockCount >= blockMessages) {
+			sealBlock();
+		}
+	}
+
+	/**
+	 * Seals the block being collected if it is older than the maximum block
+	 * age
+	 *
+	 * @throws java.io.IOException
+	 *             if a previous block could not be written
+	 */
+	public void flush() throws IOException {
+		checkException();
+
+		if ((blockCount > 0) &&
+			(System.currentTimeMillis() - blockStartTime >= blockMillis)) {
+			sealBlock();
+		}
+
+		if (keyIndex != null) {
+			keyIndex.flush();
+		}
+	}
+
+	/**
+	 * Seals the block being collected, waits for every block to be written,
+	 * then forces the archive file to disk. Each sync ends the current block,
+	 * so syncing much more often than the maximum block age gives smaller
+	 * blocks and worse compression.
+	 *
+	 * @throws java.io.IOException
+	 *             if a block could not be written
+	 */
+	public void sync() throws IOException {
+		checkException();
+
+		if (blockCount > 0) {
+			sealBlock();
+		}
+
+		// every permit is back once the pending blocks are written
+		try {
+			pendingPermits.acquire(MAX_PENDING_BLOCKS);
+			pendingPermits.release(MAX_PENDING_BLOCKS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted syncing archive: " + fileName);
+		}
+		checkException();
+
+		channel.force(false);
+
+		if (keyIndex != null) {
+			keyIndex.flush();
+		}
+	}
+
+	/**
+	 * Seals the block being collected, waits for every block to be written,
+	 * then writes the index and closes the archive file
+	 *
+	 * @throws java.io.IOException
+	 *             if the archive could not be written
+	 */
+	public void close() throws IOException {
+		if (archiveFile == null) {
+			return;
+		}
+
+		try {
+			if (blockCount > 0) {
+				sealBlock();
+			}
+
+			// wait for the compression thread to finish up
+			synchronized (pendingBlocks) {
+				closing = true;
+				pendingBlocks.notifyAll();
+			}
+			compressionThread.join();
+			checkException();
+
+			writeIndex();
+			channel.force(true);
+
+			if (keyIndex != null) {
+				keyIndex.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted closing archive: " + fileName);
+		} finally {
+			archiveFile.close();
+			archiveFile = null;
+		}
+	}
+
+	/**
+	 * Hands the block being collected to the compression thread, waiting if
+	 * too many blocks are already pending
+	 *
+	 * @throws java.io.IOException
+	 *             if interrupted while waiting
+	 */
+	private void sealBlock() throws IOException {
+		Object[] block = new Object[] { blockData.toByteArray(),
+				Long.valueOf(blockMinTime), Long.valueOf(blockMaxTime),
+				Integer.valueOf(blockCount) };
+		blockData.reset();
+		resetBlock();
+		blockNumber++;
+
+		try {
+			pendingPermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted writing archive: " + fileName);
+		}
+
+		synchronized (pendingBlocks) {
+			pendingBlocks.add(block);
+			pendingBlocks.notifyAll();
+		}
+	}
+
+	/**
+	 * Resets the block statistics for a new block
+	 */
+	private void resetBlock() {
+		blockCount = 0;
+		blockMinTime = Long.MAX_VALUE;
+		blockMaxTime = Long.MIN_VALUE;
+		blockStartTime = 0;
+	}
+
+	/**
+	 * Compression thread function, compresses and writes each sealed block in
+	 * the order they were sealed
+	 */
+	private void compress() {
+		while (true) {
+			Object[] block = null;
+			synchronized (pendingBlocks) {
+				while (pendingBlocks.isEmpty() && !closing) {
+					try {
+						pendingBlocks.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (pendingBlocks.isEmpty()) {
+					return;
+				}
+				block = pendingBlocks.remove(0);
+			}
+
+			try {
+				if (writeException == null) {
+					writeBlock((byte[]) block[0], (Long) block[1],
+							(Long) block[2], (Integer) block[3]);
+				}
+			} catch (IOException e) {
+				logger.error("Exception writing archive block to " + fileName
+						+ ": " + e.toString());
+				writeException = e;
+			} finally {
+				pendingPermits.release();
+			}
+		}
+	}
+
+	/**
+	 * Compresses and writes a block to the archive file
+	 *
+	 * @param rawData
+	 *            - A byte[] containing the newline delimited messages
+	 * @param minTime
+	 *            - A long containing the earliest message time in the block
+	 * @param maxTime
+	 *            - A long containing the latest message time in the block
+	 * @param messageCount
+	 *            - An int containing the number of messages in the block
+	 * @throws java.io.IOException
+	 *             if the block could not be written
+	 */
+	private void writeBlock(byte[] rawData, long minTime, long maxTime,
+			int messageCount) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+				rawData.length / 4 + 64);
+		GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+		gzipStream.write(rawData);
+		gzipStream.close();
+		byte[] compressedData = compressed.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(compressedData);
+
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+		header.putInt(BLOCK_MAGIC);
+		header.putLong(minTime);
+		header.putLong(maxTime);
+		header.putInt(messageCount);
+		header.putInt(rawData.length);
+		header.putInt(compressedData.length);
+		header.putInt((int) crc.getValue());
+		header.flip();
+
+		long offset = channel.position();
+		writeFully(header);
+		writeFully(ByteBuffer.wrap(compressedData));
+
+		blocks.add(new ArchiveBlock(offset, minTime, maxTime, messageCount));
+	}
+
+	/**
+	 * Writes the block index and trailer at the end of the archive file
+	 *
+	 * @throws java.io.IOException
+	 *             if the index could not be written
+	 */
+	private void writeIndex() throws IOException {
+		long indexOffset = channel.position();
+
+		ByteBuffer index = ByteBuffer.allocate(8 + blocks.size() *
+				INDEX_ENTRY_SIZE + TRAILER_SIZE);
+		index.putInt(INDEX_MAGIC);
+		index.putInt(blocks.size());
+		for (ArchiveBlock block : blocks) {
+			index.putLong(block.getOffset());
+			index.putLong(block.getMinTime());
+			index.putLong(block.getMaxTime());
+			index.putInt(block.getMessageCount());
+		}
+		index.putLong(indexOffset);
+		index.putInt(TRAILER_MAGIC);
+		index.flip();
+
+		writeFully(index);
+	}
+
+	/**
+	 * Writes the whole provided buffer to the archive file
+	 *
+	 * @param buffer
+	 *            - A ByteBuffer containing the data to write
+	 * @throws java.io.IOException
+	 *             if the data could not be written
+	 */
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Throws any exception hit by the compression thread
+	 *
+	 * @throws java.io.IOException
+	 *             if the compression thread failed to write a block
+	 */
+	private void checkException() throws IOException {
+		if (writeException != null) {
+			throw writeException;
+		}
+	}
+
+	/**
+	 * @return the name of the archive file being written
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+}
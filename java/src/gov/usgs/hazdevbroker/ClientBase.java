@@ -13,6 +13,7 @@ import javax.management.AttributeList;
 import java.beans.IntrospectionException;
 import java.lang.management.ManagementFactory;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -32,6 +33,13 @@ public class ClientBase {
 	public static final String TYPE_KEY = "Type";
 	public static final String PROPERTIES_KEY = "Properties";
 
+	/**
+	 * Prefix identifying hazdev broker client properties, properties with this
+	 * prefix configure the hazdev broker client itself and are not passed to 
+	 * the kafka client
+	 */
+	public static final String CLIENT_PROPERTY_PREFIX = "hazdev.";
+
 	/** 
 	 * Version
 	 * NOTE: Make sure to also update the c++ version in version.cmake when 
@@ -183,4 +191,172 @@ public class ClientBase {
 		return (configuration);
 	}
 
+
+	/**
+	 * A function that removes the hazdev broker client properties (those 
+	 * starting with CLIENT_PROPERTY_PREFIX) from the provided configuration,
+	 * leaving only the kafka client properties.
+	 *
+	 * @param configProperties
+	 *            - A Properties containing the configuration
+	 * @return Returns a Properties object containing the hazdev broker client 
+	 *         properties
+	 */
+	public Properties extractClientProperties(Properties configProperties) {
+
+		Properties clientProperties = new Properties();
+
+		for (Object key : new ArrayList<Object>(configProperties.keySet())) {
+			String keyStr = key.toString();
+			if (keyStr.startsWith(CLIENT_PROPERTY_PREFIX)) {
+				clientProperties.put(keyStr, configProperties.remove(key));
+			}
+		}
+
+		return (clientProperties);
+	}
+
+	/**
+	 * A function that gets a String property, properties may be stored as any
+	 * JSON type.
+	 *
+	 * @param configProperties
+	 *            - A Properties containing the configuration
+	 * @param key
+	 *            - A String containing the property name
+	 * @param defaultValue
+	 *            - A String containing the value to use if the property is not
+	 *            present
+	 * @return Returns a String containing the property value
+	 */
+	public static String getStringProperty(Properties configProperties, 
+		String key, String defaultValue) {
+
+		Object value = configProperties.get(key);
+		if (value == null) {
+			return (defaultValue);
+		}
+
+		return (value.toString());
+	}
+
+	/**
+	 * A function that gets a long property, properties may be stored as
+	 * either JSON numbers or strings.
+	 *
+	 * @param configProperties
+	 *            - A Properties containing the configuration
+	 * @param key
+	 *            - A String containing the property name
+	 * @param defaultValue
+	 *            - A long containing the value to use if the property is not
+	 *            present or invalid
+	 * @return Returns a long containing the property value
+	 */
+	public static long getLongProperty(Properties configProperties, String key, 
+		long defaultValue) {
+
+		Object value = configProperties.get(key);
+		if (value == null) {
+			return (defaultValue);
+		}
+		if (value instanceof Number) {
+			return (((Number) value).longValue());
+		}
+
+		try {
+			return (Long.parseLong(value.toString().trim()));
+		} catch (NumberFormatException e) {
+			baseLogger.error("Invalid value for " + key + ": " + 
+				value.toString());
+			return (defaultValue);
+		}
+	}
+
+	/**
+	 * A function that gets a double property, properties may be stored as
+	 * either JSON numbers or strings.
+	 *
+	 * @param configProperties
+	 *            - A Properties containing the configuration
+	 * @param key
+	 *            - A String containing the property name
+	 * @param defaultValue
+	 *            - A double containing the value to use if the property is 
+	 *            not present or invalid
+	 * @return Returns a double containing the property value
+	 */
+	public static double getDoubleProperty(Properties configProperties, 
+		String key, double defaultValue) {
+
+		Object value = configProperties.get(key);
+		if (value == null) {
+			return (defaultValue);
+		}
+		if (value instanceof Number) {
+			return (((Number) value).doubleValue());
+		}
+
+		try {
+			return (Double.parseDouble(value.toString().trim()));
+		} catch (NumberFormatException e) {
+			baseLogger.error("Invalid value for " + key + ": " + 
+				value.toString());
+			return (defaultValue);
+		}
+	}
+
+	/**
+	 * A function that gets a list property, properties may be stored as
+	 * either JSON arrays or comma separated strings.
+	 *
+	 * @param configProperties
+	 *            - A Properties containing the configuration
+	 * @param key
+	 *            - A String containing the property name
+	 * @return Returns an ArrayList&lt;String&gt; containing the property 
+	 *         values, null if the property is not present
+	 */
+	public static ArrayList<String> getListProperty(
+		Properties configProperties, String key) {
+
+		Object value = configProperties.get(key);
+		if (value == null) {
+			return (null);
+		}
+
+		ArrayList<String> values = new ArrayList<String>();
+		if (value instanceof JSONArray) {
+			for (Object item : (JSONArray) value) {
+				values.add(item.toString());
+			}
+		} else {
+			values.addAll(Arrays.asList(
+				value.toString().trim().split("\\s*,\\s*")));
+		}
+
+		return (values);
+	}
+
+	/**
+	 * A function that disables kafka auto commit in the provided hazdev
+	 * broker configuration, for clients that commit offsets themselves.
+	 *
+	 * @param brokerConfig
+	 *            - A JSONObject containing the hazdev broker configuration
+	 * @return Returns an Object containing the previous enable.auto.commit
+	 *         value, null if it was not set or the configuration has no
+	 *         Properties
+	 */
+	public static Object disableAutoCommit(JSONObject brokerConfig) {
+		JSONObject brokerProps = (JSONObject) brokerConfig.get(PROPERTIES_KEY);
+		if (brokerProps == null) {
+			return (null);
+		}
+
+		@SuppressWarnings("unchecked")
+		Object autoCommit = brokerProps.put("enable.auto.commit", "false");
+		return (autoCommit);
+	}
+
 }
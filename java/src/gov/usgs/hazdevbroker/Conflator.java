@@ -0,0 +1,239 @@
+package gov.usgs.hazdevbroker;
+
+import java.util.*;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * A hazdev broker class used to keep only the newest record for each key,
+ * for status style topics where only the latest value matters, such as
+ * station state or detector health. Keys are the value of a message field,
+ * within each topic.
+ *
+ * Records are kept in an open addressed table, replacing the record for the
+ * same key in place, and are released in the order their keys were first
+ * seen. Releasing the records costs time proportional to the number of keys,
+ * not the number of records conflated.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class Conflator {
+
+	/**
+	 * The default maximum number of keys
+	 */
+	public static final int DEFAULT_MAX_KEYS = 100000;
+
+	/**
+	 * The extractor for the key field
+	 */
+	private FieldExtractor keyExtractor;
+
+	/**
+	 * The topics to conflate, null for every topic
+	 */
+	private Set<String> topics;
+
+	/**
+	 * The maximum number of keys
+	 */
+	private int maxKeys;
+
+	/**
+	 * The table of keys and their newest records, at most half full
+	 */
+	private String[] keys;
+	private Object[] records;
+
+	/**
+	 * The table slots in the order their keys were first seen
+	 */
+	private int[] order;
+
+	/**
+	 * The number of keys held
+	 */
+	private int count;
+
+	/**
+	 * The time in ms the first record was held, since the last drain
+	 */
+	private long firstTime;
+
+	/**
+	 * The number of records replaced by newer records
+	 */
+	private long conflatedCount;
+
+	/**
+	 * The constructor for the Conflator class.
+	 *
+	 * @param keyField
+	 *            - A String containing the dot separated path of the key field
+	 * @param newTopics
+	 *            - A Set&lt;String&gt; containing the topics to conflate, null
+	 *            for every topic
+	 * @param newMaxKeys
+	 *            - An int containing the maximum number of keys to hold
+	 */
+	public Conflator(String keyField, Set<String> newTopics, int newMaxKeys) {
+		keyExtractor = new FieldExtractor(keyField);
+		topics = newTopics;
+		maxKeys = Math.max(1, newMaxKeys);
+
+		int tableSize = Integer.highestOneBit(maxKeys) << 2;
+		keys = new String[tableSize];
+		records = new Object[tableSize];
+		order = new int[maxKeys];
+		count = 0;
+		firstTime = 0;
+		conflatedCount = 0;
+	}
+
+	/**
+	 * Holds the provided record, replacing any held record with the same key
+	 *
+	 * @param record
+	 *            - The ConsumerRecord to hold
+	 * @return Returns true if the record is held, false if it isn't
+	 *         conflated because of its topic, it has no key, or the table is
+	 *         full
+	 */
+	public boolean add(ConsumerRecord<String, byte[]> record) {
+		if ((topics != null) && !topics.contains(record.topic())) {
+			return (false);
+		}
+		String value = keyExtractor.extract(record.value());
+		if (value == null) {
+			return (false);
+		}
+
+		String key = record.topic() + "\u0000" + value;
+		int mask = keys.length - 1;
+		int slot = slot(key, mask);
+		while (keys[slot] != null) {
+			if (keys[slot].equals(key)) {
+				// newer record for the same key
+				records[slot] = record;
+				conflatedCount++;
+				return (true);
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if (count == maxKeys) {
+			return (false);
+		}
+		if (count == 0) {
+			firstTime = System.currentTimeMillis();
+		}
+		keys[slot] = key;
+		records[slot] = record;
+		order[count++] = slot;
+		return (true);
+	}
+
+	/**
+	 * Releases the held records
+	 *
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing the newest
+	 *         record for each key, in the order the keys were first seen
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<ConsumerRecord<String, byte[]>> drain() {
+		ArrayList<ConsumerRecord<String, byte[]>> released =
+			new ArrayList<ConsumerRecord<String, byte[]>>(count);
+		for (int i = 0; i < count; i++) {
+			int slot = order[i];
+			released.add((ConsumerRecord<String, byte[]>) records[slot]);
+			keys[slot] = null;
+			records[slot] = null;
+		}
+		count = 0;
+		return (released);
+	}
+
+	/**
+	 * Gets the lowest offset held for each partition, so that offsets past
+	 * held records aren't committed
+	 *
+	 * @param floors
+	 *            - A Map&lt;TopicPartition, Long&gt; containing the lowest
+	 *            offset to count in each partition, records below it, such
+	 *            as backfilled records, are ignored. Partitions without a
+	 *            floor are ignored entirely.
+	 * @return Returns a Map&lt;TopicPartition, Long&gt; containing the lowest
+	 *         offset held for each partition holding records
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<TopicPartition, Long> getLowestOffsets(
+		Map<TopicPartition, Long> floors) {
+		HashMap<TopicPartition, Long> offsets =
+			new HashMap<TopicPartition, Long>();
+		for (int i = 0; i < count; i++) {
+			ConsumerRecord<String, byte[]> record =
+				(ConsumerRecord<String, byte[]>) records[order[i]];
+			TopicPartition partition = new TopicPartition(record.topic(),
+				record.partition());
+			Long floor = floors.get(partition);
+			if ((floor == null) || (record.offset() < floor)) {
+				continue;
+			}
+			Long offset = offsets.get(partition);
+			if ((offset == null) || (record.offset() < offset)) {
+				offsets.put(partition, record.offset());
+			}
+		}
+		return (offsets);
+	}
+
+	/**
+	 * @return true if no records are held
+	 */
+	public boolean isEmpty() {
+		return (count == 0);
+	}
+
+	/**
+	 * @return true if no more keys can be held
+	 */
+	public boolean isFull() {
+		return (count == maxKeys);
+	}
+
+	/**
+	 * @return the number of keys held
+	 */
+	public int size() {
+		return (count);
+	}
+
+	/**
+	 * @return the time in ms the first record was held, since the last drain
+	 */
+	public long getFirstTime() {
+		return (firstTime);
+	}
+
+	/**
+	 * @return the number of records replaced by newer records
+	 */
+	public long getConflatedCount() {
+		return (conflatedCount);
+	}
+
+	/**
+	 * Gets the first slot to probe for the provided key
+	 *
+	 * @param key
+	 *            - A String containing the key
+	 * @param mask
+	 *            - An int containing the table size minus one
+	 * @return Returns an int containing the slot
+	 */
+	private static int slot(String key, int mask) {
+		int hash = key.hashCode();
+		return ((hash ^ (hash >>> 16)) & mask);
+	}
+}
@@ -2,12 +2,19 @@ package gov.usgs.hazdevbroker;
 
 import java.util.*;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import javax.management.ObjectName;
 import org.apache.log4j.Logger;
 
 import org.apache.kafka.clients.consumer.*;
 import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 /**
@@ -20,27 +27,184 @@ public class Consumer extends ClientBase {
 	/**
 	 * Optional configuration string defining the heartbeat directory
 	 */
-	private static String heartbeatDirectory;
+	private String heartbeatDirectory;
 
 	/**
 	 * The kafka consumer client
 	 */
-	private static org.apache.kafka.clients.consumer.Consumer<String, byte[]> consumer;
+	private org.apache.kafka.clients.consumer.Consumer<String, byte[]> consumer;
 
 	/**
 	 * The Heartbeat message processor
 	 */
-	private static Heartbeat heartbeatProcessor;
+	private Heartbeat heartbeatProcessor;
 
 	/**
 	 * Variable containing time of the last heartbeat.
 	 */
-	private static Long lastHeartbeatTime;
+	private Long lastHeartbeatTime;
 
 	/**
 	 * A collection of strings contining the topics 
 	 */	
-	private static Collection<String> topicList;
+	private Collection<String> topicList;
+
+	/**
+	 * The kafka consumer client configuration, used to configure the backfill
+	 * fetchers
+	 */
+	private Properties kafkaProperties = null;
+
+	/**
+	 * The backfill in progress, null if not backfilling
+	 */
+	private Backfill backfill = null;
+
+	/**
+	 * The time in ms since the epoch to backfill from once partitions are
+	 * assigned, null if no backfill is waiting on the assignment
+	 */
+	private Long pendingBackfillTime = null;
+
+	/**
+	 * The number of fetcher threads for the backfill waiting on the
+	 * assignment
+	 */
+	private int pendingBackfillThreads = DEFAULT_BACKFILL_THREADS;
+
+	/**
+	 * The offset of the next record in each partition after the records
+	 * returned by poll, used to commit offsets manually
+	 */
+	private HashMap<TopicPartition, OffsetAndMetadata> consumedOffsets = 
+		new HashMap<TopicPartition, OffsetAndMetadata>();
+
+	/**
+	 * The offset of the first live record polled from each partition, held
+	 * records with lower offsets came from the backfill
+	 */
+	private HashMap<TopicPartition, Long> liveStartOffsets = 
+		new HashMap<TopicPartition, Long>();
+
+	/**
+	 * The cache used to drop duplicate messages, null if not deduplicating
+	 */
+	private DedupCache dedupCache = null;
+
+	/**
+	 * The JMX name the dedup metrics are registered under, null if not
+	 * registered
+	 */
+	private ObjectName dedupMetricName = null;
+
+	/**
+	 * The filter used to drop messages from outside the configured regions,
+	 * null if not filtering
+	 */
+	private GeoFilter geoFilter = null;
+
+	/**
+	 * Flag indicating whether to keep messages the geo filter can't locate
+	 */
+	private boolean keepUnlocated = true;
+
+	/**
+	 * The number of messages dropped by the geo filter
+	 */
+	private long geoDroppedCount = 0;
+
+	/**
+	 * The buffer used to deliver messages in time order, null if not
+	 * ordering
+	 */
+	private ReorderBuffer reorderBuffer = null;
+
+	/**
+	 * The conflator used to keep only the newest message per key while 
+	 * behind, null if not conflating
+	 */
+	private Conflator conflator = null;
+
+	/**
+	 * The number of messages the consumer can be behind before conflating
+	 */
+	private long conflateMinLag = DEFAULT_CONFLATE_MIN_LAG;
+
+	/**
+	 * The maximum time in ms to hold conflated messages
+	 */
+	private long conflateMaxDelay = DEFAULT_CONFLATE_MAX_DELAY;
+
+	/**
+	 * Flag indicating whether the consumer was behind at the last check
+	 */
+	private boolean behind = false;
+
+	/**
+	 * The time in ms the lag was last checked
+	 */
+	private long lastLagCheckTime = 0;
+
+	/**
+	 * Flag indicating whether the conflator is holding backfilled messages
+	 */
+	private boolean conflatingBackfill = false;
+
+	/**
+	 * Client property keys
+	 */
+	public static final String DEDUP_WINDOW = "hazdev.dedup.window";
+	public static final String DEDUP_FIELD = "hazdev.dedup.field";
+	public static final String DEDUP_CAPACITY = "hazdev.dedup.capacity";
+	public static final String GEO_REGIONS = "hazdev.geo.regions";
+	public static final String GEO_CELL_DEGREES = "hazdev.geo.cell.degrees";
+	public static final String GEO_LATITUDE_FIELD = "hazdev.geo.latitude.field";
+	public static final String GEO_LONGITUDE_FIELD = 
+		"hazdev.geo.longitude.field";
+	public static final String GEO_STATION_FILE = "hazdev.geo.station.file";
+	public static final String GEO_STATION_FIELD = "hazdev.geo.station.field";
+	public static final String GEO_NETWORK_FIELD = "hazdev.geo.network.field";
+	public static final String GEO_KEEP_UNLOCATED = 
+		"hazdev.geo.keep.unlocated";
+	public static final String ORDER_MAX_DELAY = "hazdev.order.max.delay";
+	public static final String ORDER_LATENESS = "hazdev.order.lateness";
+	public static final String ORDER_MAX_RECORDS = "hazdev.order.max.records";
+	public static final String ORDER_TIME_FIELD = "hazdev.order.time.field";
+	public static final String CONFLATE_FIELD = "hazdev.conflate.field";
+	public static final String CONFLATE_TOPICS = "hazdev.conflate.topics";
+	public static final String CONFLATE_MIN_LAG = "hazdev.conflate.min.lag";
+	public static final String CONFLATE_MAX_DELAY = 
+		"hazdev.conflate.max.delay";
+	public static final String CONFLATE_MAX_KEYS = "hazdev.conflate.max.keys";
+
+	/**
+	 * Conflation defaults
+	 */
+	public static final long DEFAULT_CONFLATE_MIN_LAG = 100;
+	public static final long DEFAULT_CONFLATE_MAX_DELAY = 5000;
+
+	/**
+	 * The minimum time in ms between checking how far behind the consumer
+	 * is, when conflating
+	 */
+	public static final long LAG_CHECK_MS = 1000;
+
+	/**
+	 * The JMX name prefix of the dedup metrics, followed by the client id
+	 */
+	public static final String DEDUP_METRICS = 
+		"hazdev.consumer:type=dedup-metrics,client-id=";
+
+	/**
+	 * The default number of backfill fetcher threads
+	 */
+	public static final int DEFAULT_BACKFILL_THREADS = 4;
+
+	/**
+	 * The maximum time in ms to wait for backfilled data before checking 
+	 * whether the backfill is done
+	 */
+	public static final long BACKFILL_POLL_MS = 1000;
 
 	/**
 	 * Log4J logger for Consumer
@@ -205,6 +369,15 @@ public class Consumer extends ClientBase {
 		}
 
 		try {
+			// separate out the hazdev broker client configuration
+			Properties clientProperties = 
+				extractClientProperties(configProperties);
+
+			// create the geo filter
+			if (clientProperties.get(GEO_REGIONS) != null) {
+				setupGeoFilter(clientProperties);
+			}
+
 			// add any fixed configuration (like the serializer
 			configProperties.put("key.deserializer",
 					"org.apache.kafka.common.serialization.StringDeserializer");
@@ -213,10 +386,52 @@ public class Consumer extends ClientBase {
 
 			// create the consumer
 			consumer = new KafkaConsumer<String, byte[]>(configProperties);
+			kafkaProperties = configProperties;
 
 			// create the heartbeat processor, we need this to tell if a 
 			// message is a heartbeat or not
 			heartbeatProcessor = new Heartbeat();	
+
+			// create the dedup cache
+			long dedupWindow = getLongProperty(clientProperties, 
+				DEDUP_WINDOW, 0);
+			if (dedupWindow > 0) {
+				String dedupField = getStringProperty(clientProperties, 
+					DEDUP_FIELD, null);
+				dedupCache = new DedupCache(dedupWindow * 1000, 
+					(int) getLongProperty(clientProperties, DEDUP_CAPACITY, 
+						DedupCache.DEFAULT_CAPACITY), dedupField);
+				logger.info("Dropping duplicate messages within " + 
+					String.valueOf(dedupWindow) + " second(s), identified by " +
+					((dedupField != null) ? dedupField : "content") + ".");
+				registerDedupMetrics(
+					configProperties.getProperty("client.id"));
+			}
+
+			// create the conflator
+			String conflateField = getStringProperty(clientProperties, 
+				CONFLATE_FIELD, null);
+			if (conflateField != null) {
+				setupConflator(clientProperties, conflateField);
+			}
+
+			// create the reorder buffer
+			long orderMaxDelay = getLongProperty(clientProperties, 
+				ORDER_MAX_DELAY, 0);
+			if (orderMaxDelay > 0) {
+				long orderLateness = getLongProperty(clientProperties, 
+					ORDER_LATENESS, 0);
+				reorderBuffer = new ReorderBuffer(
+					getStringProperty(clientProperties, ORDER_TIME_FIELD, 
+						ReorderBuffer.DEFAULT_TIME_FIELD), 
+					orderLateness, orderMaxDelay, 
+					(int) getLongProperty(clientProperties, ORDER_MAX_RECORDS, 
+						ReorderBuffer.DEFAULT_MAX_RECORDS));
+				logger.info("Delivering messages in time order, holding " + 
+					"them up to " + String.valueOf(orderMaxDelay) + 
+					" ms, allowing " + String.valueOf(orderLateness) + 
+					" ms of lateness.");
+			}
 		} catch (Exception e) {
 			logger.error("Exception configuring consumer: " + e.toString());
 			return(false);
@@ -225,6 +440,86 @@ public class Consumer extends ClientBase {
 		return(true);
 	}
 
+	/**
+	 * Creates the geo filter from the provided client properties
+	 *
+	 * @param clientProperties
+	 *            - A Properties containing the hazdev broker client 
+	 *            configuration
+	 * @throws org.json.simple.parser.ParseException
+	 *             if the regions are an invalid JSON string
+	 * @throws java.io.IOException
+	 *             if the station file could not be loaded
+	 */
+	private void setupGeoFilter(Properties clientProperties) 
+		throws ParseException, IOException {
+		// the regions may be given as JSON or as a JSON string
+		Object regions = clientProperties.get(GEO_REGIONS);
+		if (!(regions instanceof JSONArray)) {
+			regions = new JSONParser().parse(regions.toString());
+		}
+
+		geoFilter = new GeoFilter((JSONArray) regions, getDoubleProperty(
+			clientProperties, GEO_CELL_DEGREES, 
+			GeoFilter.DEFAULT_CELL_DEGREES));
+		geoFilter.setCoordinateFields(
+			getStringProperty(clientProperties, GEO_LATITUDE_FIELD, 
+				GeoFilter.DEFAULT_LATITUDE_FIELD), 
+			getStringProperty(clientProperties, GEO_LONGITUDE_FIELD, 
+				GeoFilter.DEFAULT_LONGITUDE_FIELD));
+
+		String stationFile = getStringProperty(clientProperties, 
+			GEO_STATION_FILE, null);
+		if (stationFile != null) {
+			int stationCount = geoFilter.loadStations(stationFile, 
+				getStringProperty(clientProperties, GEO_STATION_FIELD, 
+					GeoFilter.DEFAULT_STATION_FIELD), 
+				getStringProperty(clientProperties, GEO_NETWORK_FIELD, 
+					GeoFilter.DEFAULT_NETWORK_FIELD));
+			logger.info("Loaded " + String.valueOf(stationCount) + 
+				" station(s) from: " + stationFile);
+		}
+
+		keepUnlocated = Boolean.parseBoolean(getStringProperty(
+			clientProperties, GEO_KEEP_UNLOCATED, "true"));
+		logger.info("Dropping messages from outside " + 
+			regions.toString() + ", " + (keepUnlocated ? "keeping" : 
+			"dropping") + " messages without a location.");
+	}
+
+	/**
+	 * Creates the conflator from the provided client properties
+	 *
+	 * @param clientProperties
+	 *            - A Properties containing the hazdev broker client 
+	 *            configuration
+	 * @param conflateField
+	 *            - A String containing the dot separated path of the key
+	 *            field
+	 */
+	private void setupConflator(Properties clientProperties, 
+		String conflateField) {
+		// the topics may be given as a list or a comma separated string
+		HashSet<String> conflateTopics = null;
+		ArrayList<String> topics = getListProperty(clientProperties, 
+			CONFLATE_TOPICS);
+		if (topics != null) {
+			conflateTopics = new HashSet<String>(topics);
+		}
+
+		conflator = new Conflator(conflateField, conflateTopics, 
+			(int) getLongProperty(clientProperties, CONFLATE_MAX_KEYS, 
+				Conflator.DEFAULT_MAX_KEYS));
+		conflateMinLag = getLongProperty(clientProperties, CONFLATE_MIN_LAG, 
+			DEFAULT_CONFLATE_MIN_LAG);
+		conflateMaxDelay = getLongProperty(clientProperties, 
+			CONFLATE_MAX_DELAY, DEFAULT_CONFLATE_MAX_DELAY);
+		logger.info("Keeping only the newest message per " + conflateField + 
+			" in " + ((conflateTopics != null) ? conflateTopics.toString() : 
+			"every topic") + " while more than " + 
+			String.valueOf(conflateMinLag) + " message(s) behind.");
+	}
+
 	/**
 	 * Subscribes the kafka consumer client to the provided topic
 	 *
@@ -243,12 +538,218 @@ public class Consumer extends ClientBase {
 	 *            subscribe to.
 	 */
 	public void subscribe(Collection<String> topics) {
-		consumer.subscribe(topics);
+		consumer.subscribe(topics, new ConsumerRebalanceListener() {
+			public void onPartitionsRevoked(Collection<TopicPartition> 
+				partitions) {
+				// we no longer own these, so can't commit them
+				for (TopicPartition partition : partitions) {
+					consumedOffsets.remove(partition);
+					liveStartOffsets.remove(partition);
+				}
+
+				// and shouldn't wait on them
+				if (reorderBuffer != null) {
+					reorderBuffer.removePartitions(partitions);
+				}
+			}
+
+			public void onPartitionsAssigned(Collection<TopicPartition> 
+				partitions) {
+				// wait on every partition, not just the ones heard from
+				if (reorderBuffer != null) {
+					reorderBuffer.addPartitions(partitions);
+				}
+
+				// hold off on live data until the backfill is done
+				if (backfill != null) {
+					consumer.pause(partitions);
+				} else if (pendingBackfillTime != null) {
+					// the backfill was waiting for our partitions
+					long startTime = pendingBackfillTime.longValue();
+					pendingBackfillTime = null;
+					startBackfill(startTime, pendingBackfillThreads);
+				}
+			}
+		});
 
 		// remember the topic list for handling heartbeats
 		topicList = topics;
 	}
 
+	/**
+	 * Backfills the subscribed topics starting at the provided time, using
+	 * four fetcher threads. See backfill(long, int).
+	 *
+	 * @param startTime
+	 *            - A long containing the time to backfill from in 
+	 *            milliseconds since the epoch
+	 * @return Returns true if the backfill was started, false otherwise
+	 */
+	public boolean backfill(long startTime) {
+		return (backfill(startTime, DEFAULT_BACKFILL_THREADS));
+	}
+
+	/**
+	 * Backfills the subscribed topics starting at the provided time. Every
+	 * partition assigned to this consumer is read from the first message at
+	 * or after the provided time up to the current end of the partition, by
+	 * fetcher threads configured for large fetches. Backfilled messages are
+	 * returned by poll before any live messages, live messages resume from
+	 * where the backfill stopped once it is done. Must be called after 
+	 * subscribe. If no partitions are assigned yet, the backfill starts once
+	 * the first poll assigns them.
+	 *
+	 * @param startTime
+	 *            - A long containing the time to backfill from in 
+	 *            milliseconds since the epoch
+	 * @param numThreads
+	 *            - An int containing the number of fetcher threads to use
+	 * @return Returns true if the backfill was started or is waiting on the
+	 *         assignment, false otherwise
+	 */
+	public boolean backfill(long startTime, int numThreads) {
+
+		if ((consumer == null) || (topicList == null)) {
+			logger.error("Cannot backfill before subscribing.");
+			return (false);
+		}
+
+		// only our partitions are backfilled, so wait until we have some
+		if (consumer.assignment().isEmpty()) {
+			pendingBackfillTime = Long.valueOf(startTime);
+			pendingBackfillThreads = numThreads;
+			logger.info("Backfill waiting for partitions to be assigned.");
+			return (true);
+		}
+
+		return (startBackfill(startTime, numThreads));
+	}
+
+	/**
+	 * Starts backfilling the assigned partitions from the provided time
+	 *
+	 * @param startTime
+	 *            - A long containing the time to backfill from in 
+	 *            milliseconds since the epoch
+	 * @param numThreads
+	 *            - An int containing the number of fetcher threads to use
+	 * @return Returns true if the backfill was started, false otherwise
+	 */
+	private boolean startBackfill(long startTime, int numThreads) {
+		try {
+			// get every partition assigned to us
+			HashMap<TopicPartition, Long> timestamps = 
+				new HashMap<TopicPartition, Long>();
+			for (TopicPartition partition : consumer.assignment()) {
+				timestamps.put(partition, startTime);
+			}
+
+			// look up where to start and stop
+			Map<TopicPartition, OffsetAndTimestamp> startTimes = 
+				consumer.offsetsForTimes(timestamps);
+			Map<TopicPartition, Long> endOffsets = 
+				consumer.endOffsets(timestamps.keySet());
+
+			HashMap<TopicPartition, Long> startOffsets = 
+				new HashMap<TopicPartition, Long>();
+			for (TopicPartition partition : timestamps.keySet()) {
+				OffsetAndTimestamp start = startTimes.get(partition);
+				if (start != null) {
+					startOffsets.put(partition, start.offset());
+				} else {
+					// nothing after the start time, nothing to backfill
+					startOffsets.put(partition, endOffsets.get(partition));
+				}
+			}
+
+			// hold off on live data until the backfill is done
+			backfill = new Backfill(startOffsets, endOffsets);
+			consumer.pause(consumer.assignment());
+
+			backfill.start(kafkaProperties, numThreads);
+		} catch (Exception e) {
+			logger.error("Exception starting backfill: " + e.toString());
+			backfill = null;
+			return (false);
+		}
+
+		return (true);
+	}
+
+	/**
+	 * Polls the backfill for data, switching over to live data once the
+	 * backfill is done.
+	 *
+	 * @param timeout
+	 *            - A long containing the time to wait while polling in
+	 *            milliseconds.
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing backfilled
+	 *         records, or null once the backfill is done
+	 */
+	private ArrayList<ConsumerRecord<String, byte[]>> pollBackfill(
+		long timeout) {
+
+		// keep the live consumer in its group, all of its partitions are
+		// paused so nothing should come back
+		ConsumerRecords<String, byte[]> records = consumer.poll(Duration.ZERO);
+		if ((records != null) && !records.isEmpty()) {
+			// don't lose anything that snuck through
+			for (TopicPartition partition : records.partitions()) {
+				consumer.seek(partition, 
+					records.records(partition).get(0).offset());
+			}
+		}
+
+		try {
+			ArrayList<ConsumerRecord<String, byte[]>> data = backfill.poll(
+				Math.min(timeout, BACKFILL_POLL_MS));
+			if (data != null) {
+				return (data);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return (new ArrayList<ConsumerRecord<String, byte[]>>());
+		}
+
+		if (!backfill.isDone()) {
+			return (new ArrayList<ConsumerRecord<String, byte[]>>());
+		}
+
+		// switch to live data, starting where the backfill stopped, which is
+		// short of the end offsets for any partition it didn't finish
+		Map<TopicPartition, Long> resumeOffsets = 
+			backfill.getResumeOffsets();
+		Set<TopicPartition> assignment = consumer.assignment();
+		for (TopicPartition partition : assignment) {
+			Long resumeOffset = resumeOffsets.get(partition);
+			if (resumeOffset != null) {
+				consumer.seek(partition, resumeOffset);
+			}
+		}
+		consumer.resume(assignment);
+
+		if (backfill.isIncomplete()) {
+			logger.warn("Backfill incomplete, " + 
+				String.valueOf(backfill.getMessageCount()) + 
+				" message(s) backfilled, live consumption resumes where " + 
+				"it stopped.");
+		} else {
+			logger.info("Backfill complete, " + 
+				String.valueOf(backfill.getMessageCount()) + 
+				" message(s) backfilled.");
+		}
+		backfill = null;
+
+		return (null);
+	}
+
+	/**
+	 * @return true if a backfill is in progress
+	 */
+	public boolean isBackfilling() {
+		return ((backfill != null) || (pendingBackfillTime != null));
+	}
+
 	/**
 	 * Polls the hazdev kafka broker cluster for data.
 	 *
@@ -261,13 +762,65 @@ public class Consumer extends ClientBase {
 	 */
 	public ArrayList<byte[]> poll(long timeout) {
 
-		ArrayList<byte[]> data = new ArrayList<byte[]>();
+		// get records
+		ArrayList<ConsumerRecord<String, byte[]>> records = 
+			pollRecords(timeout);
+
+		// nullcheck
+		if (records == null) {
+			return(null);
+		}
+
+		ArrayList<byte[]> data = new ArrayList<byte[]>(records.size());
+		for (ConsumerRecord<String, byte[]> record : records) {
+			data.add(record.value());
+		}
+
+		return (data);
+	}
+
+	/**
+	 * Polls the hazdev kafka broker cluster for records, for clients that need
+	 * to know the topic, partition or offset of each message. Heartbeats are
+	 * handled and removed, the same as for poll.
+	 *
+	 * @param timeout
+	 *            - A long containing the time to wait while polling in
+	 *            milliseconds. -1 indicates that the client should wait for an
+	 *            arbitrarily long time
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing the records
+	 *         from the broker cluster since the last time it was polled, in
+	 *         partition order.
+	 */
+	public ArrayList<ConsumerRecord<String, byte[]>> pollRecords(
+		long timeout) {
+
+		ArrayList<ConsumerRecord<String, byte[]>> data = 
+			new ArrayList<ConsumerRecord<String, byte[]>>();
 
 		// Negative value means wait for an arbitrarily long time
 		if (timeout < 0) {
 			timeout = Long.MAX_VALUE;
 		}
 
+		// hand out any backfilled data first
+		if (backfill != null) {
+			ArrayList<ConsumerRecord<String, byte[]>> backfillData = 
+				pollBackfill(timeout);
+			if (backfillData != null) {
+				return (order(conflate(filterRecords(backfillData))));
+			}
+		}
+
+		// don't wait past when held records are due
+		if (reorderBuffer != null) {
+			timeout = Math.min(timeout, reorderBuffer.getDelay());
+		}
+		if ((conflator != null) && !conflator.isEmpty()) {
+			timeout = Math.min(timeout, Math.max(0, conflator.getFirstTime() + 
+				conflateMaxDelay - System.currentTimeMillis()));
+		}
+
 		// get any messages pending for our topic(s) from kafka
 		ConsumerRecords<String, byte[]> records = null;
 		try {
@@ -290,21 +843,322 @@ public class Consumer extends ClientBase {
 				continue;
 			}
 
+			// drop messages from outside the regions before decoding them
+			int location = GeoFilter.UNLOCATED;
+			if (geoFilter != null) {
+				location = geoFilter.filter(record.value());
+				if (location == GeoFilter.OUTSIDE) {
+					geoDroppedCount++;
+					continue;
+				}
+			}
+
 			// convert to string to see if this is a heartbeat
 			// note that if poll was called by pollString, we're
 			// converting *twice*, I'm not sure how to check for heartbeats
 			// more efficiently than this tho
 			String recordString = new String(record.value());
 
-			// don't add heartbeats to the data arraylist
+			// don't add heartbeats or duplicates to the data arraylist
 			if (heartbeatProcessor.fromJSONString(recordString) == true) {
 				handleHeartbeat(heartbeatProcessor);
-			} else {
-				data.add(record.value());
+
+				// the producer has moved on, so can the ordered stream
+				if ((reorderBuffer != null) && 
+					(heartbeatProcessor.getTime() != null)) {
+					reorderBuffer.advance(new TopicPartition(record.topic(), 
+						record.partition()), 
+						heartbeatProcessor.getTime().getTime());
+				}
+			} else if ((geoFilter != null) && 
+				(location == GeoFilter.UNLOCATED) && !keepUnlocated) {
+				geoDroppedCount++;
+			} else if ((dedupCache == null) || 
+				!dedupCache.isDuplicate(record.value())) {
+				data.add(record);
 			}
 		}
 
-		return (data);
+		// remember how far we got in each partition
+		for (TopicPartition partition : records.partitions()) {
+			List<ConsumerRecord<String, byte[]>> partitionRecords = 
+				records.records(partition);
+			if (!partitionRecords.isEmpty()) {
+				if (!liveStartOffsets.containsKey(partition)) {
+					liveStartOffsets.put(partition, 
+						partitionRecords.get(0).offset());
+				}
+				consumedOffsets.put(partition, new OffsetAndMetadata(
+					partitionRecords.get(partitionRecords.size() - 1).offset() 
+					+ 1));
+			}
+		}
+
+		return (order(conflate(data)));
+	}
+
+	/**
+	 * Passes the provided records through the conflator while the consumer 
+	 * is behind or backfilling, releasing the newest record for each key 
+	 * once it has caught up, the conflator is full, or the records have been 
+	 * held for the maximum delay
+	 *
+	 * @param records
+	 *            - An ArrayList&lt;ConsumerRecord&gt; containing the records
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing the 
+	 *         records that weren't conflated, followed by any released by
+	 *         the conflator
+	 */
+	private ArrayList<ConsumerRecord<String, byte[]>> conflate(
+		ArrayList<ConsumerRecord<String, byte[]>> records) {
+		if (conflator == null) {
+			return (records);
+		}
+
+		long now = System.currentTimeMillis();
+		if (backfill != null) {
+			behind = true;
+		} else if (now - lastLagCheckTime >= LAG_CHECK_MS) {
+			behind = getLag() > conflateMinLag;
+			lastLagCheckTime = now;
+		}
+
+		// backfilled messages go out before live ones
+		boolean backfillDone = conflatingBackfill && (backfill == null);
+		conflatingBackfill = (backfill != null);
+
+		// nothing to do when caught up
+		if (!behind && conflator.isEmpty()) {
+			return (records);
+		}
+
+		ArrayList<ConsumerRecord<String, byte[]>> passed = 
+			new ArrayList<ConsumerRecord<String, byte[]>>();
+		for (ConsumerRecord<String, byte[]> record : records) {
+			if (!conflator.add(record)) {
+				passed.add(record);
+			}
+		}
+
+		if (!behind || backfillDone || conflator.isFull() || 
+			(now - conflator.getFirstTime() >= conflateMaxDelay)) {
+			passed.addAll(conflator.drain());
+		}
+		return (passed);
+	}
+
+	/**
+	 * Gets how far behind the consumer is
+	 *
+	 * @return Returns a long containing the number of messages between the
+	 *         consumer's position and the end of its assigned partitions, 0
+	 *         if it could not be determined
+	 */
+	private long getLag() {
+		long lag = 0;
+		try {
+			Set<TopicPartition> assignment = consumer.assignment();
+			for (Map.Entry<TopicPartition, Long> entry : 
+				consumer.endOffsets(assignment).entrySet()) {
+				lag += Math.max(0, entry.getValue() - 
+					consumer.position(entry.getKey()));
+			}
+		} catch (Exception e) {
+			logger.debug("Exception checking lag: " + e.toString());
+			return (0);
+		}
+		return (lag);
+	}
+
+	/**
+	 * @return the number of messages replaced by newer messages with the 
+	 *         same key, 0 if not conflating
+	 */
+	public long getConflatedCount() {
+		return ((conflator != null) ? conflator.getConflatedCount() : 0);
+	}
+
+	/**
+	 * Passes the provided records through the reorder buffer, if delivering
+	 * messages in time order
+	 *
+	 * @param records
+	 *            - An ArrayList&lt;ConsumerRecord&gt; containing the records
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing the 
+	 *         records released by the reorder buffer
+	 */
+	private ArrayList<ConsumerRecord<String, byte[]>> order(
+		ArrayList<ConsumerRecord<String, byte[]>> records) {
+		if (reorderBuffer == null) {
+			return (records);
+		}
+
+		for (ConsumerRecord<String, byte[]> record : records) {
+			reorderBuffer.add(record);
+		}
+		return (reorderBuffer.drain());
+	}
+
+	/**
+	 * Removes the messages from outside the regions and the duplicate 
+	 * messages from the provided records, if filtering
+	 *
+	 * @param records
+	 *            - An ArrayList&lt;ConsumerRecord&gt; containing the records
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing the 
+	 *         records that are kept
+	 */
+	private ArrayList<ConsumerRecord<String, byte[]>> filterRecords(
+		ArrayList<ConsumerRecord<String, byte[]>> records) {
+		if ((geoFilter == null) && (dedupCache == null)) {
+			return (records);
+		}
+
+		ArrayList<ConsumerRecord<String, byte[]>> kept = 
+			new ArrayList<ConsumerRecord<String, byte[]>>(records.size());
+		for (ConsumerRecord<String, byte[]> record : records) {
+			if (geoFilter != null) {
+				int location = geoFilter.filter(record.value());
+				if ((location == GeoFilter.OUTSIDE) || 
+					((location == GeoFilter.UNLOCATED) && !keepUnlocated)) {
+					geoDroppedCount++;
+					continue;
+				}
+			}
+			if ((dedupCache == null) || 
+				!dedupCache.isDuplicate(record.value())) {
+				kept.add(record);
+			}
+		}
+		return (kept);
+	}
+
+	/**
+	 * Registers the dedup hit and miss counters with JMX, so they can be read 
+	 * with getKafkaMetric along with the kafka metrics
+	 *
+	 * @param clientId
+	 *            - A String containing the client id, may be null
+	 */
+	private void registerDedupMetrics(String clientId) {
+		try {
+			dedupMetricName = new ObjectName(DEDUP_METRICS + 
+				String.valueOf(clientId));
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(
+				dedupMetricName)) {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					dedupMetricName);
+			}
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				dedupCache, dedupMetricName);
+		} catch (Exception e) {
+			logger.warn("Exception registering dedup metrics: " + 
+				e.toString());
+			dedupMetricName = null;
+		}
+	}
+
+	/**
+	 * @return the number of messages dropped by the geo filter
+	 */
+	public long getGeoDroppedCount() {
+		return (geoDroppedCount);
+	}
+
+	/**
+	 * @return the number of duplicate messages dropped, 0 if not 
+	 *         deduplicating
+	 */
+	public long getDuplicateCount() {
+		return ((dedupCache != null) ? dedupCache.getHits() : 0);
+	}
+
+	/**
+	 * Gets the offsets covering the messages returned by poll so far, for use
+	 * with commitAsync or commitSync when enable.auto.commit is false.
+	 * Backfilled messages are not included, live messages resume after the
+	 * backfill. Messages still held to be delivered in time order are not
+	 * included either, unless they were backfilled, so the offsets never go
+	 * back behind where live messages started.
+	 *
+	 * @return Returns a Map&lt;TopicPartition, OffsetAndMetadata&gt; containing
+	 *         a copy of the offset of the next message in each partition
+	 */
+	public Map<TopicPartition, OffsetAndMetadata> getConsumedOffsets() {
+		HashMap<TopicPartition, OffsetAndMetadata> offsets = 
+			new HashMap<TopicPartition, OffsetAndMetadata>(consumedOffsets);
+
+		// records still in the conflator or reorder buffer haven't been 
+		// returned yet
+		HashMap<TopicPartition, Long> heldOffsets = 
+			new HashMap<TopicPartition, Long>();
+		if (conflator != null) {
+			heldOffsets.putAll(conflator.getLowestOffsets(liveStartOffsets));
+		}
+		if (reorderBuffer != null) {
+			for (Map.Entry<TopicPartition, Long> entry : 
+				reorderBuffer.getLowestOffsets(liveStartOffsets).entrySet()) {
+				Long held = heldOffsets.get(entry.getKey());
+				if ((held == null) || (entry.getValue() < held)) {
+					heldOffsets.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		for (Map.Entry<TopicPartition, Long> entry : heldOffsets.entrySet()) {
+			OffsetAndMetadata offset = offsets.get(entry.getKey());
+			if ((offset != null) && (entry.getValue() < offset.offset())) {
+				offsets.put(entry.getKey(), 
+					new OffsetAndMetadata(entry.getValue()));
+			}
+		}
+
+		return (offsets);
+	}
+
+	/**
+	 * Commits the provided offsets asynchronously, failures are logged. A
+	 * failed commit is covered by the next successful one, so is not retried.
+	 *
+	 * @param offsets
+	 *            - A Map&lt;TopicPartition, OffsetAndMetadata&gt; containing
+	 *            the offsets to commit, as returned by getConsumedOffsets
+	 */
+	public void commitAsync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+		if ((consumer == null) || offsets.isEmpty()) {
+			return;
+		}
+
+		consumer.commitAsync(offsets, new OffsetCommitCallback() {
+			public void onComplete(Map<TopicPartition, OffsetAndMetadata> 
+				committed, Exception exception) {
+				if (exception != null) {
+					logger.warn("Exception committing offsets: " + 
+						exception.toString());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Commits the provided offsets, waiting for the commit to complete
+	 *
+	 * @param offsets
+	 *            - A Map&lt;TopicPartition, OffsetAndMetadata&gt; containing
+	 *            the offsets to commit, as returned by getConsumedOffsets
+	 * @return Returns true if the offsets were committed, false otherwise
+	 */
+	public boolean commitSync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+		if ((consumer == null) || offsets.isEmpty()) {
+			return (true);
+		}
+
+		try {
+			consumer.commitSync(offsets);
+		} catch (Exception e) {
+			logger.error("Exception committing offsets: " + e.toString());
+			return (false);
+		}
+		return (true);
 	}
 
 	/**
@@ -342,6 +1196,36 @@ public class Consumer extends ClientBase {
 		return (messages);
 	}
 
+	/**
+	 * Function that closes the kafka consumer client, stopping any backfill
+	 * in progress
+	 */
+	public void close() {
+		if (backfill != null) {
+			backfill.stop();
+			backfill = null;
+		}
+
+		if (dedupMetricName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					dedupMetricName);
+			} catch (Exception e) {
+				// already gone
+			}
+			dedupMetricName = null;
+		}
+
+		if (consumer != null) {
+			try {
+				consumer.close();
+			} catch (Exception e) {
+				logger.error("Exception closing consumer: " + e.toString());
+			}
+			consumer = null;
+		}
+	}
+
 	/**
 	 * heartbeat handling function
 	 *
@@ -0,0 +1,294 @@
+package gov.usgs.hazdevbroker;
+
+import java.util.Arrays;
+
+/**
+ * A hazdev broker class used to recognize messages that have already been
+ * seen recently, such as the same pick delivered by redundant pickers or
+ * by more than one cluster. Messages are identified by a 64 bit hash of
+ * either their content or the value of an ID field.
+ *
+ * Hashes are kept in two generations of open addressed tables of primitive
+ * longs, so remembering a message allocates nothing. The current generation
+ * becomes the previous generation once the window has passed or it holds the
+ * maximum number of entries, and the old previous generation is forgotten.
+ * A message is remembered for at least the window, unless more than the
+ * maximum number of entries arrive within it, and the memory used is fixed
+ * when the cache is created.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class DedupCache implements DedupCacheMBean {
+
+	/**
+	 * The default maximum number of entries in a generation
+	 */
+	public static final int DEFAULT_CAPACITY = 100000;
+
+	/**
+	 * FNV-1a 64 bit hash constants
+	 */
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * The hash marking an empty slot, a message hashing to it is stored as 1
+	 */
+	private static final long EMPTY = 0;
+
+	/**
+	 * The time in ms a generation is current for
+	 */
+	private long windowMs;
+
+	/**
+	 * The maximum number of entries in a generation
+	 */
+	private int capacity;
+
+	/**
+	 * The extractor for the ID field, null to hash the whole message
+	 */
+	private FieldExtractor extractor;
+
+	/**
+	 * The current generation of hashes, at most half full
+	 */
+	private long[] current;
+
+	/**
+	 * The previous generation of hashes
+	 */
+	private long[] previous;
+
+	/**
+	 * The number of entries in the current generation
+	 */
+	private int currentEntries;
+
+	/**
+	 * The number of entries in the previous generation
+	 */
+	private int previousEntries;
+
+	/**
+	 * The time in ms the current generation started
+	 */
+	private long generationTime;
+
+	/**
+	 * The number of duplicates seen
+	 */
+	private volatile long hits;
+
+	/**
+	 * The number of messages seen for the first time
+	 */
+	private volatile long misses;
+
+	/**
+	 * The constructor for the DedupCache class.
+	 *
+	 * @param newWindowMs
+	 *            - A long containing the time in ms to remember messages for
+	 * @param newCapacity
+	 *            - An int containing the maximum number of messages to
+	 *            remember per window
+	 * @param field
+	 *            - A String containing the dot separated path of the ID
+	 *            field, null to identify messages by their content
+	 */
+	public DedupCache(long newWindowMs, int newCapacity, String field) {
+		windowMs = newWindowMs;
+		capacity = Math.max(1, newCapacity);
+		extractor = (field != null) ? new FieldExtractor(field) : null;
+
+		// keep the tables at most half full, so probes stay short
+		int tableSize = Integer.highestOneBit(capacity) << 2;
+		current = new long[tableSize];
+		previous = new long[tableSize];
+		currentEntries = 0;
+		previousEntries = 0;
+		generationTime = System.currentTimeMillis();
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * Checks whether the provided message has been seen within the window,
+	 * and remembers it if not
+	 *
+	 * @param message
+	 *            - A byte[] containing the message
+	 * @return Returns true if the message is a duplicate
+	 */
+	public boolean isDuplicate(byte[] message) {
+		if (message == null) {
+			return (false);
+		}
+
+		// identify the message by its ID field, or its content if it doesn't
+		// have one
+		long hash = 0;
+		String id = (extractor != null) ? extractor.extract(message) : null;
+		if (id != null) {
+			hash = hash(id);
+		} else {
+			hash = hash(message, 0, message.length);
+		}
+		if (hash == EMPTY) {
+			hash = 1;
+		}
+
+		long now = System.currentTimeMillis();
+		if ((now - generationTime >= windowMs) ||
+			(currentEntries >= capacity)) {
+			rotate(now);
+		}
+
+		if (contains(current, hash) || contains(previous, hash)) {
+			hits++;
+			return (true);
+		}
+
+		insert(current, hash);
+		currentEntries++;
+		misses++;
+		return (false);
+	}
+
+	/**
+	 * @return the number of duplicate messages seen
+	 */
+	public long getHits() {
+		return (hits);
+	}
+
+	/**
+	 * @return the number of messages seen for the first time
+	 */
+	public long getMisses() {
+		return (misses);
+	}
+
+	/**
+	 * @return the number of messages currently remembered
+	 */
+	public int getEntries() {
+		return (currentEntries + previousEntries);
+	}
+
+	/**
+	 * Computes the FNV-1a 64 bit hash of the provided bytes
+	 *
+	 * @param data
+	 *            - A byte[] containing the data
+	 * @param offset
+	 *            - An int containing the offset of the first byte
+	 * @param length
+	 *            - An int containing the number of bytes
+	 * @return Returns a long containing the hash
+	 */
+	public static long hash(byte[] data, int offset, int length) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = offset; i < offset + length; i++) {
+			hash ^= data[i] & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return (hash);
+	}
+
+	/**
+	 * Computes the FNV-1a 64 bit hash of the characters of the provided
+	 * String
+	 *
+	 * @param value
+	 *            - A String containing the value
+	 * @return Returns a long containing the hash
+	 */
+	public static long hash(String value) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			hash ^= c & 0xff;
+			hash *= FNV_PRIME;
+			hash ^= c >>> 8;
+			hash *= FNV_PRIME;
+		}
+		return (hash);
+	}
+
+	/**
+	 * Makes the current generation the previous one, forgetting the old
+	 * previous generation
+	 *
+	 * @param now
+	 *            - A long containing the current time in ms
+	 */
+	private void rotate(long now) {
+		long[] oldest = previous;
+		previous = current;
+		previousEntries = currentEntries;
+
+		// after a quiet spell both generations are out of the window
+		if (now - generationTime >= 2 * windowMs) {
+			Arrays.fill(previous, EMPTY);
+			previousEntries = 0;
+		}
+
+		Arrays.fill(oldest, EMPTY);
+		current = oldest;
+		currentEntries = 0;
+		generationTime = now;
+	}
+
+	/**
+	 * Checks whether the provided table contains the provided hash
+	 *
+	 * @param table
+	 *            - A long[] containing the table
+	 * @param hash
+	 *            - A long containing the hash
+	 * @return Returns true if the table contains the hash
+	 */
+	private static boolean contains(long[] table, long hash) {
+		int mask = table.length - 1;
+		for (int i = slot(hash, mask); table[i] != EMPTY; i = (i + 1) & mask) {
+			if (table[i] == hash) {
+				return (true);
+			}
+		}
+		return (false);
+	}
+
+	/**
+	 * Adds the provided hash to the provided table, which must not be full
+	 *
+	 * @param table
+	 *            - A long[] containing the table
+	 * @param hash
+	 *            - A long containing the hash
+	 */
+	private static void insert(long[] table, long hash) {
+		int mask = table.length - 1;
+		int i = slot(hash, mask);
+		while (table[i] != EMPTY) {
+			i = (i + 1) & mask;
+		}
+		table[i] = hash;
+	}
+
+	/**
+	 * Gets the first slot to probe for the provided hash
+	 *
+	 * @param hash
+	 *            - A long containing the hash
+	 * @param mask
+	 *            - An int containing the table size minus one
+	 * @return Returns an int containing the slot
+	 */
+	private static int slot(long hash, int mask) {
+		// use the high bits too, the low bits of FNV are weakest
+		return ((int) (hash ^ (hash >>> 32) ^ (hash >>> 17)) & mask);
+	}
+}
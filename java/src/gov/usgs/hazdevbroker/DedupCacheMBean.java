@@ -0,0 +1,25 @@
+package gov.usgs.hazdevbroker;
+
+/**
+ * The JMX interface of the DedupCache, read along with the kafka metrics
+ * using ClientBase.getKafkaMetric
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public interface DedupCacheMBean {
+
+	/**
+	 * @return the number of duplicate messages dropped
+	 */
+	public long getHits();
+
+	/**
+	 * @return the number of messages seen for the first time
+	 */
+	public long getMisses();
+
+	/**
+	 * @return the number of messages currently remembered
+	 */
+	public int getEntries();
+}
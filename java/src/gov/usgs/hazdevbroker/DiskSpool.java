@@ -0,0 +1,912 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.log4j.Logger;
+
+/**
+ * A hazdev broker class used by the Producer to store messages on local disk
+ * while the kafka broker cluster is unreachable, and to forward them once it
+ * is reachable again.
+ *
+ * Messages are appended to a segmented log in the spool directory. Each
+ * segment is named spool-&lt;sequence&gt;.log and contains records of the
+ * form [int length][int crc32][short topic length][topic][data], where length
+ * and crc32 cover everything after the crc. A background thread replays the
+ * oldest sealed segment in order, at a controlled rate, and deletes it once
+ * every record in it has been acknowledged. Delivery of spooled messages is
+ * at-least-once, a segment that is interrupted part way through is replayed
+ * from the first unacknowledged record. Corrupt records are skipped and
+ * counted, replay carries on from the next valid record.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class DiskSpool {
+
+	/**
+	 * Spool segment file naming
+	 */
+	public static final String SEGMENT_PREFIX = "spool-";
+	public static final String SEGMENT_EXTENSION = ".log";
+
+	/**
+	 * The size of the record header in bytes
+	 */
+	public static final int RECORD_HEADER_SIZE = 8;
+
+	/**
+	 * The maximum time in ms to wait between attempts to replay the spool
+	 * when the broker cluster is unreachable
+	 */
+	public static final long MAX_RETRY_DELAY_MS = 30000;
+
+	/**
+	 * The maximum number of messages waiting to be written by the write
+	 * thread
+	 */
+	public static final int WRITE_QUEUE_SIZE = 10000;
+
+	/**
+	 * The character set used for topics
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The producer used to forward spooled messages
+	 */
+	private Producer producer;
+
+	/**
+	 * The spool directory
+	 */
+	private File spoolDirectory;
+
+	/**
+	 * The size in bytes at which a segment is sealed and a new one started
+	 */
+	private long segmentBytes;
+
+	/**
+	 * The maximum size in bytes of the spool, messages are dropped once it is
+	 * full, 0 for no limit
+	 */
+	private long maxSpoolBytes;
+
+	/**
+	 * The maximum number of spooled messages to forward per second
+	 */
+	private double replayRate;
+
+	/**
+	 * The maximum number of spooled messages waiting on acknowledgment
+	 */
+	private int replayInFlight;
+
+	/**
+	 * The output stream for the segment being written, null if none is open
+	 */
+	private FileOutputStream writeStream;
+
+	/**
+	 * The channel for the segment being written
+	 */
+	private FileChannel writeChannel;
+
+	/**
+	 * The sequence number of the segment being written
+	 */
+	private long writeSequence;
+
+	/**
+	 * The number of bytes written to the current segment
+	 */
+	private long writeSize;
+
+	/**
+	 * The number of bytes currently in the spool
+	 */
+	private AtomicLong spoolSize;
+
+	/**
+	 * Flag indicating that the broker cluster is believed to be unreachable,
+	 * while set new messages are spooled rather than sent
+	 */
+	private AtomicBoolean outage;
+
+	/**
+	 * Counters
+	 */
+	private AtomicLong spooledCount;
+	private AtomicLong replayedCount;
+	private AtomicLong droppedCount;
+	private AtomicLong corruptCount;
+
+	/**
+	 * The replay thread
+	 */
+	private Thread replayThread;
+
+	/**
+	 * The messages waiting to be written by the write thread, handed off by
+	 * threads that shouldn't wait on the disk
+	 */
+	private LinkedBlockingQueue<PendingWrite> writeQueue;
+
+	/**
+	 * The write thread
+	 */
+	private Thread writeThread;
+
+	/**
+	 * A message waiting to be written to the spool
+	 */
+	private static class PendingWrite {
+		String topic;
+		byte[] data;
+		Callback callback;
+
+		PendingWrite(String newTopic, byte[] newData, Callback newCallback) {
+			topic = newTopic;
+			data = newData;
+			callback = newCallback;
+		}
+	}
+
+	/**
+	 * Flag used to stop the replay and write threads
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Log4J logger for DiskSpool
+	 */
+	static Logger logger = Logger.getLogger(DiskSpool.class);
+
+	/**
+	 * The constructor for the DiskSpool class. Opens the spool directory,
+	 * picking up any segments left by a previous run.
+	 *
+	 * @param newProducer
+	 *            - The Producer to forward spooled messages with
+	 * @param directory
+	 *            - A String containing the spool directory
+	 * @param newSegmentBytes
+	 *            - A long containing the segment size in bytes
+	 * @param newMaxSpoolBytes
+	 *            - A long containing the maximum spool size in bytes, 0 for
+	 *            no limit
+	 * @param newReplayRate
+	 *            - A double containing the maximum number of spooled messages
+	 *            to forward per second
+	 * @param newReplayInFlight
+	 *            - An int containing the maximum number of spooled messages
+	 *            waiting on acknowledgment
+	 * @throws java.io.IOException
+	 *             if the spool directory could not be created
+	 */
+	public DiskSpool(Producer newProducer, String directory,
+			long newSegmentBytes, long newMaxSpoolBytes, double newReplayRate,
+			int newReplayInFlight) throws IOException {
+		producer = newProducer;
+		spoolDirectory = new File(directory);
+		segmentBytes = newSegmentBytes;
+		maxSpoolBytes = newMaxSpoolBytes;
+		replayRate = newReplayRate;
+		replayInFlight = Math.max(newReplayInFlight, 1);
+		writeStream = null;
+		writeChannel = null;
+		writeSize = 0;
+		spoolSize = new AtomicLong(0);
+		outage = new AtomicBoolean(false);
+		spooledCount = new AtomicLong(0);
+		replayedCount = new AtomicLong(0);
+		droppedCount = new AtomicLong(0);
+		corruptCount = new AtomicLong(0);
+		writeQueue = new LinkedBlockingQueue<PendingWrite>(WRITE_QUEUE_SIZE);
+
+		if (!spoolDirectory.exists() && !spoolDirectory.mkdirs()) {
+			throw new IOException("Unable to create spool directory: "
+					+ directory);
+		}
+
+		// pick up where a previous run left off
+		File[] segments = listSegments();
+		writeSequence = 0;
+		for (File segment : segments) {
+			spoolSize.addAndGet(segment.length());
+			writeSequence = Math.max(writeSequence, getSequence(segment) + 1);
+		}
+		if (segments.length > 0) {
+			logger.info("Found " + String.valueOf(segments.length)
+					+ " spool segment(s) to forward in: " + directory);
+		}
+	}
+
+	/**
+	 * Starts the replay and write threads
+	 */
+	public void start() {
+		running = true;
+		replayThread = new Thread(new Runnable() {
+			public void run() {
+				replay();
+			}
+		}, "hazdev-spool-replay");
+		replayThread.setDaemon(true);
+		replayThread.start();
+
+		writeThread = new Thread(new Runnable() {
+			public void run() {
+				writeQueued();
+			}
+		}, "hazdev-spool-write");
+		writeThread.setDaemon(true);
+		writeThread.start();
+	}
+
+	/**
+	 * Stops the replay thread, writes any messages waiting on the write
+	 * thread, and closes the segment being written
+	 *
+	 * @param timeout
+	 *            - A long containing the time in milliseconds to wait for
+	 *            each thread to stop
+	 */
+	public void close(long timeout) {
+		running = false;
+		if (replayThread != null) {
+			replayThread.interrupt();
+			try {
+				replayThread.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// the write thread finishes the queue before stopping
+		if (writeThread != null) {
+			try {
+				writeThread.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			closeSegment();
+		}
+	}
+
+	/**
+	 * Appends the provided message to the spool, without forcing it to disk
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 * @return Returns true if the message was spooled, false if the spool is
+	 *         full or could not be written
+	 */
+	public synchronized boolean append(String topic, byte[] data) {
+
+		byte[] topicBytes = topic.getBytes(UTF8);
+		int length = 2 + topicBytes.length + data.length;
+
+		// check the limit
+		if ((maxSpoolBytes > 0) &&
+			(spoolSize.get() + length + RECORD_HEADER_SIZE > maxSpoolBytes)) {
+			droppedCount.incrementAndGet();
+			return (false);
+		}
+
+		try {
+			// start a new segment if needed
+			if ((writeStream == null) || (writeSize >= segmentBytes)) {
+				closeSegment();
+				openSegment();
+			}
+
+			// build the record
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+			record.putInt(length);
+			record.putInt(0);
+			record.putShort((short) topicBytes.length);
+			record.put(topicBytes);
+			record.put(data);
+
+			CRC32 crc = new CRC32();
+			crc.update(record.array(), RECORD_HEADER_SIZE, length);
+			record.putInt(4, (int) crc.getValue());
+			record.flip();
+
+			// write it
+			while (record.hasRemaining()) {
+				writeChannel.write(record);
+			}
+		} catch (IOException e) {
+			logger.error("Error writing to spool: " + e.toString());
+			droppedCount.incrementAndGet();
+			return (false);
+		}
+
+		writeSize += RECORD_HEADER_SIZE + length;
+		spoolSize.addAndGet(RECORD_HEADER_SIZE + length);
+		spooledCount.incrementAndGet();
+		return (true);
+	}
+
+	/**
+	 * Hands the provided message to the write thread to append to the spool.
+	 * The write thread writes the messages waiting on it together, forces
+	 * them to disk, and only then calls back, so a message reported as
+	 * spooled survives a crash. Messages that could not be spooled are
+	 * reported with an IOException.
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 * @param callback
+	 *            - A Callback to call once the message is on disk, null for
+	 *            none
+	 * @param wait
+	 *            - A boolean flag, true to wait for room in the write queue,
+	 *            false for threads that shouldn't wait on the disk, such as
+	 *            the kafka network thread
+	 * @return Returns true if the message was handed off, false if the write
+	 *         queue is full or the spool is closed
+	 */
+	public boolean appendLater(String topic, byte[] data, Callback callback,
+			boolean wait) {
+		if (!running) {
+			return (false);
+		}
+
+		PendingWrite write = new PendingWrite(topic, data, callback);
+		if (!wait) {
+			return (writeQueue.offer(write));
+		}
+		try {
+			writeQueue.put(write);
+			return (true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return (false);
+		}
+	}
+
+	/**
+	 * @return true if there are no messages waiting in the spool
+	 */
+	public boolean isEmpty() {
+		return (spoolSize.get() == 0);
+	}
+
+	/**
+	 * @return true if the broker cluster is believed to be unreachable
+	 */
+	public boolean isOutage() {
+		return (outage.get());
+	}
+
+	/**
+	 * Records that a send to the broker cluster failed
+	 */
+	public void sendFailed() {
+		if (outage.compareAndSet(false, true)) {
+			logger.warn("Broker cluster unreachable, spooling messages to: "
+					+ spoolDirectory.getPath());
+		}
+	}
+
+	/**
+	 * Write thread function, appends the handed off messages to the spool
+	 * until stopped and the queue is empty. The messages waiting are written
+	 * together and forced to disk once, before calling back.
+	 */
+	private void writeQueued() {
+		ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>();
+		while (running || !writeQueue.isEmpty()) {
+			PendingWrite write;
+			try {
+				write = writeQueue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (write == null) {
+				continue;
+			}
+
+			batch.clear();
+			batch.add(write);
+			writeQueue.drainTo(batch);
+
+			boolean[] written = new boolean[batch.size()];
+			for (int i = 0; i < batch.size(); i++) {
+				written[i] = append(batch.get(i).topic, batch.get(i).data);
+			}
+
+			// group commit
+			boolean synced = true;
+			try {
+				sync();
+			} catch (IOException e) {
+				logger.error("Error syncing spool: " + e.toString());
+				synced = false;
+			}
+
+			for (int i = 0; i < batch.size(); i++) {
+				Callback callback = batch.get(i).callback;
+				if (written[i] && synced) {
+					if (callback != null) {
+						callback.onCompletion(null, null);
+					}
+					continue;
+				}
+
+				logger.error("Unable to spool message, message dropped.");
+				if (callback != null) {
+					callback.onCompletion(null, new IOException(
+							"Unable to spool message."));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replay thread function, forwards spooled segments oldest first
+	 */
+	private void replay() {
+
+		long retryDelay = 1000;
+
+		while (running) {
+			try {
+				File segment = nextSegment();
+				if (segment == null) {
+					// nothing to probe with, let live traffic find out
+					// whether the broker cluster is back
+					outage.set(false);
+					Thread.sleep(100);
+					continue;
+				}
+
+				// while in an outage only send one message, to probe
+				// whether the broker cluster is back
+				boolean probe = outage.get();
+
+				long failedPosition = replaySegment(segment, probe);
+				if (failedPosition < 0) {
+					// segment fully delivered
+					spoolSize.addAndGet(-segment.length());
+					if (!segment.delete()) {
+						logger.error("Unable to delete spool segment: "
+								+ segment.getPath());
+					}
+					retryDelay = 1000;
+				} else if (failedPosition == Long.MAX_VALUE) {
+					// successful probe
+					if (outage.compareAndSet(true, false)) {
+						logger.info("Broker cluster reachable, forwarding "
+								+ "spooled messages.");
+					}
+					retryDelay = 1000;
+				} else {
+					// keep going from where the failure was next time
+					sendFailed();
+					truncateSegment(segment, failedPosition);
+					Thread.sleep(retryDelay);
+					retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				logger.error("Error replaying spool: " + e.toString());
+				try {
+					Thread.sleep(retryDelay);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replays the provided segment
+	 *
+	 * @param segment
+	 *            - The File containing the segment to replay
+	 * @param probe
+	 *            - A boolean flag indicating that only the first message
+	 *            should be sent
+	 * @return Returns -1 if the whole segment was delivered, Long.MAX_VALUE if
+	 *         a probe was delivered, or the position of the first record that
+	 *         failed
+	 * @throws java.io.IOException
+	 *             if the segment could not be read
+	 * @throws java.lang.InterruptedException
+	 *             if the replay thread is stopped
+	 */
+	private long replaySegment(File segment, boolean probe)
+			throws IOException, InterruptedException {
+
+		final Semaphore inFlight = new Semaphore(replayInFlight);
+		final AtomicLong firstFailure = new AtomicLong(Long.MAX_VALUE);
+		long interval = 0;
+		if (replayRate > 0) {
+			interval = (long) (1000000000L / replayRate);
+		}
+		long nextSendTime = System.nanoTime();
+
+		byte[] contents = readSegment(segment);
+		ByteBuffer segmentBuffer = ByteBuffer.wrap(contents);
+		long position = 0;
+		while (running) {
+			// find the next record, skipping anything corrupt
+			int recordStart = findRecord(segment, segmentBuffer,
+					(int) position);
+			if (recordStart < 0) {
+				position = contents.length;
+				break;
+			}
+			final long recordPosition = recordStart;
+			int length = segmentBuffer.getInt(recordStart);
+			position = recordStart + RECORD_HEADER_SIZE + length;
+
+			ByteBuffer recordBuffer = ByteBuffer.wrap(contents,
+					recordStart + RECORD_HEADER_SIZE, length);
+			byte[] topicBytes = new byte[recordBuffer.getShort()];
+			recordBuffer.get(topicBytes);
+			byte[] data = new byte[recordBuffer.remaining()];
+			recordBuffer.get(data);
+
+			// pace the replay so live traffic isn't starved
+			if (interval > 0) {
+				long waitTime = nextSendTime - System.nanoTime();
+				if (waitTime > 0) {
+					Thread.sleep(waitTime / 1000000L,
+							(int) (waitTime % 1000000L));
+				}
+				nextSendTime = Math.max(nextSendTime + interval,
+						System.nanoTime() - interval);
+			}
+
+			// stop sending once something has failed
+			if (firstFailure.get() != Long.MAX_VALUE) {
+				break;
+			}
+
+			inFlight.acquire();
+			producer.sendDirect(new String(topicBytes, UTF8), data,
+					new Callback() {
+						public void onCompletion(RecordMetadata metadata,
+								Exception exception) {
+							if (exception != null) {
+								// remember the earliest failure
+								long current = firstFailure.get();
+								while ((recordPosition < current)
+										&& !firstFailure.compareAndSet(
+												current, recordPosition)) {
+									current = firstFailure.get();
+								}
+							} else {
+								replayedCount.incrementAndGet();
+							}
+							inFlight.release();
+						}
+					});
+
+			if (probe) {
+				break;
+			}
+		}
+
+		// wait for everything to be acknowledged
+		inFlight.acquire(replayInFlight);
+		inFlight.release(replayInFlight);
+
+		if (firstFailure.get() != Long.MAX_VALUE) {
+			return (firstFailure.get());
+		}
+		if (probe) {
+			// drop the probe message from the segment
+			truncateSegment(segment, position);
+			return (Long.MAX_VALUE);
+		}
+		if (!running) {
+			truncateSegment(segment, position);
+			return (Long.MAX_VALUE);
+		}
+		return (-1);
+	}
+
+	/**
+	 * Reads the whole of a segment
+	 *
+	 * @param segment
+	 *            - The File containing the segment
+	 * @return Returns a byte[] containing the segment
+	 * @throws java.io.IOException
+	 *             if the segment could not be read
+	 */
+	private byte[] readSegment(File segment) throws IOException {
+		DataInputStream segmentStream = new DataInputStream(
+				new FileInputStream(segment));
+		try {
+			byte[] contents = new byte[(int) segment.length()];
+			segmentStream.readFully(contents);
+			return (contents);
+		} finally {
+			segmentStream.close();
+		}
+	}
+
+	/**
+	 * Finds the next valid record in a segment. Corrupt data, such as a
+	 * damaged record or one left partly written by a crash, is skipped up to
+	 * the next record whose length and crc32 check out, so one bad record
+	 * doesn't cost the rest of the segment.
+	 *
+	 * @param segment
+	 *            - The File containing the segment, for logging
+	 * @param contents
+	 *            - A ByteBuffer containing the segment
+	 * @param position
+	 *            - An int containing the position to start looking at
+	 * @return Returns the position of the next valid record, or -1 at the end
+	 *         of the segment
+	 */
+	private int findRecord(File segment, ByteBuffer contents, int position) {
+		int start = position;
+		int end = contents.limit();
+		int found = -1;
+		for (; position + RECORD_HEADER_SIZE <= end; position++) {
+			if (isRecord(contents, position)) {
+				found = position;
+				break;
+			}
+		}
+
+		if ((found != start) && (start < end)) {
+			corruptCount.incrementAndGet();
+			int skipped = ((found < 0) ? end : found) - start;
+			logger.error("Skipped " + String.valueOf(skipped) + " corrupt "
+					+ "byte(s) at position " + String.valueOf(start)
+					+ " of spool segment: " + segment.getPath()
+					+ ", one or more messages lost.");
+		}
+		return (found);
+	}
+
+	/**
+	 * Checks whether a valid record starts at the provided position
+	 *
+	 * @param contents
+	 *            - A ByteBuffer containing the segment
+	 * @param position
+	 *            - An int containing the position to check
+	 * @return Returns true if the record's length, topic length and crc32
+	 *         check out
+	 */
+	private static boolean isRecord(ByteBuffer contents, int position) {
+		int length = contents.getInt(position);
+		int body = position + RECORD_HEADER_SIZE;
+		if ((length < 2) || (length > contents.limit() - body)) {
+			return (false);
+		}
+		if (contents.getShort(body) > length - 2) {
+			return (false);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(contents.array(), body, length);
+		return ((int) crc.getValue() == contents.getInt(position + 4));
+	}
+
+	/**
+	 * Removes the already delivered start of a segment by rewriting the rest
+	 * of it into a new segment file with the same sequence number
+	 *
+	 * @param segment
+	 *            - The File containing the segment
+	 * @param position
+	 *            - A long containing the position of the first record to keep
+	 * @throws java.io.IOException
+	 *             if the segment could not be rewritten
+	 */
+	private void truncateSegment(File segment, long position)
+			throws IOException {
+		if (position <= 0) {
+			return;
+		}
+
+		long oldLength = segment.length();
+		File tempFile = new File(segment.getPath() + ".tmp");
+		FileInputStream inStream = new FileInputStream(segment);
+		FileOutputStream outStream = new FileOutputStream(tempFile);
+		try {
+			FileChannel inChannel = inStream.getChannel();
+			inChannel.transferTo(position, oldLength - position,
+					outStream.getChannel());
+			outStream.getFD().sync();
+		} finally {
+			inStream.close();
+			outStream.close();
+		}
+
+		if (!tempFile.renameTo(segment)) {
+			segment.delete();
+			if (!tempFile.renameTo(segment)) {
+				throw new IOException("Unable to rewrite spool segment: "
+						+ segment.getPath());
+			}
+		}
+
+		spoolSize.addAndGet(-(oldLength - segment.length()));
+	}
+
+	/**
+	 * Gets the oldest sealed segment, sealing the segment being written if
+	 * it is the only one
+	 *
+	 * @return Returns the File containing the oldest sealed segment, null if
+	 *         the spool is empty
+	 */
+	private synchronized File nextSegment() {
+		File[] segments = listSegments();
+		if (segments.length == 0) {
+			return (null);
+		}
+
+		// don't replay the segment being written, seal it first
+		if ((writeStream != null)
+				&& (getSequence(segments[0]) == writeSequence - 1)) {
+			if (writeSize == 0) {
+				return (null);
+			}
+			closeSegment();
+		}
+
+		return (segments[0]);
+	}
+
+	/**
+	 * Lists the segments in the spool directory, oldest first
+	 *
+	 * @return Returns a File[] containing the segments
+	 */
+	private File[] listSegments() {
+		ArrayList<File> segmentList = new ArrayList<File>();
+		File[] files = spoolDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_EXTENSION)) {
+					segmentList.add(file);
+				}
+			}
+		}
+
+		// zero padded sequence numbers sort by name
+		File[] segments = segmentList.toArray(new File[0]);
+		Arrays.sort(segments);
+		return (segments);
+	}
+
+	/**
+	 * Gets the sequence number of a segment from its name
+	 *
+	 * @param segment
+	 *            - The File containing the segment
+	 * @return Returns the sequence number, -1 if invalid
+	 */
+	private long getSequence(File segment) {
+		String name = segment.getName();
+		try {
+			return (Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_EXTENSION.length())));
+		} catch (NumberFormatException e) {
+			return (-1);
+		}
+	}
+
+	/**
+	 * Opens a new segment for writing
+	 *
+	 * @throws java.io.IOException
+	 *             if the segment could not be created
+	 */
+	private void openSegment() throws IOException {
+		File segment = new File(spoolDirectory, SEGMENT_PREFIX
+				+ String.format("%020d", writeSequence) + SEGMENT_EXTENSION);
+		writeStream = new FileOutputStream(segment, true);
+		writeChannel = writeStream.getChannel();
+		writeSize = 0;
+		writeSequence++;
+	}
+
+	/**
+	 * Forces the segment being written to disk, sealed segments are forced
+	 * when they are closed
+	 *
+	 * @throws java.io.IOException
+	 *             if the segment could not be forced
+	 */
+	private synchronized void sync() throws IOException {
+		if (writeChannel != null) {
+			writeChannel.force(false);
+		}
+	}
+
+	/**
+	 * Closes the segment being written, if any
+	 */
+	private void closeSegment() {
+		if (writeStream == null) {
+			return;
+		}
+
+		try {
+			writeChannel.force(false);
+			writeStream.close();
+		} catch (IOException e) {
+			logger.error("Error closing spool segment: " + e.toString());
+		}
+		writeStream = null;
+		writeChannel = null;
+	}
+
+	/**
+	 * @return the number of messages spooled
+	 */
+	public long getSpooledCount() {
+		return spooledCount.get();
+	}
+
+	/**
+	 * @return the number of spooled messages forwarded to the broker cluster
+	 */
+	public long getReplayedCount() {
+		return replayedCount.get();
+	}
+
+	/**
+	 * @return the number of messages dropped because the spool was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return the number of times corrupt spool data was skipped, each losing
+	 *         one or more messages
+	 */
+	public long getCorruptCount() {
+		return corruptCount.get();
+	}
+
+	/**
+	 * @return the number of bytes currently in the spool
+	 */
+	public long getSpoolSize() {
+		return spoolSize.get();
+	}
+}
@@ -0,0 +1,333 @@
+package gov.usgs.hazdevbroker;
+
+import java.nio.charset.Charset;
+
+/**
+ * A hazdev broker class used to pull a single field out of a JSON formatted
+ * message without parsing the whole message. The message bytes are scanned
+ * in place, skipping over anything that is not on the path to the field, so
+ * no objects are created other than the returned value.
+ *
+ * Fields are identified by a dot separated path of object keys, for example
+ * "Site.Station" for the Station key of the Site object.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class FieldExtractor {
+
+	/**
+	 * The character set of the messages
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The path to the field
+	 */
+	private String path;
+
+	/**
+	 * The keys making up the path, as UTF-8 bytes
+	 */
+	private byte[][] keys;
+
+	/**
+	 * The constructor for the FieldExtractor class.
+	 *
+	 * @param newPath
+	 *            - A String containing the dot separated path to the field
+	 */
+	public FieldExtractor(String newPath) {
+		path = newPath;
+		String[] keyStrings = newPath.split("\\.");
+		keys = new byte[keyStrings.length][];
+		for (int i = 0; i < keyStrings.length; i++) {
+			keys[i] = keyStrings[i].getBytes(UTF8);
+		}
+	}
+
+	/**
+	 * Extracts the field from the provided message
+	 *
+	 * @param data
+	 *            - A byte[] containing the JSON formatted message
+	 * @return Returns a String containing the value of the field, strings are
+	 *         unquoted and unescaped, other values are returned as they
+	 *         appear in the message. Returns null if the field is not present
+	 *         or the message is not a JSON object.
+	 */
+	public String extract(byte[] data) {
+		if (data == null) {
+			return (null);
+		}
+
+		int position = skipWhitespace(data, 0);
+		int level = 0;
+
+		while (true) {
+			// expect an object
+			if ((position >= data.length) || (data[position] != '{')) {
+				return (null);
+			}
+			position++;
+
+			// look for the key at this level
+			int valueStart = -1;
+			while (true) {
+				position = skipWhitespace(data, position);
+				if ((position >= data.length) || (data[position] != '"')) {
+					// end of object, or not json
+					return (null);
+				}
+
+				// check the key
+				int keyStart = position + 1;
+				int keyEnd = skipString(data, position) - 1;
+				if (keyEnd < keyStart) {
+					return (null);
+				}
+				position = skipWhitespace(data, keyEnd + 1);
+				if ((position >= data.length) || (data[position] != ':')) {
+					return (null);
+				}
+				position = skipWhitespace(data, position + 1);
+
+				if (keyMatches(data, keyStart, keyEnd, keys[level])) {
+					valueStart = position;
+					break;
+				}
+
+				// not it, skip the value
+				position = skipWhitespace(data, skipValue(data, position));
+				if ((position < data.length) && (data[position] == ',')) {
+					position++;
+				} else {
+					return (null);
+				}
+			}
+
+			// found the key, is this the end of the path?
+			if (level == keys.length - 1) {
+				return (valueToString(data, valueStart));
+			}
+
+			// go down a level
+			level++;
+			position = valueStart;
+		}
+	}
+
+	/**
+	 * @return the path to the field
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Checks if the key in the message matches the provided key
+	 *
+	 * @param data
+	 *            - A byte[] containing the message
+	 * @param start
+	 *            - An int containing the index of the start of the key
+	 * @param end
+	 *            - An int containing the index of the end of the key
+	 * @param key
+	 *            - A byte[] containing the key to match
+	 * @return Returns true if the keys match
+	 */
+	private static boolean keyMatches(byte[] data, int start, int end,
+			byte[] key) {
+		if (end - start != key.length) {
+			return (false);
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (data[start + i] != key[i]) {
+				return (false);
+			}
+		}
+		return (true);
+	}
+
+	/**
+	 * Converts the value starting at the provided index to a String
+	 *
+	 * @param data
+	 *            - A byte[] containing the message
+	 * @param start
+	 *            - An int containing the index of the start of the value
+	 * @return Returns a String containing the value
+	 */
+	private static String valueToString(byte[] data, int start) {
+		int end = skipValue(data, start);
+		if (end <= start) {
+			return (null);
+		}
+
+		if (data[start] != '"') {
+			// trim any trailing whitespace from non string values
+			while ((end > start) && (data[end - 1] <= ' ')) {
+				end--;
+			}
+			return (new String(data, start, end - start, UTF8));
+		}
+
+		// look for escapes
+		boolean escaped = false;
+		for (int i = start + 1; i < end - 1; i++) {
+			if (data[i] == '\\') {
+				escaped = true;
+				break;
+			}
+		}
+		if (!escaped) {
+			return (new String(data, start + 1, end - start - 2, UTF8));
+		}
+
+		return (unescape(new String(data, start + 1, end - start - 2, UTF8)));
+	}
+
+	/**
+	 * Removes JSON string escapes
+	 *
+	 * @param value
+	 *            - A String containing the escaped value
+	 * @return Returns a String containing the unescaped value
+	 */
+	private static String unescape(String value) {
+		StringBuilder builder = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c != '\\') || (i + 1 >= value.length())) {
+				builder.append(c);
+				continue;
+			}
+
+			char next = value.charAt(++i);
+			switch (next) {
+			case 'n':
+				builder.append('\n');
+				break;
+			case 't':
+				builder.append('\t');
+				break;
+			case 'r':
+				builder.append('\r');
+				break;
+			case 'b':
+				builder.append('\b');
+				break;
+			case 'f':
+				builder.append('\f');
+				break;
+			case 'u':
+				if (i + 4 < value.length()) {
+					try {
+						builder.append((char) Integer.parseInt(
+								value.substring(i + 1, i + 5), 16));
+						i += 4;
+					} catch (NumberFormatException e) {
+						builder.append(next);
+					}
+				} else {
+					builder.append(next);
+				}
+				break;
+			default:
+				builder.append(next);
+				break;
+			}
+		}
+		return (builder.toString());
+	}
+
+	/**
+	 * Skips any whitespace
+	 *
+	 * @param data
+	 *            - A byte[] containing the message
+	 * @param position
+	 *            - An int containing the index to start from
+	 * @return Returns the index of the next non whitespace byte
+	 */
+	private static int skipWhitespace(byte[] data, int position) {
+		while ((position < data.length) && (data[position] <= ' ')
+				&& (data[position] >= 0)) {
+			position++;
+		}
+		return (position);
+	}
+
+	/**
+	 * Skips a string
+	 *
+	 * @param data
+	 *            - A byte[] containing the message
+	 * @param position
+	 *            - An int containing the index of the opening quote
+	 * @return Returns the index after the closing quote
+	 */
+	private static int skipString(byte[] data, int position) {
+		position++;
+		while (position < data.length) {
+			byte b = data[position];
+			if (b == '\\') {
+				position += 2;
+			} else if (b == '"') {
+				return (position + 1);
+			} else {
+				position++;
+			}
+		}
+		return (data.length);
+	}
+
+	/**
+	 * Skips a value of any type
+	 *
+	 * @param data
+	 *            - A byte[] containing the message
+	 * @param position
+	 *            - An int containing the index of the start of the value
+	 * @return Returns the index after the value
+	 */
+	private static int skipValue(byte[] data, int position) {
+		if (position >= data.length) {
+			return (data.length);
+		}
+
+		byte b = data[position];
+		if (b == '"') {
+			return (skipString(data, position));
+		}
+
+		if ((b == '{') || (b == '[')) {
+			// skip to the matching close, minding strings
+			int depth = 0;
+			while (position < data.length) {
+				b = data[position];
+				if (b == '"') {
+					position = skipString(data, position);
+					continue;
+				}
+				if ((b == '{') || (b == '[')) {
+					depth++;
+				} else if ((b == '}') || (b == ']')) {
+					depth--;
+					if (depth == 0) {
+						return (position + 1);
+					}
+				}
+				position++;
+			}
+			return (data.length);
+		}
+
+		// number, true, false, or null
+		while ((position < data.length) && (data[position] != ',')
+				&& (data[position] != '}') && (data[position] != ']')) {
+			position++;
+		}
+		return (position);
+	}
+}
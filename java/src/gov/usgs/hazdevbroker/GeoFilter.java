@@ -0,0 +1,546 @@
+package gov.usgs.hazdevbroker;
+
+import java.util.*;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A hazdev broker class used to keep only the messages located inside a set
+ * of geographic regions, such as the picks from the stations of a regional
+ * network. Regions are latitude/longitude rectangles or polygons.
+ *
+ * The regions are precomputed into a grid of cells covering the globe, each
+ * cell is either entirely outside every region, entirely inside a region, or
+ * on a region boundary. Most messages are accepted or rejected with a single
+ * cell lookup, only messages in boundary cells are tested against the
+ * regions crossing that cell.
+ *
+ * Messages are located either by looking up their station in a station list,
+ * where the decision is made once per station when the list is loaded, or by
+ * the latitude and longitude fields of the message. Fields are pulled out of
+ * the message with a FieldExtractor, without parsing the rest of the message.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class GeoFilter {
+
+	/**
+	 * JSON Region Keys
+	 */
+	public static final String MIN_LATITUDE = "MinLatitude";
+	public static final String MAX_LATITUDE = "MaxLatitude";
+	public static final String MIN_LONGITUDE = "MinLongitude";
+	public static final String MAX_LONGITUDE = "MaxLongitude";
+	public static final String POLYGON = "Polygon";
+
+	/**
+	 * Default settings
+	 */
+	public static final double DEFAULT_CELL_DEGREES = 0.5;
+	public static final String DEFAULT_LATITUDE_FIELD = "Site.Latitude";
+	public static final String DEFAULT_LONGITUDE_FIELD = "Site.Longitude";
+	public static final String DEFAULT_STATION_FIELD = "Site.Station";
+	public static final String DEFAULT_NETWORK_FIELD = "Site.Network";
+
+	/**
+	 * Results of filtering a message
+	 */
+	public static final int INSIDE = 1;
+	public static final int OUTSIDE = 0;
+	public static final int UNLOCATED = -1;
+
+	/**
+	 * Cell states
+	 */
+	private static final byte CELL_OUTSIDE = 0;
+	private static final byte CELL_INSIDE = 1;
+	private static final byte CELL_BOUNDARY = 2;
+
+	/**
+	 * The region polygons, each a double[2][] of latitudes and longitudes
+	 */
+	private ArrayList<double[][]> polygons;
+
+	/**
+	 * The size of a grid cell in degrees
+	 */
+	private double cellDegrees;
+
+	/**
+	 * The number of grid columns (longitude) and rows (latitude)
+	 */
+	private int columns;
+	private int rows;
+
+	/**
+	 * The state of each grid cell, row major
+	 */
+	private byte[] cells;
+
+	/**
+	 * The indexes of the polygons crossing each boundary cell, null for
+	 * other cells
+	 */
+	private int[][] boundaryPolygons;
+
+	/**
+	 * The extractors for the message coordinates
+	 */
+	private FieldExtractor latitudeExtractor;
+	private FieldExtractor longitudeExtractor;
+
+	/**
+	 * The extractors for the message station, null if there is no station
+	 * list
+	 */
+	private FieldExtractor stationExtractor;
+	private FieldExtractor networkExtractor;
+
+	/**
+	 * Whether each listed station is inside the regions, by station key
+	 */
+	private HashMap<String, Boolean> stations;
+
+	/**
+	 * The constructor for the GeoFilter class. Builds the grid over the
+	 * provided regions.
+	 *
+	 * @param regions
+	 *            - A JSONArray containing the regions, each a JSONObject with
+	 *            either MinLatitude, MaxLatitude, MinLongitude and
+	 *            MaxLongitude, or a Polygon array of [latitude, longitude]
+	 *            points
+	 * @param newCellDegrees
+	 *            - A double containing the size of a grid cell in degrees
+	 * @throws java.lang.IllegalArgumentException
+	 *             if a region is invalid
+	 */
+	public GeoFilter(JSONArray regions, double newCellDegrees) {
+		polygons = new ArrayList<double[][]>();
+		for (Object region : regions) {
+			addRegion((JSONObject) region);
+		}
+		if (polygons.isEmpty()) {
+			throw new IllegalArgumentException("No regions provided.");
+		}
+
+		cellDegrees = (newCellDegrees > 0) ? newCellDegrees :
+			DEFAULT_CELL_DEGREES;
+		latitudeExtractor = new FieldExtractor(DEFAULT_LATITUDE_FIELD);
+		longitudeExtractor = new FieldExtractor(DEFAULT_LONGITUDE_FIELD);
+		stationExtractor = null;
+		networkExtractor = null;
+		stations = null;
+
+		buildGrid();
+	}
+
+	/**
+	 * Sets the message fields containing the coordinates
+	 *
+	 * @param latitudeField
+	 *            - A String containing the dot separated path of the latitude
+	 * @param longitudeField
+	 *            - A String containing the dot separated path of the
+	 *            longitude
+	 */
+	public void setCoordinateFields(String latitudeField,
+		String longitudeField) {
+		latitudeExtractor = new FieldExtractor(latitudeField);
+		longitudeExtractor = new FieldExtractor(longitudeField);
+	}
+
+	/**
+	 * Loads a station list, each line containing the station, network,
+	 * latitude and longitude separated by whitespace or commas. Blank lines
+	 * and lines starting with # are skipped. Messages from listed stations
+	 * are located by the list, others by their coordinate fields.
+	 *
+	 * @param fileName
+	 *            - A String containing the station list file name
+	 * @param stationField
+	 *            - A String containing the dot separated path of the message
+	 *            station
+	 * @param networkField
+	 *            - A String containing the dot separated path of the message
+	 *            network
+	 * @return Returns an int containing the number of stations loaded
+	 * @throws java.io.IOException
+	 *             if the file could not be read or a line is invalid
+	 */
+	public int loadStations(String fileName, String stationField,
+		String networkField) throws IOException {
+		HashMap<String, Boolean> newStations = new HashMap<String, Boolean>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line = null;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] tokens = line.split("[\\s,]+");
+				if (tokens.length < 4) {
+					throw new IOException("Invalid station on line " +
+						String.valueOf(lineNumber) + " of " + fileName + ".");
+				}
+				try {
+					// decide once per station
+					newStations.put(stationKey(tokens[0], tokens[1]),
+						contains(Double.parseDouble(tokens[2]),
+							Double.parseDouble(tokens[3])));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid coordinates on line " +
+						String.valueOf(lineNumber) + " of " + fileName + ".");
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		stations = newStations;
+		stationExtractor = new FieldExtractor(stationField);
+		networkExtractor = new FieldExtractor(networkField);
+		return (stations.size());
+	}
+
+	/**
+	 * Locates the provided message and checks whether it is inside the
+	 * regions
+	 *
+	 * @param message
+	 *            - A byte[] containing the JSON formatted message
+	 * @return Returns INSIDE or OUTSIDE, or UNLOCATED if the message has
+	 *         neither a listed station nor coordinates
+	 */
+	public int filter(byte[] message) {
+		if (message == null) {
+			return (UNLOCATED);
+		}
+
+		// look up the station
+		if (stations != null) {
+			String station = stationExtractor.extract(message);
+			if (station != null) {
+				Boolean inside = stations.get(stationKey(station,
+					networkExtractor.extract(message)));
+				if (inside != null) {
+					return (inside ? INSIDE : OUTSIDE);
+				}
+			}
+		}
+
+		// use the coordinates
+		String latitude = latitudeExtractor.extract(message);
+		if (latitude == null) {
+			return (UNLOCATED);
+		}
+		String longitude = longitudeExtractor.extract(message);
+		if (longitude == null) {
+			return (UNLOCATED);
+		}
+		try {
+			return (contains(Double.parseDouble(latitude),
+				Double.parseDouble(longitude)) ? INSIDE : OUTSIDE);
+		} catch (NumberFormatException e) {
+			return (UNLOCATED);
+		}
+	}
+
+	/**
+	 * Checks whether the provided point is inside any of the regions
+	 *
+	 * @param latitude
+	 *            - A double containing the latitude in degrees
+	 * @param longitude
+	 *            - A double containing the longitude in degrees
+	 * @return Returns true if the point is inside a region
+	 */
+	public boolean contains(double latitude, double longitude) {
+		if ((latitude < -90) || (latitude > 90) || Double.isNaN(longitude)) {
+			return (false);
+		}
+		longitude = normalizeLongitude(longitude);
+
+		int cell = row(latitude) * columns + column(longitude);
+		if (cells[cell] != CELL_BOUNDARY) {
+			return (cells[cell] == CELL_INSIDE);
+		}
+
+		// only the polygons crossing the cell can contain the point
+		for (int polygon : boundaryPolygons[cell]) {
+			if (polygonContains(polygons.get(polygon), latitude,
+				longitude)) {
+				return (true);
+			}
+		}
+		return (false);
+	}
+
+	/**
+	 * Adds the provided region as one or more polygons
+	 *
+	 * @param region
+	 *            - A JSONObject containing the region
+	 */
+	private void addRegion(JSONObject region) {
+		if (region.containsKey(POLYGON)) {
+			JSONArray points = (JSONArray) region.get(POLYGON);
+			if (points.size() < 3) {
+				throw new IllegalArgumentException(
+					"A Polygon needs at least three points.");
+			}
+			double[][] polygon = new double[2][points.size()];
+			for (int i = 0; i < points.size(); i++) {
+				JSONArray point = (JSONArray) points.get(i);
+				polygon[0][i] = ((Number) point.get(0)).doubleValue();
+				polygon[1][i] = normalizeLongitude(
+					((Number) point.get(1)).doubleValue());
+			}
+			polygons.add(polygon);
+		} else if (region.containsKey(MIN_LATITUDE) &&
+			region.containsKey(MAX_LATITUDE) &&
+			region.containsKey(MIN_LONGITUDE) &&
+			region.containsKey(MAX_LONGITUDE)) {
+			double minLatitude = ((Number) region.get(MIN_LATITUDE))
+				.doubleValue();
+			double maxLatitude = ((Number) region.get(MAX_LATITUDE))
+				.doubleValue();
+			double minLongitude = normalizeLongitude(((Number) region.get(
+				MIN_LONGITUDE)).doubleValue());
+			double maxLongitude = normalizeLongitude(((Number) region.get(
+				MAX_LONGITUDE)).doubleValue());
+
+			// a rectangle crossing the antimeridian is split in two
+			if (minLongitude > maxLongitude) {
+				polygons.add(rectangle(minLatitude, maxLatitude, minLongitude,
+					180));
+				polygons.add(rectangle(minLatitude, maxLatitude, -180,
+					maxLongitude));
+			} else {
+				polygons.add(rectangle(minLatitude, maxLatitude, minLongitude,
+					maxLongitude));
+			}
+		} else {
+			throw new IllegalArgumentException("Invalid region " +
+				region.toJSONString() + ".");
+		}
+	}
+
+	/**
+	 * Builds the grid, classifying each cell as outside, inside, or on a
+	 * boundary
+	 */
+	private void buildGrid() {
+		columns = (int) Math.ceil(360 / cellDegrees);
+		rows = (int) Math.ceil(180 / cellDegrees);
+		cells = new byte[rows * columns];
+		boundaryPolygons = new int[rows * columns][];
+
+		for (int p = 0; p < polygons.size(); p++) {
+			double[][] polygon = polygons.get(p);
+
+			// only the cells under the polygon's bounding box can be touched
+			double minLatitude = 90, maxLatitude = -90;
+			double minLongitude = 180, maxLongitude = -180;
+			for (int i = 0; i < polygon[0].length; i++) {
+				minLatitude = Math.min(minLatitude, polygon[0][i]);
+				maxLatitude = Math.max(maxLatitude, polygon[0][i]);
+				minLongitude = Math.min(minLongitude, polygon[1][i]);
+				maxLongitude = Math.max(maxLongitude, polygon[1][i]);
+			}
+
+			for (int r = row(minLatitude); r <= row(maxLatitude); r++) {
+				for (int c = column(minLongitude); c <= column(maxLongitude);
+					c++) {
+					int cell = r * columns + c;
+					if (cells[cell] == CELL_INSIDE) {
+						continue;
+					}
+
+					double south = r * cellDegrees - 90;
+					double west = c * cellDegrees - 180;
+					if (crossesCell(polygon, south, west)) {
+						// on the boundary, test points in this cell
+						cells[cell] = CELL_BOUNDARY;
+						int[] crossing = boundaryPolygons[cell];
+						crossing = (crossing == null) ? new int[1] :
+							Arrays.copyOf(crossing, crossing.length + 1);
+						crossing[crossing.length - 1] = p;
+						boundaryPolygons[cell] = crossing;
+					} else if (polygonContains(polygon, south +
+						cellDegrees / 2, west + cellDegrees / 2)) {
+						// entirely inside
+						cells[cell] = CELL_INSIDE;
+						boundaryPolygons[cell] = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether any edge of the provided polygon crosses the provided
+	 * cell, by clipping each edge to the cell
+	 *
+	 * @param polygon
+	 *            - A double[2][] containing the polygon latitudes and
+	 *            longitudes
+	 * @param south
+	 *            - A double containing the southern edge of the cell
+	 * @param west
+	 *            - A double containing the western edge of the cell
+	 * @return Returns true if an edge crosses the cell
+	 */
+	private boolean crossesCell(double[][] polygon, double south,
+		double west) {
+		double north = south + cellDegrees;
+		double east = west + cellDegrees;
+		int points = polygon[0].length;
+		for (int i = 0; i < points; i++) {
+			int j = (i + 1) % points;
+			double y0 = polygon[0][i], x0 = polygon[1][i];
+			double dy = polygon[0][j] - y0, dx = polygon[1][j] - x0;
+
+			// Liang-Barsky clipping of the edge against the cell
+			double[] p = { -dx, dx, -dy, dy };
+			double[] q = { x0 - west, east - x0, y0 - south, north - y0 };
+			double t0 = 0, t1 = 1;
+			boolean crosses = true;
+			for (int k = 0; k < 4; k++) {
+				if (p[k] == 0) {
+					if (q[k] < 0) {
+						crosses = false;
+						break;
+					}
+				} else {
+					double t = q[k] / p[k];
+					if (p[k] < 0) {
+						t0 = Math.max(t0, t);
+					} else {
+						t1 = Math.min(t1, t);
+					}
+					if (t0 > t1) {
+						crosses = false;
+						break;
+					}
+				}
+			}
+			if (crosses) {
+				return (true);
+			}
+		}
+		return (false);
+	}
+
+	/**
+	 * Checks whether the provided polygon contains the provided point, by
+	 * counting edge crossings
+	 *
+	 * @param polygon
+	 *            - A double[2][] containing the polygon latitudes and
+	 *            longitudes
+	 * @param latitude
+	 *            - A double containing the latitude
+	 * @param longitude
+	 *            - A double containing the longitude
+	 * @return Returns true if the point is inside the polygon
+	 */
+	private static boolean polygonContains(double[][] polygon,
+		double latitude, double longitude) {
+		double[] lats = polygon[0];
+		double[] lons = polygon[1];
+		boolean inside = false;
+		for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+			if (((lats[i] > latitude) != (lats[j] > latitude)) &&
+				(longitude < (lons[j] - lons[i]) * (latitude - lats[i]) /
+					(lats[j] - lats[i]) + lons[i])) {
+				inside = !inside;
+			}
+		}
+
+		// points on the edge of a rectangle count as inside
+		if (!inside && (lats.length == 4) && (lats[0] == lats[1]) &&
+			(lons[1] == lons[2]) && (lats[2] == lats[3]) &&
+			(lons[3] == lons[0])) {
+			inside = (latitude >= Math.min(lats[0], lats[2])) &&
+				(latitude <= Math.max(lats[0], lats[2])) &&
+				(longitude >= Math.min(lons[0], lons[1])) &&
+				(longitude <= Math.max(lons[0], lons[1]));
+		}
+		return (inside);
+	}
+
+	/**
+	 * Builds a rectangle polygon
+	 *
+	 * @param minLatitude
+	 *            - A double containing the southern edge
+	 * @param maxLatitude
+	 *            - A double containing the northern edge
+	 * @param minLongitude
+	 *            - A double containing the western edge
+	 * @param maxLongitude
+	 *            - A double containing the eastern edge
+	 * @return Returns a double[2][] containing the rectangle latitudes and
+	 *         longitudes
+	 */
+	private static double[][] rectangle(double minLatitude,
+		double maxLatitude, double minLongitude, double maxLongitude) {
+		return (new double[][] {
+			{ minLatitude, minLatitude, maxLatitude, maxLatitude },
+			{ minLongitude, maxLongitude, maxLongitude, minLongitude } });
+	}
+
+	/**
+	 * @return the grid row of the provided latitude
+	 */
+	private int row(double latitude) {
+		return (Math.max(0, Math.min(rows - 1,
+			(int) ((latitude + 90) / cellDegrees))));
+	}
+
+	/**
+	 * @return the grid column of the provided longitude
+	 */
+	private int column(double longitude) {
+		return (Math.max(0, Math.min(columns - 1,
+			(int) ((longitude + 180) / cellDegrees))));
+	}
+
+	/**
+	 * Wraps the provided longitude into -180 to 180
+	 *
+	 * @param longitude
+	 *            - A double containing the longitude in degrees
+	 * @return Returns a double containing the wrapped longitude
+	 */
+	private static double normalizeLongitude(double longitude) {
+		if ((longitude >= -180) && (longitude <= 180)) {
+			return (longitude);
+		}
+		longitude = ((longitude + 180) % 360 + 360) % 360 - 180;
+		return (longitude);
+	}
+
+	/**
+	 * Builds the key for a station
+	 *
+	 * @param station
+	 *            - A String containing the station code
+	 * @param network
+	 *            - A String containing the network code, may be null
+	 * @return Returns a String containing the station key
+	 */
+	private static String stationKey(String station, String network) {
+		return (station + "." + ((network != null) ? network : ""));
+	}
+}
@@ -0,0 +1,241 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A hazdev broker class used to stream newline delimited messages out of a
+ * file without loading the whole file into memory. The file is memory mapped
+ * one window at a time, and lines are framed directly in the mapped window so
+ * that each line can be handed off as soon as it is found.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class MappedLineReader implements Closeable {
+
+	/**
+	 * The default size of the mapped window in bytes, 16 megabytes
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The file being read
+	 */
+	private RandomAccessFile inputFile;
+
+	/**
+	 * The file channel being read
+	 */
+	private FileChannel channel;
+
+	/**
+	 * The currently mapped window of the file
+	 */
+	private MappedByteBuffer window;
+
+	/**
+	 * The file position of the start of the mapped window
+	 */
+	private long windowStart;
+
+	/**
+	 * The size in bytes to use when mapping a window
+	 */
+	private int windowSize;
+
+	/**
+	 * The size of the file when it was opened
+	 */
+	private long fileSize;
+
+	/**
+	 * The file position of the start of the next line
+	 */
+	private long position;
+
+	/**
+	 * The number of lines read so far
+	 */
+	private long lineNumber;
+
+	/**
+	 * The constructor for the MappedLineReader class. Opens the provided file
+	 * using the default window size.
+	 *
+	 * @param file
+	 *            - A File containing the file to read
+	 * @throws java.io.IOException
+	 *             if the file could not be opened
+	 */
+	public MappedLineReader(File file) throws IOException {
+		this(file, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * The advanced constructor for the MappedLineReader class. Opens the
+	 * provided file using the provided window size.
+	 *
+	 * @param file
+	 *            - A File containing the file to read
+	 * @param newWindowSize
+	 *            - An int containing the size in bytes of the mapped window
+	 * @throws java.io.IOException
+	 *             if the file could not be opened
+	 */
+	public MappedLineReader(File file, int newWindowSize) throws IOException {
+		inputFile = new RandomAccessFile(file, "r");
+		channel = inputFile.getChannel();
+		fileSize = channel.size();
+		windowSize = Math.max(newWindowSize, 1024);
+		window = null;
+		windowStart = 0;
+		position = 0;
+		lineNumber = 0;
+	}
+
+	/**
+	 * Reads the next line from the file. Line terminators (\n or \r\n) are
+	 * not included in the returned data. The bytes are returned exactly as
+	 * they are stored in the file, no character set conversion is done.
+	 *
+	 * @return Returns a byte[] containing the next line, or null if the end of
+	 *         the file has been reached.
+	 * @throws java.io.IOException
+	 *             if an error occurs mapping the file
+	 */
+	public byte[] readLine() throws IOException {
+
+		// check for end of file
+		if (position >= fileSize) {
+			return (null);
+		}
+
+		while (true) {
+			// make sure the start of the line is mapped
+			if ((window == null) || (position < windowStart)
+					|| (position >= windowStart + window.limit())) {
+				mapWindow(position);
+			}
+
+			// look for the end of the line in the current window
+			int start = (int) (position - windowStart);
+			int limit = window.limit();
+			int end = start;
+			while ((end < limit) && (window.get(end) != '\n')) {
+				end++;
+			}
+
+			if (end < limit) {
+				// found the newline
+				byte[] line = copyLine(start, end);
+				position = windowStart + end + 1;
+				lineNumber++;
+				return (line);
+			} else if (windowStart + limit >= fileSize) {
+				// last line in the file without a newline
+				byte[] line = copyLine(start, end);
+				position = fileSize;
+				lineNumber++;
+				return (line);
+			} else if (start == 0) {
+				// the line is longer than the window, grow the window
+				if (windowSize >= Integer.MAX_VALUE / 2) {
+					throw new IOException("Line too long in mapped file.");
+				}
+				windowSize = windowSize * 2;
+				mapWindow(position);
+			} else {
+				// line spans the end of the window, remap starting at the line
+				mapWindow(position);
+			}
+		}
+	}
+
+	/**
+	 * Moves the reader to the provided file position, which should be the
+	 * start of a line (as returned by getPosition).
+	 *
+	 * @param newPosition
+	 *            - A long containing the file position to move to
+	 * @param newLineNumber
+	 *            - A long containing the line number at that position
+	 */
+	public void seek(long newPosition, long newLineNumber) {
+		position = Math.max(0, Math.min(newPosition, fileSize));
+		lineNumber = newLineNumber;
+	}
+
+	/**
+	 * Function that closes the file
+	 *
+	 * @throws java.io.IOException
+	 *             if an error occurs closing the file
+	 */
+	public void close() throws IOException {
+		window = null;
+		if (inputFile != null) {
+			inputFile.close();
+			inputFile = null;
+		}
+	}
+
+	/**
+	 * Maps a window of the file starting at the provided file position
+	 *
+	 * @param start
+	 *            - A long containing the file position to map from
+	 * @throws java.io.IOException
+	 *             if an error occurs mapping the file
+	 */
+	private void mapWindow(long start) throws IOException {
+		long size = Math.min((long) windowSize, fileSize - start);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		windowStart = start;
+	}
+
+	/**
+	 * Copies a line out of the current window, dropping any carriage return
+	 *
+	 * @param start
+	 *            - An int containing the window index of the start of the line
+	 * @param end
+	 *            - An int containing the window index of the end of the line
+	 * @return Returns a byte[] containing the line
+	 */
+	private byte[] copyLine(int start, int end) {
+		if ((end > start) && (window.get(end - 1) == '\r')) {
+			end--;
+		}
+
+		byte[] line = new byte[end - start];
+		window.position(start);
+		window.get(line);
+
+		return (line);
+	}
+
+	/**
+	 * @return the file position of the start of the next line
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return the number of lines read so far
+	 */
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return the size of the file when it was opened
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+}
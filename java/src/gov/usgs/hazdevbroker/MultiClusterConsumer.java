@@ -0,0 +1,386 @@
+package gov.usgs.hazdevbroker;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A hazdev broker class used to read the same topics from several
+ * independent kafka broker clusters, such as the copies sent by the
+ * MultiClusterProducer, and merge them into one stream.
+ *
+ * Each cluster has its own Consumer, configured with its own hazdev broker
+ * configuration, polled by its own thread, so whichever cluster delivers a
+ * message first is the one whose copy is used. The later copies are dropped
+ * by a DedupCache, identifying messages either by a sequence or ID field or
+ * by their content.
+ *
+ * Auto commit is disabled for each cluster. Instead, for clusters configured
+ * with a group.id, the offsets of the messages handed to the caller by poll
+ * (or dropped as copies) are committed by the cluster's thread, so messages
+ * still waiting to be merged are never committed.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class MultiClusterConsumer {
+
+	/**
+	 * The default maximum number of messages waiting to be merged
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+	/**
+	 * The time in ms each cluster's thread waits while polling
+	 */
+	public static final long CLUSTER_POLL_MS = 100;
+
+	/**
+	 * The consumers for each cluster
+	 */
+	private Consumer[] consumers;
+
+	/**
+	 * The polling threads for each cluster
+	 */
+	private Thread[] threads;
+
+	/**
+	 * A record waiting to be merged, and the cluster it came from
+	 */
+	private static class ClusterRecord {
+		int cluster;
+		ConsumerRecord<String, byte[]> record;
+
+		ClusterRecord(int newCluster, ConsumerRecord<String, byte[]> newRecord) {
+			cluster = newCluster;
+			record = newRecord;
+		}
+	}
+
+	/**
+	 * The records from every cluster waiting to be merged
+	 */
+	private LinkedBlockingQueue<ClusterRecord> queue;
+
+	/**
+	 * The offsets handed to the caller and not yet committed, for each
+	 * cluster
+	 */
+	private ArrayList<ConcurrentHashMap<TopicPartition, OffsetAndMetadata>>
+		handedOffsets;
+
+	/**
+	 * Flags indicating whether each cluster commits offsets, because it has
+	 * a group.id
+	 */
+	private boolean[] committing;
+
+	/**
+	 * The cache recognizing copies already delivered
+	 */
+	private DedupCache dedupCache;
+
+	/**
+	 * The number of messages received from each cluster
+	 */
+	private AtomicLong[] receivedCounts;
+
+	/**
+	 * Flag indicating whether the polling threads should keep running
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Log4J logger for MultiClusterConsumer
+	 */
+	static Logger logger = Logger.getLogger(MultiClusterConsumer.class);
+
+	/**
+	 * The constructor for the MultiClusterConsumer class. Creates a Consumer
+	 * for each cluster.
+	 *
+	 * @param brokerConfigs
+	 *            - A JSONArray containing the hazdev broker configuration
+	 *            JSONObject of each cluster
+	 * @param dedupWindow
+	 *            - A long containing the time in ms to remember each message
+	 *            for, it should cover the largest delay between clusters
+	 * @param dedupField
+	 *            - A String containing the dot separated path of a sequence
+	 *            or ID field identifying each message, null to identify
+	 *            messages by their content
+	 * @param dedupCapacity
+	 *            - An int containing the maximum number of messages
+	 *            remembered per window
+	 * @param queueSize
+	 *            - An int containing the maximum number of messages waiting
+	 *            to be merged
+	 */
+	public MultiClusterConsumer(JSONArray brokerConfigs, long dedupWindow,
+		String dedupField, int dedupCapacity, int queueSize) {
+
+		consumers = new Consumer[brokerConfigs.size()];
+		threads = new Thread[consumers.length];
+		receivedCounts = new AtomicLong[consumers.length];
+		handedOffsets = new ArrayList<ConcurrentHashMap<TopicPartition,
+			OffsetAndMetadata>>(consumers.length);
+		committing = new boolean[consumers.length];
+		for (int i = 0; i < consumers.length; i++) {
+			JSONObject brokerConfig = (JSONObject) brokerConfigs.get(i);
+
+			// offsets are committed once handed to the caller
+			Object autoCommit = ClientBase.disableAutoCommit(brokerConfig);
+			if ("true".equals(String.valueOf(autoCommit))) {
+				logger.info("Disabling enable.auto.commit for cluster " +
+					String.valueOf(i) + ", offsets are committed once " +
+					"messages are polled.");
+			}
+			JSONObject brokerProps = (JSONObject) brokerConfig.get(
+				ClientBase.PROPERTIES_KEY);
+			committing[i] = (brokerProps != null) &&
+				(brokerProps.get("group.id") != null);
+
+			consumers[i] = new Consumer(brokerConfig);
+			receivedCounts[i] = new AtomicLong(0);
+			handedOffsets.add(new ConcurrentHashMap<TopicPartition,
+				OffsetAndMetadata>());
+		}
+
+		queue = new LinkedBlockingQueue<ClusterRecord>(Math.max(1, queueSize));
+		dedupCache = new DedupCache(dedupWindow, dedupCapacity, dedupField);
+		running = false;
+
+		logger.info("Merging " + String.valueOf(consumers.length) +
+			" cluster(s), identifying messages by " +
+			((dedupField != null) ? dedupField : "content") + ".");
+	}
+
+	/**
+	 * Subscribes every cluster to the provided topics and starts polling
+	 *
+	 * @param topics
+	 *            - A Collection&lt;String&gt; containing the topics to
+	 *            subscribe to
+	 */
+	public void subscribe(Collection<String> topics) {
+		if (running) {
+			return;
+		}
+
+		running = true;
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i].subscribe(topics);
+
+			final int cluster = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					pollCluster(cluster);
+				}
+			}, "hazdev-cluster-" + String.valueOf(i));
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Gets the merged messages, the first copy of each message from any
+	 * cluster
+	 *
+	 * @param timeout
+	 *            - A long containing the time to wait for a message in
+	 *            milliseconds. -1 indicates that the client should wait for an
+	 *            arbitrarily long time
+	 * @return Returns an ArrayList&lt;byte[]&gt; containing the messages
+	 *         received since the last time it was polled, in the order they
+	 *         were first received
+	 */
+	public ArrayList<byte[]> poll(long timeout) {
+		ArrayList<byte[]> data = new ArrayList<byte[]>();
+		ArrayList<ClusterRecord> received = new ArrayList<ClusterRecord>();
+
+		try {
+			ClusterRecord first;
+			if (timeout < 0) {
+				first = queue.take();
+			} else {
+				first = queue.poll(timeout, TimeUnit.MILLISECONDS);
+			}
+			if (first == null) {
+				return (data);
+			}
+			received.add(first);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return (data);
+		}
+		queue.drainTo(received);
+
+		// keep the first copy of each
+		for (ClusterRecord aReceived : received) {
+			ConsumerRecord<String, byte[]> record = aReceived.record;
+			if (!dedupCache.isDuplicate(record.value())) {
+				data.add(record.value());
+			}
+
+			// handed over (or dropped), so it can be committed, records
+			// from a cluster arrive in offset order
+			if (committing[aReceived.cluster]) {
+				handedOffsets.get(aReceived.cluster).put(new TopicPartition(
+					record.topic(), record.partition()),
+					new OffsetAndMetadata(record.offset() + 1));
+			}
+		}
+
+		return (data);
+	}
+
+	/**
+	 * Gets the merged messages as strings
+	 *
+	 * @param timeout
+	 *            - A long containing the time to wait for a message in
+	 *            milliseconds. -1 indicates that the client should wait for an
+	 *            arbitrarily long time
+	 * @return Returns an ArrayList&lt;String&gt; containing the messages
+	 *         received since the last time it was polled
+	 */
+	public ArrayList<String> pollString(long timeout) {
+		ArrayList<byte[]> data = poll(timeout);
+
+		ArrayList<String> messages = new ArrayList<String>(data.size());
+		for (byte[] aData : data) {
+			messages.add(new String(aData));
+		}
+
+		return (messages);
+	}
+
+	/**
+	 * Function that stops polling, commits the offsets of the messages
+	 * handed to the caller, and closes the consumer for each cluster
+	 */
+	public void close() {
+		running = false;
+		for (int i = 0; i < consumers.length; i++) {
+			if (threads[i] != null) {
+				try {
+					threads[i].join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			consumers[i].commitSync(takeHandedOffsets(i));
+			consumers[i].close();
+		}
+	}
+
+	/**
+	 * @return the number of clusters
+	 */
+	public int getClusterCount() {
+		return (consumers.length);
+	}
+
+	/**
+	 * @param cluster
+	 *            - An int containing the index of the cluster
+	 * @return the Consumer for the cluster
+	 */
+	public Consumer getConsumer(int cluster) {
+		return (consumers[cluster]);
+	}
+
+	/**
+	 * @param cluster
+	 *            - An int containing the index of the cluster
+	 * @return the number of messages received from the cluster
+	 */
+	public long getReceivedCount(int cluster) {
+		return (receivedCounts[cluster].get());
+	}
+
+	/**
+	 * @return the number of copies dropped because another cluster delivered
+	 *         the message first
+	 */
+	public long getDuplicateCount() {
+		return (dedupCache.getHits());
+	}
+
+	/**
+	 * Polls a cluster and queues its messages to be merged, until stopped
+	 *
+	 * @param cluster
+	 *            - An int containing the index of the cluster
+	 */
+	private void pollCluster(int cluster) {
+		while (running) {
+			// the consumer isn't thread safe, so commit from here
+			consumers[cluster].commitAsync(takeHandedOffsets(cluster));
+
+			ArrayList<ConsumerRecord<String, byte[]>> data = null;
+			try {
+				data = consumers[cluster].pollRecords(CLUSTER_POLL_MS);
+			} catch (Exception e) {
+				logger.error("Exception polling cluster " +
+					String.valueOf(cluster) + ": " + e.toString());
+			}
+
+			try {
+				// don't spin on a broken consumer
+				if (data == null) {
+					Thread.sleep(CLUSTER_POLL_MS);
+					continue;
+				}
+
+				// wait for room, unless stopped
+				for (ConsumerRecord<String, byte[]> record : data) {
+					ClusterRecord message = new ClusterRecord(cluster, record);
+					while (!queue.offer(message, CLUSTER_POLL_MS,
+						TimeUnit.MILLISECONDS)) {
+						if (!running) {
+							return;
+						}
+					}
+					receivedCounts[cluster].incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Takes the offsets handed to the caller from the provided cluster that
+	 * haven't been committed yet
+	 *
+	 * @param cluster
+	 *            - An int containing the index of the cluster
+	 * @return Returns a Map&lt;TopicPartition, OffsetAndMetadata&gt; containing
+	 *         the offsets to commit
+	 */
+	private Map<TopicPartition, OffsetAndMetadata> takeHandedOffsets(
+		int cluster) {
+		HashMap<TopicPartition, OffsetAndMetadata> offsets =
+			new HashMap<TopicPartition, OffsetAndMetadata>();
+		ConcurrentHashMap<TopicPartition, OffsetAndMetadata> handed =
+			handedOffsets.get(cluster);
+		for (Map.Entry<TopicPartition, OffsetAndMetadata> entry :
+			handed.entrySet()) {
+			offsets.put(entry.getKey(), entry.getValue());
+
+			// keep any newer offset handed over since
+			handed.remove(entry.getKey(), entry.getValue());
+		}
+		return (offsets);
+	}
+}
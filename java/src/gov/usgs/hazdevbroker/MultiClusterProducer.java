@@ -0,0 +1,384 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A hazdev broker class used to send every message to several independent
+ * kafka broker clusters, such as a primary and a disaster recovery site.
+ *
+ * Each cluster has its own Producer, configured with its own hazdev broker
+ * configuration, and its own queue and sending thread, so a cluster that is
+ * slow or unreachable never blocks sending to the others. If a cluster's
+ * queue is full the message is not sent to that cluster, and the send is
+ * reported as failed. Consumers can merge the copies from each cluster with
+ * the MultiClusterConsumer.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class MultiClusterProducer {
+
+	/**
+	 * The default maximum number of messages queued for each cluster
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+	/**
+	 * The sending side of one cluster
+	 */
+	private static class ClusterSender {
+
+		/**
+		 * The producer for the cluster
+		 */
+		Producer producer;
+
+		/**
+		 * The messages waiting to be sent to the cluster
+		 */
+		ArrayBlockingQueue<QueuedMessage> queue;
+
+		/**
+		 * The thread sending the queued messages
+		 */
+		Thread thread;
+
+		/**
+		 * The number of messages not sent because the queue was full
+		 */
+		AtomicLong droppedCount = new AtomicLong(0);
+	}
+
+	/**
+	 * A message waiting to be sent, a null data is a heartbeat
+	 */
+	private static class QueuedMessage {
+		String topic;
+		byte[] data;
+		Callback callback;
+
+		QueuedMessage(String newTopic, byte[] newData, Callback newCallback) {
+			topic = newTopic;
+			data = newData;
+			callback = newCallback;
+		}
+	}
+
+	/**
+	 * The callback for one cluster's copy of a message, calling the caller's
+	 * callback once every cluster has completed
+	 */
+	private static class FanOutCallback implements Callback {
+
+		/**
+		 * The caller's callback
+		 */
+		private Callback callback;
+
+		/**
+		 * The number of clusters that haven't completed
+		 */
+		private AtomicInteger remaining;
+
+		/**
+		 * The metadata from the first cluster to acknowledge the message
+		 */
+		private AtomicReference<RecordMetadata> firstMetadata =
+			new AtomicReference<RecordMetadata>();
+
+		/**
+		 * The first failure
+		 */
+		private AtomicReference<Exception> firstException =
+			new AtomicReference<Exception>();
+
+		FanOutCallback(Callback newCallback, int clusters) {
+			callback = newCallback;
+			remaining = new AtomicInteger(clusters);
+		}
+
+		public void onCompletion(RecordMetadata metadata,
+			Exception exception) {
+			if (exception != null) {
+				firstException.compareAndSet(null, exception);
+			} else if (metadata != null) {
+				firstMetadata.compareAndSet(null, metadata);
+			}
+
+			if (remaining.decrementAndGet() == 0) {
+				if (firstException.get() != null) {
+					callback.onCompletion(null, firstException.get());
+				} else {
+					callback.onCompletion(firstMetadata.get(), null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The senders for each cluster
+	 */
+	private ClusterSender[] senders;
+
+	/**
+	 * Flag indicating whether the sending threads should keep running
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Log4J logger for MultiClusterProducer
+	 */
+	static Logger logger = Logger.getLogger(MultiClusterProducer.class);
+
+	/**
+	 * The constructor for the MultiClusterProducer class. Creates a Producer
+	 * for each cluster and starts sending.
+	 *
+	 * @param brokerConfigs
+	 *            - A JSONArray containing the hazdev broker configuration
+	 *            JSONObject of each cluster, each with its own client.id and
+	 *            spool directory if spooling
+	 * @param hbInterval
+	 *            - A Long containing the heartbeat interval to use, set to -1
+	 *            to always send heartbeat messages, set to null to disable
+	 *            heartbeat messages
+	 * @param queueSize
+	 *            - An int containing the maximum number of messages queued
+	 *            for each cluster
+	 */
+	public MultiClusterProducer(JSONArray brokerConfigs, Long hbInterval,
+		int queueSize) {
+
+		running = true;
+		senders = new ClusterSender[brokerConfigs.size()];
+		for (int i = 0; i < senders.length; i++) {
+			final ClusterSender sender = new ClusterSender();
+			sender.producer = new Producer((JSONObject) brokerConfigs.get(i),
+				hbInterval);
+			sender.queue = new ArrayBlockingQueue<QueuedMessage>(
+				Math.max(1, queueSize));
+			sender.thread = new Thread(new Runnable() {
+				public void run() {
+					sendQueued(sender);
+				}
+			}, "hazdev-cluster-" + String.valueOf(i));
+			sender.thread.setDaemon(true);
+			sender.thread.start();
+			senders[i] = sender;
+		}
+
+		logger.info("Sending to " + String.valueOf(senders.length) +
+			" cluster(s).");
+	}
+
+	/**
+	 * Sends the contents of the provided byte array to every cluster using
+	 * the provided topic
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 */
+	public void send(String topic, byte[] data) {
+		send(topic, data, null);
+	}
+
+	/**
+	 * Sends the contents of the provided byte array to every cluster using
+	 * the provided topic, calling the provided callback once every cluster
+	 * has acknowledged (or failed) the send
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 * @param callback
+	 *            - A Callback to call when the send completes on every
+	 *            cluster, null for none. It is called with the metadata from
+	 *            the first cluster to acknowledge the send, or with the first
+	 *            exception if the send failed on any cluster
+	 */
+	public void send(String topic, byte[] data, Callback callback) {
+		Callback clusterCallback = null;
+		if (callback != null) {
+			clusterCallback = new FanOutCallback(callback, senders.length);
+		}
+
+		for (ClusterSender sender : senders) {
+			if (!running) {
+				if (clusterCallback != null) {
+					clusterCallback.onCompletion(null, new IOException(
+						"Producer is closed."));
+				}
+				continue;
+			}
+			if (!sender.queue.offer(new QueuedMessage(topic, data,
+				clusterCallback))) {
+				// don't let one cluster hold up the others
+				sender.droppedCount.incrementAndGet();
+				if (clusterCallback != null) {
+					clusterCallback.onCompletion(null, new IOException(
+						"Cluster send queue is full."));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the contents of the provided string to every cluster using the
+	 * provided topic
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param message
+	 *            - A String containing the message to send
+	 */
+	public void sendString(String topic, String message) {
+		send(topic, message.getBytes());
+	}
+
+	/**
+	 * Sends a heartbeat message to every cluster using the provided topic, if
+	 * it has been long enough since the last one
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 */
+	public void sendHeartbeat(String topic) {
+		for (ClusterSender sender : senders) {
+			sender.queue.offer(new QueuedMessage(topic, null, null));
+		}
+	}
+
+	/**
+	 * Function that stops sending and closes down the producer for each
+	 * cluster. The messages still queued are sent first, for up to the
+	 * provided timeout, any left after that are reported to their callbacks
+	 * as failed.
+	 *
+	 * @param timeout
+	 *            - A long containing time in milliseconds to wait for the
+	 *            queued messages to be sent, and before closing each producer
+	 */
+	public void close(long timeout) {
+		// the sending threads finish their queues before stopping
+		running = false;
+		long deadline = System.currentTimeMillis() + timeout;
+		for (ClusterSender sender : senders) {
+			try {
+				sender.thread.join(Math.max(1, 
+					deadline - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		for (ClusterSender sender : senders) {
+			// out of time, stop sending
+			if (sender.thread.isAlive()) {
+				sender.thread.interrupt();
+				try {
+					sender.thread.join(timeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			// and let the callers know what wasn't sent
+			QueuedMessage message = null;
+			int unsent = 0;
+			while ((message = sender.queue.poll()) != null) {
+				unsent++;
+				if (message.callback != null) {
+					message.callback.onCompletion(null, new IOException(
+						"Producer closed before the message was sent."));
+				}
+			}
+			if (unsent > 0) {
+				logger.warn(String.valueOf(unsent) + " queued message(s) " +
+					"not sent to a cluster before closing.");
+			}
+
+			sender.producer.close(timeout);
+		}
+	}
+
+	/**
+	 * @return the number of clusters
+	 */
+	public int getClusterCount() {
+		return (senders.length);
+	}
+
+	/**
+	 * @param cluster
+	 *            - An int containing the index of the cluster
+	 * @return the Producer for the cluster
+	 */
+	public Producer getProducer(int cluster) {
+		return (senders[cluster].producer);
+	}
+
+	/**
+	 * @param cluster
+	 *            - An int containing the index of the cluster
+	 * @return the number of messages currently queued for the cluster
+	 */
+	public int getQueueSize(int cluster) {
+		return (senders[cluster].queue.size());
+	}
+
+	/**
+	 * @param cluster
+	 *            - An int containing the index of the cluster
+	 * @return the number of messages not sent to the cluster because its
+	 *         queue was full
+	 */
+	public long getDroppedCount(int cluster) {
+		return (senders[cluster].droppedCount.get());
+	}
+
+	/**
+	 * Sends the messages queued for a cluster, until stopped and the queue is
+	 * empty, or interrupted
+	 *
+	 * @param sender
+	 *            - The ClusterSender of the cluster
+	 */
+	private void sendQueued(ClusterSender sender) {
+		while (running || !sender.queue.isEmpty()) {
+			QueuedMessage message;
+			try {
+				message = sender.queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (message == null) {
+				continue;
+			}
+
+			try {
+				if (message.data == null) {
+					sender.producer.sendHeartbeat(message.topic);
+				} else {
+					sender.producer.send(message.topic, message.data,
+						message.callback);
+				}
+			} catch (Exception e) {
+				logger.error("Exception sending to cluster: " + e.toString());
+			}
+		}
+	}
+}
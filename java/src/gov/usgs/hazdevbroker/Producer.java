@@ -1,7 +1,11 @@
 package gov.usgs.hazdevbroker;
 
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.time.Duration;
+import javax.management.ObjectName;
 import org.apache.log4j.Logger;
 
 import org.apache.kafka.clients.producer.*;
@@ -18,30 +22,144 @@ public class Producer extends ClientBase {
 	/**
 	 * The kafka producer client
 	 */
-	private static org.apache.kafka.clients.producer.Producer<String, byte[]> producer;
+	private org.apache.kafka.clients.producer.Producer<String, byte[]> producer;
 
 	/**
 	 * Long defining the number seconds between sending heartbeat messages, 
 	 * default is 30 seconds, set to -1 to always send heartbeat messages, set 
 	 * to null to disable heartbeat messages
 	 */
-	private static Long heartbeatInterval;
+	private Long heartbeatInterval;
 
 	/**
 	 * Variable containing time the last heartbeat was sent.
 	 */
-	private static Long lastHeartbeatTime;
+	private Long lastHeartbeatTime;
+
+	/**
+	 * The time the last heartbeat was sent to each topic, so that every topic
+	 * a producer sends to gets heartbeats
+	 */
+	private Map<String, Long> topicHeartbeatTimes = 
+		new ConcurrentHashMap<String, Long>();
 
 	/**
 	 * The client id for this producer
 	 */	
-	private static String clientId;
+	private String clientId;
         
         /**
          * When true a heartbeat message also be sent with each send.  Default is true.
          */
         private boolean autoSendHeartbeat = true;
 
+	/**
+	 * Client property keys
+	 */
+	public static final String SPOOL_DIRECTORY = "hazdev.spool.directory";
+	public static final String SPOOL_SEGMENT_BYTES = "hazdev.spool.segment.bytes";
+	public static final String SPOOL_MAX_BYTES = "hazdev.spool.max.bytes";
+	public static final String SPOOL_REPLAY_RATE = "hazdev.spool.replay.rate";
+	public static final String SPOOL_REPLAY_IN_FLIGHT = 
+		"hazdev.spool.replay.in.flight";
+	public static final String SPOOL_MAX_BLOCK_MS = 
+		"hazdev.spool.max.block.ms";
+	public static final String KEY_FIELDS = "hazdev.key.fields";
+	public static final String KEY_SEPARATOR = "hazdev.key.separator";
+	public static final String PRIORITY_LANE = "hazdev.priority.lane";
+	public static final String PRIORITY_TOPICS = "hazdev.priority.topics";
+	public static final String PRIORITY_FIELD = "hazdev.priority.field";
+	public static final String PRIORITY_VALUES = "hazdev.priority.values";
+	public static final String PRIORITY_LINGER_MS = 
+		"hazdev.priority.linger.ms";
+	public static final String PRIORITY_IN_FLIGHT = 
+		"hazdev.priority.in.flight";
+	public static final String RATE_MESSAGES = "hazdev.rate.messages";
+	public static final String RATE_BYTES = "hazdev.rate.bytes";
+	public static final String RATE_TOPIC_LIMITS = "hazdev.rate.topic.limits";
+	public static final String RATE_BURST_SECONDS = "hazdev.rate.burst.seconds";
+	public static final String RATE_POLICY = "hazdev.rate.policy";
+	public static final String RATE_MAX_QUEUE = "hazdev.rate.max.queue";
+	public static final String RATE_SHED_FIELD = "hazdev.rate.shed.field";
+	public static final String RATE_SHED_VALUES = "hazdev.rate.shed.values";
+
+	/**
+	 * The JMX name prefix of the rate limit metrics, followed by the client id
+	 */
+	public static final String RATE_METRICS = 
+		"hazdev.producer:type=rate-metrics,client-id=";
+
+	/**
+	 * Priority lane defaults
+	 */
+	public static final long DEFAULT_PRIORITY_LINGER_MS = 0;
+	public static final long DEFAULT_PRIORITY_IN_FLIGHT = 5;
+
+	/**
+	 * The default separator between the values of a composite key
+	 */
+	public static final String DEFAULT_KEY_SEPARATOR = ".";
+
+	/**
+	 * Spool defaults
+	 */
+	public static final long DEFAULT_SPOOL_SEGMENT_BYTES = 16 * 1024 * 1024;
+	public static final double DEFAULT_SPOOL_REPLAY_RATE = 1000.0;
+	public static final long DEFAULT_SPOOL_REPLAY_IN_FLIGHT = 500;
+
+	/**
+	 * The smallest max.block.ms used when spooling, so that fetching the
+	 * metadata at startup isn't mistaken for an outage
+	 */
+	public static final long MIN_SPOOL_MAX_BLOCK_MS = 1000;
+
+	/**
+	 * The optional disk spool used while the broker cluster is unreachable,
+	 * null if spooling is disabled
+	 */
+	private DiskSpool spool = null;
+
+	/**
+	 * The extractors for the fields making up the record key, null to send
+	 * records without a key
+	 */
+	private FieldExtractor[] keyExtractors = null;
+
+	/**
+	 * The separator between the values of a composite key
+	 */
+	private String keySeparator = DEFAULT_KEY_SEPARATOR;
+
+	/**
+	 * The kafka producer client used for heartbeats and urgent messages, so
+	 * they don't wait behind bulk batches, null if the priority lane is
+	 * disabled
+	 */
+	private org.apache.kafka.clients.producer.Producer<String, byte[]> 
+		priorityProducer = null;
+
+	/**
+	 * The topics whose messages are all urgent, null for none
+	 */
+	private Set<String> priorityTopics = null;
+
+	/**
+	 * The extractor for the field marking messages as urgent, and the values
+	 * of it that do, null for none
+	 */
+	private FieldExtractor priorityExtractor = null;
+	private Set<String> priorityValues = null;
+
+	/**
+	 * The per topic rate limits, null if not rate limiting
+	 */
+	private RateLimiter rateLimiter = null;
+
+	/**
+	 * The JMX name the rate limit metrics are registered under
+	 */
+	private ObjectName rateMetricName = null;
+
 	/**
 	 * Log4J logger for Producer
 	 */
@@ -214,6 +332,37 @@ public class Producer extends ClientBase {
 				clientId = configProperties.getProperty("client.id");
 			}
 
+			// separate out the hazdev broker client configuration
+			Properties clientProperties = 
+				extractClientProperties(configProperties);
+			String spoolDirectory = getStringProperty(clientProperties, 
+				SPOOL_DIRECTORY, null);
+
+			// get the key fields
+			ArrayList<String> paths = getListProperty(clientProperties, 
+				KEY_FIELDS);
+			if (paths != null) {
+				keyExtractors = new FieldExtractor[paths.size()];
+				for (int i = 0; i < paths.size(); i++) {
+					keyExtractors[i] = new FieldExtractor(paths.get(i));
+				}
+				keySeparator = getStringProperty(clientProperties, 
+					KEY_SEPARATOR, DEFAULT_KEY_SEPARATOR);
+				logger.info("Keying records by: " + paths.toString());
+			}
+
+			// optionally block the caller for less time when spooling, but
+			// long enough to fetch the metadata
+			if ((spoolDirectory != null) && 
+				(clientProperties.get(SPOOL_MAX_BLOCK_MS) != null)) {
+				long maxBlockMs = Math.max(MIN_SPOOL_MAX_BLOCK_MS, 
+					getLongProperty(clientProperties, SPOOL_MAX_BLOCK_MS, 
+						MIN_SPOOL_MAX_BLOCK_MS));
+				configProperties.put("max.block.ms", String.valueOf(maxBlockMs));
+				logger.info("Using configured spool max.block.ms of: " + 
+					String.valueOf(maxBlockMs));
+			}
+
 			// add any fixed configuration (like the serializer)
 			configProperties.put("key.serializer",
 					"org.apache.kafka.common.serialization.StringSerializer");
@@ -222,6 +371,33 @@ public class Producer extends ClientBase {
 
 			// create the producer
 			producer = new KafkaProducer<String, byte[]>(configProperties);
+
+			// create the priority lane
+			if (Boolean.parseBoolean(getStringProperty(clientProperties, 
+				PRIORITY_LANE, "false"))) {
+				setupPriorityLane(configProperties, clientProperties);
+			}
+
+			// create the rate limits
+			if ((clientProperties.get(RATE_MESSAGES) != null) || 
+				(clientProperties.get(RATE_BYTES) != null) || 
+				(clientProperties.get(RATE_TOPIC_LIMITS) != null)) {
+				setupRateLimiter(clientProperties);
+			}
+
+			// create the spool
+			if (spoolDirectory != null) {
+				spool = new DiskSpool(this, spoolDirectory, 
+					getLongProperty(clientProperties, SPOOL_SEGMENT_BYTES, 
+						DEFAULT_SPOOL_SEGMENT_BYTES),
+					getLongProperty(clientProperties, SPOOL_MAX_BYTES, 0),
+					getDoubleProperty(clientProperties, SPOOL_REPLAY_RATE, 
+						DEFAULT_SPOOL_REPLAY_RATE),
+					(int) getLongProperty(clientProperties, 
+						SPOOL_REPLAY_IN_FLIGHT, DEFAULT_SPOOL_REPLAY_IN_FLIGHT));
+				spool.start();
+				logger.info("Spooling to: " + spoolDirectory);
+			}
 		} catch (Exception e) {
 			logger.error("Exception configuring producer: " + e.toString());
 			return(false);
@@ -239,16 +415,151 @@ public class Producer extends ClientBase {
 	 *            - A byte[] containing the data to send
 	 */
 	public void send(String topic, byte[] data) {
+		send(topic, data, null);
+	}
+
+	/**
+	 * Sends the contents of the provided byte array to the hazdev kafka broker
+	 * cluster using the provided topic, calling the provided callback once the
+	 * broker cluster has acknowledged (or failed) the send
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 * @param callback
+	 *            - A Callback to call when the send completes, null for none.
+	 *            If the send fails before reaching the kafka producer client,
+	 *            or the message is dropped by the rate limits, the callback
+	 *            is called immediately with the exception, a
+	 *            RateLimitException for a dropped message. If spooling is
+	 *            enabled, a message that is spooled is reported as
+	 *            successful, with null metadata, once it is forced to disk
+	 */
+	public void send(String topic, byte[] data, Callback callback) {
+		send(topic, data, callback, false);
+	}
+
+	/**
+	 * Sends the contents of the provided byte array to the hazdev kafka broker
+	 * cluster using the provided topic on the priority lane, so that it 
+	 * doesn't wait behind bulk messages. Sends normally if the priority lane
+	 * is disabled.
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 * @param callback
+	 *            - A Callback to call when the send completes, null for none
+	 */
+	public void sendPriority(String topic, byte[] data, Callback callback) {
+		send(topic, data, callback, true);
+	}
+
+	/**
+	 * Sends the contents of the provided byte array, spooling it if needed
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 * @param callback
+	 *            - A Callback to call when the send completes, null for none
+	 * @param urgent
+	 *            - A boolean flag, true to send on the priority lane
+	 */
+	private void send(String topic, byte[] data, Callback callback, 
+		boolean urgent) {
+
+		// urgent messages skip the bulk batches
+		urgent = (priorityProducer != null) && 
+			(urgent || isPriority(topic, data));
+
+		// hold back anything over the rate limits
+		if ((rateLimiter != null) && 
+			!rateLimiter.admit(topic, data, callback, urgent)) {
+			return;
+		}
+
+		sendAdmitted(topic, data, callback, urgent);
+	}
+
+	/**
+	 * Sends the contents of the provided byte array once it is within the
+	 * rate limits, spooling it if needed. Used by the rate limiter to send
+	 * queued messages.
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 * @param callback
+	 *            - A Callback to call when the send completes, null for none
+	 * @param urgent
+	 *            - A boolean flag, true to send on the priority lane
+	 */
+	void sendAdmitted(final String topic, final byte[] data, 
+		final Callback callback, boolean urgent) {
+
+		// while the broker cluster is unreachable, spool rather than send
+		if ((spool != null) && spool.isOutage()) {
+			spoolMessage(topic, data, callback);
+			return;
+		}
 
 		// create the producer record
 		ProducerRecord<String, byte[]> message = new ProducerRecord<String, byte[]>(
-				topic, data);
+				topic, extractKey(data), data);
+
+		// pick the lane
+		org.apache.kafka.clients.producer.Producer<String, byte[]> lane = 
+			producer;
+		if (urgent) {
+			lane = priorityProducer;
+		}
+
+		// when spooling, spool anything the broker cluster doesn't take
+		Callback sendCallback = callback;
+		if (spool != null) {
+			sendCallback = new Callback() {
+				public void onCompletion(RecordMetadata metadata, 
+					Exception exception) {
+					if (exception != null) {
+						// don't write to disk on the kafka network thread
+						spool.sendFailed();
+						if (!spool.appendLater(topic, data, callback, 
+							false)) {
+							logger.error("Spool write queue full, message " + 
+								"dropped.");
+							if (callback != null) {
+								callback.onCompletion(null, new IOException(
+									"Unable to spool message."));
+							}
+						}
+					} else if (callback != null) {
+						callback.onCompletion(metadata, exception);
+					}
+				}
+			};
+		}
 
 		// send it async
 		try {
-			producer.send(message);
+			lane.send(message, sendCallback);
 		} catch (Exception e) { 
 			logger.error("Error calling producer.send: " + e.toString());
+
+			if (spool != null) {
+				spool.sendFailed();
+				spoolMessage(topic, data, callback);
+				return;
+			}
+
+			// let the caller know this one didn't make it
+			if (callback != null) {
+				callback.onCompletion(null, e);
+			}
 			return ;
 		}
 
@@ -260,6 +571,225 @@ public class Producer extends ClientBase {
                 }
 	}
 
+	/**
+	 * Sends the provided data to the kafka producer client, without spooling.
+	 * Used by the spool to forward spooled messages.
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 * @param callback
+	 *            - A Callback to call when the send completes
+	 */
+	void sendDirect(String topic, byte[] data, Callback callback) {
+
+		// create the producer record
+		ProducerRecord<String, byte[]> message = new ProducerRecord<String, byte[]>(
+				topic, extractKey(data), data);
+
+		// send it async
+		try {
+			producer.send(message, callback);
+		} catch (Exception e) { 
+			callback.onCompletion(null, e);
+		}
+	}
+
+	/**
+	 * Sets up the priority lane, a second kafka producer client that doesn't
+	 * linger, with its own connections and in flight limit
+	 *
+	 * @param configProperties
+	 *            - A Properties containing the kafka producer configuration
+	 * @param clientProperties
+	 *            - A Properties containing the hazdev broker client 
+	 *            configuration
+	 */
+	private void setupPriorityLane(Properties configProperties, 
+		Properties clientProperties) {
+
+		Properties priorityProperties = new Properties();
+		priorityProperties.putAll(configProperties);
+		priorityProperties.put("client.id", clientId + "-priority");
+		priorityProperties.put("linger.ms", String.valueOf(getLongProperty(
+			clientProperties, PRIORITY_LINGER_MS, 
+			DEFAULT_PRIORITY_LINGER_MS)));
+		priorityProperties.put("max.in.flight.requests.per.connection", 
+			String.valueOf(getLongProperty(clientProperties, 
+				PRIORITY_IN_FLIGHT, DEFAULT_PRIORITY_IN_FLIGHT)));
+
+		ArrayList<String> topics = getListProperty(clientProperties, 
+			PRIORITY_TOPICS);
+		if (topics != null) {
+			priorityTopics = new HashSet<String>(topics);
+		}
+
+		String field = getStringProperty(clientProperties, PRIORITY_FIELD, 
+			null);
+		ArrayList<String> values = getListProperty(clientProperties, 
+			PRIORITY_VALUES);
+		if ((field != null) && (values != null)) {
+			priorityExtractor = new FieldExtractor(field);
+			priorityValues = new HashSet<String>(values);
+		}
+
+		priorityProducer = new KafkaProducer<String, byte[]>(
+			priorityProperties);
+		logger.info("Using priority lane for heartbeats" + 
+			((priorityTopics != null) ? ", topics " + priorityTopics : "") + 
+			((priorityExtractor != null) ? ", " + field + " values " + 
+				priorityValues : ""));
+	}
+
+	/**
+	 * Sets up the per topic rate limits, and registers their counters with
+	 * JMX so they can be read with getKafkaMetric along with the kafka 
+	 * metrics
+	 *
+	 * @param clientProperties
+	 *            - A Properties containing the hazdev broker client 
+	 *            configuration
+	 */
+	private void setupRateLimiter(Properties clientProperties) {
+		rateLimiter = new RateLimiter(this, 
+			getDoubleProperty(clientProperties, RATE_MESSAGES, 0), 
+			getDoubleProperty(clientProperties, RATE_BYTES, 0), 
+			getDoubleProperty(clientProperties, RATE_BURST_SECONDS, 
+				RateLimiter.DEFAULT_BURST_SECONDS), 
+			getStringProperty(clientProperties, RATE_POLICY, 
+				RateLimiter.POLICY_BLOCK), 
+			(int) getLongProperty(clientProperties, RATE_MAX_QUEUE, 
+				RateLimiter.DEFAULT_MAX_QUEUE));
+
+		// topic specific limits, {"topic":{"messages":n,"bytes":n}}
+		Object topicLimits = clientProperties.get(RATE_TOPIC_LIMITS);
+		if (topicLimits instanceof JSONObject) {
+			for (Object topic : ((JSONObject) topicLimits).keySet()) {
+				Properties limits = new Properties();
+				JSONObject topicLimit = (JSONObject) ((JSONObject) 
+					topicLimits).get(topic);
+				for (Object key : topicLimit.keySet()) {
+					limits.put(key, topicLimit.get(key));
+				}
+				rateLimiter.setTopicLimits(topic.toString(), 
+					getDoubleProperty(limits, "messages", 0), 
+					getDoubleProperty(limits, "bytes", 0));
+			}
+		}
+
+		String shedField = getStringProperty(clientProperties, 
+			RATE_SHED_FIELD, null);
+		ArrayList<String> shedValues = getListProperty(clientProperties, 
+			RATE_SHED_VALUES);
+		if ((shedField != null) && (shedValues != null)) {
+			rateLimiter.setShedField(shedField, shedValues);
+		}
+
+		rateLimiter.start();
+		logger.info("Using rate limits of: " + 
+			getStringProperty(clientProperties, RATE_MESSAGES, "unlimited") + 
+			" messages/s, " + 
+			getStringProperty(clientProperties, RATE_BYTES, "unlimited") + 
+			" bytes/s per topic, policy " + getStringProperty(
+				clientProperties, RATE_POLICY, RateLimiter.POLICY_BLOCK));
+
+		try {
+			rateMetricName = new ObjectName(RATE_METRICS + 
+				String.valueOf(clientId));
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(
+				rateMetricName)) {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					rateMetricName);
+			}
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				rateLimiter, rateMetricName);
+		} catch (Exception e) {
+			logger.warn("Exception registering rate metrics: " + 
+				e.toString());
+			rateMetricName = null;
+		}
+	}
+
+	/**
+	 * Checks whether the provided message is urgent, by its topic or its 
+	 * priority field
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the JSON formatted message
+	 * @return Returns true if the message should be sent on the priority 
+	 *         lane
+	 */
+	private boolean isPriority(String topic, byte[] data) {
+		if (priorityProducer == null) {
+			return (false);
+		}
+		if ((priorityTopics != null) && priorityTopics.contains(topic)) {
+			return (true);
+		}
+		if (priorityExtractor != null) {
+			String value = priorityExtractor.extract(data);
+			return ((value != null) && priorityValues.contains(value));
+		}
+		return (false);
+	}
+
+	/**
+	 * Builds the record key from the configured key fields of the provided
+	 * data, without parsing the whole message. Records with the same key go
+	 * to the same partition, so they stay in order and can be compacted.
+	 *
+	 * @param data
+	 *            - A byte[] containing the JSON formatted message
+	 * @return Returns a String containing the key field values joined by the
+	 *         key separator, missing fields are left empty. Returns null if
+	 *         no key fields are configured, or none are in the message.
+	 */
+	public String extractKey(byte[] data) {
+		if (keyExtractors == null) {
+			return (null);
+		}
+
+		StringBuilder key = new StringBuilder();
+		boolean found = false;
+		for (int i = 0; i < keyExtractors.length; i++) {
+			String value = keyExtractors[i].extract(data);
+			if (i > 0) {
+				key.append(keySeparator);
+			}
+			if (value != null) {
+				key.append(value);
+				found = true;
+			}
+		}
+
+		return (found ? key.toString() : null);
+	}
+
+	/**
+	 * Hands the provided data to the spool, which lets the caller know how it
+	 * went once the data is on disk. Waits for room in the spool's write
+	 * queue.
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the data to send
+	 * @param callback
+	 *            - A Callback to call once the data is spooled, null for none
+	 */
+	private void spoolMessage(String topic, byte[] data, Callback callback) {
+		if (!spool.appendLater(topic, data, callback, true)) {
+			logger.error("Unable to spool message, message dropped.");
+			if (callback != null) {
+				callback.onCompletion(null, 
+					new IOException("Unable to spool message."));
+			}
+		}
+	}
+
 	/**
 	 * Generates and sends a heartbeat message to the hazdev kafka broker
 	 * cluster using the provided topic. NOTE that it is considered best 
@@ -277,8 +807,12 @@ public class Producer extends ClientBase {
 			// get current time in seconds
 			Long timeNow = System.currentTimeMillis() / 1000;
 
-			// calculate elapsed time
-			Long elapsedTime = timeNow - lastHeartbeatTime;
+			// calculate elapsed time for this topic
+			Long topicHeartbeatTime = topicHeartbeatTimes.get(topic);
+			if (topicHeartbeatTime == null) {
+				topicHeartbeatTime = lastHeartbeatTime;
+			}
+			Long elapsedTime = timeNow - topicHeartbeatTime;
 
 			// has it been long enough since the last heartbeat?
 			// or are we always sending heartbeats?
@@ -295,9 +829,13 @@ public class Producer extends ClientBase {
 					ProducerRecord<String, byte[]> heartbeatMessage = 
 						new ProducerRecord<String, byte[]>(topic, heartbeatData);	
 
-					// send it async
+					// send it async, on the priority lane if there is one
 					try {
-						producer.send(heartbeatMessage);
+						if (priorityProducer != null) {
+							priorityProducer.send(heartbeatMessage);
+						} else {
+							producer.send(heartbeatMessage);
+						}
 					} catch (Exception e) { 
 						logger.error("Error calling producer.send for heartbeat: " + e.toString());
 						return ;
@@ -305,6 +843,7 @@ public class Producer extends ClientBase {
 				}
 
 				// remember heartbeat time
+				topicHeartbeatTimes.put(topic, timeNow);
 				setLastHeartbeatTime(timeNow);
 			}
 		}
@@ -336,7 +875,40 @@ public class Producer extends ClientBase {
 	 *            closing the kafka producer client
 	 */
 	public void close(long timeout) {
-		producer.close(timeout, TimeUnit.MILLISECONDS);
+		if (rateLimiter != null) {
+			rateLimiter.close(timeout);
+			if (rateMetricName != null) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						rateMetricName);
+				} catch (Exception e) {
+					logger.warn("Exception unregistering rate metrics: " + 
+						e.toString());
+				}
+				rateMetricName = null;
+			}
+		}
+		if (spool != null) {
+			spool.close(timeout);
+		}
+		producer.close(Duration.ofMillis(timeout));
+		if (priorityProducer != null) {
+			priorityProducer.close(Duration.ofMillis(timeout));
+		}
+	}
+
+	/**
+	 * @return the disk spool, null if spooling is disabled
+	 */
+	public DiskSpool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * @return the rate limiter, null if not rate limiting
+	 */
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
 	}
 
 	/**
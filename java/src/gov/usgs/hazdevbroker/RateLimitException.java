@@ -0,0 +1,25 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.IOException;
+
+/**
+ * an exception used to report a message that was dropped by the rate limits
+ * of the Producer, rather than failing to send. Sending it again will not
+ * help while the producer is over its limits.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class RateLimitException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The constructor for the RateLimitException class.
+	 *
+	 * @param message
+	 *            - A String containing why the message was dropped
+	 */
+	public RateLimitException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,619 @@
+package gov.usgs.hazdevbroker;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.kafka.clients.producer.Callback;
+
+/**
+ * A hazdev broker class used by the Producer to limit the rate messages are
+ * sent to each topic, so that a burst, such as the picks following a large
+ * earthquake, doesn't saturate the uplink and starve other traffic.
+ *
+ * Each topic has a token bucket for messages per second and one for bytes
+ * per second, allowing bursts of up to the configured number of seconds of
+ * traffic. The buckets are kept as the time the bucket will next be full,
+ * updated with compare and set, so a message within the limits is sent
+ * without taking a lock. A message over the limits is handled according to
+ * the policy: the sender blocks until it is within the limits, the message
+ * is queued and sent in order by a background thread once it is within the
+ * limits, or the message is dropped. When dropping, a field can mark the
+ * low priority messages, such as picks, so that only they are dropped, while
+ * other messages are sent anyway and use up the limits.
+ *
+ * Messages sent on the priority lane are never delayed, but count against
+ * the limits.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class RateLimiter implements RateLimiterMBean {
+
+	/**
+	 * The policies for messages over the limits
+	 */
+	public static final String POLICY_BLOCK = "block";
+	public static final String POLICY_QUEUE = "queue";
+	public static final String POLICY_SHED = "shed";
+
+	/**
+	 * Default settings
+	 */
+	public static final double DEFAULT_BURST_SECONDS = 1.0;
+	public static final int DEFAULT_MAX_QUEUE = 10000;
+
+	/**
+	 * The longest time in ns the queue thread waits before checking the
+	 * queues again
+	 */
+	private static final long IDLE_WAIT_NS = 100000000L;
+
+	/**
+	 * The producer to send admitted messages with
+	 */
+	private Producer producer;
+
+	/**
+	 * The default messages per second for each topic, 0 for no limit
+	 */
+	private double messageRate;
+
+	/**
+	 * The default bytes per second for each topic, 0 for no limit
+	 */
+	private double byteRate;
+
+	/**
+	 * The number of seconds of traffic that can be sent at once
+	 */
+	private double burstSeconds;
+
+	/**
+	 * The policy for messages over the limits
+	 */
+	private String policy;
+
+	/**
+	 * The maximum number of messages queued across every topic
+	 */
+	private int maxQueue;
+
+	/**
+	 * The limits for each topic
+	 */
+	private ConcurrentHashMap<String, TopicLimits> topicLimits;
+
+	/**
+	 * The configured messages and bytes per second of topics that don't use
+	 * the defaults
+	 */
+	private ConcurrentHashMap<String, double[]> topicRates;
+
+	/**
+	 * The extractor for the field marking low priority messages, and the
+	 * values of it that do, null if every message is low priority
+	 */
+	private FieldExtractor shedExtractor;
+	private Set<String> shedValues;
+
+	/**
+	 * The number of messages currently queued
+	 */
+	private AtomicInteger queueSize;
+
+	/**
+	 * Counters
+	 */
+	private AtomicLong throttledCount;
+	private AtomicLong queuedCount;
+	private AtomicLong shedCount;
+
+	/**
+	 * The thread sending queued messages
+	 */
+	private Thread queueThread;
+
+	/**
+	 * Flag indicating whether the queue thread should keep running
+	 */
+	private volatile boolean running;
+
+	/**
+	 * A token bucket, kept as the time in ns the bucket is next full. Taking
+	 * tokens moves that time forward by the time they take to refill, and the
+	 * bucket is empty once that time is more than the burst ahead of now.
+	 */
+	private static class TokenBucket {
+
+		/**
+		 * The time in ns one token takes to refill
+		 */
+		private double interval;
+
+		/**
+		 * The time in ns the full bucket takes to refill
+		 */
+		private long burst;
+
+		/**
+		 * The time in ns the bucket is next full
+		 */
+		private AtomicLong fullTime;
+
+		/**
+		 * The constructor for the TokenBucket class.
+		 *
+		 * @param rate
+		 *            - A double containing the tokens per second
+		 * @param burstSeconds
+		 *            - A double containing the seconds of tokens the bucket
+		 *            holds
+		 */
+		TokenBucket(double rate, double burstSeconds) {
+			interval = 1000000000.0 / rate;
+			burst = Math.max((long) (burstSeconds * 1000000000.0),
+				(long) interval);
+			fullTime = new AtomicLong(System.nanoTime());
+		}
+
+		/**
+		 * Takes the provided number of tokens if the bucket has them, more
+		 * tokens than the bucket holds are taken once it is full
+		 *
+		 * @param tokens
+		 *            - A long containing the number of tokens
+		 * @return Returns 0 if the tokens were taken, otherwise a long
+		 *         containing the time in ns until they are available
+		 */
+		long tryTake(long tokens) {
+			long cost = (long) (tokens * interval);
+			while (true) {
+				long now = System.nanoTime();
+				long current = fullTime.get();
+				long start = Math.max(current, now);
+				long wait = start + cost - now - Math.max(burst, cost);
+				if (wait > 0) {
+					return (wait);
+				}
+				if (fullTime.compareAndSet(current, start + cost)) {
+					return (0);
+				}
+			}
+		}
+
+		/**
+		 * Takes the provided number of tokens, whether or not the bucket has
+		 * them
+		 *
+		 * @param tokens
+		 *            - A long containing the number of tokens
+		 * @return Returns a long containing the time in ns until the tokens
+		 *         would have been available, 0 if they were
+		 */
+		long take(long tokens) {
+			long cost = (long) (tokens * interval);
+			while (true) {
+				long now = System.nanoTime();
+				long current = fullTime.get();
+				long start = Math.max(current, now);
+				if (fullTime.compareAndSet(current, start + cost)) {
+					return (Math.max(0, start + cost - now - 
+						Math.max(burst, cost)));
+				}
+			}
+		}
+
+		/**
+		 * Returns the provided number of tokens to the bucket
+		 *
+		 * @param tokens
+		 *            - A long containing the number of tokens
+		 */
+		void giveBack(long tokens) {
+			fullTime.addAndGet(-(long) (tokens * interval));
+		}
+	}
+
+	/**
+	 * The limits and queue of one topic
+	 */
+	private static class TopicLimits {
+
+		/**
+		 * The message and byte buckets, null for no limit
+		 */
+		TokenBucket messages;
+		TokenBucket bytes;
+
+		/**
+		 * The messages waiting to be sent
+		 */
+		ConcurrentLinkedQueue<QueuedMessage> queue =
+			new ConcurrentLinkedQueue<QueuedMessage>();
+
+		/**
+		 * Takes the tokens for a message if both buckets have them
+		 *
+		 * @param length
+		 *            - An int containing the message length in bytes
+		 * @return Returns 0 if the tokens were taken, otherwise a long
+		 *         containing the time in ns until they might be available
+		 */
+		long tryTake(int length) {
+			long wait = 0;
+			if (messages != null) {
+				wait = messages.tryTake(1);
+				if (wait > 0) {
+					return (wait);
+				}
+			}
+			if (bytes != null) {
+				wait = bytes.tryTake(length);
+				if (wait > 0) {
+					if (messages != null) {
+						messages.giveBack(1);
+					}
+					return (wait);
+				}
+			}
+			return (0);
+		}
+
+		/**
+		 * Takes the tokens for a message, whether or not the buckets have
+		 * them
+		 *
+		 * @param length
+		 *            - An int containing the message length in bytes
+		 * @return Returns a long containing the time in ns until the tokens
+		 *         would have been available, 0 if they were
+		 */
+		long take(int length) {
+			long wait = 0;
+			if (messages != null) {
+				wait = messages.take(1);
+			}
+			if (bytes != null) {
+				wait = Math.max(wait, bytes.take(length));
+			}
+			return (wait);
+		}
+	}
+
+	/**
+	 * A message waiting to be sent
+	 */
+	private static class QueuedMessage {
+		String topic;
+		byte[] data;
+		Callback callback;
+
+		QueuedMessage(String newTopic, byte[] newData, Callback newCallback) {
+			topic = newTopic;
+			data = newData;
+			callback = newCallback;
+		}
+	}
+
+	/**
+	 * The constructor for the RateLimiter class.
+	 *
+	 * @param newProducer
+	 *            - The Producer to send queued messages with
+	 * @param newMessageRate
+	 *            - A double containing the default messages per second for
+	 *            each topic, 0 for no limit
+	 * @param newByteRate
+	 *            - A double containing the default bytes per second for each
+	 *            topic, 0 for no limit
+	 * @param newBurstSeconds
+	 *            - A double containing the number of seconds of traffic that
+	 *            can be sent at once
+	 * @param newPolicy
+	 *            - A String containing the policy for messages over the
+	 *            limits, one of POLICY_BLOCK, POLICY_QUEUE, or POLICY_SHED
+	 * @param newMaxQueue
+	 *            - An int containing the maximum number of messages queued,
+	 *            messages are dropped once it is reached
+	 * @throws IllegalArgumentException
+	 *             if the policy is not known
+	 */
+	public RateLimiter(Producer newProducer, double newMessageRate,
+		double newByteRate, double newBurstSeconds, String newPolicy,
+		int newMaxQueue) {
+
+		if (!POLICY_BLOCK.equals(newPolicy) &&
+			!POLICY_QUEUE.equals(newPolicy) &&
+			!POLICY_SHED.equals(newPolicy)) {
+			throw new IllegalArgumentException("Unknown rate limit policy: " +
+				newPolicy);
+		}
+
+		producer = newProducer;
+		messageRate = newMessageRate;
+		byteRate = newByteRate;
+		burstSeconds = Math.max(0, newBurstSeconds);
+		policy = newPolicy;
+		maxQueue = Math.max(1, newMaxQueue);
+		topicLimits = new ConcurrentHashMap<String, TopicLimits>();
+		topicRates = new ConcurrentHashMap<String, double[]>();
+		shedExtractor = null;
+		shedValues = null;
+		queueSize = new AtomicInteger(0);
+		throttledCount = new AtomicLong(0);
+		queuedCount = new AtomicLong(0);
+		shedCount = new AtomicLong(0);
+		running = false;
+	}
+
+	/**
+	 * Sets the limits for the provided topic, instead of the defaults. Must
+	 * be called before messages are sent to the topic.
+	 *
+	 * @param topic
+	 *            - A String containing the topic
+	 * @param topicMessageRate
+	 *            - A double containing the messages per second, 0 for no
+	 *            limit
+	 * @param topicByteRate
+	 *            - A double containing the bytes per second, 0 for no limit
+	 */
+	public void setTopicLimits(String topic, double topicMessageRate,
+		double topicByteRate) {
+		topicRates.put(topic, new double[] {topicMessageRate, topicByteRate});
+		topicLimits.remove(topic);
+	}
+
+	/**
+	 * Sets the field marking low priority messages, only low priority
+	 * messages are dropped when shedding
+	 *
+	 * @param field
+	 *            - A String containing the dot separated path of the field
+	 * @param values
+	 *            - A Collection&lt;String&gt; containing the values of the
+	 *            field that mark a message as low priority
+	 */
+	public void setShedField(String field, Collection<String> values) {
+		shedExtractor = new FieldExtractor(field);
+		shedValues = new HashSet<String>(values);
+	}
+
+	/**
+	 * Starts the queue thread, when queueing
+	 */
+	public void start() {
+		if (!POLICY_QUEUE.equals(policy)) {
+			return;
+		}
+
+		running = true;
+		queueThread = new Thread(new Runnable() {
+			public void run() {
+				sendQueued();
+			}
+		}, "hazdev-rate-limit");
+		queueThread.setDaemon(true);
+		queueThread.start();
+	}
+
+	/**
+	 * Stops the queue thread, and sends any queued messages without waiting
+	 * on the limits
+	 *
+	 * @param timeout
+	 *            - A long containing the time in milliseconds to wait for the
+	 *            queue thread to stop
+	 */
+	public void close(long timeout) {
+		running = false;
+		if (queueThread != null) {
+			LockSupport.unpark(queueThread);
+			try {
+				queueThread.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		for (TopicLimits limits : topicLimits.values()) {
+			QueuedMessage message;
+			while ((message = limits.queue.poll()) != null) {
+				queueSize.decrementAndGet();
+				producer.sendAdmitted(message.topic, message.data,
+					message.callback, false);
+			}
+		}
+	}
+
+	/**
+	 * Checks the provided message against the limits of its topic, blocking,
+	 * queueing or dropping it as the policy says if it is over them
+	 *
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 * @param data
+	 *            - A byte[] containing the message
+	 * @param callback
+	 *            - A Callback to call when the send completes, called with
+	 *            a RateLimitException if the message is dropped
+	 * @param urgent
+	 *            - A boolean flag, true if the message is sent on the
+	 *            priority lane and shouldn't be delayed
+	 * @return Returns true if the caller should send the message now, false
+	 *         if it was queued or dropped
+	 */
+	public boolean admit(String topic, byte[] data, Callback callback,
+		boolean urgent) {
+
+		TopicLimits limits = getLimits(topic);
+		if ((limits.messages == null) && (limits.bytes == null)) {
+			return (true);
+		}
+
+		// never delay the priority lane
+		if (urgent) {
+			limits.take(data.length);
+			return (true);
+		}
+
+		if (POLICY_BLOCK.equals(policy)) {
+			long wait = limits.take(data.length);
+			if (wait > 0) {
+				throttledCount.incrementAndGet();
+				try {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return (true);
+		}
+
+		if (POLICY_QUEUE.equals(policy)) {
+			// stay behind anything already queued for the topic
+			if (limits.queue.isEmpty() && (limits.tryTake(data.length) == 0)) {
+				return (true);
+			}
+			if (queueSize.incrementAndGet() > maxQueue) {
+				queueSize.decrementAndGet();
+				shed(callback, "Rate limit queue is full, message dropped.");
+				return (false);
+			}
+			limits.queue.offer(new QueuedMessage(topic, data, callback));
+			queuedCount.incrementAndGet();
+			LockSupport.unpark(queueThread);
+			return (false);
+		}
+
+		// shedding
+		if (limits.tryTake(data.length) == 0) {
+			return (true);
+		}
+		if (isLowPriority(data)) {
+			shed(callback, "Over the rate limit, message dropped.");
+			return (false);
+		}
+		throttledCount.incrementAndGet();
+		limits.take(data.length);
+		return (true);
+	}
+
+	/**
+	 * @return the number of messages delayed by the rate limits, or sent over
+	 *         them because they weren't low priority
+	 */
+	public long getThrottledCount() {
+		return (throttledCount.get());
+	}
+
+	/**
+	 * @return the number of messages queued by the rate limits
+	 */
+	public long getQueuedCount() {
+		return (queuedCount.get());
+	}
+
+	/**
+	 * @return the number of messages dropped by the rate limits
+	 */
+	public long getShedCount() {
+		return (shedCount.get());
+	}
+
+	/**
+	 * @return the number of messages currently queued
+	 */
+	public int getQueueSize() {
+		return (queueSize.get());
+	}
+
+	/**
+	 * Sends the queued messages as the limits allow, until stopped
+	 */
+	private void sendQueued() {
+		while (running) {
+			long idleWait = IDLE_WAIT_NS;
+
+			for (TopicLimits limits : topicLimits.values()) {
+				QueuedMessage message;
+				while ((message = limits.queue.peek()) != null) {
+					long wait = limits.tryTake(message.data.length);
+					if (wait > 0) {
+						idleWait = Math.min(idleWait, wait);
+						break;
+					}
+					limits.queue.poll();
+					queueSize.decrementAndGet();
+					producer.sendAdmitted(message.topic, message.data,
+						message.callback, false);
+				}
+			}
+
+			LockSupport.parkNanos(this, idleWait);
+		}
+	}
+
+	/**
+	 * Gets the limits for the provided topic, creating them if needed
+	 *
+	 * @param topic
+	 *            - A String containing the topic
+	 * @return Returns the TopicLimits for the topic
+	 */
+	private TopicLimits getLimits(String topic) {
+		TopicLimits limits = topicLimits.get(topic);
+		if (limits != null) {
+			return (limits);
+		}
+
+		double[] rates = topicRates.get(topic);
+		if (rates == null) {
+			rates = new double[] {messageRate, byteRate};
+		}
+
+		limits = new TopicLimits();
+		if (rates[0] > 0) {
+			limits.messages = new TokenBucket(rates[0], burstSeconds);
+		}
+		if (rates[1] > 0) {
+			limits.bytes = new TokenBucket(rates[1], burstSeconds);
+		}
+
+		TopicLimits existing = topicLimits.putIfAbsent(topic, limits);
+		return ((existing != null) ? existing : limits);
+	}
+
+	/**
+	 * Checks whether the provided message is low priority
+	 *
+	 * @param data
+	 *            - A byte[] containing the JSON formatted message
+	 * @return Returns true if the message can be dropped
+	 */
+	private boolean isLowPriority(byte[] data) {
+		if (shedExtractor == null) {
+			return (true);
+		}
+		String value = shedExtractor.extract(data);
+		return ((value != null) && shedValues.contains(value));
+	}
+
+	/**
+	 * Drops a message, letting the caller know it wasn't sent
+	 *
+	 * @param callback
+	 *            - A Callback to call, null for none
+	 * @param reason
+	 *            - A String containing why the message was dropped
+	 */
+	private void shed(Callback callback, String reason) {
+		shedCount.incrementAndGet();
+		if (callback != null) {
+			callback.onCompletion(null, new RateLimitException(reason));
+		}
+	}
+}
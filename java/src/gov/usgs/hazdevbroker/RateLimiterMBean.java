@@ -0,0 +1,30 @@
+package gov.usgs.hazdevbroker;
+
+/**
+ * The JMX interface of the RateLimiter, read along with the kafka metrics
+ * using ClientBase.getKafkaMetric
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public interface RateLimiterMBean {
+
+	/**
+	 * @return the number of messages delayed by the rate limits
+	 */
+	public long getThrottledCount();
+
+	/**
+	 * @return the number of messages queued by the rate limits
+	 */
+	public long getQueuedCount();
+
+	/**
+	 * @return the number of messages dropped by the rate limits
+	 */
+	public long getShedCount();
+
+	/**
+	 * @return the number of messages currently queued
+	 */
+	public int getQueueSize();
+}
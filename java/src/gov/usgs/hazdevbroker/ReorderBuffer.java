@@ -0,0 +1,456 @@
+package gov.usgs.hazdevbroker;
+
+import java.util.*;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * A hazdev broker class used to merge the records from every assigned
+ * partition into a single stream ordered by message (event) time.
+ *
+ * Records wait in a heap keyed by message time until the watermark passes
+ * them. The watermark is the earliest of the latest times seen from each
+ * assigned partition, less the allowed lateness, and advances with both
+ * message times and the producer heartbeats received on each partition, so a
+ * quiet producer doesn't stall the stream as long as it sends heartbeats.
+ * A partition that hasn't been heard from yet holds the watermark back. A record
+ * is never held longer than the maximum delay, and the oldest records are
+ * released early if the buffer holds the maximum number of records.
+ *
+ * Records that arrive after the watermark has passed them, or that don't
+ * have a time, are released immediately, out of order.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ReorderBuffer {
+
+	/**
+	 * Default settings
+	 */
+	public static final String DEFAULT_TIME_FIELD = "Time";
+	public static final int DEFAULT_MAX_RECORDS = 100000;
+
+	/**
+	 * The initial size of the arrival ring
+	 */
+	private static final int INITIAL_ARRIVALS = 1024;
+
+	/**
+	 * The extractor for the message time
+	 */
+	private FieldExtractor timeExtractor;
+
+	/**
+	 * The time in ms a message can arrive behind the latest time from its
+	 * partition and still be ordered
+	 */
+	private long lateness;
+
+	/**
+	 * The maximum time in ms to hold a record
+	 */
+	private long maxDelay;
+
+	/**
+	 * The maximum number of records to hold
+	 */
+	private int maxRecords;
+
+	/**
+	 * The heap of held records, ordered by time then arrival, in parallel
+	 * arrays
+	 */
+	private long[] heapTimes;
+	private long[] heapSequences;
+	private Object[] heapRecords;
+	private int size;
+
+	/**
+	 * The ring of held records in arrival order, used to enforce the maximum
+	 * delay, in parallel arrays
+	 */
+	private long[] arrivalTimes;
+	private long[] arrivalDeadlines;
+	private int arrivalHead;
+	private int arrivalCount;
+
+	/**
+	 * The latest time seen from each partition
+	 */
+	private HashMap<TopicPartition, Long> partitionTimes;
+
+	/**
+	 * The latest time released
+	 */
+	private long releasedTime;
+
+	/**
+	 * The sequence number of the next record added
+	 */
+	private long nextSequence;
+
+	/**
+	 * Records released immediately, late, without a time, or to make room
+	 */
+	private ArrayList<ConsumerRecord<String, byte[]>> ready;
+
+	/**
+	 * The number of records that arrived after the watermark passed them
+	 */
+	private long lateCount;
+
+	/**
+	 * The constructor for the ReorderBuffer class.
+	 *
+	 * @param timeField
+	 *            - A String containing the dot separated path of the message
+	 *            time field
+	 * @param newLateness
+	 *            - A long containing the time in ms a message can arrive
+	 *            behind the latest time from its partition and still be
+	 *            ordered
+	 * @param newMaxDelay
+	 *            - A long containing the maximum time in ms to hold a record
+	 * @param newMaxRecords
+	 *            - An int containing the maximum number of records to hold
+	 */
+	public ReorderBuffer(String timeField, long newLateness, long newMaxDelay,
+		int newMaxRecords) {
+		timeExtractor = new FieldExtractor(timeField);
+		lateness = Math.max(0, newLateness);
+		maxDelay = Math.max(0, newMaxDelay);
+		maxRecords = Math.max(1, newMaxRecords);
+
+		heapTimes = new long[maxRecords];
+		heapSequences = new long[maxRecords];
+		heapRecords = new Object[maxRecords];
+		size = 0;
+
+		arrivalTimes = new long[Math.min(maxRecords, INITIAL_ARRIVALS)];
+		arrivalDeadlines = new long[arrivalTimes.length];
+		arrivalHead = 0;
+		arrivalCount = 0;
+
+		partitionTimes = new HashMap<TopicPartition, Long>();
+		releasedTime = Long.MIN_VALUE;
+		nextSequence = 0;
+		ready = new ArrayList<ConsumerRecord<String, byte[]>>();
+		lateCount = 0;
+	}
+
+	/**
+	 * Adds the provided record to the buffer
+	 *
+	 * @param record
+	 *            - The ConsumerRecord to add
+	 */
+	public void add(ConsumerRecord<String, byte[]> record) {
+		long time = Utility.parseTime(timeExtractor.extract(record.value()));
+
+		// nothing to order by
+		if (time == Utility.INVALID_TIME) {
+			ready.add(record);
+			return;
+		}
+
+		advance(new TopicPartition(record.topic(), record.partition()), time);
+
+		// too late to be ordered
+		if (time < releasedTime) {
+			lateCount++;
+			ready.add(record);
+			return;
+		}
+
+		// make room, releasing the earliest record
+		if (size == maxRecords) {
+			if (time <= heapTimes[0]) {
+				releasedTime = time;
+				ready.add(record);
+				return;
+			}
+			releaseFirst(ready);
+		}
+
+		push(time, record);
+		addArrival(time, System.currentTimeMillis() + maxDelay);
+	}
+
+	/**
+	 * Advances the latest time seen from the provided partition, for records
+	 * and heartbeats
+	 *
+	 * @param partition
+	 *            - The TopicPartition the time was seen on
+	 * @param time
+	 *            - A long containing the time in ms since the epoch
+	 */
+	public void advance(TopicPartition partition, long time) {
+		Long partitionTime = partitionTimes.get(partition);
+		if ((partitionTime == null) || (time > partitionTime)) {
+			partitionTimes.put(partition, time);
+		}
+	}
+
+	/**
+	 * Starts waiting on the provided partitions, after they are assigned, so
+	 * the watermark doesn't pass a partition before it has been heard from
+	 *
+	 * @param partitions
+	 *            - A Collection&lt;TopicPartition&gt; containing the
+	 *            partitions
+	 */
+	public void addPartitions(Collection<TopicPartition> partitions) {
+		for (TopicPartition partition : partitions) {
+			if (!partitionTimes.containsKey(partition)) {
+				partitionTimes.put(partition, Long.MIN_VALUE);
+			}
+		}
+	}
+
+	/**
+	 * Stops waiting on the provided partitions, after they are revoked
+	 *
+	 * @param partitions
+	 *            - A Collection&lt;TopicPartition&gt; containing the
+	 *            partitions
+	 */
+	public void removePartitions(Collection<TopicPartition> partitions) {
+		for (TopicPartition partition : partitions) {
+			partitionTimes.remove(partition);
+		}
+	}
+
+	/**
+	 * Releases the records the watermark has passed, the records held for
+	 * the maximum delay, and the records released immediately since the last
+	 * drain
+	 *
+	 * @return Returns an ArrayList&lt;ConsumerRecord&gt; containing the
+	 *         released records, in time order apart from those released
+	 *         immediately
+	 */
+	public ArrayList<ConsumerRecord<String, byte[]>> drain() {
+		ArrayList<ConsumerRecord<String, byte[]>> released = ready;
+		ready = new ArrayList<ConsumerRecord<String, byte[]>>();
+
+		// the watermark
+		long threshold = Long.MIN_VALUE;
+		if (!partitionTimes.isEmpty()) {
+			threshold = Long.MAX_VALUE;
+			for (Long partitionTime : partitionTimes.values()) {
+				threshold = Math.min(threshold, partitionTime);
+			}
+			if (threshold != Long.MIN_VALUE) {
+				threshold -= lateness;
+			}
+		}
+
+		// anything held too long, and everything before it, goes now
+		long now = System.currentTimeMillis();
+		while (arrivalCount > 0) {
+			long time = arrivalTimes[arrivalHead];
+			if (time >= releasedTime) {
+				if (arrivalDeadlines[arrivalHead] > now) {
+					break;
+				}
+				threshold = Math.max(threshold, time);
+			}
+			arrivalHead = (arrivalHead + 1) % arrivalTimes.length;
+			arrivalCount--;
+		}
+
+		while ((size > 0) && (heapTimes[0] <= threshold)) {
+			releaseFirst(released);
+		}
+
+		return (released);
+	}
+
+	/**
+	 * Gets the time until the next record must be released because it has
+	 * been held for the maximum delay
+	 *
+	 * @return Returns a long containing the time in ms, Long.MAX_VALUE if
+	 *         nothing is held
+	 */
+	public long getDelay() {
+		if (!ready.isEmpty()) {
+			return (0);
+		}
+		if ((size == 0) || (arrivalCount == 0)) {
+			return (Long.MAX_VALUE);
+		}
+		return (Math.max(0, arrivalDeadlines[arrivalHead] -
+			System.currentTimeMillis()));
+	}
+
+	/**
+	 * Gets the lowest offset held for each partition, so that offsets past
+	 * held records aren't committed
+	 *
+	 * @param floors
+	 *            - A Map&lt;TopicPartition, Long&gt; containing the lowest
+	 *            offset to count in each partition, records below it, such
+	 *            as backfilled records, are ignored. Partitions without a
+	 *            floor are ignored entirely.
+	 * @return Returns a Map&lt;TopicPartition, Long&gt; containing the lowest
+	 *         offset held for each partition holding records
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<TopicPartition, Long> getLowestOffsets(
+		Map<TopicPartition, Long> floors) {
+		HashMap<TopicPartition, Long> offsets =
+			new HashMap<TopicPartition, Long>();
+		ArrayList<ConsumerRecord<String, byte[]>> held =
+			new ArrayList<ConsumerRecord<String, byte[]>>(ready);
+		for (int i = 0; i < size; i++) {
+			held.add((ConsumerRecord<String, byte[]>) heapRecords[i]);
+		}
+
+		for (ConsumerRecord<String, byte[]> record : held) {
+			TopicPartition partition = new TopicPartition(record.topic(),
+				record.partition());
+			Long floor = floors.get(partition);
+			if ((floor == null) || (record.offset() < floor)) {
+				continue;
+			}
+			Long offset = offsets.get(partition);
+			if ((offset == null) || (record.offset() < offset)) {
+				offsets.put(partition, record.offset());
+			}
+		}
+		return (offsets);
+	}
+
+	/**
+	 * @return the number of records held
+	 */
+	public int size() {
+		return (size + ready.size());
+	}
+
+	/**
+	 * @return the number of records that arrived after the watermark passed
+	 *         them
+	 */
+	public long getLateCount() {
+		return (lateCount);
+	}
+
+	/**
+	 * Removes the earliest record from the heap
+	 *
+	 * @param released
+	 *            - An ArrayList&lt;ConsumerRecord&gt; to add the record to
+	 */
+	@SuppressWarnings("unchecked")
+	private void releaseFirst(ArrayList<ConsumerRecord<String, byte[]>>
+		released) {
+		releasedTime = Math.max(releasedTime, heapTimes[0]);
+		released.add((ConsumerRecord<String, byte[]>) heapRecords[0]);
+
+		size--;
+		heapTimes[0] = heapTimes[size];
+		heapSequences[0] = heapSequences[size];
+		heapRecords[0] = heapRecords[size];
+		heapRecords[size] = null;
+
+		// sift down
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if ((child + 1 < size) && before(child + 1, child)) {
+				child++;
+			}
+			if (!before(child, i)) {
+				break;
+			}
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	/**
+	 * Adds a record to the heap
+	 *
+	 * @param time
+	 *            - A long containing the record time
+	 * @param record
+	 *            - The ConsumerRecord to add
+	 */
+	private void push(long time, ConsumerRecord<String, byte[]> record) {
+		int i = size++;
+		heapTimes[i] = time;
+		heapSequences[i] = nextSequence++;
+		heapRecords[i] = record;
+
+		// sift up
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(i, parent)) {
+				break;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	/**
+	 * Adds a record's time and deadline to the arrival ring, growing it if
+	 * needed
+	 *
+	 * @param time
+	 *            - A long containing the record time
+	 * @param deadline
+	 *            - A long containing the time in ms the record must be
+	 *            released by
+	 */
+	private void addArrival(long time, long deadline) {
+		if (arrivalCount == arrivalTimes.length) {
+			long[] times = new long[arrivalTimes.length * 2];
+			long[] deadlines = new long[times.length];
+			for (int i = 0; i < arrivalCount; i++) {
+				int index = (arrivalHead + i) % arrivalTimes.length;
+				times[i] = arrivalTimes[index];
+				deadlines[i] = arrivalDeadlines[index];
+			}
+			arrivalTimes = times;
+			arrivalDeadlines = deadlines;
+			arrivalHead = 0;
+		}
+
+		int tail = (arrivalHead + arrivalCount) % arrivalTimes.length;
+		arrivalTimes[tail] = time;
+		arrivalDeadlines[tail] = deadline;
+		arrivalCount++;
+	}
+
+	/**
+	 * @return true if heap entry a comes before heap entry b
+	 */
+	private boolean before(int a, int b) {
+		return ((heapTimes[a] < heapTimes[b]) ||
+			((heapTimes[a] == heapTimes[b]) &&
+				(heapSequences[a] < heapSequences[b])));
+	}
+
+	/**
+	 * Swaps two heap entries
+	 */
+	private void swap(int a, int b) {
+		long time = heapTimes[a];
+		heapTimes[a] = heapTimes[b];
+		heapTimes[b] = time;
+		long sequence = heapSequences[a];
+		heapSequences[a] = heapSequences[b];
+		heapSequences[b] = sequence;
+		Object record = heapRecords[a];
+		heapRecords[a] = heapRecords[b];
+		heapRecords[b] = record;
+	}
+}
@@ -0,0 +1,635 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * A hazdev broker class used to write messages to a series of archive files,
+ * rotating to a new file at the start of every UTC day or hour, and
+ * optionally whenever the current file reaches a maximum size.
+ *
+ * Time based rotation is done by a scheduler thread at the period boundary,
+ * so files are rotated on time even when no messages are arriving. Rotated
+ * files are closed on a background thread, and can optionally be compressed
+ * on another background thread (plain text archives are rewritten as block
+ * archives), so writing is never held up by either.
+ *
+ * Archive files are named outputDirectory/yyyy-MM-dd[-HH][-NNN][_name].ext,
+ * where -HH is the hour for hourly rotation, and -NNN is a sequence number
+ * for size based rotation.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class RotatingArchiveWriter implements ArchiveWriter {
+
+	/**
+	 * Rotation periods
+	 */
+	public static final String DAY_PERIOD = "Day";
+	public static final String HOUR_PERIOD = "Hour";
+
+	/**
+	 * The extension appended to the file name while compressing a rotated
+	 * archive file
+	 */
+	public static final String TEMP_EXTENSION = ".tmp";
+
+	/**
+	 * The time to wait before retrying a failed rotation in milliseconds
+	 */
+	public static final long RETRY_MILLIS = 10000;
+
+	/**
+	 * The directory to write archive files to
+	 */
+	private String outputDirectory;
+
+	/**
+	 * The optional file name suffix, empty for none
+	 */
+	private String fileName;
+
+	/**
+	 * The archive file extension
+	 */
+	private String fileExtension;
+
+	/**
+	 * The rotation period, DAY_PERIOD or HOUR_PERIOD
+	 */
+	private String period;
+
+	/**
+	 * The length of the rotation period in milliseconds
+	 */
+	private long periodMillis;
+
+	/**
+	 * The maximum number of bytes of messages to write to a file, 0 for no
+	 * limit
+	 */
+	private long maxFileBytes;
+
+	/**
+	 * Flag indicating whether rotated files are compressed
+	 */
+	private boolean compress;
+
+	/**
+	 * The factory used to create the writer for each archive file
+	 */
+	private ArchiveWriterFactory factory;
+
+	/**
+	 * The writer for the current archive file
+	 */
+	private ArchiveWriter currentWriter;
+
+	/**
+	 * The start of the rotation period of the current archive file in
+	 * milliseconds since the epoch
+	 */
+	private long currentPeriodStart;
+
+	/**
+	 * The sequence number of the current archive file
+	 */
+	private int currentSequence;
+
+	/**
+	 * The number of bytes in the current archive file
+	 */
+	private long currentBytes;
+
+	/**
+	 * The scheduler used for time based rotation
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * The background thread used to close rotated files
+	 */
+	private ExecutorService closer;
+
+	/**
+	 * The background thread used to compress rotated files
+	 */
+	private ExecutorService compressor;
+
+	/**
+	 * The closes of rotated files that may not have finished yet, keyed by
+	 * the rotated writer
+	 */
+	private LinkedHashMap<ArchiveWriter, Future<?>> pendingCloses;
+
+	/**
+	 * Flag indicating whether the writer has been closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Log4J logger for RotatingArchiveWriter
+	 */
+	static Logger logger = Logger.getLogger(RotatingArchiveWriter.class);
+
+	/**
+	 * The constructor for the RotatingArchiveWriter class. Opens the archive
+	 * file for the current period, appending to it if it exists, and starts
+	 * the rotation scheduler.
+	 *
+	 * @param newOutputDirectory
+	 *            - A String containing the directory to write archive files
+	 *            to
+	 * @param newFileName
+	 *            - A String containing the optional file name suffix, empty
+	 *            for none
+	 * @param newFileExtension
+	 *            - A String containing the archive file extension
+	 * @param newPeriod
+	 *            - A String containing the rotation period, DAY_PERIOD or
+	 *            HOUR_PERIOD
+	 * @param newMaxFileBytes
+	 *            - A long containing the maximum number of bytes of messages
+	 *            to write to a file, 0 for no limit
+	 * @param newCompress
+	 *            - A boolean flag indicating whether to compress rotated
+	 *            files
+	 * @param newFactory
+	 *            - The ArchiveWriterFactory used to create the writer for each
+	 *            archive file
+	 * @throws java.io.IOException
+	 *             if the archive file could not be opened
+	 */
+	public RotatingArchiveWriter(String newOutputDirectory, String newFileName,
+			String newFileExtension, String newPeriod, long newMaxFileBytes,
+			boolean newCompress, ArchiveWriterFactory newFactory)
+			throws IOException {
+		outputDirectory = newOutputDirectory;
+		fileName = (newFileName != null) ? newFileName : "";
+		fileExtension = newFileExtension;
+		period = HOUR_PERIOD.equals(newPeriod) ? HOUR_PERIOD : DAY_PERIOD;
+		periodMillis = period.equals(HOUR_PERIOD) ? 3600000L : 86400000L;
+		maxFileBytes = newMaxFileBytes;
+		compress = newCompress;
+		factory = newFactory;
+		pendingCloses = new LinkedHashMap<ArchiveWriter, Future<?>>();
+		closed = false;
+
+		// open the file for the current period
+		long periodStart = periodStart(System.currentTimeMillis());
+		openFile(periodStart, firstSequence(periodStart));
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				namedThreadFactory("hazdev-archive-rotate"));
+		closer = Executors.newSingleThreadExecutor(
+				namedThreadFactory("hazdev-archive-close"));
+		compressor = Executors.newSingleThreadExecutor(
+				namedThreadFactory("hazdev-archive-compress-rotated"));
+
+		scheduleRotation(currentPeriodStart + periodMillis -
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Writes the provided message to the current archive file, rotating first
+	 * if it would go over the maximum file size
+	 *
+	 * @param message
+	 *            - A byte[] containing the message to write
+	 * @throws java.io.IOException
+	 *             if the message could not be written
+	 */
+	public synchronized void write(byte[] message) throws IOException {
+		checkClosed();
+
+		if ((maxFileBytes > 0) && (currentBytes > 0) &&
+			(currentBytes + message.length + 1 > maxFileBytes)) {
+			rotateTo(currentPeriodStart, currentSequence + 1);
+		}
+
+		currentWriter.write(message);
+		currentBytes += message.length + 1;
+	}
+
+	/**
+	 * Writes out any messages that are due to be written to disk
+	 *
+	 * @throws java.io.IOException
+	 *             if the messages could not be written
+	 */
+	public synchronized void flush() throws IOException {
+		checkClosed();
+		currentWriter.flush();
+	}
+
+	/**
+	 * Waits for any rotated files to finish closing, then forces the current
+	 * archive file to disk, so that every message written so far survives a
+	 * crash
+	 *
+	 * @throws java.io.IOException
+	 *             if a rotated file could not be closed, or the messages
+	 *             could not be written
+	 */
+	public void sync() throws IOException {
+		// the file being written when called, and the files rotated before
+		// it, later rotations don't hold this up
+		ArchiveWriter writer = null;
+		LinkedHashMap<ArchiveWriter, Future<?>> closes = null;
+		synchronized (this) {
+			checkClosed();
+			writer = currentWriter;
+			closes = new LinkedHashMap<ArchiveWriter, Future<?>>(
+					pendingCloses);
+		}
+
+		// rotated files are synced before they are closed, waiting without
+		// the lock so writing can carry on
+		for (Map.Entry<ArchiveWriter, Future<?>> close : closes.entrySet()) {
+			waitForClose(close.getKey(), close.getValue());
+		}
+
+		Future<?> rotatedClose = null;
+		synchronized (this) {
+			checkClosed();
+			if (writer == currentWriter) {
+				writer.sync();
+				return;
+			}
+
+			// rotated since, and synced by its close, which is gone if it
+			// has already finished cleanly
+			rotatedClose = pendingCloses.get(writer);
+		}
+		if (rotatedClose != null) {
+			waitForClose(writer, rotatedClose);
+		}
+	}
+
+	/**
+	 * Stops the rotation scheduler, closes the current archive file, and waits
+	 * for any rotated files to finish closing and compressing
+	 *
+	 * @throws java.io.IOException
+	 *             if the archive file could not be closed
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			scheduler.shutdownNow();
+		}
+
+		try {
+			currentWriter.close();
+		} finally {
+			closer.shutdown();
+			try {
+				closer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				compressor.shutdown();
+				compressor.awaitTermination(Long.MAX_VALUE,
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the name of the current archive file
+	 */
+	public synchronized String getFileName() {
+		return (currentWriter.getFileName());
+	}
+
+	/**
+	 * Builds the archive file name for the provided period and sequence
+	 * number
+	 *
+	 * @param periodStart
+	 *            - A long containing the start of the rotation period in
+	 *            milliseconds since the epoch
+	 * @param sequence
+	 *            - An int containing the sequence number, only used for size
+	 *            based rotation
+	 * @return Returns a String containing the archive file name
+	 */
+	public String fileNameFor(long periodStart, int sequence) {
+		SimpleDateFormat format = new SimpleDateFormat(
+				period.equals(HOUR_PERIOD) ? "yyyy-MM-dd-HH" : "yyyy-MM-dd");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		StringBuilder name = new StringBuilder(outputDirectory);
+		name.append('/').append(format.format(new Date(periodStart)));
+		if (maxFileBytes > 0) {
+			name.append(String.format("-%03d", sequence));
+		}
+		if (!fileName.isEmpty()) {
+			name.append('_').append(fileName);
+		}
+		name.append('.').append(fileExtension);
+
+		return (name.toString());
+	}
+
+	/**
+	 * Scheduler function, rotates to the file for the new period once the
+	 * current period is over
+	 */
+	private void rotateOnSchedule() {
+		long nextRotation = RETRY_MILLIS;
+		try {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+
+				long periodStart = periodStart(System.currentTimeMillis());
+				if (periodStart != currentPeriodStart) {
+					rotateTo(periodStart, firstSequence(periodStart));
+				}
+				nextRotation = currentPeriodStart + periodMillis -
+					System.currentTimeMillis();
+			}
+		} catch (Exception e) {
+			logger.error("Exception rotating archive file: " + e.toString());
+		}
+
+		scheduleRotation(nextRotation);
+	}
+
+	/**
+	 * Schedules the next time based rotation
+	 *
+	 * @param delay
+	 *            - A long containing the time until the rotation in
+	 *            milliseconds
+	 */
+	private void scheduleRotation(long delay) {
+		try {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					rotateOnSchedule();
+				}
+			}, Math.max(0, delay), TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			// shut down
+		}
+	}
+
+	/**
+	 * Switches to the provided archive file, handing the current file to the
+	 * background thread to close. Must be called while synchronized.
+	 *
+	 * @param periodStart
+	 *            - A long containing the start of the rotation period of the
+	 *            new file
+	 * @param sequence
+	 *            - An int containing the sequence number of the new file
+	 * @throws java.io.IOException
+	 *             if the new file could not be opened
+	 */
+	private void rotateTo(long periodStart, int sequence) throws IOException {
+		final ArchiveWriter rotatedWriter = currentWriter;
+		openFile(periodStart, sequence);
+
+		// forget closes that finished cleanly, failures are reported by sync
+		Iterator<Future<?>> iterator = pendingCloses.values().iterator();
+		while (iterator.hasNext()) {
+			Future<?> close = iterator.next();
+			if (close.isDone()) {
+				try {
+					close.get();
+					iterator.remove();
+				} catch (Exception e) {
+					// keep it for sync
+				}
+			}
+		}
+
+		pendingCloses.put(rotatedWriter, closer.submit(new Runnable() {
+			public void run() {
+				closeRotated(rotatedWriter);
+			}
+		}));
+
+		logger.info("Switched to new Archive File: " +
+				currentWriter.getFileName() + ".");
+	}
+
+	/**
+	 * Background function that closes a rotated archive file, then hands it
+	 * to the compression thread if configured
+	 *
+	 * @param rotatedWriter
+	 *            - The ArchiveWriter of the rotated file
+	 */
+	private void closeRotated(ArchiveWriter rotatedWriter) {
+		final File rotatedFile = new File(rotatedWriter.getFileName());
+		try {
+			rotatedWriter.sync();
+			rotatedWriter.close();
+		} catch (IOException e) {
+			logger.error("Exception closing archive file " +
+					rotatedFile.getPath() + ": " + e.toString());
+			throw new RuntimeException(e);
+		}
+
+		if (compress) {
+			compressor.execute(new Runnable() {
+				public void run() {
+					try {
+						compressRotated(rotatedFile);
+					} catch (Exception e) {
+						logger.error("Exception compressing archive file " +
+								rotatedFile.getPath() + ": " + e.toString());
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Compresses a rotated plain text archive file by rewriting it as a block
+	 * archive, with the block archive key index replacing the plain text one.
+	 * Block archive files are left as they are.
+	 *
+	 * @param archiveFile
+	 *            - A File containing the rotated archive file
+	 * @throws java.io.IOException
+	 *             if the file could not be compressed
+	 */
+	private void compressRotated(File archiveFile) throws IOException {
+		if (!archiveFile.exists() || (archiveFile.length() == 0) ||
+			BlockArchiveReader.isBlockArchive(archiveFile)) {
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+		File tempFile = new File(archiveFile.getPath() + TEMP_EXTENSION);
+		File tempKeyFile = ArchiveKeyIndex.indexFileFor(tempFile);
+		tempFile.delete();
+		tempKeyFile.delete();
+
+		// rewrite the messages
+		ArchiveWriter writer = factory.createCompressedWriter(
+				tempFile.getPath());
+		MappedLineReader reader = new MappedLineReader(archiveFile);
+		try {
+			byte[] line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.length > 0) {
+					writer.write(line);
+				}
+			}
+		} finally {
+			reader.close();
+			writer.close();
+		}
+
+		// drop the plain text indexes first, so that a crash part way
+		// through never leaves a stale index
+		ArchiveTimeIndex.indexFileFor(archiveFile).delete();
+		ArchiveKeyIndex.indexFileFor(archiveFile).delete();
+		if (!tempFile.renameTo(archiveFile)) {
+			throw new IOException("Unable to replace " +
+					archiveFile.getPath());
+		}
+		if (tempKeyFile.exists()) {
+			tempKeyFile.renameTo(ArchiveKeyIndex.indexFileFor(archiveFile));
+		}
+
+		logger.info("Compressed Archive File: " + archiveFile.getPath() +
+				" in " + String.valueOf(System.currentTimeMillis() - startTime)
+				+ " ms.");
+	}
+
+	/**
+	 * Opens the archive file for the provided period and sequence number as
+	 * the current file
+	 *
+	 * @param periodStart
+	 *            - A long containing the start of the rotation period
+	 * @param sequence
+	 *            - An int containing the sequence number
+	 * @throws java.io.IOException
+	 *             if the file could not be opened
+	 */
+	private void openFile(long periodStart, int sequence) throws IOException {
+		String name = fileNameFor(periodStart, sequence);
+		currentWriter = factory.createWriter(name);
+		currentPeriodStart = periodStart;
+		currentSequence = sequence;
+		currentBytes = new File(name).length();
+	}
+
+	/**
+	 * Finds the sequence number to start writing at for the provided period,
+	 * after any files already written for the period
+	 *
+	 * @param periodStart
+	 *            - A long containing the start of the rotation period
+	 * @return Returns an int containing the sequence number
+	 */
+	private int firstSequence(long periodStart) {
+		if (maxFileBytes <= 0) {
+			return (0);
+		}
+
+		int sequence = 0;
+		while (new File(fileNameFor(periodStart, sequence + 1)).exists()) {
+			sequence++;
+		}
+		if (new File(fileNameFor(periodStart, sequence)).length() >=
+			maxFileBytes) {
+			sequence++;
+		}
+		return (sequence);
+	}
+
+	/**
+	 * Gets the start of the rotation period containing the provided time
+	 *
+	 * @param time
+	 *            - A long containing the time in milliseconds since the epoch
+	 * @return Returns the start of the period in milliseconds since the epoch
+	 */
+	private long periodStart(long time) {
+		return (time - (time % periodMillis));
+	}
+
+	/**
+	 * Waits for the background close of a rotated file to finish, then
+	 * forgets it, so a failure is only reported once
+	 *
+	 * @param writer
+	 *            - The ArchiveWriter of the rotated file
+	 * @param close
+	 *            - The Future of the close
+	 * @throws java.io.IOException
+	 *             if the close failed
+	 */
+	private void waitForClose(ArchiveWriter writer, Future<?> close)
+			throws IOException {
+		try {
+			close.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for archive close.");
+		} catch (ExecutionException e) {
+			throw new IOException("Failed closing rotated archive file: " +
+					e.getCause().toString());
+		} finally {
+			synchronized (this) {
+				if (pendingCloses.get(writer) == close) {
+					pendingCloses.remove(writer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Throws if the writer has been closed
+	 *
+	 * @throws java.io.IOException
+	 *             if the writer has been closed
+	 */
+	private void checkClosed() throws IOException {
+		if (closed) {
+			throw new IOException("Archive writer closed.");
+		}
+	}
+
+	/**
+	 * Creates a thread factory making daemon threads with the provided name
+	 *
+	 * @param name
+	 *            - A String containing the thread name
+	 * @return Returns the ThreadFactory
+	 */
+	private static ThreadFactory namedThreadFactory(final String name) {
+		return (new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return (thread);
+			}
+		});
+	}
+}
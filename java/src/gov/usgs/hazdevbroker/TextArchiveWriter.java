@@ -0,0 +1,304 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A hazdev broker class used to write messages to a plain text archive file,
+ * one message per line. Messages are appended to any existing file.
+ *
+ * Optionally, a sparse time index is written to a sidecar file next to the
+ * archive file, with one entry for every span of a fixed number of messages,
+ * see ArchiveTimeIndex. Span times are taken from the configured time field
+ * of each message, or the time the message was written if it does not have a
+ * valid time.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class TextArchiveWriter implements ArchiveWriter {
+
+	/**
+	 * The size of the output buffer in bytes
+	 */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The name of the archive file
+	 */
+	private String fileName;
+
+	/**
+	 * The archive output stream
+	 */
+	private OutputStream outputStream;
+
+	/**
+	 * The archive file channel, used to force the archive file to disk
+	 */
+	private FileChannel channel;
+
+	/**
+	 * The time index output stream, null if not indexing
+	 */
+	private OutputStream indexStream;
+
+	/**
+	 * The key index to build, null if not indexing keys
+	 */
+	private ArchiveKeyIndexWriter keyIndex;
+
+	/**
+	 * The number of messages in each time index span
+	 */
+	private int indexMessages;
+
+	/**
+	 * The extractor used to get the time from each message when indexing
+	 */
+	private FieldExtractor timeExtractor;
+
+	/**
+	 * The file position after the last message written
+	 */
+	private long position;
+
+	/**
+	 * The file position of the start of the current span
+	 */
+	private long spanOffset;
+
+	/**
+	 * The number of messages in the current span
+	 */
+	private int spanCount;
+
+	/**
+	 * The earliest message time in the current span
+	 */
+	private long spanMinTime;
+
+	/**
+	 * The latest message time in the current span
+	 */
+	private long spanMaxTime;
+
+	/**
+	 * The constructor for the TextArchiveWriter class. Opens the provided file
+	 * for appending.
+	 *
+	 * @param newFileName
+	 *            - A String containing the archive file name
+	 * @throws java.io.IOException
+	 *             if the file could not be opened
+	 */
+	public TextArchiveWriter(String newFileName) throws IOException {
+		this(newFileName, 0, null, null);
+	}
+
+	/**
+	 * The advanced constructor for the TextArchiveWriter class. Opens the
+	 * provided file for appending, and the time index file if indexing.
+	 *
+	 * @param newFileName
+	 *            - A String containing the archive file name
+	 * @param newIndexMessages
+	 *            - An int containing the number of messages in each time
+	 *            index span, 0 to disable the time index
+	 * @param timeField
+	 *            - A String containing the message field holding the message
+	 *            time
+	 * @throws java.io.IOException
+	 *             if the files could not be opened
+	 */
+	public TextArchiveWriter(String newFileName, int newIndexMessages,
+			String timeField) throws IOException {
+		this(newFileName, newIndexMessages, timeField, null);
+	}
+
+	/**
+	 * The advanced constructor for the TextArchiveWriter class with a key
+	 * index. Opens the provided file for appending, the time index file if
+	 * indexing, and the key index file if indexing keys. The key index
+	 * locations are the file positions of the messages.
+	 *
+	 * @param newFileName
+	 *            - A String containing the archive file name
+	 * @param newIndexMessages
+	 *            - An int containing the number of messages in each time
+	 *            index span, 0 to disable the time index
+	 * @param timeField
+	 *            - A String containing the message field holding the message
+	 *            time
+	 * @param keyFields
+	 *            - A List&lt;String&gt; containing the key fields to index,
+	 *            null or empty to disable the key index
+	 * @throws java.io.IOException
+	 *             if the files could not be opened
+	 */
+	public TextArchiveWriter(String newFileName, int newIndexMessages,
+			String timeField, List<String> keyFields) throws IOException {
+		fileName = newFileName;
+		File archiveFile = new File(newFileName);
+		position = archiveFile.length();
+		FileOutputStream fileStream = new FileOutputStream(archiveFile, true);
+		channel = fileStream.getChannel();
+		outputStream = new BufferedOutputStream(fileStream, BUFFER_SIZE);
+
+		keyIndex = null;
+		indexMessages = newIndexMessages;
+		indexStream = null;
+		if (indexMessages > 0) {
+			timeExtractor = new FieldExtractor(timeField);
+
+			// drop any partial entry left by a crash
+			File indexFile = ArchiveTimeIndex.indexFileFor(archiveFile);
+			if (indexFile.length() % ArchiveTimeIndex.ENTRY_SIZE != 0) {
+				RandomAccessFile truncateFile = 
+					new RandomAccessFile(indexFile, "rw");
+				try {
+					truncateFile.setLength(indexFile.length() - 
+						(indexFile.length() % ArchiveTimeIndex.ENTRY_SIZE));
+				} finally {
+					truncateFile.close();
+				}
+			}
+
+			indexStream = new BufferedOutputStream(
+					new FileOutputStream(indexFile, true));
+		}
+		if ((keyFields != null) && !keyFields.isEmpty()) {
+			keyIndex = new ArchiveKeyIndexWriter(newFileName, keyFields);
+		}
+		resetSpan();
+	}
+
+	/**
+	 * Writes the provided message to the archive, followed by a newline if
+	 * the message is not already newline terminated
+	 *
+	 * @param message
+	 *            - A byte[] containing the message to write
+	 * @throws java.io.IOException
+	 *             if the message could not be written
+	 */
+	public void write(byte[] message) throws IOException {
+		outputStream.write(message);
+		long length = message.length;
+		if ((message.length == 0) || (message[message.length - 1] != '\n')) {
+			outputStream.write('\n');
+			length++;
+		}
+
+		if (indexStream != null) {
+			long messageTime = Utility.parseTime(
+				timeExtractor.extract(message));
+			if (messageTime == Utility.INVALID_TIME) {
+				messageTime = System.currentTimeMillis();
+			}
+			spanMinTime = Math.min(spanMinTime, messageTime);
+			spanMaxTime = Math.max(spanMaxTime, messageTime);
+			spanCount++;
+		}
+		if (keyIndex != null) {
+			keyIndex.add(message, position);
+		}
+		position += length;
+
+		if ((indexStream != null) && (spanCount >= indexMessages)) {
+			writeIndexEntry();
+		}
+	}
+
+	/**
+	 * Flushes the written messages to the archive file
+	 *
+	 * @throws java.io.IOException
+	 *             if the messages could not be written
+	 */
+	public void flush() throws IOException {
+		outputStream.flush();
+
+		// only index messages that have been written out
+		if (indexStream != null) {
+			indexStream.flush();
+		}
+		if (keyIndex != null) {
+			keyIndex.flush();
+		}
+	}
+
+	/**
+	 * Flushes the written messages to the archive file and forces the archive
+	 * file to disk. The indexes are not forced, they are only ever behind the
+	 * archive file.
+	 *
+	 * @throws java.io.IOException
+	 *             if the messages could not be written
+	 */
+	public void sync() throws IOException {
+		flush();
+		channel.force(false);
+	}
+
+	/**
+	 * Closes the archive file
+	 *
+	 * @throws java.io.IOException
+	 *             if the archive could not be closed
+	 */
+	public void close() throws IOException {
+		if ((indexStream != null) && (spanCount > 0)) {
+			writeIndexEntry();
+		}
+
+		outputStream.close();
+		if (indexStream != null) {
+			indexStream.close();
+		}
+		if (keyIndex != null) {
+			keyIndex.close();
+		}
+	}
+
+	/**
+	 * Writes the time index entry for the current span, and starts a new one
+	 *
+	 * @throws java.io.IOException
+	 *             if the entry could not be written
+	 */
+	private void writeIndexEntry() throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(ArchiveTimeIndex.ENTRY_SIZE);
+		entry.putLong(spanOffset);
+		entry.putInt((int) (position - spanOffset));
+		entry.putInt(spanCount);
+		entry.putLong(spanMinTime);
+		entry.putLong(spanMaxTime);
+		indexStream.write(entry.array());
+
+		resetSpan();
+	}
+
+	/**
+	 * Starts a new time index span at the current file position
+	 */
+	private void resetSpan() {
+		spanOffset = position;
+		spanCount = 0;
+		spanMinTime = Long.MAX_VALUE;
+		spanMaxTime = Long.MIN_VALUE;
+	}
+
+	/**
+	 * @return the name of the archive file being written
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+}
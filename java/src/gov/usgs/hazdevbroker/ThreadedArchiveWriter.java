@@ -0,0 +1,278 @@
+package gov.usgs.hazdevbroker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.log4j.Logger;
+
+/**
+ * A hazdev broker class used to write messages to an archive on its own
+ * thread. Messages are collected into batches, and the batches are written to
+ * the wrapped ArchiveWriter in order by a writer thread, so several archives
+ * can be written in parallel while the order within each is preserved. The
+ * caller is only held up if the writer thread falls behind.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ThreadedArchiveWriter implements ArchiveWriter {
+
+	/**
+	 * The number of messages in a batch before it is handed to the writer
+	 * thread
+	 */
+	public static final int BATCH_SIZE = 1024;
+
+	/**
+	 * The number of batches that can be waiting to be written before the
+	 * caller is held up
+	 */
+	public static final int MAX_PENDING_BATCHES = 64;
+
+	/**
+	 * The batch handed to the writer thread to stop it
+	 */
+	private static final ArrayList<byte[]> END_BATCH = new ArrayList<byte[]>();
+
+	/**
+	 * The wrapped archive writer, only written to by the writer thread
+	 */
+	private ArchiveWriter writer;
+
+	/**
+	 * The batch being collected
+	 */
+	private ArrayList<byte[]> batch;
+
+	/**
+	 * The batches waiting to be written
+	 */
+	private BlockingQueue<ArrayList<byte[]>> batchQueue;
+
+	/**
+	 * The number of batches handed to the writer thread that haven't been
+	 * written yet, guarded by this
+	 */
+	private int pendingBatches;
+
+	/**
+	 * The writer thread
+	 */
+	private Thread writerThread;
+
+	/**
+	 * The first exception hit by the writer thread, reported on the next call
+	 */
+	private volatile IOException writeException;
+
+	/**
+	 * Log4J logger for ThreadedArchiveWriter
+	 */
+	static Logger logger = Logger.getLogger(ThreadedArchiveWriter.class);
+
+	/**
+	 * The constructor for the ThreadedArchiveWriter class. Starts the writer
+	 * thread.
+	 *
+	 * @param newWriter
+	 *            - The ArchiveWriter to write to
+	 * @param threadName
+	 *            - A String containing the name of the writer thread
+	 */
+	public ThreadedArchiveWriter(ArchiveWriter newWriter, String threadName) {
+		writer = newWriter;
+		batch = new ArrayList<byte[]>();
+		batchQueue = new ArrayBlockingQueue<ArrayList<byte[]>>(
+				MAX_PENDING_BATCHES);
+		pendingBatches = 0;
+		writeException = null;
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeBatches();
+			}
+		}, threadName);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Adds the provided message to the batch being collected
+	 *
+	 * @param message
+	 *            - A byte[] containing the message to write
+	 * @throws java.io.IOException
+	 *             if a previous batch could not be written
+	 */
+	public void write(byte[] message) throws IOException {
+		checkException();
+
+		batch.add(message);
+		if (batch.size() >= BATCH_SIZE) {
+			handOff(batch);
+		}
+	}
+
+	/**
+	 * Hands the batch being collected to the writer thread, which writes it
+	 * and then flushes the wrapped writer. Hands off an empty batch if nothing
+	 * has been collected, so that the wrapped writer is still flushed.
+	 *
+	 * @throws java.io.IOException
+	 *             if a previous batch could not be written
+	 */
+	public void flush() throws IOException {
+		checkException();
+		handOff(batch);
+	}
+
+	/**
+	 * Waits for every message written so far to be written by the writer
+	 * thread, then syncs the wrapped writer
+	 *
+	 * @throws java.io.IOException
+	 *             if the messages could not be written
+	 */
+	public void sync() throws IOException {
+		flush();
+		waitForPending();
+		checkException();
+
+		writer.sync();
+	}
+
+	/**
+	 * Waits for every message written so far to be written, stops the writer
+	 * thread, and closes the wrapped writer
+	 *
+	 * @throws java.io.IOException
+	 *             if the messages could not be written, or the archive could
+	 *             not be closed
+	 */
+	public void close() throws IOException {
+		if (writerThread == null) {
+			return;
+		}
+
+		try {
+			if (!batch.isEmpty()) {
+				handOff(batch);
+			}
+			handOff(END_BATCH);
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted closing archive writer.");
+		} finally {
+			writerThread = null;
+			writer.close();
+		}
+		checkException();
+	}
+
+	/**
+	 * @return the name of the archive file being written by the wrapped writer
+	 */
+	public String getFileName() {
+		return (writer.getFileName());
+	}
+
+	/**
+	 * Hands a batch to the writer thread, waiting if too many batches are
+	 * already pending, and starts a new batch
+	 *
+	 * @param handOffBatch
+	 *            - The ArrayList&lt;byte[]&gt; to hand off
+	 * @throws java.io.IOException
+	 *             if interrupted while waiting
+	 */
+	private void handOff(ArrayList<byte[]> handOffBatch) throws IOException {
+		synchronized (this) {
+			pendingBatches++;
+		}
+
+		try {
+			batchQueue.put(handOffBatch);
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				pendingBatches--;
+			}
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted writing archive: " +
+					getFileName());
+		}
+
+		if (handOffBatch == batch) {
+			batch = new ArrayList<byte[]>();
+		}
+	}
+
+	/**
+	 * Waits for the writer thread to write every pending batch
+	 *
+	 * @throws java.io.IOException
+	 *             if interrupted while waiting
+	 */
+	private synchronized void waitForPending() throws IOException {
+		while (pendingBatches > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted syncing archive: " +
+						getFileName());
+			}
+		}
+	}
+
+	/**
+	 * Writer thread function, writes each batch in the order they were
+	 * handed off, flushing the wrapped writer after each
+	 */
+	private void writeBatches() {
+		while (true) {
+			ArrayList<byte[]> writeBatch = null;
+			try {
+				writeBatch = batchQueue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				if (writeBatch == END_BATCH) {
+					return;
+				}
+
+				// keep taking batches after a failure, so nothing waits
+				// forever, the failure is reported to the caller
+				if (writeException == null) {
+					for (byte[] message : writeBatch) {
+						writer.write(message);
+					}
+					writer.flush();
+				}
+			} catch (IOException e) {
+				logger.error("Exception writing archive " + getFileName() +
+						": " + e.toString());
+				writeException = e;
+			} finally {
+				synchronized (this) {
+					pendingBatches--;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Throws the first exception hit by the writer thread, if any
+	 *
+	 * @throws java.io.IOException
+	 *             if the writer thread failed
+	 */
+	private void checkException() throws IOException {
+		if (writeException != null) {
+			throw writeException;
+		}
+	}
+}
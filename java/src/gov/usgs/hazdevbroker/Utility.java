@@ -35,6 +35,11 @@ public class Utility {
 	private static final String EMPTY_STRING = "";
 	private static final String COMMENT_IDENTIFIER = "#";
 
+	/**
+	 * Value returned by parseTime when a time could not be parsed
+	 */
+	public static final long INVALID_TIME = Long.MIN_VALUE;
+
 	/**
 	 * Log4J logger for Consumer
 	 */
@@ -185,6 +190,140 @@ public class Utility {
 		return date;
 	}
 
+	/**
+	 * Fast conversion of a message time into milliseconds since the epoch,
+	 * intended for use on every message. Handles XML/ISO 8601 date times of
+	 * the form yyyy-MM-ddTHH:mm:ss[.SSS][Z|+HH:mm|-HH:mm], as written by
+	 * formatDate, as well as numeric epoch times in seconds or milliseconds.
+	 *
+	 * @param toParse
+	 *            the time string to parse.
+	 * @return the time in milliseconds since the epoch, or INVALID_TIME if the
+	 *         time could not be parsed.
+	 */
+	public static long parseTime(final String toParse) {
+		if ((toParse == null) || toParse.isEmpty()) {
+			return (INVALID_TIME);
+		}
+
+		// numeric epoch time
+		char first = toParse.charAt(0);
+		if ((toParse.length() < 19) || (toParse.charAt(4) != '-')) {
+			if ((first == '-') || ((first >= '0') && (first <= '9'))) {
+				try {
+					double value = Double.parseDouble(toParse);
+
+					// anything this small must be in seconds
+					if (Math.abs(value) < 1e11) {
+						return ((long) (value * 1000.0));
+					}
+					return ((long) value);
+				} catch (NumberFormatException e) {
+					return (INVALID_TIME);
+				}
+			}
+			return (INVALID_TIME);
+		}
+
+		// yyyy-MM-ddTHH:mm:ss
+		int year = parseDigits(toParse, 0, 4);
+		int month = parseDigits(toParse, 5, 2);
+		int day = parseDigits(toParse, 8, 2);
+		int hour = parseDigits(toParse, 11, 2);
+		int minute = parseDigits(toParse, 14, 2);
+		int second = parseDigits(toParse, 17, 2);
+		if ((year < 0) || (month < 1) || (month > 12) || (day < 1) || 
+			(day > 31) || (hour < 0) || (hour > 23) || (minute < 0) || 
+			(minute > 59) || (second < 0) || (second > 60) || 
+			(toParse.charAt(7) != '-') || (toParse.charAt(13) != ':') || 
+			(toParse.charAt(16) != ':')) {
+			return (INVALID_TIME);
+		}
+		char separator = toParse.charAt(10);
+		if ((separator != 'T') && (separator != ' ')) {
+			return (INVALID_TIME);
+		}
+
+		// optional fraction of a second
+		int position = 19;
+		long millis = 0;
+		if ((position < toParse.length()) && (toParse.charAt(position) == '.')) {
+			position++;
+			long scale = 100;
+			while ((position < toParse.length()) && 
+				(toParse.charAt(position) >= '0') && 
+				(toParse.charAt(position) <= '9')) {
+				millis += (toParse.charAt(position) - '0') * scale;
+				scale /= 10;
+				position++;
+			}
+		}
+
+		// optional time zone, default is UTC
+		long offsetMinutes = 0;
+		if (position < toParse.length()) {
+			char zone = toParse.charAt(position);
+			if ((zone == '+') || (zone == '-')) {
+				int offsetHours = parseDigits(toParse, position + 1, 2);
+				int offsetStart = position + 3;
+				if ((offsetStart < toParse.length()) && 
+					(toParse.charAt(offsetStart) == ':')) {
+					offsetStart++;
+				}
+				int offsetMins = parseDigits(toParse, offsetStart, 2);
+				if ((offsetHours < 0) || (offsetMins < 0)) {
+					return (INVALID_TIME);
+				}
+				offsetMinutes = offsetHours * 60 + offsetMins;
+				if (zone == '-') {
+					offsetMinutes = -offsetMinutes;
+				}
+			} else if (zone != 'Z') {
+				return (INVALID_TIME);
+			}
+		}
+
+		// days since the epoch for the civil date
+		long y = (month <= 2) ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + 
+			day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + 
+			dayOfYear;
+		long days = era * 146097 + dayOfEra - 719468;
+
+		return ((((days * 24 + hour) * 60 + minute - offsetMinutes) * 60 + 
+			second) * 1000 + millis);
+	}
+
+	/**
+	 * Parses a fixed number of decimal digits
+	 *
+	 * @param value
+	 *            the String to parse from.
+	 * @param start
+	 *            the index of the first digit.
+	 * @param count
+	 *            the number of digits.
+	 * @return the parsed value, or -1 if the digits are invalid.
+	 */
+	private static int parseDigits(final String value, int start, int count) {
+		if (start + count > value.length()) {
+			return (-1);
+		}
+
+		int result = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = value.charAt(i);
+			if ((c < '0') || (c > '9')) {
+				return (-1);
+			}
+			result = result * 10 + (c - '0');
+		}
+		return (result);
+	}
+
 	/**
 	 * Convenience to read a json formatted configuration file identified by the 
 	 * given configuration file name. 
@@ -4,10 +4,15 @@ import gov.usgs.hazdevbroker.ClientBase;
 import gov.usgs.consumerclient.ConsumerClient;
 import gov.usgs.producerclient.ProducerClient;
 import gov.usgs.archiveclient.ArchiveClient;
+import gov.usgs.replayclient.ReplayClient;
+import gov.usgs.archivequery.ArchiveQuery;
+import gov.usgs.deliverybenchmark.DeliveryBenchmark;
+import gov.usgs.gatewayclient.GatewayClient;
 
 /**
- * a launcher class used to support launching either the ConsumerClient or the
- * ProducerClient from the HazDevBroker JAR
+ * a launcher class used to support launching the ConsumerClient, the
+ * ProducerClient, the ArchiveClient, the ReplayClient, the GatewayClient, the
+ * ArchiveQuery tool, or the DeliveryBenchmark tool from the HazDevBroker JAR
  *
  * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
  */
@@ -48,6 +53,18 @@ public class Launcher {
 		} else if (option.equals("ArchiveClient")) {
 			new ArchiveClient();
 			ArchiveClient.main(args2);
+		} else if (option.equals("ReplayClient")) {
+			new ReplayClient();
+			ReplayClient.main(args2);
+		} else if (option.equals("GatewayClient")) {
+			new GatewayClient();
+			GatewayClient.main(args2);
+		} else if (option.equals("ArchiveQuery")) {
+			new ArchiveQuery();
+			ArchiveQuery.main(args2);
+		} else if (option.equals("DeliveryBenchmark")) {
+			new DeliveryBenchmark();
+			DeliveryBenchmark.main(args2);
 		} else if (option.equals("version")) {
 			System.out.println("v" + ClientBase.VERSION_MAJOR + "." + 
 				ClientBase.VERSION_MINOR + "." + 
@@ -55,7 +72,7 @@ public class Launcher {
 			System.exit(1);
 		} else {
 			System.out.println(
-					"Launcher: Invalid hazdev-broker <clientType> provided, only ConsumerClient, ProducerClient, or ArchiveClient supported.");
+					"Launcher: Invalid hazdev-broker <clientType> provided, only ConsumerClient, ProducerClient, ArchiveClient, ReplayClient, GatewayClient, ArchiveQuery, or DeliveryBenchmark supported.");
 		}
 
 	}
@@ -0,0 +1,286 @@
+package gov.usgs.producerclient;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * a small append-only journal used by the ProducerClient to remember how far
+ * into each input file delivery has been acknowledged, so that a restarted
+ * ProducerClient resumes part way through a file instead of resending it.
+ *
+ * Each journal line is tab separated, either a checkpoint:
+ * C name size modified position line
+ * or a completion:
+ * D name
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class DeliveryJournal {
+
+	/**
+	 * Journal record types
+	 */
+	public static final String CHECKPOINT_RECORD = "C";
+	public static final String DONE_RECORD = "D";
+
+	/**
+	 * The number of records appended before the journal is compacted
+	 */
+	public static final int COMPACT_RECORDS = 10000;
+
+	/**
+	 * The character set of the journal
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The journal file name
+	 */
+	private String journalFileName;
+
+	/**
+	 * The journal output stream
+	 */
+	private FileOutputStream journalStream;
+
+	/**
+	 * The journal channel, used to force records to disk
+	 */
+	private FileChannel journalChannel;
+
+	/**
+	 * The current checkpoints, keyed by input file name, each containing the
+	 * file size, file modified time, position, and line number
+	 */
+	private HashMap<String, long[]> checkpoints;
+
+	/**
+	 * The number of records appended since the journal was compacted
+	 */
+	private int recordCount;
+
+	/**
+	 * Log4J logger for DeliveryJournal
+	 */
+	static Logger logger = Logger.getLogger(DeliveryJournal.class);
+
+	/**
+	 * The constructor for the DeliveryJournal class. Loads any existing
+	 * checkpoints from the provided journal file, and compacts it.
+	 *
+	 * @param fileName
+	 *            - A String containing the journal file name
+	 * @throws java.io.IOException
+	 *             if the journal could not be opened
+	 */
+	public DeliveryJournal(String fileName) throws IOException {
+		journalFileName = fileName;
+		checkpoints = new HashMap<String, long[]>();
+		recordCount = 0;
+
+		load();
+		compact();
+	}
+
+	/**
+	 * Gets the checkpoint for the provided delivery, if one was journaled
+	 * for the same file
+	 *
+	 * @param delivery
+	 *            - The FileDelivery to look up
+	 * @return Returns a long[] containing the file position and line number to
+	 *         resume from, null if the file should be sent from the start
+	 */
+	public synchronized long[] getCheckpoint(FileDelivery delivery) {
+		long[] checkpoint = checkpoints.get(delivery.getInputFile().getName());
+		if (checkpoint == null) {
+			return (null);
+		}
+
+		// make sure this is the same file we were delivering before
+		if ((checkpoint[0] != delivery.getFileSize())
+				|| (checkpoint[1] != delivery.getFileModified())) {
+			return (null);
+		}
+
+		return (new long[] { checkpoint[2], checkpoint[3] });
+	}
+
+	/**
+	 * Journals the provided checkpoint for the provided delivery
+	 *
+	 * @param delivery
+	 *            - The FileDelivery the checkpoint is for
+	 * @param checkpoint
+	 *            - A long[] containing the file position and line number
+	 * @throws java.io.IOException
+	 *             if the checkpoint could not be written
+	 */
+	public synchronized void checkpoint(FileDelivery delivery,
+			long[] checkpoint) throws IOException {
+		String name = delivery.getInputFile().getName();
+		long[] entry = new long[] { delivery.getFileSize(),
+				delivery.getFileModified(), checkpoint[0], checkpoint[1] };
+		checkpoints.put(name, entry);
+
+		append(CHECKPOINT_RECORD + "\t" + name + "\t" + entry[0] + "\t"
+				+ entry[1] + "\t" + entry[2] + "\t" + entry[3] + "\n");
+	}
+
+	/**
+	 * Journals that the provided delivery is complete
+	 *
+	 * @param delivery
+	 *            - The FileDelivery that is complete
+	 * @throws java.io.IOException
+	 *             if the record could not be written
+	 */
+	public synchronized void complete(FileDelivery delivery)
+			throws IOException {
+		String name = delivery.getInputFile().getName();
+		if (checkpoints.remove(name) == null) {
+			// nothing journaled for this file, nothing to clear
+			return;
+		}
+
+		append(DONE_RECORD + "\t" + name + "\n");
+	}
+
+	/**
+	 * Function that closes the journal
+	 */
+	public synchronized void close() {
+		try {
+			if (journalStream != null) {
+				journalStream.close();
+				journalStream = null;
+			}
+		} catch (IOException e) {
+			logger.error("close: " + e.toString());
+		}
+	}
+
+	/**
+	 * Appends the provided record to the journal, and forces it to disk
+	 *
+	 * @param record
+	 *            - A String containing the record to append
+	 * @throws java.io.IOException
+	 *             if the record could not be written
+	 */
+	private void append(String record) throws IOException {
+		journalChannel.write(ByteBuffer.wrap(record.getBytes(UTF8)));
+		journalChannel.force(false);
+
+		recordCount++;
+		if (recordCount >= COMPACT_RECORDS) {
+			compact();
+		}
+	}
+
+	/**
+	 * Loads the checkpoints from the journal file, ignoring any incomplete or
+	 * corrupt records
+	 *
+	 * @throws java.io.IOException
+	 *             if the journal could not be read
+	 */
+	private void load() throws IOException {
+		File journalFile = new File(journalFileName);
+		if (!journalFile.exists()) {
+			return;
+		}
+
+		BufferedReader journalReader = null;
+		try {
+			journalReader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(journalFile), UTF8));
+			String line = null;
+
+			while ((line = journalReader.readLine()) != null) {
+				String[] fields = line.split("\t");
+
+				try {
+					if (fields[0].equals(CHECKPOINT_RECORD)
+							&& (fields.length == 6)) {
+						checkpoints.put(fields[1], new long[] {
+								Long.parseLong(fields[2]),
+								Long.parseLong(fields[3]),
+								Long.parseLong(fields[4]),
+								Long.parseLong(fields[5]) });
+					} else if (fields[0].equals(DONE_RECORD)
+							&& (fields.length == 2)) {
+						checkpoints.remove(fields[1]);
+					}
+				} catch (NumberFormatException e) {
+					// most likely a partial record from a crash
+					logger.warn("Skipping corrupt journal record: " + line);
+				}
+			}
+		} finally {
+			if (journalReader != null) {
+				journalReader.close();
+			}
+		}
+
+		logger.info("Loaded " + String.valueOf(checkpoints.size())
+				+ " delivery checkpoint(s) from: " + journalFileName);
+	}
+
+	/**
+	 * Rewrites the journal with only the current checkpoints, then reopens it
+	 * for appending
+	 *
+	 * @throws java.io.IOException
+	 *             if the journal could not be rewritten
+	 */
+	private void compact() throws IOException {
+		close();
+
+		// write the current checkpoints to a new file
+		File tempFile = new File(journalFileName + ".tmp");
+		FileOutputStream tempStream = new FileOutputStream(tempFile);
+		try {
+			StringBuilder records = new StringBuilder();
+			for (Map.Entry<String, long[]> entry : checkpoints.entrySet()) {
+				long[] values = entry.getValue();
+				records.append(CHECKPOINT_RECORD).append("\t")
+						.append(entry.getKey()).append("\t").append(values[0])
+						.append("\t").append(values[1]).append("\t")
+						.append(values[2]).append("\t").append(values[3])
+						.append("\n");
+			}
+			tempStream.write(records.toString().getBytes(UTF8));
+			tempStream.getFD().sync();
+		} finally {
+			tempStream.close();
+		}
+
+		// replace the journal, the rename is atomic where the platform
+		// allows renaming over an existing file
+		File journalFile = new File(journalFileName);
+		if (!tempFile.renameTo(journalFile)) {
+			journalFile.delete();
+			if (!tempFile.renameTo(journalFile)) {
+				throw new IOException("Unable to replace journal: "
+						+ journalFileName);
+			}
+		}
+
+		// reopen for appending
+		journalStream = new FileOutputStream(journalFile, true);
+		journalChannel = journalStream.getChannel();
+		recordCount = 0;
+	}
+}
@@ -0,0 +1,268 @@
+package gov.usgs.producerclient;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+import gov.usgs.hazdevbroker.RateLimitException;
+
+/**
+ * a class used by the ProducerClient to track the delivery of the messages
+ * in one input file, so that the file is only deleted or archived once every
+ * message in it has been acknowledged by the broker cluster
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class FileDelivery {
+
+	/**
+	 * The input file being delivered
+	 */
+	private File inputFile;
+
+	/**
+	 * The size of the input file when delivery started, used to make sure a
+	 * journal checkpoint belongs to this file
+	 */
+	private long fileSize;
+
+	/**
+	 * The last modified time of the input file when delivery started, used to
+	 * make sure a journal checkpoint belongs to this file
+	 */
+	private long fileModified;
+
+	/**
+	 * Map of the messages that have not yet been acknowledged, keyed by line
+	 * number, containing the file position the line starts at
+	 */
+	private ConcurrentSkipListMap<Long, Long> outstanding;
+
+	/**
+	 * The number of messages sent that have not completed (successfully or
+	 * not)
+	 */
+	private AtomicLong pending;
+
+	/**
+	 * The number of messages that failed to be delivered
+	 */
+	private AtomicLong failures;
+
+	/**
+	 * The number of messages dropped by the producer's rate limits
+	 */
+	private AtomicLong dropped;
+
+	/**
+	 * The number of messages sent
+	 */
+	private AtomicLong sent;
+
+	/**
+	 * Flag indicating that the whole file has been read
+	 */
+	private volatile boolean readComplete;
+
+	/**
+	 * Flag indicating that reading the file failed
+	 */
+	private volatile boolean readFailed;
+
+	/**
+	 * The file position after the last line read
+	 */
+	private volatile long readPosition;
+
+	/**
+	 * The number of lines read
+	 */
+	private volatile long readLines;
+
+	/**
+	 * The file position of the last checkpoint written to the journal
+	 */
+	private long lastCheckpointPosition;
+
+	/**
+	 * The constructor for the FileDelivery class.
+	 *
+	 * @param newInputFile
+	 *            - A File containing the input file to deliver
+	 */
+	public FileDelivery(File newInputFile) {
+		inputFile = newInputFile;
+		fileSize = newInputFile.length();
+		fileModified = newInputFile.lastModified();
+		outstanding = new ConcurrentSkipListMap<Long, Long>();
+		pending = new AtomicLong(0);
+		failures = new AtomicLong(0);
+		dropped = new AtomicLong(0);
+		sent = new AtomicLong(0);
+		readComplete = false;
+		readFailed = false;
+		readPosition = 0;
+		readLines = 0;
+		lastCheckpointPosition = -1;
+	}
+
+	/**
+	 * Records that the provided line is about to be sent
+	 *
+	 * @param lineNumber
+	 *            - A long containing the number of lines before this line
+	 * @param startPosition
+	 *            - A long containing the file position the line starts at
+	 * @return Returns the Callback to pass to the producer for this line
+	 */
+	public Callback lineSent(final long lineNumber, long startPosition) {
+		outstanding.put(lineNumber, startPosition);
+		pending.incrementAndGet();
+		sent.incrementAndGet();
+
+		return (new Callback() {
+			public void onCompletion(RecordMetadata metadata,
+					Exception exception) {
+				if (exception == null) {
+					outstanding.remove(lineNumber);
+				} else if (exception instanceof RateLimitException) {
+					// dropped on purpose, sending it again would only be
+					// dropped again or duplicate the lines that were sent
+					outstanding.remove(lineNumber);
+					dropped.incrementAndGet();
+				} else {
+					// leave the line outstanding so the checkpoint does not
+					// move past it
+					failures.incrementAndGet();
+				}
+				pending.decrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * Records that the whole file has been read
+	 *
+	 * @param position
+	 *            - A long containing the file position after the last line
+	 * @param lines
+	 *            - A long containing the number of lines in the file
+	 */
+	public void readCompleted(long position, long lines) {
+		readPosition = position;
+		readLines = lines;
+		readComplete = true;
+	}
+
+	/**
+	 * Records that reading the file failed part way through
+	 *
+	 * @param position
+	 *            - A long containing the file position after the last line
+	 *            read
+	 * @param lines
+	 *            - A long containing the number of lines read
+	 */
+	public void readFailed(long position, long lines) {
+		readFailed = true;
+		readCompleted(position, lines);
+	}
+
+	/**
+	 * @return true if the whole file has been read and every message sent
+	 *         has completed, successfully or not
+	 */
+	public boolean isComplete() {
+		return (readComplete && (pending.get() == 0));
+	}
+
+	/**
+	 * @return true if every message in the file was read and either
+	 *         delivered or dropped by the rate limits
+	 */
+	public boolean isSuccessful() {
+		return (!readFailed && (failures.get() == 0));
+	}
+
+	/**
+	 * Gets the position in the file that all lines before have been
+	 * acknowledged
+	 *
+	 * @return Returns a long[] containing the file position and line number
+	 *         to resume from
+	 */
+	public long[] getCheckpoint() {
+		Map.Entry<Long, Long> first = outstanding.firstEntry();
+		if (first != null) {
+			return (new long[] { first.getValue(), first.getKey() });
+		}
+		if (readComplete) {
+			return (new long[] { readPosition, readLines });
+		}
+
+		// nothing outstanding but still reading, can't say more than where
+		// we started
+		return (null);
+	}
+
+	/**
+	 * Checks whether the checkpoint has moved since it was last journaled
+	 *
+	 * @param checkpoint
+	 *            - A long[] containing the checkpoint from getCheckpoint
+	 * @return Returns true if the checkpoint should be journaled
+	 */
+	public boolean checkpointChanged(long[] checkpoint) {
+		if ((checkpoint == null) || (checkpoint[0] == lastCheckpointPosition)) {
+			return (false);
+		}
+		lastCheckpointPosition = checkpoint[0];
+		return (true);
+	}
+
+	/**
+	 * @return the input file
+	 */
+	public File getInputFile() {
+		return inputFile;
+	}
+
+	/**
+	 * @return the size of the input file when delivery started
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * @return the last modified time of the input file when delivery started
+	 */
+	public long getFileModified() {
+		return fileModified;
+	}
+
+	/**
+	 * @return the number of messages sent
+	 */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * @return the number of messages that failed to be delivered
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * @return the number of messages dropped by the producer's rate limits
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+}
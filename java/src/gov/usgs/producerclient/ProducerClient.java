@@ -6,14 +6,14 @@ import org.apache.log4j.PropertyConfigurator;
 
 import gov.usgs.hazdevbroker.Utility;
 import gov.usgs.hazdevbroker.Producer;
+import gov.usgs.hazdevbroker.MappedLineReader;
 
 import java.util.*;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.Charset;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -32,11 +32,26 @@ public class ProducerClient {
 	public static final String LOG4J_CONFIGFILE = "Log4JConfigFile";
 	public static final String BROKER_CONFIG = "HazdevBrokerConfig";
 	public static final String TOPIC = "Topic";
+	public static final String TOPIC_ROUTES = "TopicRoutes";
 	public static final String FILE_EXTENSION = "FileExtension";
 	public static final String TIME_PER_FILE = "TimePerFile";
 	public static final String INPUT_DIRECTORY = "InputDirectory";
 	public static final String ARCHIVE_DIRECTORY = "ArchiveDirectory";
 	public static final String HEARTBEAT_INTERVAL = "HeartbeatInterval";
+	public static final String FILE_ENCODING = "FileEncoding";
+	public static final String JOURNAL_FILE = "JournalFile";
+	public static final String MAX_FILES_IN_FLIGHT = "MaxFilesInFlight";
+
+	/**
+	 * Long constant containing the time to wait in ms between checking for
+	 * acknowledged files when there is nothing else to do
+	 */
+	public static final Long DELIVERY_CHECK_MS = 50L;
+
+	/**
+	 * The character set messages are sent in
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
 	/**
 	 * Required configuration string defining the input directory
@@ -53,6 +68,35 @@ public class ProducerClient {
 	 */
 	private static String fileExtension;
 
+	/**
+	 * Optional configuration Charset defining the encoding of the input files,
+	 * null means the files are already UTF-8, default is null
+	 */
+	private static Charset fileCharset;
+
+	/**
+	 * Optional configuration string defining the delivery journal file,
+	 * default is null (no journal)
+	 */
+	private static String journalFileName;
+
+	/**
+	 * The delivery journal, null if not journaling
+	 */
+	private static DeliveryJournal deliveryJournal;
+
+	/**
+	 * Optional configuration Long defining the maximum number of files that
+	 * can be waiting on acknowledgment from the broker at once, default is 4
+	 */
+	private static Long maxFilesInFlight;
+
+	/**
+	 * Optional configuration router picking the topic for each message from
+	 * its fields, default is null (send everything to Topic)
+	 */
+	private static TopicRouter topicRouter;
+
 	/**
 	 * Optional configuration Long defining the number seconds before reading a
 	 * file, default is null
@@ -106,6 +150,11 @@ public class ProducerClient {
 		archiveDirectory = null;
 		fileExtension = null;
 		timePerFile = null;
+		fileCharset = null;
+		journalFileName = null;
+		deliveryJournal = null;
+		maxFilesInFlight = 4L;
+		topicRouter = null;
 		heartbeatInterval = null;
 		metricInterval = 30L;
 		lastMetricTime = (Long) (System.currentTimeMillis() / 1000);
@@ -191,6 +240,41 @@ public class ProducerClient {
 			logger.info("Not using timePerFile.");
 		}
 
+		// get file encoding
+		if (configJSON.containsKey(FILE_ENCODING)) {
+			String encoding = (String) configJSON.get(FILE_ENCODING);
+			try {
+				Charset charset = Charset.forName(encoding);
+				if (!charset.equals(UTF8)) {
+					fileCharset = charset;
+				}
+			} catch (Exception e) {
+				logger.error("Error, invalid FileEncoding in configuration.");
+				System.exit(1);
+			}
+			logger.info("Using configured fileEncoding of: " + encoding);
+		} else {
+			logger.info("Using default fileEncoding of: UTF-8");
+		}
+
+		// get journal file
+		if (configJSON.containsKey(JOURNAL_FILE)) {
+			journalFileName = (String) configJSON.get(JOURNAL_FILE);
+			logger.info("Using configured journalFile of: " + journalFileName);
+		} else {
+			logger.info("Not using journalFile.");
+		}
+
+		// get max files in flight
+		if (configJSON.containsKey(MAX_FILES_IN_FLIGHT)) {
+			maxFilesInFlight = (Long) configJSON.get(MAX_FILES_IN_FLIGHT);
+			logger.info("Using configured maxFilesInFlight of: "
+					+ maxFilesInFlight.toString());
+		} else {
+			logger.info("Using default maxFilesInFlight of: "
+					+ maxFilesInFlight.toString());
+		}
+
 		// get hearbeat interval
 		if (configJSON.containsKey(HEARTBEAT_INTERVAL)) {
 			heartbeatInterval = (Long) configJSON.get(HEARTBEAT_INTERVAL);
@@ -222,6 +306,23 @@ public class ProducerClient {
 			System.exit(1);
 		}
 
+		// get topic routes
+		if (configJSON.containsKey(TOPIC_ROUTES)) {
+			try {
+				topicRouter = new TopicRouter(
+					(JSONArray) configJSON.get(TOPIC_ROUTES), topic);
+			} catch (Exception e) {
+				logger.error("Error, invalid TopicRoutes in configuration: " +
+					e.toString());
+				System.exit(1);
+			}
+			logger.info("Using configured TopicRoutes of: " +
+				configJSON.get(TOPIC_ROUTES).toString());
+		} else {
+			logger.info("Not using TopicRoutes, sending every message to: " +
+				topic);
+		}
+
 		logger.info("----------Processed Config----------");
 
 		// get client id
@@ -235,49 +336,73 @@ public class ProducerClient {
 			m_Producer.VERSION_MAJOR + "." + m_Producer.VERSION_MINOR + "." + 
 			m_Producer.VERSION_PATCH);
 
+		// open the delivery journal
+		if (journalFileName != null) {
+			try {
+				deliveryJournal = new DeliveryJournal(journalFileName);
+			} catch (IOException e) {
+				logger.error("Error, unable to open JournalFile: " + 
+					e.toString());
+				System.exit(1);
+			}
+		}
+
+		// the files currently waiting on acknowledgment from the broker
+		ArrayList<FileDelivery> deliveryList = new ArrayList<FileDelivery>();
+
 		// run until stopped
 		while (true) {
 
-			ArrayList<String> messageList = readMessagesFromFile();
+			// dispose of any files that have been fully acknowledged
+			checkDeliveries(deliveryList);
+
+			File inputFile = null;
+			if (deliveryList.size() < maxFilesInFlight) {
+				inputFile = findInputFile(deliveryList);
+			}
 
 			logKafkaMetrics(m_Producer, clientID);
 
 			// if we have anything to send
-			if (messageList != null) {
+			if (inputFile != null) {
 
-				// send each message
-				for (int i = 0; i < messageList.size(); i++) {
+				FileDelivery delivery = new FileDelivery(inputFile);
 
-					// get message
-					String message = messageList.get(i);
+				// stream the messages in the file to the broker
+				long messageCount = sendMessagesFromFile(m_Producer, topic, 
+					delivery);
 
-					// nullcheck
-					if (message == null) {
-						continue;
-					}
-					if (message.length() == 0) {
-						continue;
-					}
+				logger.debug("Sent " + String.valueOf(messageCount) + 
+					" message(s) from: " + inputFile.getName());
 
-					// log it
-					logger.debug("Sending message: " + message);
-
-					// send message
-					m_Producer.sendString(topic, message);
-				}
-			} else {
+				// wait for the broker to acknowledge the file
+				deliveryList.add(delivery);
+			} else if (deliveryList.isEmpty()) {
 
 				logger.debug("Sending idle heartbeat");
 				
-				// send a heartbeat
-				m_Producer.sendHeartbeat(topic);
+				// send a heartbeat to every topic
+				if (topicRouter != null) {
+					for (String routeTopic : topicRouter.getTopics()) {
+						m_Producer.sendHeartbeat(routeTopic);
+					}
+				} else {
+					m_Producer.sendHeartbeat(topic);
+				}
 			}
 
 			// wait a bit before the next file
+			long sleepTime = 0;
 			if (timePerFile != null) {
+				sleepTime = timePerFile * 1000;
+			} else if ((inputFile == null) && !deliveryList.isEmpty()) {
+				sleepTime = DELIVERY_CHECK_MS;
+			}
+
+			if (sleepTime > 0) {
 
 				try {
-					Thread.sleep(timePerFile * 1000);
+					Thread.sleep(sleepTime);
 				} catch (InterruptedException ex) {
 					logger.error(ex.toString());
 					Thread.currentThread().interrupt();
@@ -287,13 +412,93 @@ public class ProducerClient {
 	}
 
 	/**
-	 * File reading function for ProducerClient
+	 * Delivery checking function for ProducerClient, files that have been
+	 * fully acknowledged are deleted or archived, files that failed are left
+	 * in place to be retried, and the journal is updated for files that are
+	 * still in progress.
 	 *
-	 * @return Returns an ArrayList of messages as Strings, null otherwise
+	 * @param deliveryList
+	 *            - The ArrayList of FileDeliveries in progress
 	 */
-	public static ArrayList<String> readMessagesFromFile() {
+	public static void checkDeliveries(ArrayList<FileDelivery> deliveryList) {
+
+		Iterator<FileDelivery> deliveryIterator = deliveryList.iterator();
+		while (deliveryIterator.hasNext()) {
+			FileDelivery delivery = deliveryIterator.next();
+			File inputFile = delivery.getInputFile();
+
+			try {
+				if (!delivery.isComplete()) {
+
+					// remember how far we've gotten
+					long[] checkpoint = delivery.getCheckpoint();
+					if ((deliveryJournal != null) && 
+						delivery.checkpointChanged(checkpoint)) {
+						deliveryJournal.checkpoint(delivery, checkpoint);
+					}
+					continue;
+				}
+
+				deliveryIterator.remove();
+
+				if (!delivery.isSuccessful()) {
+					logger.error("Failed to deliver " + 
+						String.valueOf(delivery.getFailureCount()) + 
+						" message(s) from: " + inputFile.getName() + 
+						", will retry.");
+
+					// remember where to resume from
+					if (deliveryJournal != null) {
+						deliveryJournal.checkpoint(delivery, 
+							delivery.getCheckpoint());
+					}
+					continue;
+				}
+
+				if (delivery.getDroppedCount() > 0) {
+					logger.warn("Dropped " + 
+						String.valueOf(delivery.getDroppedCount()) + 
+						" message(s) from: " + inputFile.getName() + 
+						" over the rate limits.");
+				}
+
+				logger.debug("Delivered " + 
+					String.valueOf(delivery.getSentCount() - 
+					delivery.getDroppedCount()) + 
+					" message(s) from: " + inputFile.getName());
+
+				// done with the file
+				if (archiveDirectory == null) {
+
+					// not archiving, just delete it
+					inputFile.delete();
+				} else {
+					// Move file to archive directory
+					inputFile.renameTo(new File(
+							archiveDirectory + File.separatorChar + 
+							inputFile.getName()));
+				}
+
+				if (deliveryJournal != null) {
+					deliveryJournal.complete(delivery);
+				}
+			} catch (IOException e) {
+				logger.error("checkDeliveries: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * File finding function for ProducerClient
+	 *
+	 * @param deliveryList
+	 *            - The ArrayList of FileDeliveries in progress, these files
+	 *            are skipped
+	 * @return Returns the next input File with the configured extension, null
+	 *         if there are none
+	 */
+	public static File findInputFile(ArrayList<FileDelivery> deliveryList) {
 
-		ArrayList<String> messageList = null;
 		try {
 			// set up to search the input directory
 			File dir = new File(inputDirectory);
@@ -301,64 +506,132 @@ public class ProducerClient {
 			// list all the files in the directory
 			for (File inputFile : dir.listFiles()) {
 				// if the file has the right extension
-				if (inputFile.getName().endsWith((fileExtension))) {
-
-					logger.debug("Found File: " + inputFile.getName());
-
-					// create message list
-					messageList = new ArrayList<String>();
-
-					// read the file
-					BufferedReader inputReader = null;
-
-					try {
-						inputReader = new BufferedReader(
-								new FileReader(inputFile));
-						String text = null;
-
-						// each line is assumed to be a message
-						while ((text = inputReader.readLine()) != null) {
-							messageList.add(text);
-						}
-					} catch (FileNotFoundException e) {
-						logger.error("readMessagesFromFile: " + e.toString());
-					} catch (IOException e) {
-						logger.error("readMessagesFromFile: " + e.toString());
-					} finally {
-						try {
-							if (inputReader != null) {
-								inputReader.close();
-							}
-						} catch (IOException e) {
-							logger.error("readMessagesFromFile: " + 
-								e.toString());
-						}
+				if (!inputFile.getName().endsWith((fileExtension))) {
+					continue;
+				}
+
+				// skip files that are still being delivered
+				boolean inProgress = false;
+				for (FileDelivery delivery : deliveryList) {
+					if (delivery.getInputFile().equals(inputFile)) {
+						inProgress = true;
+						break;
+					}
+				}
+				if (inProgress) {
+					continue;
+				}
+
+				logger.debug("Found File: " + inputFile.getName());
+
+				// only handle one file at a time
+				return (inputFile);
+			}
+		} catch (Exception e) {
+
+			// log exception
+			logger.error("findInputFile: " + e.toString());
+		}
+
+		return (null);
+	}
+
+	/**
+	 * File streaming function for ProducerClient, each line in the file is
+	 * assumed to be a message, and is sent as soon as it is read. Lines are
+	 * passed to the producer as raw bytes unless the configured file encoding
+	 * is not UTF-8. If the journal has a checkpoint for the file, sending
+	 * resumes from the checkpoint. If topic routes are configured, each
+	 * message is sent to the topic its routes pick.
+	 *
+	 * @param myProducer
+	 *            - The Producer to send the messages with
+	 * @param topic
+	 *            - A String containing the topic to send to, when no route
+	 *            matches
+	 * @param delivery
+	 *            - The FileDelivery for the file to read messages from
+	 * @return Returns the number of messages sent
+	 */
+	public static long sendMessagesFromFile(Producer myProducer, String topic,
+		FileDelivery delivery) {
+
+		long messageCount = 0;
+		MappedLineReader inputReader = null;
+
+		try {
+			inputReader = new MappedLineReader(delivery.getInputFile());
+
+			// resume where we left off
+			if (deliveryJournal != null) {
+				long[] checkpoint = deliveryJournal.getCheckpoint(delivery);
+				if (checkpoint != null) {
+					logger.info("Resuming " + 
+						delivery.getInputFile().getName() + " at line " + 
+						String.valueOf(checkpoint[1]));
+					inputReader.seek(checkpoint[0], checkpoint[1]);
+				}
+			}
+
+			long lineNumber = inputReader.getLineNumber();
+			long linePosition = inputReader.getPosition();
+			byte[] data = null;
+
+			// each line is assumed to be a message
+			while ((data = inputReader.readLine()) != null) {
+
+				// skip empty lines
+				if (data.length > 0) {
+
+					// convert to UTF-8 if needed
+					if (fileCharset != null) {
+						data = new String(data, fileCharset).getBytes(UTF8);
 					}
 
-					// done with the file
-					if (archiveDirectory == null) {
+					// log it
+					if (logger.isDebugEnabled()) {
+						logger.debug("Sending message: " + 
+							new String(data, UTF8));
+					}
 
-						// not archiving, just delete it
-						inputFile.delete();
-					} else {
-						// Move file to archive directory
-						inputFile.renameTo(new File(
-								archiveDirectory + File.separatorChar + 
-								inputFile.getName()));
+					// pick the topic
+					String messageTopic = topic;
+					if (topicRouter != null) {
+						messageTopic = topicRouter.route(data);
 					}
 
-					// only handle one file at a time
-					break;
+					// send message, tracking the acknowledgment
+					myProducer.send(messageTopic, data, 
+						delivery.lineSent(lineNumber, linePosition));
+					messageCount++;
 				}
+
+				lineNumber = inputReader.getLineNumber();
+				linePosition = inputReader.getPosition();
 			}
-		} catch (Exception e) {
 
-			// log exception
-			logger.error("readMessagesFromFile: " + e.toString());
-			return (null);
+			delivery.readCompleted(linePosition, lineNumber);
+		} catch (IOException e) {
+			logger.error("sendMessagesFromFile: " + e.toString());
+
+			// don't dispose of a file we couldn't read
+			if (inputReader != null) {
+				delivery.readFailed(inputReader.getPosition(), 
+					inputReader.getLineNumber());
+			} else {
+				delivery.readFailed(0, 0);
+			}
+		} finally {
+			try {
+				if (inputReader != null) {
+					inputReader.close();
+				}
+			} catch (IOException e) {
+				logger.error("sendMessagesFromFile: " + e.toString());
+			}
 		}
 
-		return (messageList);
+		return (messageCount);
 	}
 
 	public static void logKafkaMetrics(Producer myProducer, 
@@ -401,6 +674,12 @@ public class ProducerClient {
 			clientID, "batch-size-avg");
 		logger.info("KafkaMetric - " + batchSizeAvg.toString());		
 
+		ArrayList<String> rateMetrics = myProducer.getKafkaMetric(
+			Producer.RATE_METRICS + clientID, "");
+		if (!rateMetrics.isEmpty()) {
+			logger.info("RateMetric - " + rateMetrics.toString());
+		}
+
 		lastMetricTime = timeNow;
 	}
 }
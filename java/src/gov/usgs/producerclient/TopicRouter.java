@@ -0,0 +1,122 @@
+package gov.usgs.producerclient;
+
+import java.util.*;
+
+import gov.usgs.hazdevbroker.FieldExtractor;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * a class used by the ProducerClient to pick the topic for each message from
+ * the value of a message field, so that one producer client can feed several
+ * topics, such as one per message Type.
+ *
+ * Routes are checked in the order they are configured, each route pulls its
+ * field out of the message without parsing the whole message, and the first
+ * route with a topic for the field value wins. Messages that no route
+ * matches go to the default topic.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class TopicRouter {
+
+	/**
+	 * JSON Configuration Keys
+	 */
+	public static final String FIELD = "Field";
+	public static final String VALUES = "Values";
+
+	/**
+	 * The extractors for the route fields, in route order
+	 */
+	private FieldExtractor[] fields;
+
+	/**
+	 * The topics for each route, keyed by field value, in route order
+	 */
+	private ArrayList<HashMap<String, String>> routes;
+
+	/**
+	 * The topic for messages that no route matches
+	 */
+	private String defaultTopic;
+
+	/**
+	 * The constructor for the TopicRouter class.
+	 *
+	 * @param routeArray
+	 *            - A JSONArray containing the routes, each a JSONObject with
+	 *            the dot separated path of the Field to route by, and the
+	 *            Values JSONObject mapping field values to topics
+	 * @param newDefaultTopic
+	 *            - A String containing the topic for messages that no route
+	 *            matches
+	 * @throws IllegalArgumentException
+	 *             if a route is missing its Field or Values
+	 */
+	public TopicRouter(JSONArray routeArray, String newDefaultTopic) {
+		defaultTopic = newDefaultTopic;
+		fields = new FieldExtractor[routeArray.size()];
+		routes = new ArrayList<HashMap<String, String>>(routeArray.size());
+
+		for (int i = 0; i < routeArray.size(); i++) {
+			JSONObject route = (JSONObject) routeArray.get(i);
+			if (!route.containsKey(FIELD) || !route.containsKey(VALUES)) {
+				throw new IllegalArgumentException("Route " +
+					String.valueOf(i) + " is missing its " + FIELD +
+					" or " + VALUES);
+			}
+
+			fields[i] = new FieldExtractor(route.get(FIELD).toString());
+			HashMap<String, String> topics = new HashMap<String, String>();
+			JSONObject values = (JSONObject) route.get(VALUES);
+			for (Object value : values.keySet()) {
+				topics.put(value.toString(), values.get(value).toString());
+			}
+			routes.add(topics);
+		}
+	}
+
+	/**
+	 * Picks the topic for the provided message
+	 *
+	 * @param data
+	 *            - A byte[] containing the JSON formatted message
+	 * @return Returns a String containing the topic of the first matching
+	 *         route, or the default topic if no route matches
+	 */
+	public String route(byte[] data) {
+		for (int i = 0; i < fields.length; i++) {
+			String value = fields[i].extract(data);
+			if (value != null) {
+				String topic = routes.get(i).get(value);
+				if (topic != null) {
+					return (topic);
+				}
+			}
+		}
+
+		return (defaultTopic);
+	}
+
+	/**
+	 * @return the default topic
+	 */
+	public String getDefaultTopic() {
+		return (defaultTopic);
+	}
+
+	/**
+	 * @return a Set&lt;String&gt; containing every topic messages can be
+	 *         routed to, including the default topic
+	 */
+	public Set<String> getTopics() {
+		LinkedHashSet<String> topics = new LinkedHashSet<String>();
+		topics.add(defaultTopic);
+		for (HashMap<String, String> route : routes) {
+			topics.addAll(route.values());
+		}
+		return (topics);
+	}
+}
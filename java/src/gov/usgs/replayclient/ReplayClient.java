@@ -0,0 +1,443 @@
+package gov.usgs.replayclient;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.PropertyConfigurator;
+
+import gov.usgs.hazdevbroker.Utility;
+import gov.usgs.hazdevbroker.Producer;
+import gov.usgs.hazdevbroker.ArchiveConsumer;
+
+import java.util.*;
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * a client class used to republish messages from ArchiveClient archive files
+ * to a hazdev-broker (kafka) topic at a controlled rate based on the provided
+ * configuration. Since it reports the sustained throughput, it can also be
+ * used to load test a broker cluster.
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ReplayClient {
+
+	/**
+	 * JSON Configuration Keys
+	 */
+	public static final String TYPE_KEY = "Type";
+	public static final String LOG4J_CONFIGFILE = "Log4JConfigFile";
+	public static final String BROKER_CONFIG = "HazdevBrokerConfig";
+	public static final String TOPIC = "Topic";
+	public static final String INPUT_DIRECTORY = "InputDirectory";
+	public static final String INPUT_FILES = "InputFiles";
+	public static final String FILE_EXTENSION = "FileExtension";
+	public static final String SPEED = "Speed";
+	public static final String MAX_RATE = "MaxRate";
+	public static final String START_TIME = "StartTime";
+	public static final String END_TIME = "EndTime";
+	public static final String TIME_FIELD = "TimeField";
+	public static final String MAX_IN_FLIGHT = "MaxInFlight";
+	public static final String REPORT_INTERVAL = "ReportInterval";
+	public static final String HEARTBEAT_INTERVAL = "HeartbeatInterval";
+
+	/**
+	 * Long constant containing the time to wait in ms when polling the
+	 * archive files
+	 */
+	public static final Long POLL_TIMEOUT_MS = 100L;
+
+	/**
+	 * Long constant containing the time to wait in ms for outstanding sends
+	 * when closing the producer
+	 */
+	public static final Long CLOSE_TIMEOUT_MS = 30000L;
+
+	/**
+	 * Optional configuration double defining the replay speed multiplier, 1
+	 * for real time, 0 for as fast as possible, default is 0
+	 */
+	private static double speed;
+
+	/**
+	 * Optional configuration double defining the maximum number of messages
+	 * to send per second, default is null (no limit)
+	 */
+	private static Double maxRate;
+
+	/**
+	 * Optional configuration Long defining the maximum number of messages
+	 * waiting on acknowledgment from the broker at once, default is 10000
+	 */
+	private static Long maxInFlight;
+
+	/**
+	 * Optional configuration Long defining the number of seconds between
+	 * throughput reports, default is 10 seconds
+	 */
+	private static Long reportInterval;
+
+	/**
+	 * Optional configuration Long defining the number seconds between sending
+	 * heartbeat messages, default is null
+	 */
+	private static Long heartbeatInterval;
+
+	/**
+	 * The number of messages sent
+	 */
+	private static AtomicLong sentCount = new AtomicLong(0);
+
+	/**
+	 * The number of bytes sent
+	 */
+	private static AtomicLong sentBytes = new AtomicLong(0);
+
+	/**
+	 * The number of messages acknowledged by the broker
+	 */
+	private static AtomicLong ackedCount = new AtomicLong(0);
+
+	/**
+	 * The number of bytes acknowledged by the broker
+	 */
+	private static AtomicLong ackedBytes = new AtomicLong(0);
+
+	/**
+	 * The number of messages that failed to be delivered
+	 */
+	private static AtomicLong failedCount = new AtomicLong(0);
+
+	/**
+	 * Log4J logger for ReplayClient
+	 */
+	static Logger logger = Logger.getLogger(ReplayClient.class);
+
+	/**
+	 * main function for ReplayClient
+	 *
+	 * @param args
+	 *            - A String[] containing the command line arguments.
+	 */
+	public static void main(String[] args) {
+
+		// check number of arguments
+		if (args.length == 0) {
+			System.out.println(
+					"Usage: hazdev-broker ReplayClient <configfile>");
+			System.exit(1);
+		}
+
+		// init to default values
+		speed = 0;
+		maxRate = null;
+		maxInFlight = 10000L;
+		reportInterval = 10L;
+		heartbeatInterval = null;
+
+		// parse config file into json
+		JSONObject configJSON = Utility.readConfigurationFromFile(args[0]);
+
+		// nullcheck
+		if (configJSON == null) {
+			System.out.println("Error, invalid json from configuration.");
+			System.exit(1);
+		}
+
+		// type check
+		if (configJSON.containsKey(TYPE_KEY)) {
+			String type = configJSON.get(TYPE_KEY).toString();
+			if (!type.equals("ReplayClient")) {
+				System.out.println("Error, wrong configuration.");
+				System.exit(1);
+			}
+		} else {
+			System.out.println("Error, missing type in configuration.");
+			System.exit(1);
+		}
+
+		// get log4j config
+		String logConfigString = null;
+		if (configJSON.containsKey(LOG4J_CONFIGFILE)) {
+			logConfigString = (String) configJSON.get(LOG4J_CONFIGFILE);
+			System.out.println("Using custom logging configuration");
+			PropertyConfigurator.configure(logConfigString);
+		} else {
+			System.out.println("Using default logging configuration");
+			BasicConfigurator.configure();
+		}
+
+		logger.info("----------Replay Client Startup----------");
+
+		// get file extension
+		String fileExtension = null;
+		if (configJSON.containsKey(FILE_EXTENSION)) {
+			fileExtension = (String) configJSON.get(FILE_EXTENSION);
+			logger.info("Using configured fileExtension of: " + fileExtension);
+		} else {
+			logger.info("Not using fileExtension, replaying all files.");
+		}
+
+		// get input files, either a list or a directory
+		List<File> inputFiles = null;
+		if (configJSON.containsKey(INPUT_FILES)) {
+			JSONArray fileArray = (JSONArray) configJSON.get(INPUT_FILES);
+			inputFiles = new ArrayList<File>();
+			for (int i = 0; i < fileArray.size(); i++) {
+				inputFiles.add(new File((String) fileArray.get(i)));
+			}
+			logger.info("Using configured inputFiles of: " +
+				fileArray.toString());
+		} else if (configJSON.containsKey(INPUT_DIRECTORY)) {
+			String inputDirectory = (String) configJSON.get(INPUT_DIRECTORY);
+			inputFiles = ArchiveConsumer.listArchiveFiles(inputDirectory,
+				fileExtension);
+			logger.info("Using configured inputDirectory of: " +
+				inputDirectory);
+		} else {
+			logger.error("Error, did not find InputDirectory or InputFiles " +
+				"in configuration.");
+			System.exit(1);
+		}
+
+		// get speed
+		if (configJSON.containsKey(SPEED)) {
+			speed = ((Number) configJSON.get(SPEED)).doubleValue();
+			logger.info("Using configured speed of: " + String.valueOf(speed));
+		} else {
+			logger.info("Not using speed, replaying as fast as possible.");
+		}
+
+		// get max rate
+		if (configJSON.containsKey(MAX_RATE)) {
+			maxRate = ((Number) configJSON.get(MAX_RATE)).doubleValue();
+			logger.info("Using configured maxRate of: " + maxRate.toString());
+		} else {
+			logger.info("Not using maxRate.");
+		}
+
+		// get time range
+		long startTime = Utility.INVALID_TIME;
+		if (configJSON.containsKey(START_TIME)) {
+			startTime = Utility.parseTime((String) configJSON.get(START_TIME));
+			if (startTime == Utility.INVALID_TIME) {
+				logger.error("Error, invalid StartTime in configuration.");
+				System.exit(1);
+			}
+			logger.info("Using configured startTime of: " +
+				Utility.formatDate(new Date(startTime)));
+		} else {
+			logger.info("Not using startTime.");
+		}
+
+		long endTime = Utility.INVALID_TIME;
+		if (configJSON.containsKey(END_TIME)) {
+			endTime = Utility.parseTime((String) configJSON.get(END_TIME));
+			if (endTime == Utility.INVALID_TIME) {
+				logger.error("Error, invalid EndTime in configuration.");
+				System.exit(1);
+			}
+			logger.info("Using configured endTime of: " +
+				Utility.formatDate(new Date(endTime)));
+		} else {
+			logger.info("Not using endTime.");
+		}
+
+		// get time field
+		String timeField = ArchiveConsumer.DEFAULT_TIME_FIELD;
+		if (configJSON.containsKey(TIME_FIELD)) {
+			timeField = (String) configJSON.get(TIME_FIELD);
+			logger.info("Using configured timeField of: " + timeField);
+		} else {
+			logger.info("Using default timeField of: " + timeField);
+		}
+
+		// get max in flight
+		if (configJSON.containsKey(MAX_IN_FLIGHT)) {
+			maxInFlight = (Long) configJSON.get(MAX_IN_FLIGHT);
+			logger.info("Using configured maxInFlight of: " +
+				maxInFlight.toString());
+		} else {
+			logger.info("Using default maxInFlight of: " +
+				maxInFlight.toString());
+		}
+
+		// get report interval
+		if (configJSON.containsKey(REPORT_INTERVAL)) {
+			reportInterval = (Long) configJSON.get(REPORT_INTERVAL);
+			logger.info("Using configured reportInterval of: " +
+				reportInterval.toString());
+		} else {
+			logger.info("Using default reportInterval of: " +
+				reportInterval.toString());
+		}
+
+		// get hearbeat interval
+		if (configJSON.containsKey(HEARTBEAT_INTERVAL)) {
+			heartbeatInterval = (Long) configJSON.get(HEARTBEAT_INTERVAL);
+			logger.info("Using configured heartbeatInterval of: "
+					+ heartbeatInterval.toString());
+		} else {
+			logger.info("Not using heartbeatInterval, not sending heartbeat "
+						+ "messages.");
+		}
+
+		// get broker config
+		JSONObject brokerConfig = null;
+		if (configJSON.containsKey(BROKER_CONFIG)) {
+			brokerConfig = (JSONObject) configJSON.get(BROKER_CONFIG);
+		} else {
+			logger.error(
+					"Error, did not find HazdevBrokerConfig in configuration.");
+			System.exit(1);
+		}
+
+		// get topic
+		String topic = null;
+		if (configJSON.containsKey(TOPIC)) {
+			topic = (String) configJSON.get(TOPIC);
+
+			logger.info("Using configured Topic of: " + topic);
+		} else {
+			logger.error("Error, did not find Topic in configuration.");
+			System.exit(1);
+		}
+
+		logger.info("----------Processed Config----------");
+
+		// create producer
+		Producer m_Producer = new Producer(brokerConfig, heartbeatInterval);
+
+		logger.info("Broker version: " +
+			m_Producer.VERSION_MAJOR + "." + m_Producer.VERSION_MINOR + "." +
+			m_Producer.VERSION_PATCH);
+
+		// create the archive consumer
+		ArchiveConsumer m_Archive = new ArchiveConsumer(inputFiles);
+		m_Archive.setSpeed(speed);
+		m_Archive.setTimeField(timeField);
+		m_Archive.setTimeRange(startTime, endTime);
+		m_Archive.subscribe(topic);
+
+		replay(m_Archive, m_Producer, topic);
+
+		// wait for the broker to acknowledge everything, then shut down
+		m_Producer.close(CLOSE_TIMEOUT_MS);
+		m_Archive.close();
+
+		logger.info("----------Replay Client Done----------");
+	}
+
+	/**
+	 * Replay function for ReplayClient, polls the archive for messages and
+	 * sends them without waiting for each one to be acknowledged, up to the
+	 * configured maximum in flight.
+	 *
+	 * @param archive
+	 *            - The ArchiveConsumer to replay messages from
+	 * @param myProducer
+	 *            - The Producer to send the messages with
+	 * @param topic
+	 *            - A String containing the topic to send to
+	 */
+	public static void replay(ArchiveConsumer archive, Producer myProducer,
+		String topic) {
+
+		// limits the number of messages waiting on acknowledgment
+		final Semaphore inFlight = new Semaphore(maxInFlight.intValue());
+
+		long replayStart = System.currentTimeMillis();
+		long lastReportTime = replayStart;
+		long lastReportCount = 0;
+		long lastReportBytes = 0;
+
+		try {
+			while (!archive.isDone()) {
+
+				ArrayList<byte[]> data = archive.poll(POLL_TIMEOUT_MS);
+
+				for (final byte[] message : data) {
+
+					// hold to the maximum rate, if any
+					if (maxRate != null) {
+						long due = replayStart + (long) (sentCount.get() *
+							1000.0 / maxRate);
+						long wait = due - System.currentTimeMillis();
+						if (wait > 0) {
+							Thread.sleep(wait);
+						}
+					}
+
+					// send message async, counting the acknowledgment
+					inFlight.acquire();
+					sentCount.incrementAndGet();
+					sentBytes.addAndGet(message.length);
+					myProducer.send(topic, message, new Callback() {
+						public void onCompletion(RecordMetadata metadata,
+								Exception exception) {
+							if (exception == null) {
+								ackedCount.incrementAndGet();
+								ackedBytes.addAndGet(message.length);
+							} else {
+								failedCount.incrementAndGet();
+							}
+							inFlight.release();
+						}
+					});
+				}
+
+				// periodically report throughput
+				long timeNow = System.currentTimeMillis();
+				if (timeNow - lastReportTime >= reportInterval * 1000) {
+					long count = ackedCount.get();
+					long bytes = ackedBytes.get();
+					report("Replay", count - lastReportCount,
+						bytes - lastReportBytes, timeNow - lastReportTime);
+
+					lastReportTime = timeNow;
+					lastReportCount = count;
+					lastReportBytes = bytes;
+				}
+			}
+
+			// wait for everything to be acknowledged
+			inFlight.acquire(maxInFlight.intValue());
+		} catch (InterruptedException e) {
+			logger.error(e.toString());
+			Thread.currentThread().interrupt();
+		}
+
+		report("Total", ackedCount.get(), ackedBytes.get(),
+			System.currentTimeMillis() - replayStart);
+	}
+
+	/**
+	 * Throughput reporting function for ReplayClient
+	 *
+	 * @param label
+	 *            - A String containing the label for the report
+	 * @param count
+	 *            - A long containing the number of messages acknowledged
+	 * @param bytes
+	 *            - A long containing the number of bytes acknowledged
+	 * @param elapsedMs
+	 *            - A long containing the time in milliseconds the messages
+	 *            were acknowledged over
+	 */
+	private static void report(String label, long count, long bytes,
+		long elapsedMs) {
+		double seconds = Math.max(elapsedMs, 1) / 1000.0;
+
+		logger.info(label + " - sent: " + String.valueOf(sentCount.get()) +
+			" acked: " + String.valueOf(ackedCount.get()) +
+			" failed: " + String.valueOf(failedCount.get()) +
+			" rate: " + String.format("%.1f", count / seconds) + " msg/s " +
+			String.format("%.3f", bytes / seconds / 1048576.0) + " MB/s");
+	}
+}
@@ -0,0 +1,145 @@
+package gov.usgs.consumerclient;
+
+import static gov.usgs.hazdevbroker.TestUtil.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests publishing messages with the RingBufferWriter and tailing them with
+ * the RingBufferReader
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class RingBufferWriterTest {
+
+	/**
+	 * The smallest ring buffer, which holds records of up to 128 bytes
+	 */
+	private static final int CAPACITY = 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The ring buffer file used by each test
+	 */
+	private File ring;
+
+	@Before
+	public void setUp() {
+		ring = new File(folder.getRoot(), "test.ring");
+	}
+
+	@Test
+	public void testReadInOrder() throws IOException {
+		RingBufferWriter writer = new RingBufferWriter(ring.getPath(),
+			CAPACITY);
+		assertEquals(CAPACITY, writer.getCapacity());
+
+		// messages from before the reader started are skipped
+		writer.write(message("Seq", 0));
+		RingBufferReader reader = new RingBufferReader(ring.getPath());
+		assertNull(reader.poll());
+
+		for (int i = 1; i <= 3; i++) {
+			assertEquals(i, writer.write(message("Seq", i)));
+		}
+		for (int i = 1; i <= 3; i++) {
+			assertArrayEquals(message("Seq", i), reader.poll());
+			assertEquals(i, reader.getSequence());
+		}
+		assertNull(reader.poll());
+		assertEquals(0, reader.getLostMessages());
+	}
+
+	@Test
+	public void testWrapAround() throws IOException {
+		RingBufferWriter writer = new RingBufferWriter(ring.getPath(),
+			CAPACITY);
+		RingBufferReader reader = new RingBufferReader(ring.getPath());
+
+		// several laps, each needing a padding record at the end
+		for (int i = 0; i < 200; i++) {
+			writer.write(message("Seq", i));
+			writer.write(message("Seq", i + 1000000));
+			assertArrayEquals(message("Seq", i), reader.poll());
+			assertArrayEquals(message("Seq", i + 1000000), reader.poll());
+		}
+		assertNull(reader.poll());
+		assertEquals(0, reader.getLostMessages());
+	}
+
+	@Test
+	public void testFallingBehind() throws IOException {
+		RingBufferWriter writer = new RingBufferWriter(ring.getPath(),
+			CAPACITY);
+		RingBufferReader reader = new RingBufferReader(ring.getPath());
+
+		writer.write(message("Seq", 0));
+		assertArrayEquals(message("Seq", 0), reader.poll());
+
+		// lapped readers skip to the latest message, counting the rest lost
+		for (int i = 1; i < 200; i++) {
+			writer.write(message("Seq", i));
+		}
+		assertArrayEquals(message("Seq", 199), reader.poll());
+		assertEquals(198, reader.getLostMessages());
+		assertNull(reader.poll());
+
+		// and carry on from there
+		writer.write(message("Seq", 200));
+		assertArrayEquals(message("Seq", 200), reader.poll());
+		assertEquals(198, reader.getLostMessages());
+	}
+
+	@Test
+	public void testNewWriter() throws IOException {
+		RingBufferWriter writer = new RingBufferWriter(ring.getPath(),
+			CAPACITY);
+		RingBufferReader reader = new RingBufferReader(ring.getPath());
+		writer.write(message("Seq", 0));
+		writer.write(message("Seq", 1));
+		assertArrayEquals(message("Seq", 0), reader.poll());
+
+		// a restarted writer starts a new buffer, which readers follow
+		writer = new RingBufferWriter(ring.getPath(), CAPACITY);
+		assertNull(reader.poll());
+		writer.write(message("Seq", 2));
+		assertArrayEquals(message("Seq", 2), reader.poll());
+		assertEquals(0, reader.getSequence());
+	}
+
+	@Test
+	public void testTake() throws IOException, InterruptedException {
+		RingBufferWriter writer = new RingBufferWriter(ring.getPath(),
+			CAPACITY);
+		RingBufferReader reader = new RingBufferReader(ring.getPath());
+		assertNull(reader.take(10));
+
+		writer.write(message("Seq", 0));
+		assertArrayEquals(message("Seq", 0), reader.take(10));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMessageTooLarge() throws IOException {
+		RingBufferWriter writer = new RingBufferWriter(ring.getPath(),
+			CAPACITY);
+		writer.write(new byte[CAPACITY / RingBufferWriter.MAX_RECORD_DIVISOR]);
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotRingBuffer() throws IOException {
+		FileOutputStream stream = new FileOutputStream(ring);
+		stream.write(new byte[RingBufferWriter.HEADER_SIZE]);
+		stream.close();
+		new RingBufferReader(ring.getPath());
+	}
+}
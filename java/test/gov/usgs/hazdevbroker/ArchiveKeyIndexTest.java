@@ -0,0 +1,168 @@
+package gov.usgs.hazdevbroker;
+
+import static gov.usgs.hazdevbroker.TestUtil.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests writing key indexes with the ArchiveKeyIndexWriter and looking them
+ * up with the ArchiveKeyIndex
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ArchiveKeyIndexTest {
+
+	/**
+	 * The key fields used by the tests
+	 */
+	private static final List<String> KEY_FIELDS = Arrays.asList(
+		"Site.Station", "ID");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The archive file used by each test, only its index file is written
+	 * unless the test writes an archive
+	 */
+	private File archive;
+
+	@Before
+	public void setUp() {
+		archive = new File(folder.getRoot(), "test.archive");
+	}
+
+	@Test
+	public void testLookup() throws IOException {
+		ArchiveKeyIndexWriter writer = new ArchiveKeyIndexWriter(
+			archive.getPath(), KEY_FIELDS);
+		writer.add(message("ID", "1", "Site.Station", "BOZ"), 0);
+		writer.add(message("ID", "2", "Site.Station", "HLID"), 40);
+		writer.add(message("ID", "3", "Site.Station", "BOZ"), 80);
+
+		// large gaps take several bytes to encode
+		writer.add(message("ID", "4", "Site.Station", "BOZ"), 5000000000L);
+		writer.close();
+
+		assertArrayEquals(new long[] {0, 80, 5000000000L},
+			ArchiveKeyIndex.lookup(archive, "Site.Station", "BOZ"));
+		assertArrayEquals(new long[] {40},
+			ArchiveKeyIndex.lookup(archive, "Site.Station", "HLID"));
+		assertArrayEquals(new long[] {80},
+			ArchiveKeyIndex.lookup(archive, "ID", "3"));
+
+		// unknown keys and fields have no locations
+		assertEquals(0, ArchiveKeyIndex.lookup(archive, "Site.Station",
+			"AAA").length);
+		assertEquals(0, ArchiveKeyIndex.lookup(archive, "Type", "1").length);
+	}
+
+	@Test
+	public void testOneLocationPerBlock() throws IOException {
+		ArchiveKeyIndexWriter writer = new ArchiveKeyIndexWriter(
+			archive.getPath(), KEY_FIELDS);
+		writer.add(message("ID", "1", "Site.Station", "BOZ"), 0);
+		writer.add(message("ID", "2", "Site.Station", "BOZ"), 0);
+		writer.add(message("ID", "3", "Site.Station", "BOZ"), 1);
+		writer.close();
+
+		assertArrayEquals(new long[] {0, 1},
+			ArchiveKeyIndex.lookup(archive, "Site.Station", "BOZ"));
+	}
+
+	@Test
+	public void testSegments() throws IOException {
+		ArchiveKeyIndexWriter writer = new ArchiveKeyIndexWriter(
+			archive.getPath(), KEY_FIELDS);
+		writer.add(message("ID", "1", "Site.Station", "BOZ"), 0);
+		writer.close();
+
+		// reopening appends new segments
+		writer = new ArchiveKeyIndexWriter(archive.getPath(), KEY_FIELDS);
+		writer.add(message("ID", "2", "Site.Station", "BOZ"), 10);
+		writer.add(message("ID", "3", "Site.Station", "HLID"), 20);
+		writer.close();
+
+		assertArrayEquals(new long[] {0, 10},
+			ArchiveKeyIndex.lookup(archive, "Site.Station", "BOZ"));
+		assertArrayEquals(new long[] {20},
+			ArchiveKeyIndex.lookup(archive, "Site.Station", "HLID"));
+	}
+
+	@Test
+	public void testPartialSegment() throws IOException {
+		ArchiveKeyIndexWriter writer = new ArchiveKeyIndexWriter(
+			archive.getPath(), KEY_FIELDS);
+		writer.add(message("ID", "1", "Site.Station", "BOZ"), 0);
+		writer.close();
+		File indexFile = ArchiveKeyIndex.indexFileFor(archive);
+		long validLength = indexFile.length();
+
+		// a segment cut short by a crash is ignored
+		FileOutputStream stream = new FileOutputStream(indexFile, true);
+		stream.write(new byte[] {0x48, 0x4b, 0x44, 0x58, 0, 0, 1, 0});
+		stream.close();
+		assertArrayEquals(new long[] {0},
+			ArchiveKeyIndex.lookup(archive, "Site.Station", "BOZ"));
+
+		// and dropped when the writer reopens
+		writer = new ArchiveKeyIndexWriter(archive.getPath(), KEY_FIELDS);
+		assertEquals(validLength, indexFile.length());
+		writer.add(message("ID", "2", "Site.Station", "BOZ"), 10);
+		writer.close();
+		assertArrayEquals(new long[] {0, 10},
+			ArchiveKeyIndex.lookup(archive, "Site.Station", "BOZ"));
+	}
+
+	@Test
+	public void testNoIndex() throws IOException {
+		assertNull(ArchiveKeyIndex.lookup(archive, "Site.Station", "BOZ"));
+	}
+
+	@Test
+	public void testTextArchiveWriter() throws IOException {
+		byte[] first = message("ID", "1", "Site.Station", "BOZ");
+		TextArchiveWriter writer = new TextArchiveWriter(archive.getPath(), 0,
+			ArchiveConsumer.DEFAULT_TIME_FIELD, KEY_FIELDS);
+		writer.write(first);
+		writer.write(message("ID", "2", "Site.Station", "HLID"));
+		writer.write(message("ID", "3", "Site.Station", "BOZ"));
+		writer.close();
+
+		// located by file position
+		long[] locations = ArchiveKeyIndex.lookup(archive, "Site.Station",
+			"BOZ");
+		assertEquals(2, locations.length);
+		assertEquals(0, locations[0]);
+		assertArrayEquals(new long[] {first.length + 1},
+			ArchiveKeyIndex.lookup(archive, "ID", "2"));
+	}
+
+	@Test
+	public void testBlockArchiveWriter() throws IOException {
+		BlockArchiveWriter writer = new BlockArchiveWriter(archive.getPath(),
+			2, BlockArchiveWriter.DEFAULT_BLOCK_MILLIS,
+			ArchiveConsumer.DEFAULT_TIME_FIELD, KEY_FIELDS);
+		for (int i = 0; i < 5; i++) {
+			writer.write(message("ID", String.valueOf(i), "Time", time(i),
+				"Site.Station", (i % 2 == 0) ? "BOZ" : "HLID"));
+		}
+		writer.close();
+
+		// located by block number
+		assertArrayEquals(new long[] {0, 1, 2},
+			ArchiveKeyIndex.lookup(archive, "Site.Station", "BOZ"));
+		assertArrayEquals(new long[] {1},
+			ArchiveKeyIndex.lookup(archive, "ID", "3"));
+	}
+}
@@ -0,0 +1,145 @@
+package gov.usgs.hazdevbroker;
+
+import static gov.usgs.hazdevbroker.TestUtil.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests writing block archive files with the BlockArchiveWriter and reading
+ * them back with the BlockArchiveReader
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class BlockArchiveWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The archive file used by each test
+	 */
+	private File archive;
+
+	@Before
+	public void setUp() {
+		archive = new File(folder.getRoot(), "test.archive");
+	}
+
+	/**
+	 * Reads every message in the archive
+	 */
+	private ArrayList<byte[]> readAll() throws IOException {
+		ArrayList<byte[]> messages = new ArrayList<byte[]>();
+		BlockArchiveReader reader = new BlockArchiveReader(archive);
+		try {
+			for (ArchiveBlock block : reader.getBlocks()) {
+				messages.addAll(reader.readBlock(block));
+			}
+		} finally {
+			reader.close();
+		}
+		return (messages);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		BlockArchiveWriter writer = new BlockArchiveWriter(
+			archive.getPath(), 3, BlockArchiveWriter.DEFAULT_BLOCK_MILLIS,
+			ArchiveConsumer.DEFAULT_TIME_FIELD);
+		for (int i = 0; i < 7; i++) {
+			writer.write(message("Time", time(i), "Seq", i));
+		}
+		writer.close();
+
+		assertTrue(BlockArchiveReader.isBlockArchive(archive));
+
+		BlockArchiveReader reader = new BlockArchiveReader(archive);
+		List<ArchiveBlock> blocks = reader.getBlocks();
+		reader.close();
+		assertEquals(3, blocks.size());
+		assertEquals(3, blocks.get(0).getMessageCount());
+		assertEquals(1, blocks.get(2).getMessageCount());
+
+		ArrayList<byte[]> messages = readAll();
+		assertEquals(7, messages.size());
+		for (int i = 0; i < 7; i++) {
+			assertArrayEquals(message("Time", time(i), "Seq", i),
+				messages.get(i));
+		}
+	}
+
+	@Test
+	public void testFindBlocks() throws IOException {
+		BlockArchiveWriter writer = new BlockArchiveWriter(
+			archive.getPath(), 2, BlockArchiveWriter.DEFAULT_BLOCK_MILLIS,
+			ArchiveConsumer.DEFAULT_TIME_FIELD);
+		for (int i = 0; i < 6; i++) {
+			writer.write(message("Time", time(i), "Seq", i));
+		}
+		writer.close();
+
+		long start = Utility.parseTime(time(2));
+		long end = Utility.parseTime(time(3));
+		BlockArchiveReader reader = new BlockArchiveReader(archive);
+		List<ArchiveBlock> found = reader.findBlocks(start, end);
+		reader.close();
+
+		assertEquals(1, found.size());
+		assertEquals(start, found.get(0).getMinTime());
+		assertEquals(end, found.get(0).getMaxTime());
+	}
+
+	@Test
+	public void testAppend() throws IOException {
+		BlockArchiveWriter writer = new BlockArchiveWriter(archive.getPath());
+		writer.write(message("Time", time(0), "Seq", 0));
+		writer.close();
+
+		// reopening drops the index and appends after the existing blocks
+		writer = new BlockArchiveWriter(archive.getPath());
+		writer.write(message("Time", time(1), "Seq", 1));
+		writer.close();
+
+		ArrayList<byte[]> messages = readAll();
+		assertEquals(2, messages.size());
+		assertArrayEquals(message("Time", time(1), "Seq", 1),
+			messages.get(1));
+	}
+
+	@Test
+	public void testEmptyArchive() throws IOException {
+		BlockArchiveWriter writer = new BlockArchiveWriter(archive.getPath());
+		writer.close();
+
+		// just the index and trailer
+		assertEquals(BlockArchiveWriter.TRAILER_SIZE + 8, archive.length());
+		assertTrue(BlockArchiveReader.isBlockArchive(archive));
+		assertEquals(0, readAll().size());
+
+		// and it can be appended to
+		writer = new BlockArchiveWriter(archive.getPath());
+		writer.write(message("Time", time(0), "Seq", 0));
+		writer.close();
+		assertEquals(1, readAll().size());
+	}
+
+	@Test
+	public void testTextArchive() throws IOException {
+		FileOutputStream stream = new FileOutputStream(archive);
+		stream.write(message("Time", time(0), "Seq", 0));
+		stream.write('\n');
+		stream.close();
+
+		assertFalse(BlockArchiveReader.isBlockArchive(archive));
+	}
+}
@@ -0,0 +1,94 @@
+package gov.usgs.hazdevbroker;
+
+import static gov.usgs.hazdevbroker.TestUtil.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+/**
+ * Tests keeping the newest record for each key with the Conflator
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ConflatorTest {
+
+	/**
+	 * The partition used by the tests
+	 */
+	private static final TopicPartition PARTITION =
+		new TopicPartition("status", 0);
+
+	@Test
+	public void testKeepsNewestInFirstSeenOrder() {
+		Conflator conflator = new Conflator("Station", null, 100);
+		assertTrue(conflator.add(record("status", 0, 0,
+			message("Station", "BOZ"))));
+		assertTrue(conflator.add(record("status", 0, 1,
+			message("Station", "ANMO"))));
+		assertTrue(conflator.add(record("status", 0, 2,
+			message("Station", "BOZ"))));
+		assertTrue(conflator.add(record("status", 0, 3,
+			message("Station", "BOZ"))));
+		assertEquals(2, conflator.size());
+		assertEquals(2, conflator.getConflatedCount());
+
+		ArrayList<Long> released = offsets(conflator.drain());
+		assertEquals(3L, released.get(0).longValue());
+		assertEquals(1L, released.get(1).longValue());
+		assertTrue(conflator.isEmpty());
+	}
+
+	@Test
+	public void testPassesUnconflated() {
+		Conflator conflator = new Conflator("Station",
+			Collections.singleton("status"), 1);
+
+		// other topics and records without a key
+		assertFalse(conflator.add(record("picks", 0, 0,
+			message("Station", "BOZ"))));
+		assertFalse(conflator.add(record("status", 0, 1, message())));
+
+		// and new keys once full
+		assertTrue(conflator.add(record("status", 0, 2,
+			message("Station", "BOZ"))));
+		assertTrue(conflator.isFull());
+		assertFalse(conflator.add(record("status", 0, 3,
+			message("Station", "ANMO"))));
+		assertTrue(conflator.add(record("status", 0, 4,
+			message("Station", "BOZ"))));
+	}
+
+	@Test
+	public void testKeysWithinTopic() {
+		Conflator conflator = new Conflator("Station", null, 100);
+		conflator.add(record("status", 0, 0, message("Station", "BOZ")));
+		conflator.add(record("health", 0, 1, message("Station", "BOZ")));
+		assertEquals(2, conflator.size());
+	}
+
+	@Test
+	public void testLowestOffsetsIgnoreBackfill() {
+		Conflator conflator = new Conflator("Station", null, 100);
+
+		// backfilled, then live
+		conflator.add(record("status", 0, 10, message("Station", "BOZ")));
+		conflator.add(record("status", 0, 600, message("Station", "ANMO")));
+		conflator.add(record("status", 0, 500, message("Station", "HRV")));
+
+		HashMap<TopicPartition, Long> floors =
+			new HashMap<TopicPartition, Long>();
+		floors.put(PARTITION, 500L);
+		Map<TopicPartition, Long> lowest = conflator.getLowestOffsets(floors);
+		assertEquals(Long.valueOf(500), lowest.get(PARTITION));
+
+		// no floor, nothing live yet
+		floors.clear();
+		assertTrue(conflator.getLowestOffsets(floors).isEmpty());
+	}
+}
@@ -0,0 +1,91 @@
+package gov.usgs.hazdevbroker;
+
+import static gov.usgs.hazdevbroker.TestUtil.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests the duplicate detection of the DedupCache
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class DedupCacheTest {
+
+	@Test
+	public void testContentDuplicates() {
+		DedupCache cache = new DedupCache(60000, 100, null);
+
+		assertFalse(cache.isDuplicate(message("ID", "1", "Payload", "a")));
+		assertTrue(cache.isDuplicate(message("ID", "1", "Payload", "a")));
+		assertFalse(cache.isDuplicate(message("ID", "1", "Payload", "b")));
+		assertFalse(cache.isDuplicate(null));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.getEntries());
+	}
+
+	@Test
+	public void testFieldDuplicates() {
+		DedupCache cache = new DedupCache(60000, 100, "ID");
+
+		// the same ID is a copy, whatever else differs
+		assertFalse(cache.isDuplicate(message("ID", "1", "Payload", "a")));
+		assertTrue(cache.isDuplicate(message("ID", "1", "Payload", "b")));
+		assertFalse(cache.isDuplicate(message("ID", "2", "Payload", "a")));
+
+		// messages without the field fall back to their content
+		assertFalse(cache.isDuplicate(message("Other", 1)));
+		assertTrue(cache.isDuplicate(message("Other", 1)));
+
+		assertEquals(2, cache.getHits());
+		assertEquals(3, cache.getMisses());
+	}
+
+	@Test
+	public void testCapacityRotation() {
+		DedupCache cache = new DedupCache(60000, 2, "ID");
+
+		assertFalse(cache.isDuplicate(message("ID", "a", "Payload", "")));
+		assertFalse(cache.isDuplicate(message("ID", "b", "Payload", "")));
+
+		// a full generation rotates, the previous one is still remembered
+		assertFalse(cache.isDuplicate(message("ID", "c", "Payload", "")));
+		assertTrue(cache.isDuplicate(message("ID", "a", "Payload", "")));
+		assertFalse(cache.isDuplicate(message("ID", "d", "Payload", "")));
+		assertEquals(4, cache.getEntries());
+
+		// after a second rotation the first generation is forgotten
+		assertFalse(cache.isDuplicate(message("ID", "e", "Payload", "")));
+		assertTrue(cache.isDuplicate(message("ID", "d", "Payload", "")));
+		assertFalse(cache.isDuplicate(message("ID", "a", "Payload", "")));
+	}
+
+	@Test
+	public void testWindowRotation() throws InterruptedException {
+		DedupCache cache = new DedupCache(50, 100, "ID");
+
+		assertFalse(cache.isDuplicate(message("ID", "a", "Payload", "")));
+		Thread.sleep(60);
+
+		// remembered for at least one window
+		assertTrue(cache.isDuplicate(message("ID", "a", "Payload", "")));
+		assertFalse(cache.isDuplicate(message("ID", "b", "Payload", "")));
+		Thread.sleep(60);
+
+		// and forgotten after two
+		assertFalse(cache.isDuplicate(message("ID", "a", "Payload", "")));
+	}
+
+	@Test
+	public void testHash() {
+		byte[] data = "hazdev".getBytes();
+		assertEquals(DedupCache.hash(data, 0, data.length),
+			DedupCache.hash("hazdev".getBytes(), 0, 6));
+		assertFalse(DedupCache.hash(data, 0, data.length) ==
+			DedupCache.hash(data, 1, data.length - 1));
+		assertEquals(DedupCache.hash("1"), DedupCache.hash("1"));
+		assertFalse(DedupCache.hash("1") == DedupCache.hash("2"));
+	}
+}
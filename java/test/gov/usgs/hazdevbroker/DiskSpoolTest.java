@@ -0,0 +1,170 @@
+package gov.usgs.hazdevbroker;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests spooling messages with the DiskSpool and replaying them
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class DiskSpoolTest {
+
+	/**
+	 * The time in ms to wait for the replay thread
+	 */
+	private static final long REPLAY_WAIT_MS = 5000;
+
+	/**
+	 * A producer acknowledging every message it is asked to forward
+	 */
+	private static class RecordingProducer extends Producer {
+		List<String> sent = Collections.synchronizedList(
+			new ArrayList<String>());
+
+		@Override
+		void sendDirect(String topic, byte[] data, Callback callback) {
+			sent.add(topic + ":" + new String(data));
+			callback.onCompletion(null, null);
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Spools the provided messages to the test topic and closes the spool
+	 */
+	private File spool(String... messages) throws IOException {
+		File directory = folder.newFolder("spool");
+		DiskSpool spool = new DiskSpool(new RecordingProducer(),
+			directory.getPath(), Producer.DEFAULT_SPOOL_SEGMENT_BYTES, 0, 0,
+			10);
+		for (String message : messages) {
+			assertTrue(spool.append("test", message.getBytes()));
+		}
+		spool.close(1000);
+		return (directory.listFiles()[0]);
+	}
+
+	/**
+	 * Replays the spool in the provided directory until the expected number
+	 * of messages are forwarded and the spool is empty
+	 */
+	private DiskSpool replay(File directory, RecordingProducer producer,
+		int expected) throws IOException, InterruptedException {
+		DiskSpool spool = new DiskSpool(producer, directory.getPath(),
+			Producer.DEFAULT_SPOOL_SEGMENT_BYTES, 0, 0, 10);
+		spool.start();
+		long deadline = System.currentTimeMillis() + REPLAY_WAIT_MS;
+		while (((producer.sent.size() < expected) || !spool.isEmpty()) &&
+			(System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		spool.close(1000);
+		return (spool);
+	}
+
+	@Test
+	public void testReplay() throws IOException, InterruptedException {
+		File segment = spool("one", "two", "three");
+
+		RecordingProducer producer = new RecordingProducer();
+		DiskSpool spool = replay(segment.getParentFile(), producer, 3);
+		assertEquals(3, producer.sent.size());
+		assertEquals("test:one", producer.sent.get(0));
+		assertEquals("test:three", producer.sent.get(2));
+		assertEquals(0, spool.getCorruptCount());
+		assertFalse(segment.exists());
+	}
+
+	@Test
+	public void testAppendLater() throws IOException, InterruptedException {
+		RecordingProducer producer = new RecordingProducer();
+		DiskSpool spool = new DiskSpool(producer,
+			folder.newFolder("spool").getPath(),
+			Producer.DEFAULT_SPOOL_SEGMENT_BYTES, 0, 0, 10);
+		spool.start();
+
+		// called back once written, then forwarded
+		final CountDownLatch spooled = new CountDownLatch(2);
+		Callback callback = new Callback() {
+			public void onCompletion(RecordMetadata metadata,
+				Exception exception) {
+				assertNull(exception);
+				spooled.countDown();
+			}
+		};
+		assertTrue(spool.appendLater("test", "one".getBytes(), callback,
+			true));
+		assertTrue(spool.appendLater("test", "two".getBytes(), callback,
+			false));
+		assertTrue(spooled.await(REPLAY_WAIT_MS, TimeUnit.MILLISECONDS));
+		assertEquals(2, spool.getSpooledCount());
+
+		long deadline = System.currentTimeMillis() + REPLAY_WAIT_MS;
+		while ((producer.sent.size() < 2) &&
+			(System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		spool.close(1000);
+		assertEquals(2, producer.sent.size());
+
+		// closed spools don't take messages
+		assertFalse(spool.appendLater("test", "three".getBytes(), callback,
+			true));
+	}
+
+	@Test
+	public void testSkipsCorruptRecord() throws IOException,
+		InterruptedException {
+		File segment = spool("one", "two", "three");
+
+		// damage the data of the second record
+		long second = DiskSpool.RECORD_HEADER_SIZE + 2 + 4 + 3;
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.seek(second + DiskSpool.RECORD_HEADER_SIZE + 2 + 4);
+		file.write('X');
+		file.close();
+
+		// the records after it are still forwarded
+		RecordingProducer producer = new RecordingProducer();
+		DiskSpool spool = replay(segment.getParentFile(), producer, 2);
+		assertEquals(2, producer.sent.size());
+		assertEquals("test:one", producer.sent.get(0));
+		assertEquals("test:three", producer.sent.get(1));
+		assertEquals(1, spool.getCorruptCount());
+		assertFalse(segment.exists());
+	}
+
+	@Test
+	public void testSkipsPartialRecord() throws IOException,
+		InterruptedException {
+		File segment = spool("one", "two");
+
+		// a crash part way through writing the last record
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(file.length() - 2);
+		file.close();
+
+		RecordingProducer producer = new RecordingProducer();
+		DiskSpool spool = replay(segment.getParentFile(), producer, 1);
+		assertEquals(1, producer.sent.size());
+		assertEquals("test:one", producer.sent.get(0));
+		assertEquals(1, spool.getCorruptCount());
+	}
+}
@@ -0,0 +1,149 @@
+package gov.usgs.hazdevbroker;
+
+import static gov.usgs.hazdevbroker.TestUtil.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.junit.Test;
+
+/**
+ * Tests the rate limit policies of the RateLimiter
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class RateLimiterTest {
+
+	/**
+	 * The messages used by the tests
+	 */
+	private static final byte[] PICK = message("Type", "Pick");
+	private static final byte[] DETECTION = message("Type", "Detection");
+
+	/**
+	 * A callback counting how sends complete
+	 */
+	private static class CountingCallback implements Callback {
+		AtomicInteger succeeded = new AtomicInteger(0);
+		AtomicInteger failed = new AtomicInteger(0);
+
+		public void onCompletion(RecordMetadata metadata,
+			Exception exception) {
+			if (exception != null) {
+				assertTrue(exception instanceof RateLimitException);
+				failed.incrementAndGet();
+			} else {
+				succeeded.incrementAndGet();
+			}
+		}
+	}
+
+	@Test
+	public void testNoLimits() {
+		RateLimiter limiter = new RateLimiter(null, 0, 0, 1,
+			RateLimiter.POLICY_SHED, 10);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limiter.admit("picks", PICK, null, false));
+		}
+		assertEquals(0, limiter.getShedCount());
+	}
+
+	@Test
+	public void testBlock() {
+		RateLimiter limiter = new RateLimiter(null, 100, 0, 0.1,
+			RateLimiter.POLICY_BLOCK, 10);
+
+		// a burst of 10 goes at once, the next 20 take about 200 ms
+		long start = System.nanoTime();
+		for (int i = 0; i < 30; i++) {
+			assertTrue(limiter.admit("picks", PICK, null, false));
+		}
+		long elapsedMs = (System.nanoTime() - start) / 1000000L;
+		assertTrue("took " + String.valueOf(elapsedMs) + " ms",
+			(elapsedMs >= 150) && (elapsedMs < 1000));
+		assertTrue(limiter.getThrottledCount() > 0);
+	}
+
+	@Test
+	public void testShedReportsFailure() {
+		RateLimiter limiter = new RateLimiter(null, 10, 0, 1,
+			RateLimiter.POLICY_SHED, 10);
+		CountingCallback callback = new CountingCallback();
+
+		int admitted = 0;
+		for (int i = 0; i < 20; i++) {
+			if (limiter.admit("picks", PICK, callback, false)) {
+				admitted++;
+			}
+		}
+
+		// the burst is sent, the rest are dropped as failures
+		assertEquals(10, admitted);
+		assertEquals(10, limiter.getShedCount());
+		assertEquals(10, callback.failed.get());
+		assertEquals(0, callback.succeeded.get());
+	}
+
+	@Test
+	public void testShedOnlyLowPriority() {
+		RateLimiter limiter = new RateLimiter(null, 10, 0, 1,
+			RateLimiter.POLICY_SHED, 10);
+		limiter.setShedField("Type", Arrays.asList("Pick"));
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(limiter.admit("picks", PICK, null, false));
+		}
+
+		// over the limits, picks are dropped, detections aren't
+		assertFalse(limiter.admit("picks", PICK, null, false));
+		assertTrue(limiter.admit("picks", DETECTION, null, false));
+		assertEquals(1, limiter.getShedCount());
+	}
+
+	@Test
+	public void testQueueFullReportsFailure() {
+		RateLimiter limiter = new RateLimiter(null, 10, 0, 1,
+			RateLimiter.POLICY_QUEUE, 5);
+		CountingCallback callback = new CountingCallback();
+
+		// without the queue thread, nothing leaves the queue
+		int admitted = 0;
+		for (int i = 0; i < 20; i++) {
+			if (limiter.admit("picks", PICK, callback, false)) {
+				admitted++;
+			}
+		}
+
+		assertEquals(10, admitted);
+		assertEquals(5, limiter.getQueueSize());
+		assertEquals(5, limiter.getShedCount());
+		assertEquals(5, callback.failed.get());
+	}
+
+	@Test
+	public void testTopicLimits() {
+		RateLimiter limiter = new RateLimiter(null, 10, 0, 1,
+			RateLimiter.POLICY_SHED, 10);
+		limiter.setTopicLimits("status", 0, 0);
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(limiter.admit("status", PICK, null, false));
+		}
+		assertEquals(0, limiter.getShedCount());
+	}
+
+	@Test
+	public void testUrgentNeverDelayed() {
+		RateLimiter limiter = new RateLimiter(null, 10, 0, 1,
+			RateLimiter.POLICY_SHED, 10);
+		for (int i = 0; i < 20; i++) {
+			assertTrue(limiter.admit("picks", PICK, null, true));
+		}
+
+		// but uses up the limits
+		assertFalse(limiter.admit("picks", PICK, null, false));
+	}
+}
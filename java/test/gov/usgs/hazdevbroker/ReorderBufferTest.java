@@ -0,0 +1,121 @@
+package gov.usgs.hazdevbroker;
+
+import static gov.usgs.hazdevbroker.TestUtil.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+/**
+ * Tests ordering records by message time with the ReorderBuffer
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class ReorderBufferTest {
+
+	/**
+	 * The partitions used by the tests
+	 */
+	private static final TopicPartition PARTITION0 =
+		new TopicPartition("test", 0);
+	private static final TopicPartition PARTITION1 =
+		new TopicPartition("test", 1);
+
+	@Test
+	public void testOrdersAcrossPartitions() {
+		ReorderBuffer buffer = new ReorderBuffer("Time", 0, 60000, 100);
+		buffer.add(record("test", 0, 0, message("Time", time(3))));
+		buffer.add(record("test", 1, 0, message("Time", time(1))));
+		buffer.add(record("test", 0, 1, message("Time", time(5))));
+		buffer.add(record("test", 1, 1, message("Time", time(4))));
+
+		// both partitions are past 4 seconds
+		assertEquals(Arrays.asList(0L, 0L, 1L), offsets(buffer.drain()));
+		assertEquals(1, buffer.size());
+
+		// partition 1 moves past 5 seconds
+		buffer.advance(PARTITION1,
+			Utility.parseTime(time(6)));
+		assertEquals(Arrays.asList(1L), offsets(buffer.drain()));
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void testWaitsOnAssignedPartitions() {
+		ReorderBuffer buffer = new ReorderBuffer("Time", 0, 60000, 100);
+		buffer.addPartitions(Arrays.asList(PARTITION0, PARTITION1));
+		buffer.add(record("test", 0, 0, message("Time", time(1))));
+		buffer.add(record("test", 0, 1, message("Time", time(2))));
+
+		// nothing from partition 1 yet
+		assertTrue(buffer.drain().isEmpty());
+
+		buffer.add(record("test", 1, 0, message("Time", time(3))));
+		assertEquals(Arrays.asList(0L, 1L), offsets(buffer.drain()));
+
+		// until it is revoked
+		buffer.add(record("test", 0, 2, message("Time", time(5))));
+		buffer.removePartitions(Arrays.asList(PARTITION1));
+		assertEquals(Arrays.asList(0L, 2L), offsets(buffer.drain()));
+	}
+
+	@Test
+	public void testMaxRecords() {
+		ReorderBuffer buffer = new ReorderBuffer("Time", 0, 60000, 2);
+		buffer.addPartitions(Arrays.asList(PARTITION0, PARTITION1));
+		buffer.add(record("test", 0, 0, message("Time", time(2))));
+		buffer.add(record("test", 0, 1, message("Time", time(3))));
+		buffer.add(record("test", 0, 2, message("Time", time(4))));
+
+		// the earliest makes room
+		assertEquals(Arrays.asList(0L), offsets(buffer.drain()));
+		assertEquals(2, buffer.size());
+	}
+
+	@Test
+	public void testMaxDelay() throws InterruptedException {
+		ReorderBuffer buffer = new ReorderBuffer("Time", 0, 0, 100);
+		buffer.addPartitions(Arrays.asList(PARTITION0, PARTITION1));
+		buffer.add(record("test", 0, 0, message("Time", time(2))));
+		Thread.sleep(5);
+		assertEquals(Arrays.asList(0L), offsets(buffer.drain()));
+	}
+
+	@Test
+	public void testLateAndUntimed() {
+		ReorderBuffer buffer = new ReorderBuffer("Time", 0, 60000, 100);
+		buffer.add(record("test", 0, 0, message("Time", time(5))));
+		assertEquals(1, buffer.drain().size());
+
+		buffer.add(record("test", 0, 1, message("Time", time(1))));
+		buffer.add(record("test", 0, 2, message()));
+		assertEquals(Arrays.asList(1L, 2L), offsets(buffer.drain()));
+		assertEquals(1, buffer.getLateCount());
+	}
+
+	@Test
+	public void testLowestOffsetsIgnoreBackfill() {
+		ReorderBuffer buffer = new ReorderBuffer("Time", 0, 60000, 100);
+		buffer.addPartitions(Arrays.asList(PARTITION0, PARTITION1));
+
+		// backfilled, then live
+		buffer.add(record("test", 0, 10, message("Time", time(1))));
+		buffer.add(record("test", 0, 500, message("Time", time(2))));
+		buffer.add(record("test", 0, 501, message("Time", time(3))));
+		assertTrue(buffer.drain().isEmpty());
+
+		HashMap<TopicPartition, Long> floors =
+			new HashMap<TopicPartition, Long>();
+		floors.put(PARTITION0, 500L);
+		Map<TopicPartition, Long> lowest = buffer.getLowestOffsets(floors);
+		assertEquals(Long.valueOf(500), lowest.get(PARTITION0));
+
+		// no floor, nothing live yet
+		floors.clear();
+		assertTrue(buffer.getLowestOffsets(floors).isEmpty());
+	}
+}
@@ -0,0 +1,106 @@
+package gov.usgs.hazdevbroker;
+
+import static gov.usgs.hazdevbroker.TestUtil.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests rotating archive files by size with the RotatingArchiveWriter
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class RotatingArchiveWriterTest {
+
+	/**
+	 * A factory writing plain text archives
+	 */
+	private static final ArchiveWriterFactory TEXT_FACTORY =
+		new ArchiveWriterFactory() {
+			public ArchiveWriter createWriter(String fileName)
+				throws IOException {
+				return (new TextArchiveWriter(fileName));
+			}
+
+			public ArchiveWriter createCompressedWriter(String fileName)
+				throws IOException {
+				return (new BlockArchiveWriter(fileName));
+			}
+		};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Counts the messages in the archive files in the test folder
+	 */
+	private int countMessages() throws IOException {
+		int count = 0;
+		for (File file : folder.getRoot().listFiles()) {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			while (reader.readLine() != null) {
+				count++;
+			}
+			reader.close();
+		}
+		return (count);
+	}
+
+	@Test
+	public void testRotateBySize() throws IOException {
+		RotatingArchiveWriter writer = new RotatingArchiveWriter(
+			folder.getRoot().getPath(), "test", ".archive",
+			RotatingArchiveWriter.HOUR_PERIOD, 100, false, TEXT_FACTORY);
+		for (int i = 0; i < 20; i++) {
+			writer.write(message("Seq", i));
+		}
+		writer.sync();
+		writer.close();
+
+		assertTrue(folder.getRoot().listFiles().length > 1);
+		assertEquals(20, countMessages());
+	}
+
+	@Test(timeout = 10000)
+	public void testSyncWhileRotating() throws Exception {
+		final RotatingArchiveWriter writer = new RotatingArchiveWriter(
+			folder.getRoot().getPath(), "test", ".archive",
+			RotatingArchiveWriter.HOUR_PERIOD, 100, false, TEXT_FACTORY);
+
+		// keep rotating while syncing
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<Exception> failure =
+			new AtomicReference<Exception>();
+		Thread writerThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; running.get(); i++) {
+						writer.write(message("Seq", i));
+					}
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			}
+		});
+		writerThread.start();
+
+		// every sync finishes even though rotations keep coming
+		for (int i = 0; i < 20; i++) {
+			writer.sync();
+		}
+		running.set(false);
+		writerThread.join();
+		assertNull(failure.get());
+
+		writer.close();
+	}
+}
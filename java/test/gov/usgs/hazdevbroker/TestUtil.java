@@ -0,0 +1,95 @@
+package gov.usgs.hazdevbroker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.json.simple.JSONValue;
+
+/**
+ * Builders for the messages and records used by the unit tests
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class TestUtil {
+
+	/**
+	 * Builds a JSON message from the provided field names and values
+	 *
+	 * @param fields
+	 *            - The field names and values, alternating. Dot separated
+	 *            names such as "Site.Station" are nested
+	 * @return Returns a byte[] containing the message, fields in the order
+	 *         provided
+	 */
+	public static byte[] message(Object... fields) {
+		LinkedHashMap<String, Object> message =
+			new LinkedHashMap<String, Object>();
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			String[] path = fields[i].toString().split("\\.");
+			Map<String, Object> parent = message;
+			for (int j = 0; j < path.length - 1; j++) {
+				if (!(parent.get(path[j]) instanceof Map)) {
+					parent.put(path[j], new LinkedHashMap<String, Object>());
+				}
+				@SuppressWarnings("unchecked")
+				Map<String, Object> child =
+					(Map<String, Object>) parent.get(path[j]);
+				parent = child;
+			}
+			parent.put(path[path.length - 1], fields[i + 1]);
+		}
+		return (JSONValue.toJSONString(message).getBytes());
+	}
+
+	/**
+	 * Builds a time string the provided number of seconds after
+	 * 2020-01-01T00:00:00.000Z
+	 *
+	 * @param second
+	 *            - An int containing the seconds, less than an hour
+	 * @return Returns a String containing the time
+	 */
+	public static String time(int second) {
+		return (String.format("2020-01-01T00:%02d:%02d.000Z", second / 60,
+			second % 60));
+	}
+
+	/**
+	 * Builds a consumed record holding the provided message
+	 *
+	 * @param topic
+	 *            - A String containing the topic
+	 * @param partition
+	 *            - An int containing the partition
+	 * @param offset
+	 *            - A long containing the offset
+	 * @param message
+	 *            - A byte[] containing the message
+	 * @return Returns the ConsumerRecord
+	 */
+	public static ConsumerRecord<String, byte[]> record(String topic,
+		int partition, long offset, byte[] message) {
+		return (new ConsumerRecord<String, byte[]>(topic, partition, offset,
+			null, message));
+	}
+
+	/**
+	 * Gets the offsets of the provided records
+	 *
+	 * @param records
+	 *            - A List of ConsumerRecords
+	 * @return Returns an ArrayList&lt;Long&gt; containing their offsets, in
+	 *         order
+	 */
+	public static ArrayList<Long> offsets(
+		List<ConsumerRecord<String, byte[]>> records) {
+		ArrayList<Long> offsets = new ArrayList<Long>();
+		for (ConsumerRecord<String, byte[]> record : records) {
+			offsets.add(record.offset());
+		}
+		return (offsets);
+	}
+}
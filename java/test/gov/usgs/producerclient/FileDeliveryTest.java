@@ -0,0 +1,75 @@
+package gov.usgs.producerclient;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import gov.usgs.hazdevbroker.RateLimitException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests tracking the delivery of an input file with the FileDelivery
+ *
+ * @author U.S. Geological Survey &lt;jpatton at usgs.gov&gt;
+ */
+public class FileDeliveryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The delivery used by each test
+	 */
+	private FileDelivery delivery;
+
+	@Before
+	public void setUp() throws IOException {
+		File input = folder.newFile("test.jsonl");
+		delivery = new FileDelivery(input);
+	}
+
+	@Test
+	public void testDelivered() {
+		delivery.lineSent(0, 0).onCompletion(null, null);
+		delivery.lineSent(1, 10).onCompletion(null, null);
+		delivery.readCompleted(20, 2);
+
+		assertTrue(delivery.isComplete());
+		assertTrue(delivery.isSuccessful());
+		assertArrayEquals(new long[] { 20, 2 }, delivery.getCheckpoint());
+	}
+
+	@Test
+	public void testFailedIsRetried() {
+		delivery.lineSent(0, 0).onCompletion(null, null);
+		delivery.lineSent(1, 10).onCompletion(null,
+			new IOException("failed"));
+		delivery.readCompleted(20, 2);
+
+		assertTrue(delivery.isComplete());
+		assertFalse(delivery.isSuccessful());
+		assertEquals(1, delivery.getFailureCount());
+
+		// resume from the failed line
+		assertArrayEquals(new long[] { 10, 1 }, delivery.getCheckpoint());
+	}
+
+	@Test
+	public void testDroppedIsFinal() {
+		delivery.lineSent(0, 0).onCompletion(null,
+			new RateLimitException("dropped"));
+		delivery.lineSent(1, 10).onCompletion(null, null);
+		delivery.readCompleted(20, 2);
+
+		assertTrue(delivery.isComplete());
+		assertTrue(delivery.isSuccessful());
+		assertEquals(0, delivery.getFailureCount());
+		assertEquals(1, delivery.getDroppedCount());
+		assertArrayEquals(new long[] { 20, 2 }, delivery.getCheckpoint());
+	}
+}